@@ -0,0 +1,390 @@
+import java.util.Arrays;
+
+/**
+ * AnomalyDetector.java
+ *
+ * Raises alerts on suspicious traffic while the capture is decoded, from the header fields the views already parse,
+ * so no second tool has to read the capture again. Rules and their thresholds (--detect):
+ * synflood  - SYNs per second to one host (default 100)
+ * halfopen  - connections to one host whose handshake was not completed or reset (default 100)
+ * portscan  - ports of one host probed by one source within about a minute (default 50)
+ * hostscan  - hosts probed on one port (or pinged) by one source within about a minute (default 50)
+ * arpspoof  - an IP address claimed by a new MAC address within this many seconds of the last claim (default 300)
+ * ttl       - a source whose TTL moves by more than this many hops from its previous packet, or a TTL of 0
+ *             (default 10)
+ * fragments - IPv4 fragments overlapping an earlier fragment of the same datagram (on or off)
+ *
+ * A probe is a TCP segment without ACK (SYN, FIN, NULL and Xmas scans), a UDP datagram to a port no higher than its
+ * source port, or an ICMP echo request; only the first probe of a source to a host and port within a minute counts.
+ * Fragments are checked as captured, so with --defrag, where the stages only see whole datagrams, they are not.
+ *
+ * Every packet is handed once to the rules that apply to its kind; the rules share the lookups they have in common
+ * (a new probe feeds both scan rules). All the state lives in tables of fixed size allocated up front, about 8 MB:
+ * the rates and counts are DecayingCounters that fade with capture time, and the pending handshakes, recent probes,
+ * TTLs, ARP bindings and fragment ranges sit in direct mapped tables whose entries a newer key or their age replaces.
+ * An alert is printed between the packets at most once a minute per rule and key, and the run ends with the number
+ * of alerts per rule.
+ *
+ * Output:
+ * Alert 1700000001.204000 SYN flood: 10.0.0.1 receives 950 SYNs/s
+ * Alert 1700000012.000871 port scan: 10.0.0.9 probed 50 ports of 192.168.0.1
+ * Alert 1700000020.511000 ARP spoofing: 192.168.0.1 is-at 02:00:00:00:00:66, was 02:00:00:00:00:01
+ * Alerts: 3 (1 SYN flood, 1 port scan, 1 ARP spoofing)
+ *
+ **/
+
+public class AnomalyDetector implements PacketStage {
+
+    //Rules, indexes of the thresholds
+    public static final int SYN_FLOOD = 0;
+    public static final int HALF_OPEN = 1;
+    public static final int PORT_SCAN = 2;
+    public static final int HOST_SCAN = 3;
+    public static final int ARP_SPOOF = 4;
+    public static final int TTL = 5;
+    public static final int FRAGMENTS = 6;
+
+    /** Names of the rules on the command line, in the order of their numbers. */
+    static final String[] RULES = {"synflood", "halfopen", "portscan", "hostscan", "arpspoof", "ttl", "fragments"};
+    /** Default thresholds of the rules. */
+    static final long[] DEFAULTS = {100, 100, 50, 50, 300, 10, 1};
+    private static final String[] LABELS = {"SYN flood", "half-open", "port scan", "host scan", "ARP spoofing",
+            "TTL", "fragment overlap"};
+
+    private static final long SECOND = 1_000_000_000L;
+    //Time a handshake may take, a probe is remembered, a datagram may take and between two alerts on one key
+    private static final long HANDSHAKE_TIMEOUT = 30 * SECOND;
+    private static final long PROBE_MEMORY = 60 * SECOND;
+    private static final long FRAGMENT_TIMEOUT = 30 * SECOND;
+    private static final long ALERT_INTERVAL = 60 * SECOND;
+    //Fragment ranges kept per datagram
+    private static final int RANGES = 8;
+
+    private final TextOutput out;
+    private final long[] thresholds;
+    private final long[] alerts = new long[RULES.length];
+
+    //SYNs per destination host, and handshakes started minus handshakes ended
+    private final DecayingCounters syns = new DecayingCounters(1 << 15, 1);
+    private final DecayingCounters halfOpen = new DecayingCounters(1 << 15, HANDSHAKE_TIMEOUT / SECOND);
+    //New probes per source and destination host, and per source and destination port
+    private final DecayingCounters ports = new DecayingCounters(1 << 15, PROBE_MEMORY / SECOND);
+    private final DecayingCounters hosts = new DecayingCounters(1 << 15, PROBE_MEMORY / SECOND);
+
+    //Direct mapped tables: a slot holds the (never 0) fingerprint of its key, 0 when empty
+    private final long[] handshakes = new long[1 << 16];
+    private final long[] handshakeTimes = new long[handshakes.length];
+    private final int[] handshakeHosts = new int[handshakes.length];
+    private final long[] probes = new long[1 << 17];
+    private final long[] probeTimes = new long[probes.length];
+    private final long[] sources = new long[1 << 16];
+    private final long[] sourceTimes = new long[sources.length];
+    private final byte[] sourceTtls = new byte[sources.length];
+    private final long[] bindings = new long[1 << 12];
+    private final long[] bindingTimes = new long[bindings.length];
+    private final long[] bindingMacs = new long[bindings.length];
+    private final long[] datagrams = new long[1 << 10];
+    private final long[] datagramTimes = new long[datagrams.length];
+    private final int[] datagramRanges = new int[datagrams.length * RANGES * 2];
+    private final int[] datagramCounts = new int[datagrams.length];
+    private final long[] raised = new long[1 << 12];
+    private final long[] raisedTimes = new long[raised.length];
+
+    /**
+     * Creates the stage.
+     * @param out Writer the alerts are printed to
+     * @param thresholds Threshold per rule, 0 for a rule that is off; see {@link #rules(String)}
+     */
+    public AnomalyDetector(TextOutput out, long[] thresholds) {
+        this.out = out;
+        this.thresholds = thresholds;
+    }
+
+    /**
+     * Parses the rules of --detect: "all", or a comma separated list of rule names, each optionally followed by
+     * =threshold, Eg. "synflood,portscan=20,ttl=5". "all" may be followed by rules to change.
+     * @param text Rules
+     * @return Threshold per rule, 0 for a rule that is off
+     * @throws IllegalArgumentException If a rule is unknown or a threshold is not a positive number
+     */
+    static long[] rules(String text) {
+        long[] thresholds = new long[RULES.length];
+        for (String rule : text.split(",")) {
+            String name = rule.trim();
+            long threshold = -1;
+            int equals = name.indexOf('=');
+            if (equals >= 0) {
+                try {
+                    threshold = Long.parseLong(name.substring(equals + 1).trim());
+                } catch (NumberFormatException e) {
+                    threshold = 0;
+                }
+                if (threshold <= 0) {
+                    throw new IllegalArgumentException("Bad threshold in " + rule);
+                }
+                name = name.substring(0, equals).trim();
+            }
+            if (name.equals("all") && threshold < 0) {
+                for (int i = 0; i < RULES.length; i++) {
+                    thresholds[i] = thresholds[i] > 0 ? thresholds[i] : DEFAULTS[i];
+                }
+                continue;
+            }
+            int index = Arrays.asList(RULES).indexOf(name);
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown detection rule " + name);
+            }
+            thresholds[index] = threshold > 0 ? threshold : DEFAULTS[index];
+        }
+        return thresholds;
+    }
+
+    @Override
+    public void accept(PacketView packet) {
+        long now = packet.timestamp();
+        if (packet.isArp()) {
+            if (thresholds[ARP_SPOOF] > 0) {
+                arp(packet.arp(), now);
+            }
+            return;
+        }
+        if (!packet.isIpv4()) {
+            return;
+        }
+        Ipv4View ip = packet.ipv4();
+        if (thresholds[TTL] > 0) {
+            ttl(ip, now);
+        }
+        if (ip.isFragment()) {
+            if (thresholds[FRAGMENTS] > 0) {
+                fragment(ip, now);
+            }
+            if (ip.fragmentOffset() != 0) {
+                return;
+            }
+        }
+        int source = ip.source();
+        int destination = ip.destination();
+        if (ip.isTcp()) {
+            TcpView tcp = ip.tcp();
+            int flags = tcp.flags();
+            if ((flags & TcpView.ACK) == 0) {
+                probe(source, destination, Ipv4View.PROTOCOL_TCP, tcp.destinationPort(), now);
+            }
+            if ((flags & (TcpView.SYN | TcpView.ACK | TcpView.RST)) == TcpView.SYN) {
+                syn(source, tcp.sourcePort(), destination, tcp.destinationPort(), now);
+            } else if ((flags & TcpView.RST) != 0) {
+                //Either side may reset a handshake
+                handshakeEnd(source, tcp.sourcePort(), destination, tcp.destinationPort(), now);
+                handshakeEnd(destination, tcp.destinationPort(), source, tcp.sourcePort(), now);
+            } else if ((flags & (TcpView.SYN | TcpView.ACK)) == TcpView.ACK) {
+                handshakeEnd(source, tcp.sourcePort(), destination, tcp.destinationPort(), now);
+            }
+        } else if (ip.isUdp()) {
+            UdpView udp = ip.udp();
+            //The side with the lower port is taken for the service
+            if (udp.destinationPort() <= udp.sourcePort()) {
+                probe(source, destination, Ipv4View.PROTOCOL_UDP, udp.destinationPort(), now);
+            }
+        } else if (ip.isIcmp() && ip.icmp().type() == 8) {
+            probe(source, destination, Ipv4View.PROTOCOL_ICMP, 0, now);
+        }
+    }
+
+    /** Counts a SYN towards its host's SYN rate, and its handshake as half-open until it completes. */
+    private void syn(int source, int sourcePort, int destination, int destinationPort, long now) {
+        long host = destination & 0xFFFFFFFFL;
+        if (thresholds[SYN_FLOOD] > 0) {
+            double rate = syns.perSecond(syns.add(host, now, 1));
+            if (rate >= thresholds[SYN_FLOOD] && raise(SYN_FLOOD, host, now)) {
+                out.ipv4(destination).print(" receives ").print(Math.round(rate)).println(" SYNs/s");
+            }
+        }
+        if (thresholds[HALF_OPEN] > 0) {
+            long key = fingerprint(connection(source, sourcePort, destination, destinationPort), 0);
+            int slot = (int) key & handshakes.length - 1;
+            if (handshakes[slot] == key && now - handshakeTimes[slot] < HANDSHAKE_TIMEOUT) {
+                //A SYN sent again for the same handshake
+                return;
+            }
+            handshakes[slot] = key;
+            handshakeTimes[slot] = now;
+            handshakeHosts[slot] = destination;
+            double open = halfOpen.add(host, now, 1);
+            if (open >= thresholds[HALF_OPEN] && raise(HALF_OPEN, host, now)) {
+                out.ipv4(destination).print(" has ").print(Math.round(open)).println(" half-open connections");
+            }
+        }
+    }
+
+    /** Ends the handshake a segment from the client side (or a reset) belongs to, if it is pending. */
+    private void handshakeEnd(int client, int clientPort, int server, int serverPort, long now) {
+        if (thresholds[HALF_OPEN] == 0) {
+            return;
+        }
+        long key = fingerprint(connection(client, clientPort, server, serverPort), 0);
+        int slot = (int) key & handshakes.length - 1;
+        if (handshakes[slot] == key) {
+            handshakes[slot] = 0;
+            if (now - handshakeTimes[slot] < HANDSHAKE_TIMEOUT) {
+                halfOpen.add(handshakeHosts[slot] & 0xFFFFFFFFL, now, -1);
+            }
+        }
+    }
+
+    /** Counts a probe towards both scan rules, the first time the source probes that host and port. */
+    private void probe(int source, int destination, int protocol, int port, long now) {
+        if (thresholds[PORT_SCAN] == 0 && thresholds[HOST_SCAN] == 0) {
+            return;
+        }
+        long pair = (long) source << 32 | destination & 0xFFFFFFFFL;
+        long service = (source & 0xFFFFFFFFL) << 24 | protocol << 16 | port;
+        long key = fingerprint(pair, service);
+        int slot = (int) key & probes.length - 1;
+        boolean known = probes[slot] == key && now - probeTimes[slot] < PROBE_MEMORY;
+        probes[slot] = key;
+        probeTimes[slot] = now;
+        if (known) {
+            return;
+        }
+        if (thresholds[PORT_SCAN] > 0 && protocol != Ipv4View.PROTOCOL_ICMP) {
+            double count = ports.add(pair, now, 1);
+            if (count >= thresholds[PORT_SCAN] && raise(PORT_SCAN, pair, now)) {
+                out.ipv4(source).print(" probed ").print(Math.round(count)).print(" ports of ").ipv4(destination)
+                        .println();
+            }
+        }
+        if (thresholds[HOST_SCAN] > 0) {
+            double count = hosts.add(service, now, 1);
+            if (count >= thresholds[HOST_SCAN] && raise(HOST_SCAN, service, now)) {
+                out.ipv4(source).print(" probed ").print(Math.round(count)).print(" hosts on ");
+                if (protocol == Ipv4View.PROTOCOL_ICMP) {
+                    out.println("icmp echo");
+                } else {
+                    out.print(protocol == Ipv4View.PROTOCOL_TCP ? "tcp/" : "udp/").print(port).println();
+                }
+            }
+        }
+    }
+
+    /** Compares the sender binding of an ARP packet with the last one seen for its IP address. */
+    private void arp(ArpView arp, long now) {
+        int ip = arp.senderIp();
+        if (ip == 0) {
+            //ARP probes have no sender address yet
+            return;
+        }
+        long mac = arp.senderMac();
+        long key = fingerprint(ip & 0xFFFFFFFFL, 0);
+        int slot = (int) key & bindings.length - 1;
+        if (bindings[slot] == key && now - bindingTimes[slot] < thresholds[ARP_SPOOF] * SECOND
+                && bindingMacs[slot] != mac && raise(ARP_SPOOF, ip & 0xFFFFFFFFL, now)) {
+            out.ipv4(ip).print(" is-at ").mac(mac).print(", was ").mac(bindingMacs[slot]).println();
+        }
+        bindings[slot] = key;
+        bindingTimes[slot] = now;
+        bindingMacs[slot] = mac;
+    }
+
+    /** Compares the TTL of a datagram with the previous one from the same source. */
+    private void ttl(Ipv4View ip, long now) {
+        int ttl = ip.ttl();
+        int source = ip.source();
+        if (ttl == 0 && raise(TTL, source & 0xFFFFFFFFL, now)) {
+            out.ipv4(source).print(" -> ").ipv4(ip.destination()).println(" TTL 0");
+            return;
+        }
+        long key = fingerprint(source & 0xFFFFFFFFL, 1);
+        int slot = (int) key & sources.length - 1;
+        int previous = sourceTtls[slot] & 0xFF;
+        if (sources[slot] == key && Math.abs(ttl - previous) > thresholds[TTL]
+                && raise(TTL, source & 0xFFFFFFFFL, now)) {
+            out.ipv4(source).print(" -> ").ipv4(ip.destination()).print(" TTL ").print(ttl).print(", was ")
+                    .print(previous).println();
+        }
+        sources[slot] = key;
+        sourceTimes[slot] = now;
+        sourceTtls[slot] = (byte) ttl;
+    }
+
+    /** Checks a fragment against the byte ranges of the earlier fragments of its datagram. */
+    private void fragment(Ipv4View ip, long now) {
+        int start = ip.fragmentOffset() * 8;
+        int end = start + ip.payloadLength();
+        long key = fingerprint((long) ip.source() << 32 | ip.destination() & 0xFFFFFFFFL,
+                (long) ip.identification() << 8 | ip.protocol());
+        int slot = (int) key & datagrams.length - 1;
+        if (datagrams[slot] != key || now - datagramTimes[slot] >= FRAGMENT_TIMEOUT) {
+            datagrams[slot] = key;
+            datagramTimes[slot] = now;
+            datagramCounts[slot] = 0;
+        }
+        int base = slot * RANGES * 2;
+        for (int i = 0; i < datagramCounts[slot]; i++) {
+            int otherStart = datagramRanges[base + i * 2];
+            int otherEnd = datagramRanges[base + i * 2 + 1];
+            //The same fragment captured twice is a duplicate, not an overlap
+            if (start < otherEnd && otherStart < end && (start != otherStart || end != otherEnd)) {
+                if (raise(FRAGMENTS, key, now)) {
+                    out.ipv4(ip.source()).print(" -> ").ipv4(ip.destination()).print(" id 0x")
+                            .hex(ip.identification(), 4).print(" bytes ").print(start).print('-').print(end)
+                            .print(" overlap ").print(otherStart).print('-').print(otherEnd).println();
+                }
+                break;
+            }
+        }
+        if (datagramCounts[slot] < RANGES) {
+            datagramRanges[base + datagramCounts[slot] * 2] = start;
+            datagramRanges[base + datagramCounts[slot] * 2 + 1] = end;
+            datagramCounts[slot]++;
+        }
+    }
+
+    /**
+     * Starts an alert line unless the same rule fired on the same key within the alert interval.
+     * @return true if the caller should print the rest of the line
+     */
+    private boolean raise(int rule, long subject, long now) {
+        long key = fingerprint(subject, rule);
+        int slot = (int) key & raised.length - 1;
+        if (raised[slot] == key && now - raisedTimes[slot] < ALERT_INTERVAL) {
+            return false;
+        }
+        raised[slot] = key;
+        raisedTimes[slot] = now;
+        alerts[rule]++;
+        out.print("Alert ").print(now / SECOND).print('.').print(now / 1000 % 1_000_000, 6).print(' ')
+                .print(LABELS[rule]).print(": ");
+        return true;
+    }
+
+    @Override
+    public void finish() {
+        long total = 0;
+        for (long count : alerts) {
+            total += count;
+        }
+        if (out.verbosity() != TextOutput.Verbosity.NONE) {
+            out.println();
+        }
+        out.print("Alerts: ").print(total);
+        String separator = " (";
+        for (int rule = 0; rule < RULES.length; rule++) {
+            if (alerts[rule] > 0) {
+                out.print(separator).print(alerts[rule]).print(' ').print(LABELS[rule]);
+                separator = ", ";
+            }
+        }
+        out.println(total > 0 ? ")" : "");
+    }
+
+    /** @return Source and destination address and port of a TCP connection packed into one long */
+    private static long connection(int client, int clientPort, int server, int serverPort) {
+        return ((long) client << 32 | server & 0xFFFFFFFFL) ^ (long) clientPort << 48 ^ (long) serverPort << 16;
+    }
+
+    /** @return Hash of a key of up to two longs, never 0 so that 0 can mark an empty slot */
+    private static long fingerprint(long high, long low) {
+        return CountMinSketch.mix(CountMinSketch.mix(high) ^ low) | 1;
+    }
+} //AnomalyDetector
@@ -0,0 +1,74 @@
+import java.nio.ByteBuffer;
+
+/**
+ * ArpView.java
+ *
+ * Flyweight view of an ARP packet for Ethernet/IPv4 (6 byte hardware and 4 byte protocol addresses).
+ *
+ **/
+
+public class ArpView extends HeaderView {
+
+    /** Length of an Ethernet/IPv4 ARP packet. */
+    public static final int HEADER_LENGTH = 28;
+
+    public static final int REQUEST = 1;
+    public static final int REPLY = 2;
+
+    /**
+     * Points the view at an ARP packet.
+     * @param buffer Buffer holding the packet
+     * @param offset Absolute offset of the packet
+     * @param length Number of captured bytes
+     * @return This view
+     */
+    public ArpView wrap(ByteBuffer buffer, int offset, int length) {
+        set(buffer, offset, length);
+        return this;
+    }
+
+    /** @return Hardware type, 1 for Ethernet */
+    public int hardwareType() {
+        return u16(0);
+    }
+
+    /** @return Protocol type, 0x0800 for IPv4 */
+    public int protocolType() {
+        return u16(2);
+    }
+
+    /** @return Hardware address length */
+    public int hardwareLength() {
+        return u8(4);
+    }
+
+    /** @return Protocol address length */
+    public int protocolLength() {
+        return u8(5);
+    }
+
+    /** @return Operation: 1 request, 2 reply */
+    public int opcode() {
+        return u16(6);
+    }
+
+    /** @return Sender hardware address in the low 48 bits */
+    public long senderMac() {
+        return u48(8);
+    }
+
+    /** @return Sender protocol address */
+    public int senderIp() {
+        return s32(14);
+    }
+
+    /** @return Target hardware address in the low 48 bits */
+    public long targetMac() {
+        return u48(18);
+    }
+
+    /** @return Target protocol address */
+    public int targetIp() {
+        return s32(24);
+    }
+} //ArpView
@@ -0,0 +1,520 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * BatchAnalyzer.java
+ *
+ * Decodes many capture files in one run, Eg. the hundreds of files a capture host rotates through during an incident.
+ * The command line may name several files, directories (every pcap/pcapng file below them) and glob patterns
+ * ("captures/*.pcap", ** crosses directories). Files are taken in name order.
+ *
+ * By default the files are decoded side by side, one file per worker and as many workers as --threads (one per core
+ * if not given), so the wall clock time falls with the number of cores. Each file is read, filtered and decoded as a
+ * single capture would be, and the output keeps the file order: the text of the first unfinished file is written
+ * through, the text of the files behind it is held back until their turn. Every file feeds stages of its own (flows,
+ * top talkers) that are merged into the stages of the run in file order, so a flow spanning a file rotation is
+ * printed once and the totals cover the whole batch. Its retransmissions are counted within each file and added up:
+ * a segment sent again in a later file than the first copy is not counted, so a flow that spans files may show fewer
+ * retransmissions than the same traffic in one capture, never more (see FlowTable). The metrics and checksum counts
+ * are shared by the workers.
+ *
+ * With --merge the files are read as one stream in timestamp order instead, through a k-way merge of their readers:
+ * for output in capture order across the files and for the stages that need a single ordered stream (--windows,
+ * --streams, --columns). The stream is decoded like a single capture, on the --threads worker pool if asked for.
+ * Each file is opened when the merge reaches its first timestamp and closed when it runs out, so files that follow
+ * each other in time are only open one or two at a time.
+ *
+ * Limits:
+ * --max-open N       files open at once: the workers decoding side by side, or the files overlapping in time in a
+ *                    merge (a merge that needs more fails rather than lose the order)
+ * --batch-memory MB  half for the text held back behind the first unfinished file, whose workers wait once it is
+ *                    full; half shared by the flow tables and fragment buffers of the files being decoded
+ *
+ **/
+
+public class BatchAnalyzer {
+
+    /** Default number of capture files open at once. */
+    static final int DEFAULT_MAX_OPEN = 64;
+    /** Default memory for the text held back and the tables of the files being decoded. */
+    static final long DEFAULT_MEMORY = 256L << 20;
+
+    //Size of the text blocks a worker renders before handing them over
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final Options options;
+    private final Metrics metrics;
+    private TextOutput out;
+    //Side by side: the stages of the run, the text of every file and the first unfinished file
+    private List<PacketStage> stages;
+    private Part[] parts;
+    private int head;
+    private long heldBytes;
+    private long heldLimit;
+    private int flowLimit;
+    private int fragmentLimit;
+    private int failed;
+
+    /**
+     * Creates a batch analyzer.
+     * @param options Parsed command line
+     * @param metrics Metrics of the run, null if not collected
+     */
+    public BatchAnalyzer(Options options, Metrics metrics) {
+        this.options = options;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Expands the paths of the command line into the capture files of a batch.
+     * @param options Parsed command line
+     * @return The capture files in order, null if there is a single path that is neither a directory nor a pattern
+     * @throws IllegalArgumentException If a path is not a capture or matches none, or an option needs one capture
+     * @throws IOException If a directory cannot be listed
+     */
+    static List<Path> expand(Options options) throws IOException {
+        List<String> args = options.files;
+        if (args.isEmpty() || args.size() == 1 && !isPattern(args.get(0))
+                && !Files.isDirectory(Paths.get(args.get(0)))) {
+            return null;
+        }
+        Set<Path> files = new LinkedHashSet<>();
+        for (String arg : args) {
+            List<Path> matches;
+            if (isPattern(arg)) {
+                //Walk from the directory before the first wildcard, as deep as the pattern goes
+                String[] parts = arg.split("/", -1);
+                int fixed = 0;
+                while (fixed < parts.length - 1 && !isPattern(parts[fixed])) {
+                    fixed++;
+                }
+                String base = String.join("/", Arrays.copyOfRange(parts, 0, fixed));
+                Path directory = fixed == 0 ? Paths.get("") : Paths.get(base.isEmpty() ? "/" : base);
+                int depth = arg.contains("**") ? Integer.MAX_VALUE : parts.length - fixed;
+                matches = captures(directory, depth, FileSystems.getDefault().getPathMatcher("glob:" + arg));
+            } else if (Files.isDirectory(Paths.get(arg))) {
+                matches = captures(Paths.get(arg), Integer.MAX_VALUE, null);
+            } else {
+                Path path = Paths.get(arg);
+                if (!Files.isRegularFile(path) || !PcapReader.isCapture(path)) {
+                    throw new IllegalArgumentException(arg + " is not a pcap or pcapng file");
+                }
+                matches = List.of(path);
+            }
+            if (matches.isEmpty()) {
+                throw new IllegalArgumentException("No capture file matches " + arg);
+            }
+            files.addAll(matches);
+        }
+        if (options.packets != null) {
+            throw new IllegalArgumentException("--packets needs a single capture");
+        }
+        if (!options.merge && (options.windows != null || options.streams != null || options.columns != null
+                || options.detect != null || options.write != null)) {
+            throw new IllegalArgumentException(
+                    "--windows, --streams, --columns, --detect and --write need --merge with several captures");
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static boolean isPattern(String path) {
+        return path.indexOf('*') >= 0 || path.indexOf('?') >= 0 || path.indexOf('[') >= 0
+                || path.indexOf('{') >= 0;
+    }
+
+    /** @return The captures below a directory, in name order; only those matching the pattern if there is one */
+    private static List<Path> captures(Path directory, int depth, PathMatcher pattern) throws IOException {
+        List<Path> found = new ArrayList<>();
+        if (!Files.isDirectory(directory.toAbsolutePath())) {
+            return found;
+        }
+        try (Stream<Path> walk = Files.walk(directory, depth)) {
+            for (Path path : (Iterable<Path>) walk.sorted()::iterator) {
+                if (Files.isRegularFile(path) && (pattern == null || pattern.matches(path))
+                        && PcapReader.isCapture(path)) {
+                    found.add(path);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Decodes the files and prints the reports of the run.
+     * @param files Capture files from {@link #expand(Options)}
+     * @param out Writer the text is rendered into
+     * @throws IOException If writing the output fails, or a merge cannot read a file
+     */
+    public void run(List<Path> files, TextOutput out) throws IOException {
+        this.out = out;
+        if (options.merge && !options.index) {
+            merged(files);
+        } else {
+            sideBySide(files);
+        }
+        if (metrics != null) {
+            metrics.report(out);
+        }
+        out.flush();
+    }
+
+    /** Decodes the files as one stream in timestamp order. */
+    private void merged(List<Path> files) throws IOException {
+        if (options.write != null) {
+            //The files are mapped, so the frames can be batched up where they lie
+            pktanalyzer.writecapture(options, new Merge(files), true, out);
+            return;
+        }
+        List<PacketStage> stages = pktanalyzer.stages(options, out);
+        FragmentReassembler defrag = options.defrag ? new FragmentReassembler(options.fragmentMemory,
+                FragmentReassembler.DEFAULT_TIMEOUT) : null;
+        pktanalyzer.decode(options, new Merge(files), out, defrag, stages, metrics);
+    }
+
+    /** Decodes the files one per worker, keeping the output in file order. */
+    private void sideBySide(List<Path> files) throws IOException {
+        int workers = options.threads > 0 ? options.threads : Runtime.getRuntime().availableProcessors();
+        workers = Math.max(1, Math.min(files.size(), Math.min(options.maxOpen, workers)));
+        heldLimit = options.batchMemory / 2;
+        long share = options.batchMemory / 2 / workers;
+        flowLimit = (int) Math.max(1, Math.min(options.maxFlows, share / 2 / FlowTable.FLOW_BYTES));
+        fragmentLimit = (int) Math.min(options.fragmentMemory, share / 2);
+        //--index only builds the indexes, as with a single capture: no stage is fed, nor any of their files created
+        stages = options.index ? new ArrayList<>() : pktanalyzer.stages(options, out);
+        parts = new Part[files.size()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new Part(i);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "batch-decoder");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<?>> tasks = new ArrayList<>();
+        try {
+            //Queued in file order, so the first unfinished file always has a worker
+            for (int i = 0; i < parts.length; i++) {
+                int number = i;
+                tasks.add(pool.submit(() -> file(number, files.get(number))));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the captures");
+        } catch (ExecutionException e) {
+            throw new IOException("Decoder failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        pktanalyzer.finish(stages);
+        out.print("Captures: ").print(files.size()).print(" files");
+        if (failed > 0) {
+            out.print(", ").print(failed).print(" could not be read");
+        }
+        out.println();
+    }
+
+    /** Decodes one file of the batch. Runs on a worker. */
+    private void file(int number, Path path) {
+        TextOutput text = new TextOutput(parts[number], BLOCK_SIZE, options.verbosity);
+        List<PacketStage> fileStages = stages(text);
+        try {
+            if (options.verbosity != TextOutput.Verbosity.NONE || options.index) {
+                text.print("File: ").println(path.toString());
+            }
+            try {
+                read(path, text, fileStages);
+            } catch (IOException e) {
+                //A damaged file is reported in its place and the batch goes on
+                text.print("Cannot read ").print(path.toString()).print(": ").println(String.valueOf(e.getMessage()));
+                synchronized (this) {
+                    failed++;
+                }
+            }
+            text.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            done(number, fileStages);
+        }
+    }
+
+    private void read(Path path, TextOutput text, List<PacketStage> fileStages) throws IOException {
+        if (options.index) {
+            PacketIndex.build(path, text);
+            return;
+        }
+        FragmentReassembler defrag = options.defrag ? new FragmentReassembler(fragmentLimit,
+                FragmentReassembler.DEFAULT_TIMEOUT) : null;
+        PacketSource source = open(path, text);
+        Metrics.Stripe stripe = metrics != null ? metrics.acquire() : null;
+        try {
+            pktanalyzer.readcapture(source, text, options.filter, defrag, fileStages, stripe);
+        } finally {
+            if (stripe != null) {
+                metrics.release(stripe);
+            }
+        }
+        if (defrag != null) {
+            defrag.report(text);
+        }
+        if (source instanceof PacketIndex.Selection) {
+            ((PacketIndex.Selection) source).report(text);
+        }
+    }
+
+    /** @return Stages of one file: those of the run, with the memory share of a file */
+    private List<PacketStage> stages(TextOutput text) {
+        List<PacketStage> fileStages = new ArrayList<>();
+        if (options.index) {
+            return fileStages;
+        }
+        if (options.flows) {
+            FlowTable flows = new FlowTable(text, options.flowTimeout, flowLimit);
+            flows.hold();
+            fileStages.add(flows);
+        }
+        if (options.top > 0) {
+            fileStages.add(new TopTalkers(text, options.top, options.topCounters));
+        }
+        return fileStages;
+    }
+
+    /**
+     * Opens a capture, narrowed down by --from, --to and --filter through its index if it has one.
+     * @param path Path of the capture
+     * @param text Writer notes about the index are printed to
+     * @return Source of its records
+     * @throws IOException If the capture or its index cannot be read
+     */
+    private PacketSource open(Path path, TextOutput text) throws IOException {
+        PcapReader reader = options.mmap || options.write != null ? PcapReader.map(path) : PcapReader.open(path);
+        if (options.from == null && options.to == null && options.filter == null) {
+            return reader;
+        }
+        PacketIndex.Selection selection = pktanalyzer.select(options, path, reader, text);
+        return selection != null ? selection : reader;
+    }
+
+    /**
+     * Marks a file as decoded. Every file at the head that is done is merged into the stages of the run, in file
+     * order, and the text held back for the next one is written out.
+     */
+    private synchronized void done(int number, List<PacketStage> fileStages) {
+        parts[number].stages = fileStages;
+        while (head < parts.length && parts[head].stages != null) {
+            List<PacketStage> finished = parts[head].stages;
+            for (int i = 0; i < stages.size(); i++) {
+                stages.get(i).merge(finished.get(i));
+            }
+            parts[head] = null;
+            head++;
+            if (head < parts.length) {
+                for (byte[] block : parts[head].blocks) {
+                    out.write(block, 0, block.length);
+                    heldBytes -= block.length;
+                }
+                parts[head].blocks.clear();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Text of one file: written through while the file is the first unfinished one, held back before. A worker whose
+     * text does not fit in the memory left waits for the files ahead; they keep writing, so the wait always ends.
+     */
+    private final class Part extends OutputStream {
+        private final int number;
+        private final List<byte[]> blocks = new ArrayList<>();
+        //Stages of the file, set once it is decoded
+        private List<PacketStage> stages;
+
+        Part(int number) {
+            this.number = number;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            synchronized (BatchAnalyzer.this) {
+                if (number == head) {
+                    out.write(bytes, offset, length);
+                    return;
+                }
+                blocks.add(Arrays.copyOfRange(bytes, offset, offset + length));
+                heldBytes += length;
+                try {
+                    while (heldBytes > heldLimit && number != head) {
+                        BatchAnalyzer.this.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new InterruptedIOException("Interrupted while holding back text"));
+                }
+            }
+        }
+    }
+
+    /** One capture of a merge. */
+    private static final class Input {
+        final Path path;
+        final int order;
+        final long start;
+        PacketSource source;
+
+        Input(Path path, int order, long start) {
+            this.path = path;
+            this.order = order;
+            this.start = start;
+        }
+    }
+
+    /**
+     * The records of several captures in timestamp order, by a k-way merge over their readers. A capture is opened
+     * when the merge reaches its first timestamp and closed when it runs out. Records with the same timestamp come
+     * in file order, and packets are numbered across the captures.
+     */
+    private final class Merge implements PacketSource {
+        //Captures not opened yet, by first timestamp
+        private final Input[] waiting;
+        private int next;
+        private final PriorityQueue<Input> open = new PriorityQueue<>(Comparator
+                .comparingLong((Input input) -> input.source.timestamp()).thenComparingInt(input -> input.order));
+        private Input current;
+        private long packetNumber;
+        private boolean truncated;
+
+        Merge(List<Path> files) throws IOException {
+            List<Input> inputs = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                //Only the first record is read, one file at a time
+                try (PcapReader reader = PcapReader.open(files.get(i))) {
+                    if (reader.next()) {
+                        inputs.add(new Input(files.get(i), i, reader.timestamp()));
+                    }
+                }
+            }
+            inputs.sort(Comparator.comparingLong((Input input) -> input.start).thenComparingInt(input -> input.order));
+            waiting = inputs.toArray(new Input[0]);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (current != null) {
+                if (current.source.next()) {
+                    open.add(current);
+                } else {
+                    close(current);
+                }
+                current = null;
+            }
+            while (next < waiting.length && (open.isEmpty() || waiting[next].start <= open.peek().source.timestamp())) {
+                Input input = waiting[next++];
+                if (open.size() >= options.maxOpen) {
+                    throw new IOException("More than " + options.maxOpen + " captures overlap in time at "
+                            + input.path + ", raise --max-open");
+                }
+                input.source = BatchAnalyzer.this.open(input.path, out);
+                if (input.source.next()) {
+                    open.add(input);
+                } else {
+                    close(input);
+                }
+            }
+            current = open.poll();
+            if (current == null) {
+                return false;
+            }
+            packetNumber++;
+            return true;
+        }
+
+        private void close(Input input) throws IOException {
+            truncated |= input.source.truncated();
+            input.source.close();
+            input.source = null;
+        }
+
+        @Override
+        public boolean ready() {
+            return true;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return current.source.buffer();
+        }
+
+        @Override
+        public int frameOffset() {
+            return current.source.frameOffset();
+        }
+
+        @Override
+        public int captureLength() {
+            return current.source.captureLength();
+        }
+
+        @Override
+        public int originalLength() {
+            return current.source.originalLength();
+        }
+
+        @Override
+        public long timestamp() {
+            return current.source.timestamp();
+        }
+
+        @Override
+        public int linkType() {
+            return current.source.linkType();
+        }
+
+        @Override
+        public long packetNumber() {
+            return packetNumber;
+        }
+
+        @Override
+        public boolean truncated() {
+            return truncated;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                close(current);
+                current = null;
+            }
+            while (!open.isEmpty()) {
+                close(open.poll());
+            }
+        }
+    }
+} //BatchAnalyzer
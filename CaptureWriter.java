@@ -0,0 +1,224 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * CaptureWriter.java
+ *
+ * Writes frames out to a new capture, a pcap file or, if the name ends in .pcapng, a pcapng file. The frames are
+ * never copied on the heap: each record is a small header written into a preallocated direct buffer followed by a
+ * view of the frame bytes where the reader left them, and whole batches of records go out in one gathering write
+ * (FileChannel.write(ByteBuffer[])). Over a mapped capture the frame bytes go straight from the page cache into the
+ * output file, so carving part of a capture runs at the speed of the disk.
+ *
+ * Frames from a mapped file stay in place after the reader moves on and are batched up to {@link #BATCH} records;
+ * frames from a reader that refills its buffer in place (a stream, a pipe) are written one record at a time.
+ *
+ * Format:
+ * pcap   - little endian, microsecond timestamps, the link type of the first frame; frames of any other link type
+ *          are left out and counted
+ * pcapng - little endian Section Header, one Interface Description per link type with nanosecond timestamps, one
+ *          Enhanced Packet Block per frame
+ *
+ * With a snap length, frames are cut to that many bytes and keep their original length, Eg. to drop payloads before
+ * a capture is shared.
+ *
+ **/
+
+public class CaptureWriter implements Closeable {
+
+    /** Records per gathering write. */
+    static final int BATCH = 512;
+    /** Snap length written into the file headers when frames are not cut. */
+    static final int DEFAULT_SNAPLEN = 262144;
+
+    static final int PCAP_HEADER_LENGTH = 24;
+    static final int PCAP_RECORD_LENGTH = 16;
+    static final int PCAPNG_EPB_LENGTH = 28;
+    //Room per record in the header buffer: an Enhanced Packet Block header, then its padding and trailing length
+    private static final int SLOT = 32 + 8;
+
+    private final FileChannel file;
+    private final boolean pcapng;
+    private final int snaplen;
+    private final boolean inPlace;
+
+    private final ByteBuffer[] headers = new ByteBuffer[BATCH];
+    private final ByteBuffer[] trailers = new ByteBuffer[BATCH];
+    //View of the frame of each record, and the buffer it is a view of, so that it is only duplicated on a new buffer
+    private final ByteBuffer[] frames = new ByteBuffer[BATCH];
+    private final ByteBuffer[] framesOf = new ByteBuffer[BATCH];
+    //Buffers of the next gathering write: file or interface headers, then the records
+    private final ByteBuffer[] gather = new ByteBuffer[BATCH * 3 + 8];
+    private int records;
+    private int buffers;
+    private long pending;
+
+    //pcap: link type of the file, -1 before the first frame; pcapng: link type of each interface
+    private int linkType = -1;
+    private int[] interfaces = new int[0];
+
+    private long packets;
+    private long bytes;
+    private long skipped;
+
+    /**
+     * Creates the output file.
+     * @param path File to write, replaced if it exists; pcapng if its name ends in .pcapng, else pcap
+     * @param snaplen Bytes kept of each frame, 0 to keep whole frames
+     * @param inPlace true if the frame bytes of a record stay valid after the reader moves on, as in a mapped file
+     * @throws IOException If the file cannot be created
+     */
+    public CaptureWriter(Path path, int snaplen, boolean inPlace) throws IOException {
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.pcapng = path.getFileName().toString().toLowerCase().endsWith(".pcapng");
+        this.snaplen = snaplen > 0 ? snaplen : Integer.MAX_VALUE;
+        this.inPlace = inPlace;
+        ByteBuffer slots = ByteBuffer.allocateDirect(BATCH * SLOT).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < BATCH; i++) {
+            headers[i] = slots.duplicate().position(i * SLOT).limit(i * SLOT + 32).slice()
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            trailers[i] = slots.duplicate().position(i * SLOT + 32).limit(i * SLOT + SLOT).slice()
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Appends the current frame of a source.
+     * @param source Source positioned on a frame
+     * @throws IOException If writing fails
+     */
+    public void write(PacketSource source) throws IOException {
+        if (buffers + 5 > gather.length) {
+            //Room for a section and an interface header besides the record
+            flush();
+        }
+        int link = source.linkType();
+        if (!pcapng && linkType < 0) {
+            linkType = link;
+            gather[buffers++] = pcapHeader(link);
+        } else if (!pcapng && link != linkType) {
+            skipped++;
+            return;
+        }
+        int interfaceId = pcapng ? interfaceOf(link) : 0;
+        int length = Math.min(source.captureLength(), snaplen);
+        long timestamp = source.timestamp();
+        ByteBuffer header = headers[records].clear();
+        if (pcapng) {
+            int padding = -length & 3;
+            int total = PCAPNG_EPB_LENGTH + length + padding + 4;
+            header.putInt(PcapReader.PCAPNG_EPB).putInt(total).putInt(interfaceId).putInt((int) (timestamp >>> 32))
+                    .putInt((int) timestamp).putInt(length).putInt(source.originalLength()).flip();
+            ByteBuffer trailer = trailers[records].clear();
+            trailer.putInt(0, 0).putInt(padding, total).limit(padding + 4);
+            gather[buffers++] = header;
+            gather[buffers++] = frame(source, length);
+            gather[buffers++] = trailer;
+            pending += total;
+        } else {
+            header.putInt((int) Math.floorDiv(timestamp, 1_000_000_000L))
+                    .putInt((int) (Math.floorMod(timestamp, 1_000_000_000L) / 1000)).putInt(length)
+                    .putInt(source.originalLength()).flip();
+            gather[buffers++] = header;
+            gather[buffers++] = frame(source, length);
+            pending += PCAP_RECORD_LENGTH + length;
+        }
+        packets++;
+        bytes += length;
+        records++;
+        if (!inPlace || records == BATCH) {
+            flush();
+        }
+    }
+
+    /** @return View of the first length bytes of the current frame, without copying them */
+    private ByteBuffer frame(PacketSource source, int length) {
+        ByteBuffer buffer = source.buffer();
+        if (framesOf[records] != buffer) {
+            framesOf[records] = buffer;
+            frames[records] = buffer.duplicate();
+        }
+        ByteBuffer frame = frames[records];
+        frame.limit(source.frameOffset() + length).position(source.frameOffset());
+        return frame;
+    }
+
+    /** @return Number of the pcapng interface of a link type, declared in the file on its first frame */
+    private int interfaceOf(int link) {
+        for (int i = 0; i < interfaces.length; i++) {
+            if (interfaces[i] == link) {
+                return i;
+            }
+        }
+        if (interfaces.length == 0) {
+            ByteBuffer section = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+            section.putInt(PcapReader.PCAPNG_SHB).putInt(28).putInt(PcapReader.PCAPNG_BYTE_ORDER_MAGIC)
+                    .putShort((short) 1).putShort((short) 0).putLong(-1).putInt(28).flip();
+            gather[buffers++] = section;
+            pending += 28;
+        }
+        //if_tsresol (9) of 10^-9 seconds, then the end of the options
+        ByteBuffer description = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        description.putInt(PcapReader.PCAPNG_IDB).putInt(32).putShort((short) link).putShort((short) 0)
+                .putInt(snaplen == Integer.MAX_VALUE ? DEFAULT_SNAPLEN : snaplen)
+                .putShort((short) 9).putShort((short) 1).putInt(9).putInt(0).putInt(32).flip();
+        gather[buffers++] = description;
+        pending += 32;
+        interfaces = Arrays.copyOf(interfaces, interfaces.length + 1);
+        interfaces[interfaces.length - 1] = link;
+        return interfaces.length - 1;
+    }
+
+    /** @return pcap file header for a link type */
+    private ByteBuffer pcapHeader(int link) {
+        ByteBuffer header = ByteBuffer.allocate(PCAP_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(PcapReader.PCAP_MAGIC).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0)
+                .putInt(snaplen == Integer.MAX_VALUE ? DEFAULT_SNAPLEN : snaplen).putInt(link).flip();
+        pending += PCAP_HEADER_LENGTH;
+        return header;
+    }
+
+    /**
+     * Writes the records batched so far.
+     * @throws IOException If writing fails
+     */
+    public void flush() throws IOException {
+        while (pending > 0) {
+            //A single call may stop short, Eg. at the operating system's limit on buffers per call
+            pending -= file.write(gather, 0, buffers);
+        }
+        Arrays.fill(gather, 0, buffers, null);
+        records = 0;
+        buffers = 0;
+    }
+
+    /**
+     * Prints how much was written.
+     * @param out Writer the line is printed to
+     * @param path File written
+     */
+    public void report(TextOutput out, Path path) {
+        out.print("Written: ").print(packets).print(" packets, ").print(bytes).print(" bytes of frames to ")
+                .println(path.toString());
+        if (skipped > 0) {
+            out.print("Left out ").print(skipped).println(" frames of another link type than the first, which a pcap"
+                    + " file cannot mix; write a .pcapng file to keep them");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            file.close();
+        }
+    }
+} //CaptureWriter
@@ -0,0 +1,188 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Checksum.java
+ *
+ * Verifies the Internet checksums (RFC 1071) of IPv4 headers and of TCP, UDP and ICMP messages. The TCP and UDP
+ * checksums also cover a pseudo header of the IP addresses, the protocol and the transport length.
+ *
+ * The ones' complement sum is taken 8 bytes at a time: each long read from the buffer is split into two 32 bit
+ * halves that are added into a 64 bit accumulator, which cannot overflow below 2^31 bytes, and the carries are
+ * folded back into 16 bits once at the end. The sum does not depend on byte order (RFC 1071 section 2), so a buffer
+ * set to little endian, as the pcap reader does for little endian captures, is read as it is and only the folded
+ * result is swapped.
+ *
+ * verify() returns a set of flags per packet: which checksums could be checked and which of those are wrong. A
+ * transport checksum is only checked on an unfragmented datagram captured in full; fragments are checked once
+ * reassembled (--defrag).
+ *
+ **/
+
+public final class Checksum {
+
+    /** The IPv4 header checksum was checked. */
+    public static final int IP_CHECKED = 1;
+    /** The IPv4 header checksum is wrong. */
+    public static final int IP_BAD = 2;
+    /** The TCP, UDP or ICMP checksum was checked. */
+    public static final int TRANSPORT_CHECKED = 4;
+    /** The TCP, UDP or ICMP checksum is wrong. */
+    public static final int TRANSPORT_BAD = 8;
+
+    /** Status of a checksum field: checksums are not being verified. */
+    public static final int NOT_VERIFIED = -1;
+    /** Status of a checksum field: it cannot be checked, Eg. the datagram was not captured in full. */
+    public static final int UNVERIFIED = -2;
+    /** Status of a checksum field: it is correct. Any other status is the value the field should hold. */
+    public static final int CORRECT = -3;
+
+    //Offsets of the checksum fields
+    private static final int IP_FIELD = 10;
+    private static final int TCP_FIELD = 16;
+    private static final int UDP_FIELD = 6;
+    private static final int ICMP_FIELD = 2;
+
+    private Checksum() {
+    }
+
+    /**
+     * Ones' complement sum of a range of bytes, taken as 16 bit words in network byte order. A trailing odd byte is
+     * padded with a zero.
+     * @param buffer Buffer holding the bytes
+     * @param offset Absolute offset of the first byte
+     * @param length Number of bytes
+     * @param initial Sum to start from, Eg. that of a pseudo header
+     * @return Sum folded to 16 bits, not complemented: 0xFFFF over data holding its valid checksum
+     */
+    public static int sum(ByteBuffer buffer, int offset, int length, long initial) {
+        long sum = 0;
+        int end = offset + length;
+        int i = offset;
+        for (; i + 8 <= end; i += 8) {
+            long word = buffer.getLong(i);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+        }
+        sum = fold(sum);
+        if (buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+            sum = Integer.reverseBytes((int) sum) >>> 16;
+        }
+        sum += initial;
+        for (; i + 2 <= end; i += 2) {
+            sum += (buffer.get(i) & 0xFF) << 8 | buffer.get(i + 1) & 0xFF;
+        }
+        if (i < end) {
+            sum += (buffer.get(i) & 0xFF) << 8;
+        }
+        return (int) fold(sum);
+    }
+
+    private static long fold(long sum) {
+        while (sum >>> 16 != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return sum;
+    }
+
+    /**
+     * Checks the checksums of a frame.
+     * @param packet View of an Ethernet frame
+     * @return IP_CHECKED, IP_BAD, TRANSPORT_CHECKED and TRANSPORT_BAD flags; 0 if the frame holds no valid IPv4
+     *         header
+     */
+    public static int verify(PacketView packet) {
+        if (!packet.isIpv4()) {
+            return 0;
+        }
+        Ipv4View ip = packet.ipv4();
+        int flags = IP_CHECKED;
+        if (sum(ip.buffer(), ip.offset(), ip.headerLength(), 0) != 0xFFFF) {
+            flags |= IP_BAD;
+        }
+        int length = transportLength(ip);
+        if (length >= 0) {
+            if (sum(ip.buffer(), ip.offset() + ip.headerLength(), length, pseudoHeader(ip, length)) != 0xFFFF) {
+                flags |= TRANSPORT_BAD;
+            }
+            flags |= TRANSPORT_CHECKED;
+        }
+        return flags;
+    }
+
+    /**
+     * @param ip View of an IPv4 header
+     * @return Number of bytes the transport checksum covers, or -1 if it cannot or need not be checked: a fragment,
+     *         a datagram not captured in full, another protocol or a UDP datagram sent without a checksum
+     */
+    private static int transportLength(Ipv4View ip) {
+        if (ip.isFragment()) {
+            return -1;
+        }
+        int length = ip.totalLength() - ip.headerLength();
+        if (length < 0 || ip.headerLength() + length > ip.length()) {
+            return -1;
+        }
+        switch (ip.protocol()) {
+            case Ipv4View.PROTOCOL_TCP:
+                return length >= TcpView.MIN_HEADER_LENGTH ? length : -1;
+            case Ipv4View.PROTOCOL_UDP:
+                return length >= UdpView.HEADER_LENGTH && ip.u16(ip.headerLength() + UDP_FIELD) != 0 ? length : -1;
+            case Ipv4View.PROTOCOL_ICMP:
+                return length >= IcmpView.HEADER_LENGTH ? length : -1;
+            default:
+                return -1;
+        }
+    }
+
+    /** @return Sum of the pseudo header of TCP and UDP, 0 for ICMP which has none */
+    private static long pseudoHeader(Ipv4View ip, int length) {
+        if (ip.protocol() == Ipv4View.PROTOCOL_ICMP) {
+            return 0;
+        }
+        int source = ip.source();
+        int destination = ip.destination();
+        return (source >>> 16) + (source & 0xFFFF) + (destination >>> 16) + (destination & 0xFFFF) + ip.protocol()
+                + length;
+    }
+
+    /**
+     * @param checks Flags returned by {@link #verify} for the frame, 0 if checksums are not verified
+     * @param ip View of the IPv4 header of the frame
+     * @return NOT_VERIFIED, CORRECT, or the value the header checksum field should hold
+     */
+    public static int ipv4Status(int checks, Ipv4View ip) {
+        if ((checks & IP_CHECKED) == 0) {
+            return NOT_VERIFIED;
+        }
+        return (checks & IP_BAD) == 0 ? CORRECT : expected(ip, 0, ip.headerLength(), IP_FIELD, 0);
+    }
+
+    /**
+     * @param checks Flags returned by {@link #verify} for the frame, 0 if checksums are not verified
+     * @param ip View of the IPv4 header of the frame
+     * @return NOT_VERIFIED, UNVERIFIED, CORRECT, or the value the TCP, UDP or ICMP checksum field should hold
+     */
+    public static int transportStatus(int checks, Ipv4View ip) {
+        if (checks == 0) {
+            return NOT_VERIFIED;
+        }
+        if ((checks & TRANSPORT_CHECKED) == 0) {
+            return UNVERIFIED;
+        }
+        if ((checks & TRANSPORT_BAD) == 0) {
+            return CORRECT;
+        }
+        int length = transportLength(ip);
+        int field = ip.protocol() == Ipv4View.PROTOCOL_TCP ? TCP_FIELD
+                : ip.protocol() == Ipv4View.PROTOCOL_UDP ? UDP_FIELD : ICMP_FIELD;
+        return expected(ip, ip.headerLength(), length, field, pseudoHeader(ip, length));
+    }
+
+    /** Takes the current checksum field back out of the sum and complements what is left. */
+    private static int expected(Ipv4View ip, int start, int length, int field, long initial) {
+        int sum = sum(ip.buffer(), ip.offset() + start, length, initial);
+        int value = ~(int) fold(sum + (~ip.u16(start + field) & 0xFFFF)) & 0xFFFF;
+        //UDP sends a computed 0 as 0xFFFF, 0 meaning no checksum
+        return value == 0 && ip.protocol() == Ipv4View.PROTOCOL_UDP && start > 0 ? 0xFFFF : value;
+    }
+} //Checksum
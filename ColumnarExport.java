@@ -0,0 +1,516 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * ColumnarExport.java
+ *
+ * Writes the decoded header fields of every packet to a columnar file, so the metadata of a capture can be queried
+ * without decoding the capture again. Rows are collected column by column in fixed size primitive arrays and
+ * written out as a row group whenever ROW_GROUP rows are buffered, so memory stays the same however long the
+ * capture is.
+ *
+ * Every packet has a kind (TCP, UDP, ICMP, other IPv4, fragment, ARP, other EtherType) and a column only holds
+ * values for the kinds it applies to; Eg. the port columns skip ICMP and ARP rows instead of storing nulls.
+ * Each column of a row group is encoded with one of:
+ *
+ * PLAIN - one unsigned LEB128 varint per value
+ * DELTA - zigzag varint of the difference to the previous value (timestamps)
+ * DICT  - the distinct values as varints followed by one index per value, a byte each when there are at most 256
+ *         distinct values (MACs, IPs, ports, EtherType, protocol, TTL, TCP flags). A row group with too many
+ *         distinct values for the dictionary to pay off falls back to PLAIN.
+ *
+ * Layout, little endian:
+ * header    "PKTCOL" version:u8 columns:u8, then per column name length:u8 name kinds:u8 (bit mask of KIND_*)
+ * row group rows:u32, then per column encoding:u8 count:u32 bytes:u32 data
+ * footer    per row group offset:u64 rows:u32 first timestamp:u64 last timestamp:u64,
+ *           row groups:u32 total rows:u64 footer length:u32 "PKTC"
+ *
+ * The footer lets a reader go straight to the row groups of a time range. Given such a file as input, pktanalyzer
+ * prints it back as CSV (see {@link #csv}), which loads into any SQL engine.
+ *
+ **/
+
+public class ColumnarExport implements PacketStage {
+
+    /** Rows buffered before a row group is written. */
+    static final int ROW_GROUP = 1 << 15;
+
+    static final byte[] MAGIC = {'P', 'K', 'T', 'C', 'O', 'L'};
+    private static final byte[] FOOTER_MAGIC = {'P', 'K', 'T', 'C'};
+    private static final int VERSION = 1;
+
+    /** Kinds of rows. */
+    static final int KIND_OTHER = 0;
+    static final int KIND_ARP = 1;
+    static final int KIND_IP = 2;
+    static final int KIND_FRAGMENT = 3;
+    static final int KIND_TCP = 4;
+    static final int KIND_UDP = 5;
+    static final int KIND_ICMP = 6;
+    private static final String[] KINDS = {"other", "arp", "ip", "fragment", "tcp", "udp", "icmp"};
+
+    private static final int ALL = 0x7F;
+    private static final int IP = 1 << KIND_IP | 1 << KIND_FRAGMENT | 1 << KIND_TCP | 1 << KIND_UDP | 1 << KIND_ICMP;
+    private static final int PORTS = 1 << KIND_TCP | 1 << KIND_UDP;
+    private static final int TCP = 1 << KIND_TCP;
+    private static final int ICMP = 1 << KIND_ICMP;
+
+    static final int PLAIN = 0;
+    static final int DELTA = 1;
+    static final int DICT = 2;
+
+    //Columns, in file order
+    private static final int TIMESTAMP = 0;
+    private static final int KIND = 1;
+    private static final int LENGTH = 2;
+    private static final int SOURCE_MAC = 3;
+    private static final int DESTINATION_MAC = 4;
+    private static final int ETHER_TYPE = 5;
+    private static final int SOURCE_IP = 6;
+    private static final int DESTINATION_IP = 7;
+    private static final int TTL = 8;
+    private static final int PROTOCOL = 9;
+    private static final int SOURCE_PORT = 10;
+    private static final int DESTINATION_PORT = 11;
+    private static final int SEQUENCE = 12;
+    private static final int ACKNOWLEDGEMENT = 13;
+    private static final int TCP_FLAGS = 14;
+    private static final int WINDOW = 15;
+    private static final int ICMP_TYPE = 16;
+    private static final int ICMP_CODE = 17;
+    private static final String[] NAMES = {"timestamp_ns", "kind", "length", "src_mac", "dst_mac", "ether_type",
+            "src_ip", "dst_ip", "ttl", "protocol", "src_port", "dst_port", "tcp_seq", "tcp_ack", "tcp_flags",
+            "tcp_window", "icmp_type", "icmp_code"};
+    private static final int[] APPLIES = {ALL, ALL, ALL, ALL, ALL, ALL, IP, IP, IP, IP, PORTS, PORTS, TCP, TCP, TCP,
+            TCP, ICMP, ICMP};
+    private static final int[] PREFERRED = {DELTA, DICT, PLAIN, DICT, DICT, DICT, DICT, DICT, DICT, DICT, DICT, DICT,
+            PLAIN, PLAIN, DICT, PLAIN, DICT, DICT};
+
+    private final TextOutput out;
+    private final Path path;
+    private final FileChannel file;
+    //Buffered values of every column; a column only holds the rows it applies to
+    private final long[][] values = new long[NAMES.length][ROW_GROUP];
+    private final int[] counts = new int[NAMES.length];
+    private int rows;
+    //Dictionary of the column being encoded: open addressing over distinct values
+    private final long[] dictionaryKeys = new long[ROW_GROUP * 2];
+    private final int[] dictionarySlots = new int[ROW_GROUP * 2];
+    private final long[] dictionary = new long[ROW_GROUP];
+    //Encoded row group, grown when needed
+    private ByteBuffer encoded = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+    //Footer entries, grown when needed
+    private long[] groupOffsets = new long[64];
+    private int[] groupRows = new int[64];
+    private long[] groupFirst = new long[64];
+    private long[] groupLast = new long[64];
+    private int groups;
+    private long totalRows;
+
+    /**
+     * Creates the file and writes its header.
+     * @param out Writer the summary is printed to
+     * @param path Path of the file, replaced if it exists
+     * @throws IOException If the file cannot be created
+     */
+    public ColumnarExport(TextOutput out, Path path) throws IOException {
+        this.out = out;
+        this.path = path;
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        encoded.put(MAGIC).put((byte) VERSION).put((byte) NAMES.length);
+        for (int c = 0; c < NAMES.length; c++) {
+            encoded.put((byte) NAMES[c].length());
+            for (int i = 0; i < NAMES[c].length(); i++) {
+                encoded.put((byte) NAMES[c].charAt(i));
+            }
+            encoded.put((byte) APPLIES[c]);
+        }
+        write();
+    }
+
+    @Override
+    public void accept(PacketView packet) {
+        if (!packet.isEthernet()) {
+            return;
+        }
+        int kind = KIND_OTHER;
+        Ipv4View ip = null;
+        if (packet.isIpv4()) {
+            ip = packet.ipv4();
+            if (ip.fragmentOffset() != 0) {
+                kind = KIND_FRAGMENT;
+            } else if (ip.isTcp()) {
+                kind = KIND_TCP;
+            } else if (ip.isUdp()) {
+                kind = KIND_UDP;
+            } else if (ip.isIcmp()) {
+                kind = KIND_ICMP;
+            } else {
+                kind = KIND_IP;
+            }
+        } else if (packet.isArp()) {
+            kind = KIND_ARP;
+        }
+        add(TIMESTAMP, packet.timestamp());
+        add(KIND, kind);
+        add(LENGTH, packet.length());
+        add(SOURCE_MAC, packet.sourceMac());
+        add(DESTINATION_MAC, packet.destinationMac());
+        add(ETHER_TYPE, packet.etherType());
+        if (ip != null) {
+            add(SOURCE_IP, ip.source() & 0xFFFFFFFFL);
+            add(DESTINATION_IP, ip.destination() & 0xFFFFFFFFL);
+            add(TTL, ip.ttl());
+            add(PROTOCOL, ip.protocol());
+        }
+        if (kind == KIND_TCP) {
+            TcpView tcp = ip.tcp();
+            add(SOURCE_PORT, tcp.sourcePort());
+            add(DESTINATION_PORT, tcp.destinationPort());
+            add(SEQUENCE, tcp.sequence());
+            add(ACKNOWLEDGEMENT, tcp.acknowledgement());
+            add(TCP_FLAGS, tcp.flags());
+            add(WINDOW, tcp.window());
+        } else if (kind == KIND_UDP) {
+            UdpView udp = ip.udp();
+            add(SOURCE_PORT, udp.sourcePort());
+            add(DESTINATION_PORT, udp.destinationPort());
+        } else if (kind == KIND_ICMP) {
+            IcmpView icmp = ip.icmp();
+            add(ICMP_TYPE, icmp.type());
+            add(ICMP_CODE, icmp.code());
+        }
+        if (++rows == ROW_GROUP) {
+            flushGroup();
+        }
+    }
+
+    private void add(int column, long value) {
+        values[column][counts[column]++] = value;
+    }
+
+    /** Encodes the buffered rows as one row group and writes it. */
+    private void flushGroup() {
+        if (groups == groupOffsets.length) {
+            groupOffsets = Arrays.copyOf(groupOffsets, groups * 2);
+            groupRows = Arrays.copyOf(groupRows, groups * 2);
+            groupFirst = Arrays.copyOf(groupFirst, groups * 2);
+            groupLast = Arrays.copyOf(groupLast, groups * 2);
+        }
+        try {
+            groupOffsets[groups] = file.position();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        groupRows[groups] = rows;
+        groupFirst[groups] = values[TIMESTAMP][0];
+        groupLast[groups] = values[TIMESTAMP][rows - 1];
+        groups++;
+        totalRows += rows;
+        ensure(4);
+        encoded.putInt(rows);
+        for (int c = 0; c < NAMES.length; c++) {
+            encode(values[c], counts[c], PREFERRED[c]);
+            counts[c] = 0;
+        }
+        rows = 0;
+        write();
+    }
+
+    /**
+     * Appends one column chunk: encoding, count, byte length and data.
+     * @param column Values
+     * @param count Number of values
+     * @param encoding Preferred encoding of the column
+     */
+    private void encode(long[] column, int count, int encoding) {
+        int distinct = encoding == DICT ? dictionary(column, count) : 0;
+        if (encoding == DICT && distinct > count / 2 && distinct > 256) {
+            //Most values are unique, indexes would only add to them
+            encoding = PLAIN;
+        }
+        ensure(9);
+        encoded.put((byte) encoding).putInt(count);
+        int lengthAt = encoded.position();
+        encoded.putInt(0);
+        switch (encoding) {
+            case DELTA:
+                long previous = 0;
+                for (int i = 0; i < count; i++) {
+                    long delta = column[i] - previous;
+                    varint(delta << 1 ^ delta >> 63);
+                    previous = column[i];
+                }
+                break;
+            case DICT:
+                varint(distinct);
+                for (int i = 0; i < distinct; i++) {
+                    varint(dictionary[i]);
+                }
+                for (int i = 0; i < count; i++) {
+                    int index = dictionarySlots[slot(column[i])] - 1;
+                    if (distinct <= 256) {
+                        ensure(1);
+                        encoded.put((byte) index);
+                    } else {
+                        varint(index);
+                    }
+                }
+                break;
+            default:
+                for (int i = 0; i < count; i++) {
+                    varint(column[i]);
+                }
+        }
+        encoded.putInt(lengthAt, encoded.position() - lengthAt - 4);
+    }
+
+    /**
+     * Builds the dictionary of a column: the distinct values in order of first appearance.
+     * @return Number of distinct values
+     */
+    private int dictionary(long[] column, int count) {
+        Arrays.fill(dictionarySlots, 0);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = slot(column[i]);
+            if (dictionarySlots[slot] == 0) {
+                dictionaryKeys[slot] = column[i];
+                dictionary[distinct++] = column[i];
+                //Slots hold index + 1, 0 marks a free slot
+                dictionarySlots[slot] = distinct;
+            }
+        }
+        return distinct;
+    }
+
+    /** @return Slot of a value in the dictionary table: its slot, or the free slot it would take */
+    private int slot(long value) {
+        int mask = dictionarySlots.length - 1;
+        long h = value * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h ^ h >>> 32) & mask;
+        while (dictionarySlots[slot] != 0 && dictionaryKeys[slot] != value) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void varint(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            encoded.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        encoded.put((byte) value);
+    }
+
+    private void ensure(int n) {
+        if (encoded.remaining() < n) {
+            ByteBuffer larger = ByteBuffer.allocate(encoded.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            encoded.flip();
+            encoded = larger.put(encoded);
+        }
+    }
+
+    /** Writes out and empties the encoded bytes. */
+    private void write() {
+        encoded.flip();
+        try {
+            while (encoded.hasRemaining()) {
+                file.write(encoded);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        encoded.clear();
+    }
+
+    @Override
+    public void finish() {
+        if (rows > 0) {
+            flushGroup();
+        }
+        int footerLength = groups * 28 + 4 + 8;
+        for (int g = 0; g < groups; g++) {
+            ensure(28);
+            encoded.putLong(groupOffsets[g]).putInt(groupRows[g]).putLong(groupFirst[g]).putLong(groupLast[g]);
+        }
+        ensure(16 + FOOTER_MAGIC.length);
+        encoded.putInt(groups).putLong(totalRows).putInt(footerLength).put(FOOTER_MAGIC);
+        write();
+        long size;
+        try {
+            size = file.position();
+            file.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        out.print("Columns: ").print(totalRows).print(" rows in ").print(groups).print(" row groups, ")
+                .print(size).print(" bytes written to ").println(path.toString());
+    }
+
+    /**
+     * Checks whether a file starts with the magic of a columnar export.
+     * @param path Path of the file
+     * @return true if the file was written by this class
+     * @throws IOException If the file cannot be read
+     */
+    static boolean isColumnar(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(MAGIC.length);
+            while (head.hasRemaining() && channel.read(head) >= 0) {
+                //keep reading until the magic or end of file
+            }
+            return !head.hasRemaining() && Arrays.equals(head.array(), MAGIC);
+        }
+    }
+
+    /**
+     * Prints a columnar file as CSV with a header line. Addresses are printed in their usual notation, columns that
+     * do not apply to a row are left empty. Row groups are mapped one at a time.
+     * @param path Path of the file
+     * @param out Writer the CSV is printed to
+     * @throws IOException If the file cannot be read or is not a columnar export
+     */
+    static void csv(Path path, TextOutput out) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer tail = size < 24 ? null : map(channel, size - 8, 8);
+            if (tail == null || tail.getInt(4) != ByteBuffer.wrap(FOOTER_MAGIC).order(ByteOrder.LITTLE_ENDIAN).getInt()) {
+                throw new IOException("Columnar file " + path + " has no footer, it was not closed properly");
+            }
+            int footerLength = tail.getInt(0);
+            long footerStart = size - 8 - footerLength;
+            ByteBuffer footer = map(channel, footerStart, footerLength);
+            int groupCount = footer.getInt(footerLength - 12);
+
+            ByteBuffer header = map(channel, 0, Math.min(size, 4096));
+            header.position(MAGIC.length);
+            int version = header.get() & 0xFF;
+            if (version != VERSION) {
+                throw new IOException("Unsupported columnar file version " + version);
+            }
+            int columns = header.get() & 0xFF;
+            int[] applies = new int[columns];
+            int[] formats = new int[columns];
+            for (int c = 0; c < columns; c++) {
+                byte[] name = new byte[header.get() & 0xFF];
+                header.get(name);
+                String column = new String(name, StandardCharsets.US_ASCII);
+                applies[c] = header.get() & 0xFF;
+                formats[c] = Math.max(0, Arrays.asList(NAMES).indexOf(column));
+                out.print(c == 0 ? "" : ",").print(column);
+            }
+            out.println();
+
+            long[][] decoded = new long[columns][];
+            int[] cursor = new int[columns];
+            for (int g = 0; g < groupCount; g++) {
+                long start = footer.getLong(g * 28);
+                long end = g + 1 < groupCount ? footer.getLong((g + 1) * 28) : footerStart;
+                ByteBuffer data = map(channel, start, end - start);
+                int rows = data.getInt();
+                for (int c = 0; c < columns; c++) {
+                    decoded[c] = decode(data);
+                    cursor[c] = 0;
+                }
+                for (int r = 0; r < rows; r++) {
+                    int kind = (int) decoded[KIND][r];
+                    for (int c = 0; c < columns; c++) {
+                        if (c > 0) {
+                            out.print(',');
+                        }
+                        if ((applies[c] & 1 << kind) != 0) {
+                            field(out, formats[c], decoded[c][cursor[c]++]);
+                        }
+                    }
+                    out.println();
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Decodes one column chunk at the position of the buffer. */
+    private static long[] decode(ByteBuffer data) throws IOException {
+        int encoding = data.get();
+        long[] column = new long[data.getInt()];
+        int length = data.getInt();
+        int next = data.position() + length;
+        switch (encoding) {
+            case PLAIN:
+                for (int i = 0; i < column.length; i++) {
+                    column[i] = varint(data);
+                }
+                break;
+            case DELTA:
+                long previous = 0;
+                for (int i = 0; i < column.length; i++) {
+                    long zigzag = varint(data);
+                    previous += zigzag >>> 1 ^ -(zigzag & 1);
+                    column[i] = previous;
+                }
+                break;
+            case DICT:
+                long[] dictionary = new long[(int) varint(data)];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = varint(data);
+                }
+                for (int i = 0; i < column.length; i++) {
+                    column[i] = dictionary[dictionary.length <= 256 ? data.get() & 0xFF : (int) varint(data)];
+                }
+                break;
+            default:
+                throw new IOException("Unknown column encoding " + encoding);
+        }
+        data.position(next);
+        return column;
+    }
+
+    private static long varint(ByteBuffer data) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /** Prints one value in the notation of its column. */
+    private static void field(TextOutput out, int column, long value) {
+        switch (column) {
+            case KIND:
+                out.print(value < KINDS.length ? KINDS[(int) value] : Long.toString(value));
+                break;
+            case SOURCE_MAC:
+            case DESTINATION_MAC:
+                out.mac(value);
+                break;
+            case SOURCE_IP:
+            case DESTINATION_IP:
+                out.ipv4((int) value);
+                break;
+            case ETHER_TYPE:
+                out.print("0x").hex(value, 4);
+                break;
+            case TCP_FLAGS:
+                out.print("0x").hex(value, 2);
+                break;
+            default:
+                out.print(value);
+        }
+    }
+} //ColumnarExport
@@ -0,0 +1,104 @@
+import java.util.Arrays;
+
+/**
+ * CountMinSketch.java
+ *
+ * Count-Min sketch (Cormode and Muthukrishnan) of weights added under long keys: depth rows of width counters, one
+ * counter per row chosen by hashing the key. The estimate of a key, the minimum of its counters, is never below the
+ * true total and exceeds it by at most 2/width of the total weight with probability 1 - 2^-depth. The memory is fixed
+ * at depth * width longs however many keys are added.
+ *
+ * Updates are conservative: only the counters below the new estimate are raised, which keeps the estimates tighter
+ * on skewed traffic. Two sketches of the same size merge by adding their counters, and the sum still bounds the
+ * merged totals from above.
+ *
+ **/
+
+public class CountMinSketch {
+
+    private final int depth;
+    private final int mask;
+    private final long[] counters;
+
+    /**
+     * Creates an empty sketch.
+     * @param depth Number of rows, each an independent hash
+     * @param width Counters per row, rounded up to a power of 2
+     */
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        int size = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        this.mask = size - 1;
+        this.counters = new long[depth * size];
+    }
+
+    /**
+     * Adds a weight to a key.
+     * @param key Key
+     * @param weight Weight to add, Eg. 1 packet or its bytes
+     * @return Estimate of the total weight of the key after the update
+     */
+    public long add(long key, long weight) {
+        long hash = mix(key);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[index(hash, row)]);
+        }
+        estimate += weight;
+        for (int row = 0; row < depth; row++) {
+            int index = index(hash, row);
+            if (counters[index] < estimate) {
+                counters[index] = estimate;
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * @param key Key
+     * @return Estimate of its total weight, never below the true total
+     */
+    public long estimate(long key) {
+        long hash = mix(key);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[index(hash, row)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Adds the counters of another sketch to this one.
+     * @param other Sketch of the same depth and width
+     * @throws IllegalArgumentException If the sketches differ in size
+     */
+    public void merge(CountMinSketch other) {
+        if (other.depth != depth || other.mask != mask) {
+            throw new IllegalArgumentException("Count-Min sketches of different sizes");
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] += other.counters[i];
+        }
+    }
+
+    /** Empties the sketch. */
+    public void clear() {
+        Arrays.fill(counters, 0);
+    }
+
+    /** Counter of a row: the rows use the hashes h1 + row * h2 of one 64 bit hash (Kirsch and Mitzenmacher). */
+    private int index(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return row * (mask + 1) + (h1 + row * h2 & mask);
+    }
+
+    /** MurmurHash3 finalizer, also used by SpaceSaving and HyperLogLog. */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB3FE1A85EC53L;
+        return h ^ h >>> 33;
+    }
+} //CountMinSketch
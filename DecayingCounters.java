@@ -0,0 +1,105 @@
+/**
+ * DecayingCounters.java
+ *
+ * Exponentially decaying counters under long keys, in a table of fixed size. A counter loses half its value every
+ * half-life of capture time, so it follows recent activity without windows to reset: a key added to at a steady rate
+ * r settles near r * half-life / ln 2, and one left alone fades to nothing. The decay is applied lazily, when the
+ * counter is next read or updated.
+ *
+ * A key can live in any of the 4 slots of its bucket. A new key takes an empty slot, or else the one whose counter
+ * has decayed the furthest, so the table never grows and the busiest keys are the ones that stay.
+ *
+ **/
+
+public class DecayingCounters {
+
+    private static final int WAYS = 4;
+
+    private final int mask;
+    private final long[] keys;
+    private final double[] values;
+    private final long[] times;
+    private final boolean[] used;
+    //Decay per nanosecond, ln 2 / half-life
+    private final double lambda;
+    private final double halfLife;
+
+    /**
+     * Creates an empty table.
+     * @param capacity Number of counters, rounded up to a power of 2
+     * @param halfLife Seconds after which a counter has lost half its value
+     */
+    public DecayingCounters(int capacity, double halfLife) {
+        int size = Integer.highestOneBit(Math.max(WAYS, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.keys = new long[size];
+        this.values = new double[size];
+        this.times = new long[size];
+        this.used = new boolean[size];
+        this.halfLife = halfLife;
+        this.lambda = Math.log(2) / (halfLife * 1e9);
+    }
+
+    /**
+     * Adds to the counter of a key, creating it if needed. The counter does not go below 0.
+     * @param key Key
+     * @param now Capture time in nanoseconds
+     * @param weight Amount to add, negative to take away
+     * @return Value of the counter after the update
+     */
+    public double add(long key, long now, double weight) {
+        int bucket = (int) CountMinSketch.mix(key) & mask & -WAYS;
+        int slot = -1;
+        double smallest = Double.MAX_VALUE;
+        for (int i = bucket; i < bucket + WAYS; i++) {
+            if (used[i] && keys[i] == key) {
+                slot = i;
+                break;
+            }
+            double value = used[i] ? decay(i, now) : -1;
+            if (value < smallest) {
+                smallest = value;
+                slot = i;
+            }
+        }
+        if (used[slot] && keys[slot] == key) {
+            values[slot] = Math.max(0, decay(slot, now) + weight);
+            times[slot] = Math.max(now, times[slot]);
+        } else {
+            keys[slot] = key;
+            used[slot] = true;
+            values[slot] = Math.max(0, weight);
+            times[slot] = now;
+        }
+        return values[slot];
+    }
+
+    /**
+     * @param key Key
+     * @param now Capture time in nanoseconds
+     * @return Current value of its counter, 0 if it has none
+     */
+    public double get(long key, long now) {
+        int bucket = (int) CountMinSketch.mix(key) & mask & -WAYS;
+        for (int i = bucket; i < bucket + WAYS; i++) {
+            if (used[i] && keys[i] == key) {
+                return decay(i, now);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param value Value of a counter
+     * @return The steady rate per second that keeps a counter at that value
+     */
+    public double perSecond(double value) {
+        return value * Math.log(2) / halfLife;
+    }
+
+    /** @return Value of a slot decayed to the given time; packets older than the slot do not undo decay */
+    private double decay(int slot, long now) {
+        long elapsed = now - times[slot];
+        return elapsed > 0 ? values[slot] * Math.exp(-lambda * elapsed) : values[slot];
+    }
+} //DecayingCounters
@@ -0,0 +1,28 @@
+/**
+ * Dissector.java
+ *
+ * Decoder of one protocol header in the full and headers dumps, registered with Dissectors under an EtherType or an
+ * IP protocol number. A dissector is shared by every decoder thread, so it keeps no state of its own; what it needs
+ * per frame comes from the views of the PacketView it is given.
+ *
+ * Eg. a dissector for a protocol carried straight over Ethernet:
+ *     Dissectors.registerEtherType(0x88CC, "LLDP", (out, packet, index, checks) -> {
+ *         out.println("LLDP frame");
+ *         return Dissectors.END;
+ *     });
+ *
+ **/
+
+public interface Dissector {
+
+    /**
+     * Prints the header at an index of the frame.
+     * @param out Writer the text is rendered into
+     * @param packet View of the whole frame
+     * @param index Index of the header relative to the start of the frame
+     * @param checks Checksum flags of the frame (see Checksum.verify), 0 if not verified
+     * @return For a network header, Dissectors.next() naming the IP protocol of the payload and the index of the
+     *         network header, for the IP protocol table to take over; Dissectors.END if nothing is decoded past it
+     */
+    long dissect(TextOutput out, PacketView packet, int index, int checks);
+} //Dissector
@@ -0,0 +1,207 @@
+import java.util.Arrays;
+
+/**
+ * Dissectors.java
+ *
+ * Registry of the dissectors of the full and headers dumps: one table indexed by EtherType for what follows the
+ * Ethernet header (or a VLAN tag), one indexed by IP protocol number for what follows an IPv4 or IPv6 header. Both
+ * are plain arrays, so dispatch is a single indexed load whatever the number of protocols registered, and the slots
+ * of unregistered numbers hold a dissector that only reports how many bytes it skipped.
+ *
+ * Built in:
+ * EtherType   0x0800 IPv4, 0x0806 ARP, 0x86DD IPv6, 0x8100 802.1Q VLAN tag, 0x88A8 802.1ad VLAN tag
+ * IP protocol 1 ICMP, 6 TCP, 17 UDP, 58 ICMPv6
+ *
+ * A network dissector hands its payload on by returning next(protocol, index); the transport dissectors then look at
+ * the IP version at that index to wrap the IPv4 or the IPv6 view. Dissectors are registered before decoding starts,
+ * Eg. from a static initializer; the tables are not guarded for changes while decoder threads read them.
+ *
+ **/
+
+public final class Dissectors {
+
+    /** Returned by a dissector when nothing is decoded past its header. */
+    public static final long END = -1;
+
+    private static final Dissector[] ETHER_TYPES = new Dissector[65536];
+    private static final String[] ETHER_TYPE_NAMES = new String[65536];
+    private static final Dissector[] IP_PROTOCOLS = new Dissector[256];
+    private static final String[] IP_PROTOCOL_NAMES = new String[256];
+
+    private static final Dissector UNKNOWN_ETHER_TYPE = (out, packet, index, checks) -> {
+        out.print("Payload of EtherType 0x").hex(packet.u16(index - 2), 4).print(" not decoded: ")
+                .print(Math.max(0, packet.length() - index)).println(" bytes");
+        return END;
+    };
+
+    private static final Dissector UNKNOWN_IP_PROTOCOL = (out, packet, index, checks) -> {
+        int protocol;
+        int length;
+        if (isIpv6(packet, index)) {
+            Ipv6View ip = packet.ipv6(index);
+            protocol = ip.protocol();
+            length = ip.upperLength();
+        } else {
+            Ipv4View ip = packet.ipv4(index);
+            protocol = ip.protocol();
+            length = ip.payloadLength();
+        }
+        out.print("Payload of IP protocol ").print(protocol).print(" not decoded: ").print(length).println(" bytes");
+        return END;
+    };
+
+    static {
+        Arrays.fill(ETHER_TYPES, UNKNOWN_ETHER_TYPE);
+        Arrays.fill(IP_PROTOCOLS, UNKNOWN_IP_PROTOCOL);
+
+        registerEtherType(PacketView.ETHERTYPE_IPV4, "IP", (out, packet, index, checks) -> {
+            Ipv4View ip = packet.ipv4(index);
+            return pktanalyzer.ip_head(out, ip, ipv4Checks(index, checks)) ? next(ip.protocol(), index) : END;
+        });
+        registerEtherType(PacketView.ETHERTYPE_ARP, "ARP", (out, packet, index, checks) -> {
+            pktanalyzer.arp_head(out, packet.arp(index));
+            return END;
+        });
+        registerEtherType(PacketView.ETHERTYPE_IPV6, "IPv6", (out, packet, index, checks) -> {
+            Ipv6View ip = packet.ipv6(index);
+            return pktanalyzer.ipv6_head(out, ip) ? next(ip.protocol(), index) : END;
+        });
+        Dissector vlan = (out, packet, index, checks) -> {
+            //Each tag ends with the EtherType of what it carries, which may be another tag
+            int etherType;
+            do {
+                pktanalyzer.vlan_head(out, packet, index);
+                etherType = packet.u16(index + 2);
+                index += 4;
+            } while (etherType == PacketView.ETHERTYPE_VLAN || etherType == PacketView.ETHERTYPE_QINQ);
+            return etherType(etherType).dissect(out, packet, index, checks);
+        };
+        registerEtherType(PacketView.ETHERTYPE_VLAN, "802.1Q VLAN", vlan);
+        registerEtherType(PacketView.ETHERTYPE_QINQ, "802.1ad VLAN", vlan);
+
+        registerIpProtocol(Ipv4View.PROTOCOL_TCP, "TCP", (out, packet, index, checks) -> {
+            if (isIpv6(packet, index)) {
+                pktanalyzer.tcp_head(out, packet.ipv6(index).tcp(), Checksum.NOT_VERIFIED);
+            } else {
+                Ipv4View ip = packet.ipv4(index);
+                pktanalyzer.tcp_head(out, ip.tcp(), Checksum.transportStatus(ipv4Checks(index, checks), ip));
+            }
+            return END;
+        });
+        registerIpProtocol(Ipv4View.PROTOCOL_UDP, "UDP", (out, packet, index, checks) -> {
+            if (isIpv6(packet, index)) {
+                pktanalyzer.udp_head(out, packet.ipv6(index).udp(), Checksum.NOT_VERIFIED);
+            } else {
+                Ipv4View ip = packet.ipv4(index);
+                pktanalyzer.udp_head(out, ip.udp(), Checksum.transportStatus(ipv4Checks(index, checks), ip));
+            }
+            return END;
+        });
+        registerIpProtocol(Ipv4View.PROTOCOL_ICMP, "ICMP", (out, packet, index, checks) -> {
+            if (isIpv6(packet, index)) {
+                return UNKNOWN_IP_PROTOCOL.dissect(out, packet, index, checks);
+            }
+            Ipv4View ip = packet.ipv4(index);
+            pktanalyzer.icmp_head(out, ip.icmp(), Checksum.transportStatus(ipv4Checks(index, checks), ip));
+            return END;
+        });
+        registerIpProtocol(Ipv6View.PROTOCOL_ICMPV6, "ICMPv6", (out, packet, index, checks) -> {
+            if (!isIpv6(packet, index)) {
+                return UNKNOWN_IP_PROTOCOL.dissect(out, packet, index, checks);
+            }
+            pktanalyzer.icmpv6_head(out, packet.ipv6(index).icmp());
+            return END;
+        });
+    }
+
+    private Dissectors() {
+    }
+
+    /**
+     * Registers the dissector of an EtherType, replacing any previous one.
+     * @param etherType EtherType, 0-65535
+     * @param name Name printed after the EtherType in the Ethernet header
+     * @param dissector Dissector called with the index of the first byte after the EtherType
+     */
+    public static void registerEtherType(int etherType, String name, Dissector dissector) {
+        ETHER_TYPES[etherType] = dissector;
+        ETHER_TYPE_NAMES[etherType] = name;
+    }
+
+    /**
+     * Registers the dissector of an IP protocol, for IPv4 and IPv6 alike, replacing any previous one.
+     * @param protocol IP protocol number, 0-255
+     * @param name Name of the protocol
+     * @param dissector Dissector called with the index of the IP header carrying the protocol
+     */
+    public static void registerIpProtocol(int protocol, String name, Dissector dissector) {
+        IP_PROTOCOLS[protocol] = dissector;
+        IP_PROTOCOL_NAMES[protocol] = name;
+    }
+
+    /**
+     * @param etherType EtherType, 0-65535
+     * @return Its dissector, one skipping the payload if none is registered
+     */
+    public static Dissector etherType(int etherType) {
+        return ETHER_TYPES[etherType];
+    }
+
+    /**
+     * @param etherType EtherType, 0-65535
+     * @return Its name, null if no dissector is registered for it
+     */
+    public static String etherTypeName(int etherType) {
+        return ETHER_TYPE_NAMES[etherType];
+    }
+
+    /**
+     * @param protocol IP protocol number, 0-255
+     * @return Its dissector, one skipping the payload if none is registered
+     */
+    public static Dissector ipProtocol(int protocol) {
+        return IP_PROTOCOLS[protocol];
+    }
+
+    /**
+     * @param protocol IP protocol number, 0-255
+     * @return Its name, null if no dissector is registered for it
+     */
+    public static String ipProtocolName(int protocol) {
+        return IP_PROTOCOL_NAMES[protocol];
+    }
+
+    /**
+     * Names the payload a network dissector hands on.
+     * @param protocol IP protocol of the payload
+     * @param index Index of the IP header relative to the start of the frame
+     * @return Value for the network dissector to return
+     */
+    public static long next(int protocol, int index) {
+        return (long) protocol << 32 | index;
+    }
+
+    /**
+     * Dissects the payload named by a network dissector.
+     * @param out Writer the text is rendered into
+     * @param packet View of the whole frame
+     * @param next Value returned by the network dissector, not END
+     * @param checks Checksum flags of the frame
+     */
+    public static void dissectPayload(TextOutput out, PacketView packet, long next, int checks) {
+        IP_PROTOCOLS[(int) (next >>> 32) & 0xFF].dissect(out, packet, (int) next, checks);
+    }
+
+    /** @return true if the IP header at an index of the frame is IPv6 */
+    private static boolean isIpv6(PacketView packet, int index) {
+        return packet.u8(index) >> 4 == 6;
+    }
+
+    /**
+     * @return The checksum flags of the frame if they apply to the IPv4 header at index, else 0: Checksum.verify only
+     * looks at an IPv4 header right after the Ethernet header
+     */
+    private static int ipv4Checks(int index, int checks) {
+        return index == PacketView.ETHERNET_HEADER_LENGTH ? checks : 0;
+    }
+} //Dissectors
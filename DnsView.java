@@ -0,0 +1,329 @@
+import java.nio.ByteBuffer;
+
+/**
+ * DnsView.java
+ *
+ * Flyweight view of a DNS message (RFC 1035), carried by UDP or, behind a 2 byte length, by TCP. Like the other views
+ * wrapping it only records where the message is; the questions and resource records are only walked when a getter
+ * asks for one, so a packet whose DNS fields nobody looks at costs nothing more than its UDP header.
+ *
+ * Records are addressed by their index relative to the start of the message, as returned by record(). Names are
+ * never turned into Strings: they are compared in place against the bytes of a dotted name or printed straight into
+ * a TextOutput, following compression pointers either way.
+ *
+ **/
+
+public class DnsView extends HeaderView {
+
+    /** Length of the DNS header. */
+    public static final int HEADER_LENGTH = 12;
+    /** Port DNS is served on, over UDP and TCP. */
+    public static final int PORT = 53;
+
+    public static final int TYPE_A = 1;
+    public static final int TYPE_NS = 2;
+    public static final int TYPE_CNAME = 5;
+    public static final int TYPE_PTR = 12;
+    public static final int TYPE_AAAA = 28;
+
+    //Bound on the compression pointers followed in one name, so a pointer loop cannot hang the decoder
+    private static final int MAX_POINTERS = 16;
+
+    /**
+     * Points the view at a DNS message.
+     * @param buffer Buffer holding the message
+     * @param offset Absolute offset of the message
+     * @param length Number of captured bytes of the message
+     * @return This view
+     */
+    public DnsView wrap(ByteBuffer buffer, int offset, int length) {
+        set(buffer, offset, length);
+        return this;
+    }
+
+    /** @return true if the header fits inside the captured bytes */
+    public boolean isValid() {
+        return length >= HEADER_LENGTH;
+    }
+
+    /** @return Transaction ID */
+    public int id() {
+        return u16(0);
+    }
+
+    /** @return Flags: QR, opcode, AA, TC, RD, RA and the response code */
+    public int flags() {
+        return u16(2);
+    }
+
+    /** @return true for a response, false for a query */
+    public boolean isResponse() {
+        return (flags() & 0x8000) != 0;
+    }
+
+    /** @return Opcode, 0 for a standard query */
+    public int opcode() {
+        return flags() >> 11 & 0xF;
+    }
+
+    /** @return Response code, 0 for no error */
+    public int responseCode() {
+        return flags() & 0xF;
+    }
+
+    /** @return Number of entries in the question section */
+    public int questionCount() {
+        return u16(4);
+    }
+
+    /** @return Number of resource records in the answer section */
+    public int answerCount() {
+        return u16(6);
+    }
+
+    /** @return Number of resource records in the authority section */
+    public int authorityCount() {
+        return u16(8);
+    }
+
+    /** @return Number of resource records in the additional section */
+    public int additionalCount() {
+        return u16(10);
+    }
+
+    /**
+     * Walks the message to a question or resource record. Questions come first, then the answer, authority and
+     * additional records.
+     * @param n Number of the entry, from 0
+     * @return Index of the entry relative to the start of the message, -1 if it is not in the captured bytes
+     */
+    public int record(int n) {
+        int questions = questionCount();
+        int index = HEADER_LENGTH;
+        for (int i = 0; i < n && index >= 0; i++) {
+            index = next(index, i < questions);
+        }
+        return index >= 0 && index < length ? index : -1;
+    }
+
+    /**
+     * Steps over a question or resource record.
+     * @param record Index of the entry, from record()
+     * @param question true for an entry of the question section
+     * @return Index of the entry after it, -1 if this one is malformed or not in the captured bytes
+     */
+    public int next(int record, boolean question) {
+        int end = nameEnd(buffer, offset, length, record);
+        if (end < 0) {
+            return -1;
+        }
+        if (question) {
+            return end + 4;
+        }
+        return end + 10 <= length ? end + 10 + u16(end + 8) : -1;
+    }
+
+    /**
+     * @param record Index of a question or resource record, from record()
+     * @return Its type, Eg. TYPE_A, -1 if it is not in the captured bytes
+     */
+    public int type(int record) {
+        int end = nameEnd(buffer, offset, length, record);
+        return end >= 0 && end + 2 <= length ? u16(end) : -1;
+    }
+
+    /**
+     * @param record Index of a question or resource record, from record()
+     * @return Its class, 1 for IN, -1 if it is not in the captured bytes
+     */
+    public int recordClass(int record) {
+        int end = nameEnd(buffer, offset, length, record);
+        return end >= 0 && end + 4 <= length ? u16(end + 2) : -1;
+    }
+
+    /**
+     * @param record Index of a resource record, from record()
+     * @return Its time to live in seconds, -1 if it is not in the captured bytes
+     */
+    public long ttl(int record) {
+        int end = nameEnd(buffer, offset, length, record);
+        return end >= 0 && end + 8 <= length ? u32(end + 4) : -1;
+    }
+
+    /**
+     * @param record Index of a resource record, from record()
+     * @return Index of its data relative to the start of the message
+     */
+    public int dataIndex(int record) {
+        return nameEnd(buffer, offset, length, record) + 10;
+    }
+
+    /**
+     * @param record Index of a resource record, from record()
+     * @return Length of its data in bytes, -1 if it is not in the captured bytes
+     */
+    public int dataLength(int record) {
+        int end = nameEnd(buffer, offset, length, record);
+        return end >= 0 && end + 10 <= length ? u16(end + 8) : -1;
+    }
+
+    /**
+     * @param record Index of a resource record, from record()
+     * @return true if the record, data included, lies inside the captured bytes
+     */
+    public boolean isComplete(int record) {
+        int end = nameEnd(buffer, offset, length, record);
+        return end >= 0 && end + 10 <= length && end + 10 + u16(end + 8) <= length;
+    }
+
+    /**
+     * @param index Index relative to the start of the message
+     * @return The 4 bytes at index, Eg. the address of an A record
+     */
+    public int ipv4(int index) {
+        return s32(index);
+    }
+
+    /**
+     * @param index Index relative to the start of the message
+     * @return The 8 bytes at index, Eg. half the address of an AAAA record
+     */
+    public long u64(int index) {
+        return u32(index) << 32 | u32(index + 4);
+    }
+
+    /**
+     * Compares a name in the message with a dotted name, ignoring case.
+     * @param index Index of the name relative to the start of the message
+     * @param name Dotted name in lower case ASCII without the trailing dot, Eg. "example.com"
+     * @return true if they are the same name
+     */
+    public boolean nameEquals(int index, byte[] name) {
+        return nameEquals(buffer, offset, length, index, name);
+    }
+
+    /**
+     * Prints a name in the message as a dotted name. Label bytes that are not printable are shown as '.'.
+     * @param out Writer the name is rendered into
+     * @param index Index of the name relative to the start of the message
+     * @return false if the name is malformed or cut off; what was found of it is printed anyway
+     */
+    public boolean name(TextOutput out, int index) {
+        int pointers = 0;
+        boolean first = true;
+        while (index < length) {
+            int label = u8(index);
+            if (label == 0) {
+                if (first) {
+                    out.print("<root>");
+                }
+                return true;
+            }
+            if ((label & 0xC0) == 0xC0) {
+                if (index + 2 > length || ++pointers > MAX_POINTERS) {
+                    return false;
+                }
+                index = u16(index) & 0x3FFF;
+                continue;
+            }
+            if ((label & 0xC0) != 0 || index + 1 + label > length) {
+                return false;
+            }
+            if (!first) {
+                out.print('.');
+            }
+            out.ascii(buffer, offset + index + 1, label);
+            first = false;
+            index += 1 + label;
+        }
+        return false;
+    }
+
+    /**
+     * Finds the end of a name in place, without following its compression pointer.
+     * @param buffer Buffer holding the message
+     * @param message Absolute offset of the message
+     * @param length Number of captured bytes of the message
+     * @param index Index of the name relative to the start of the message
+     * @return Index of the first byte after the name, -1 if it is malformed or cut off
+     */
+    static int nameEnd(ByteBuffer buffer, int message, int length, int index) {
+        while (index >= 0 && index < length) {
+            int label = buffer.get(message + index) & 0xFF;
+            if (label == 0) {
+                return index + 1;
+            }
+            if ((label & 0xC0) == 0xC0) {
+                return index + 2 <= length ? index + 2 : -1;
+            }
+            if ((label & 0xC0) != 0) {
+                return -1;
+            }
+            index += 1 + label;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares a name in a message with a dotted name, ignoring case, following compression pointers. Static so the
+     * packet filter can run it on raw frames from any thread.
+     * @param buffer Buffer holding the message
+     * @param message Absolute offset of the message
+     * @param length Number of captured bytes of the message
+     * @param index Index of the name relative to the start of the message
+     * @param name Dotted name in lower case ASCII without the trailing dot
+     * @return true if they are the same name
+     */
+    static boolean nameEquals(ByteBuffer buffer, int message, int length, int index, byte[] name) {
+        int position = 0;
+        int pointers = 0;
+        while (index >= 0 && index < length) {
+            int label = buffer.get(message + index) & 0xFF;
+            if (label == 0) {
+                return position == name.length;
+            }
+            if ((label & 0xC0) == 0xC0) {
+                if (index + 2 > length || ++pointers > MAX_POINTERS) {
+                    return false;
+                }
+                index = ((label & 0x3F) << 8 | buffer.get(message + index + 1) & 0xFF);
+                continue;
+            }
+            if ((label & 0xC0) != 0 || index + 1 + label > length) {
+                return false;
+            }
+            //Every label after the first is preceded by a dot in the dotted name
+            if (position > 0 && (position >= name.length || name[position++] != '.')) {
+                return false;
+            }
+            if (position + label > name.length) {
+                return false;
+            }
+            for (int i = 1; i <= label; i++) {
+                int b = buffer.get(message + index + i);
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b != name[position++]) {
+                    return false;
+                }
+            }
+            index += 1 + label;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the first question of a message asks for a name. Static so the packet filter can run it on raw
+     * frames from any thread.
+     * @param buffer Buffer holding the message
+     * @param message Absolute offset of the message
+     * @param length Number of captured bytes of the message
+     * @param name Dotted name in lower case ASCII without the trailing dot
+     * @return true if the message has a question for that name
+     */
+    static boolean asks(ByteBuffer buffer, int message, int length, byte[] name) {
+        return length >= HEADER_LENGTH && (buffer.get(message + 4) != 0 || buffer.get(message + 5) != 0)
+                && nameEquals(buffer, message, length, HEADER_LENGTH, name);
+    }
+} //DnsView
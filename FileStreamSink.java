@@ -0,0 +1,128 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FileStreamSink.java
+ *
+ * Writes every reassembled TCP direction to its own file in a directory, named after its addresses and ports, Eg.
+ * 10.0.0.2.40000-10.0.0.1.80. When a later connection reuses the same addresses and ports its file gets a suffix:
+ * 10.0.0.2.40000-10.0.0.1.80-2. Missing bytes are left out.
+ *
+ * Only the most recently written files are kept open; the others are closed and reopened for appending when more
+ * data arrives, so a capture with many connections does not run out of file descriptors.
+ *
+ **/
+
+public class FileStreamSink implements StreamSink {
+
+    /** Number of files kept open at once. */
+    static final int OPEN_FILES = 256;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Path directory;
+    //Open files, least recently written first
+    private final LinkedHashMap<StreamReassembler.TcpStream, OutputStream> open =
+            new LinkedHashMap<>(OPEN_FILES * 2, 0.75f, true);
+    //File of every direction that has not ended yet
+    private final Map<StreamReassembler.TcpStream, Path> files = new HashMap<>();
+    //Number of files created per name
+    private final Map<String, Integer> names = new HashMap<>();
+    private final byte[] copy = new byte[BUFFER_SIZE];
+
+    /**
+     * Creates a sink writing into a directory.
+     * @param directory Directory for the stream files, created if needed
+     * @throws IOException If the directory cannot be created
+     */
+    public FileStreamSink(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public void data(StreamReassembler.TcpStream stream, ByteBuffer data, int offset, int length) {
+        try {
+            OutputStream file = file(stream);
+            if (data.hasArray()) {
+                file.write(data.array(), data.arrayOffset() + offset, length);
+                return;
+            }
+            //Mapped or direct buffers are copied out in pieces
+            while (length > 0) {
+                int n = Math.min(length, copy.length);
+                data.get(offset, copy, 0, n);
+                file.write(copy, 0, n);
+                offset += n;
+                length -= n;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void gap(StreamReassembler.TcpStream stream, long length) {
+        //Nothing marks the hole in the file; the totals report the missing bytes
+    }
+
+    @Override
+    public void end(StreamReassembler.TcpStream stream) {
+        OutputStream file = open.remove(stream);
+        files.remove(stream);
+        if (file != null) {
+            close(file);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (OutputStream file : open.values()) {
+            close(file);
+        }
+        open.clear();
+        files.clear();
+    }
+
+    /** @return The open file of a direction, opening it (and closing the least recently written one) if needed */
+    private OutputStream file(StreamReassembler.TcpStream stream) throws IOException {
+        OutputStream file = open.get(stream);
+        if (file != null) {
+            return file;
+        }
+        Path path = files.get(stream);
+        if (path == null) {
+            String name = stream.name();
+            int n = names.merge(name, 1, Integer::sum);
+            path = directory.resolve(n == 1 ? name : name + "-" + n);
+            files.put(stream, path);
+            file = Files.newOutputStream(path);
+        } else {
+            file = Files.newOutputStream(path, StandardOpenOption.APPEND);
+        }
+        if (open.size() >= OPEN_FILES) {
+            Map.Entry<StreamReassembler.TcpStream, OutputStream> eldest = open.entrySet().iterator().next();
+            open.remove(eldest.getKey());
+            close(eldest.getValue());
+        }
+        file = new BufferedOutputStream(file, BUFFER_SIZE);
+        open.put(stream, file);
+        return file;
+    }
+
+    private static void close(OutputStream file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+} //FileStreamSink
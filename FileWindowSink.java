@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * FileWindowSink.java
+ *
+ * Writes every window closed by WindowStats as one JSON line to a file, flushed as soon as the window closes so that
+ * a tail -f or a dashboard reading a named pipe follows the capture as it is read. Eg.
+ * {"kind":"tumbling","start":1714572000.000000000,"seconds":1,"packetsPerSecond":1520.000,"bitsPerSecond":9123456,
+ *  "packets":1520,"bytes":1140432,"ipv4":1500,...,"arpReplies":0}
+ *
+ **/
+
+public class FileWindowSink implements WindowSink {
+
+    private final OutputStream file;
+    private final TextOutput line = new TextOutput(1024, TextOutput.Verbosity.NONE);
+
+    /**
+     * Creates a sink writing into a file or a named pipe.
+     * @param path File, replaced if it exists
+     * @throws IOException If the file cannot be opened
+     */
+    public FileWindowSink(Path path) throws IOException {
+        this.file = Files.newOutputStream(path);
+    }
+
+    @Override
+    public void window(WindowStats.Window window) {
+        long pps = window.packetsPerSecondMilli();
+        line.print("{\"kind\":\"").print(window.isSliding() ? "sliding" : "tumbling")
+                .print("\",\"start\":").print(window.start() / 1_000_000_000L).print('.')
+                .print(window.start() % 1_000_000_000L, 9)
+                .print(",\"seconds\":").print(window.length() / 1_000_000_000L)
+                .print(",\"packetsPerSecond\":").print(pps / 1000).print('.').print(pps % 1000, 3)
+                .print(",\"bitsPerSecond\":").print(window.bitsPerSecond());
+        for (int field = 0; field < WindowStats.NAMES.length; field++) {
+            line.print(",\"").print(WindowStats.NAMES[field]).print("\":").print(window.count(field));
+        }
+        line.println("}");
+        try {
+            line.writeTo(file);
+            file.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+} //FileWindowSink
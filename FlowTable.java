@@ -0,0 +1,589 @@
+import java.util.Arrays;
+
+/**
+ * FlowTable.java
+ *
+ * Tracks TCP and UDP conversations keyed on the 5-tuple: source/destination IP, source/destination port and
+ * protocol. Both directions of a conversation share one flow, which counts packets and bytes per direction, keeps the
+ * first and last timestamp, the TCP flags seen (SYN/FIN/RST) and the number of retransmitted segments.
+ *
+ * A segment is counted as a retransmission when every sequence number it takes was already seen in its direction.
+ * Each direction keeps the data seen without a gap from its first segment on and, past one hole left by a lost or
+ * reordered segment, the range of data seen beyond it, so a segment filling the hole is not counted. The capture
+ * may start in the middle of a stream, so a segment that begins before the first one seen is never counted; it only
+ * extends the data seen back to its start. Segments that land past a second hole, or below the first segment with a
+ * gap, are not remembered: the count never includes a segment whose bytes were not seen, but it misses the
+ * retransmissions of such segments when the capture reorders more than one hole at a time.
+ *
+ * The table is an open addressing hash table with linear probing over parallel primitive arrays: the key is packed
+ * into two longs and every counter lives in its own long/int array, so there is no object, boxed key or String per
+ * flow. A flow costs roughly 104 bytes per slot.
+ *
+ * Flows idle for longer than the timeout (in capture time, taken from the packet timestamps) are printed and removed
+ * by a sweep that runs every quarter timeout. When the table holds its maximum number of flows, the flows idle for
+ * the longest are evicted early, so the heap stays bounded whatever the capture holds. Evicted flows are printed
+ * between the packets, or with --threads after the text of the batch holding the packet that evicted them. Removal
+ * shifts the following entries of the probe sequence back, so the table never fills up with deleted markers.
+ *
+ * When several capture files are decoded side by side (BatchAnalyzer), each file has a table of its own that holds
+ * on to the flows starting within the idle timeout of its first packet instead of printing them when they go idle,
+ * since they may continue a flow of the previous file. merge() then joins them to the flows the earlier files left
+ * open, so a connection that spans a file rotation is printed once. A segment sent again in the next file is not
+ * counted as a retransmission.
+ *
+ * Output, one line per flow, from the point of view of the side that opened it:
+ * Flow TCP 192.168.0.2:51234 -> 10.0.0.1:80 packets 12/10 bytes 1540/13200 start 1700000000.000123 duration 0.412000 s
+ *     state closed retransmissions 1
+ *
+ **/
+
+public class FlowTable implements PacketStage {
+
+    /** Default idle timeout in seconds. */
+    static final int DEFAULT_IDLE_TIMEOUT = 120;
+    /** Default maximum number of flows held at once. */
+    static final int DEFAULT_MAX_FLOWS = 1 << 20;
+    /** Heap bytes a flow can take, counting the free slots the table keeps. */
+    static final int FLOW_BYTES = 256;
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    //Bits of the state array: TCP flags sent by side A in bits 0-7, by side B in bits 8-15
+    private static final int B_SHIFT = 8;
+    //The sequence number end of side A / B is known
+    private static final int SEQ_A = 1 << 16;
+    private static final int SEQ_B = 1 << 17;
+    //Side B opened the flow
+    private static final int OPENED_BY_B = 1 << 18;
+    //Sequence numbers kept below the end of the data seen without a gap, far enough from the 32 bit wrap around for
+    //the differences to hold
+    private static final int SEEN_SPAN = 1 << 30;
+
+    private final TextOutput out;
+    private final long idleTimeout;
+    private final int maxFlows;
+
+    private int mask;
+    private int size;
+    private long expired;
+    private long nextSweep = Long.MIN_VALUE;
+    //First and latest packet timestamps
+    private long start = Long.MAX_VALUE;
+    private long latest = Long.MIN_VALUE;
+    //Flows that start before this are kept when they go idle, see hold()
+    private boolean holding;
+    private long holdBefore = Long.MIN_VALUE;
+
+    //Key: IP of side A in the high 32 bits, IP of side B in the low 32 bits
+    private long[] addresses;
+    //Key: port of side A << 24 | port of side B << 8 | protocol. 0 marks an empty slot.
+    private long[] ports;
+    //Per direction, at slot * 2 for A -> B and slot * 2 + 1 for B -> A
+    private long[] packets;
+    private long[] bytes;
+    //Start and end of the data seen without a gap, then start and end of the data seen past the hole after it; the
+    //last three are equal if there is no hole
+    private int[] firstStarts;
+    private int[] sequenceEnds;
+    private int[] holeEnds;
+    private int[] highestEnds;
+    //Per flow
+    private long[] first;
+    private long[] last;
+    private int[] states;
+    private int[] retransmissions;
+
+    /**
+     * Creates an empty flow table.
+     * @param out Writer the flows are printed to when they expire and at the end of the capture
+     * @param idleTimeout Seconds without a packet after which a flow is printed and forgotten
+     * @param maxFlows Maximum number of flows held at once
+     */
+    public FlowTable(TextOutput out, int idleTimeout, int maxFlows) {
+        this.out = out;
+        this.idleTimeout = Math.max(1, idleTimeout) * 1_000_000_000L;
+        this.maxFlows = Math.max(1, maxFlows);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mask = capacity - 1;
+        addresses = new long[capacity];
+        ports = new long[capacity];
+        packets = new long[capacity * 2];
+        bytes = new long[capacity * 2];
+        firstStarts = new int[capacity * 2];
+        sequenceEnds = new int[capacity * 2];
+        holeEnds = new int[capacity * 2];
+        highestEnds = new int[capacity * 2];
+        first = new long[capacity];
+        last = new long[capacity];
+        states = new int[capacity];
+        retransmissions = new int[capacity];
+    }
+
+    /**
+     * Keeps the flows that start within the idle timeout of the first packet when they go idle, for merge(): they may
+     * continue a flow of the previous capture file. Called before the first packet.
+     */
+    void hold() {
+        holding = true;
+    }
+
+    /** @return Number of flows currently held */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void accept(PacketView packet) {
+        if (!packet.isIpv4()) {
+            return;
+        }
+        Ipv4View ip = packet.ipv4();
+        int length = ip.totalLength() > 0 ? ip.totalLength() : ip.length();
+        if (ip.isTcp()) {
+            TcpView tcp = ip.tcp();
+            update(ip.source(), tcp.sourcePort(), ip.destination(), tcp.destinationPort(), Ipv4View.PROTOCOL_TCP,
+                    length, packet.timestamp(), tcp.flags(), (int) tcp.sequence(), tcp.payloadLength());
+        } else if (ip.isUdp()) {
+            UdpView udp = ip.udp();
+            update(ip.source(), udp.sourcePort(), ip.destination(), udp.destinationPort(), Ipv4View.PROTOCOL_UDP,
+                    length, packet.timestamp(), 0, 0, 0);
+        }
+    }
+
+    /**
+     * Adds one packet to its flow, creating the flow if needed.
+     * @param tcpFlags TCP flags, 0 for UDP
+     * @param sequence TCP sequence number
+     * @param payload Number of TCP payload bytes
+     */
+    void update(int sourceIp, int sourcePort, int destinationIp, int destinationPort, int protocol, int length,
+                long timestamp, int tcpFlags, int sequence, int payload) {
+        if (timestamp >= nextSweep) {
+            if (nextSweep != Long.MIN_VALUE) {
+                expire(timestamp - idleTimeout, holdBefore);
+            } else {
+                start = timestamp;
+                if (holding) {
+                    holdBefore = timestamp + idleTimeout;
+                }
+            }
+            nextSweep = timestamp + idleTimeout / 4;
+        }
+        latest = Math.max(latest, timestamp);
+        //Side A is the lower of the two endpoints, so both directions map to the same key
+        long source = (sourceIp & 0xFFFFFFFFL) << 16 | sourcePort;
+        long destination = (destinationIp & 0xFFFFFFFFL) << 16 | destinationPort;
+        boolean fromA = source <= destination;
+        long address = fromA ? (long) sourceIp << 32 | destinationIp & 0xFFFFFFFFL
+                : (long) destinationIp << 32 | sourceIp & 0xFFFFFFFFL;
+        long port = fromA ? (long) sourcePort << 24 | destinationPort << 8 | protocol
+                : (long) destinationPort << 24 | sourcePort << 8 | protocol;
+
+        int slot = find(address, port);
+        if (ports[slot] == 0) {
+            if (size >= maxFlows) {
+                evictOldest(timestamp);
+            }
+            if (size + 1 > (mask + 1) / 4 * 3) {
+                resize(mask + 1 << 1);
+            }
+            slot = find(address, port);
+            addresses[slot] = address;
+            ports[slot] = port;
+            //The slot may hold the counters of a removed flow
+            packets[slot * 2] = packets[slot * 2 + 1] = 0;
+            bytes[slot * 2] = bytes[slot * 2 + 1] = 0;
+            first[slot] = last[slot] = timestamp;
+            retransmissions[slot] = 0;
+            //A first packet that is a SYN/ACK answers a SYN that was not captured
+            boolean reply = (tcpFlags & (TcpView.SYN | TcpView.ACK)) == (TcpView.SYN | TcpView.ACK);
+            states[slot] = fromA == reply ? OPENED_BY_B : 0;
+            size++;
+        }
+        int direction = slot * 2 + (fromA ? 0 : 1);
+        packets[direction]++;
+        bytes[direction] += length;
+        last[slot] = Math.max(last[slot], timestamp);
+        if (protocol == Ipv4View.PROTOCOL_TCP) {
+            track(slot, direction, fromA, tcpFlags, sequence, payload);
+        }
+    }
+
+    /** Records the flags of a segment and counts it if it only carries sequence numbers already seen. */
+    private void track(int slot, int direction, boolean fromA, int tcpFlags, int sequence, int payload) {
+        int state = states[slot] | (fromA ? tcpFlags : tcpFlags << B_SHIFT);
+        //SYN and FIN take one sequence number each; a segment taking none is a plain ACK
+        int used = payload + ((tcpFlags & TcpView.SYN) != 0 ? 1 : 0) + ((tcpFlags & TcpView.FIN) != 0 ? 1 : 0);
+        if (used > 0) {
+            int seen = fromA ? SEQ_A : SEQ_B;
+            int end = sequence + used;
+            //Sequence numbers are compared as differences so the 32 bit sequence space may wrap around
+            if ((state & seen) == 0) {
+                //The data before the first segment is unknown
+                firstStarts[direction] = sequence;
+                sequenceEnds[direction] = holeEnds[direction] = highestEnds[direction] = end;
+                state |= seen;
+            } else if (sequence - firstStarts[direction] < 0) {
+                //Begins before the first segment seen: reaching it extends the data seen back to this one
+                if (end - firstStarts[direction] >= 0) {
+                    firstStarts[direction] = sequence;
+                    extend(direction, end);
+                }
+            } else if (end - sequenceEnds[direction] <= 0
+                    || sequence - holeEnds[direction] >= 0 && end - highestEnds[direction] <= 0) {
+                retransmissions[slot]++;
+            } else if (sequence - sequenceEnds[direction] <= 0) {
+                extend(direction, end);
+            } else if (highestEnds[direction] == sequenceEnds[direction]) {
+                //Leaves a hole
+                holeEnds[direction] = sequence;
+                highestEnds[direction] = end;
+            } else if (sequence - highestEnds[direction] <= 0 && end - holeEnds[direction] >= 0) {
+                //Grows the data past the hole; a segment apart from it, past a second hole, is not remembered
+                if (sequence - holeEnds[direction] < 0) {
+                    holeEnds[direction] = sequence;
+                }
+                if (end - highestEnds[direction] > 0) {
+                    highestEnds[direction] = end;
+                }
+            }
+            if (sequenceEnds[direction] - firstStarts[direction] > SEEN_SPAN) {
+                firstStarts[direction] = sequenceEnds[direction] - SEEN_SPAN;
+            }
+        }
+        states[slot] = state;
+    }
+
+    /**
+     * Moves the end of the data seen without a gap to the end of a segment that continues it. Reaching the data past
+     * the hole closes the hole.
+     */
+    private void extend(int direction, int end) {
+        if (end - sequenceEnds[direction] <= 0) {
+            return;
+        }
+        int joined = end - holeEnds[direction] >= 0 && highestEnds[direction] - end > 0 ? highestEnds[direction] : end;
+        sequenceEnds[direction] = joined;
+        if (joined - holeEnds[direction] >= 0) {
+            holeEnds[direction] = highestEnds[direction] = joined;
+        }
+    }
+
+    /** @return Slot holding the key, or the empty slot where it belongs */
+    private int find(long address, long port) {
+        int slot = hash(address, port) & mask;
+        while (ports[slot] != 0 && (ports[slot] != port || addresses[slot] != address)) {
+            slot = slot + 1 & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long address, long port) {
+        //Finalizer of MurmurHash3, spreads the bits of the key over the whole word
+        long h = address * 0x9E3779B97F4A7C15L ^ port;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /** Moves every flow into new arrays of the given capacity. */
+    private void resize(int capacity) {
+        int oldCapacity = mask + 1;
+        long[] oldAddresses = addresses;
+        long[] oldPorts = ports;
+        long[] oldPackets = packets;
+        long[] oldBytes = bytes;
+        int[] oldFirstStarts = firstStarts;
+        int[] oldSequenceEnds = sequenceEnds;
+        int[] oldHoleEnds = holeEnds;
+        int[] oldHighestEnds = highestEnds;
+        long[] oldFirst = first;
+        long[] oldLast = last;
+        int[] oldStates = states;
+        int[] oldRetransmissions = retransmissions;
+        allocate(capacity);
+        for (int i = 0; i < oldCapacity; i++) {
+            if (oldPorts[i] == 0) {
+                continue;
+            }
+            int slot = find(oldAddresses[i], oldPorts[i]);
+            addresses[slot] = oldAddresses[i];
+            ports[slot] = oldPorts[i];
+            System.arraycopy(oldPackets, i * 2, packets, slot * 2, 2);
+            System.arraycopy(oldBytes, i * 2, bytes, slot * 2, 2);
+            System.arraycopy(oldFirstStarts, i * 2, firstStarts, slot * 2, 2);
+            System.arraycopy(oldSequenceEnds, i * 2, sequenceEnds, slot * 2, 2);
+            System.arraycopy(oldHoleEnds, i * 2, holeEnds, slot * 2, 2);
+            System.arraycopy(oldHighestEnds, i * 2, highestEnds, slot * 2, 2);
+            first[slot] = oldFirst[i];
+            last[slot] = oldLast[i];
+            states[slot] = oldStates[i];
+            retransmissions[slot] = oldRetransmissions[i];
+        }
+    }
+
+    /**
+     * Prints and removes every flow whose last packet is not later than the cut-off.
+     * @param cutoff Timestamp in nanoseconds
+     * @param keep Flows that started before this timestamp are left in place
+     */
+    private void expire(long cutoff, long keep) {
+        for (int slot = 0; slot <= mask; slot++) {
+            //A removal shifts a later entry into this slot, which is then checked again
+            while (ports[slot] != 0 && last[slot] <= cutoff && first[slot] >= keep) {
+                print(slot);
+                remove(slot);
+                expired++;
+            }
+        }
+    }
+
+    /** Makes room for a new flow by expiring the older half (by idle time) of the flows. */
+    private void evictOldest(long now) {
+        long oldest = now;
+        for (int slot = 0; slot <= mask; slot++) {
+            if (ports[slot] != 0) {
+                oldest = Math.min(oldest, last[slot]);
+            }
+        }
+        expire(oldest + (now - oldest) / 2, Long.MIN_VALUE);
+    }
+
+    /** Empties a slot and shifts back the entries of the probe sequence that follow it. */
+    private void remove(int hole) {
+        int slot = hole;
+        while (true) {
+            slot = slot + 1 & mask;
+            if (ports[slot] == 0) {
+                break;
+            }
+            int home = hash(addresses[slot], ports[slot]) & mask;
+            //Only move the entry if its home slot is not between the hole and its current slot
+            if ((slot - home & mask) >= (slot - hole & mask)) {
+                move(slot, hole);
+                hole = slot;
+            }
+        }
+        ports[hole] = 0;
+        addresses[hole] = 0;
+        size--;
+    }
+
+    private void move(int from, int to) {
+        addresses[to] = addresses[from];
+        ports[to] = ports[from];
+        packets[to * 2] = packets[from * 2];
+        packets[to * 2 + 1] = packets[from * 2 + 1];
+        bytes[to * 2] = bytes[from * 2];
+        bytes[to * 2 + 1] = bytes[from * 2 + 1];
+        firstStarts[to * 2] = firstStarts[from * 2];
+        firstStarts[to * 2 + 1] = firstStarts[from * 2 + 1];
+        sequenceEnds[to * 2] = sequenceEnds[from * 2];
+        sequenceEnds[to * 2 + 1] = sequenceEnds[from * 2 + 1];
+        holeEnds[to * 2] = holeEnds[from * 2];
+        holeEnds[to * 2 + 1] = holeEnds[from * 2 + 1];
+        highestEnds[to * 2] = highestEnds[from * 2];
+        highestEnds[to * 2 + 1] = highestEnds[from * 2 + 1];
+        first[to] = first[from];
+        last[to] = last[from];
+        states[to] = states[from];
+        retransmissions[to] = retransmissions[from];
+    }
+
+    /**
+     * Takes over the flows of the table of the next capture file: the flows of this table that went idle before the
+     * other's first packet are printed, a flow held by both becomes one, and the flows that are idle by the other's
+     * last packet are printed.
+     * @param stage FlowTable fed with the next file, not used afterwards
+     */
+    @Override
+    public void merge(PacketStage stage) {
+        FlowTable other = (FlowTable) stage;
+        expired += other.expired;
+        if (other.latest == Long.MIN_VALUE) {
+            return;
+        }
+        expire(other.start - idleTimeout, Long.MIN_VALUE);
+        for (int i = 0; i <= other.mask; i++) {
+            if (other.ports[i] == 0) {
+                continue;
+            }
+            int slot = find(other.addresses[i], other.ports[i]);
+            if (ports[slot] == 0) {
+                if (size >= maxFlows) {
+                    evictOldest(other.last[i]);
+                }
+                if (size + 1 > (mask + 1) / 4 * 3) {
+                    resize(mask + 1 << 1);
+                }
+                slot = find(other.addresses[i], other.ports[i]);
+                addresses[slot] = other.addresses[i];
+                ports[slot] = other.ports[i];
+                packets[slot * 2] = packets[slot * 2 + 1] = 0;
+                bytes[slot * 2] = bytes[slot * 2 + 1] = 0;
+                first[slot] = other.first[i];
+                last[slot] = other.last[i];
+                states[slot] = other.states[i] & OPENED_BY_B;
+                retransmissions[slot] = 0;
+                size++;
+            }
+            packets[slot * 2] += other.packets[i * 2];
+            packets[slot * 2 + 1] += other.packets[i * 2 + 1];
+            bytes[slot * 2] += other.bytes[i * 2];
+            bytes[slot * 2 + 1] += other.bytes[i * 2 + 1];
+            first[slot] = Math.min(first[slot], other.first[i]);
+            last[slot] = Math.max(last[slot], other.last[i]);
+            //The side that opened the flow is the one seen first; the data seen by both tables is joined
+            int theirs = other.states[i] & ~OPENED_BY_B;
+            for (int side = 0; side < 2; side++) {
+                int seen = side == 0 ? SEQ_A : SEQ_B;
+                if ((theirs & seen) == 0) {
+                    continue;
+                }
+                int direction = slot * 2 + side;
+                if ((states[slot] & seen) != 0) {
+                    join(direction, other, i * 2 + side);
+                } else {
+                    firstStarts[direction] = other.firstStarts[i * 2 + side];
+                    sequenceEnds[direction] = other.sequenceEnds[i * 2 + side];
+                    holeEnds[direction] = other.holeEnds[i * 2 + side];
+                    highestEnds[direction] = other.highestEnds[i * 2 + side];
+                }
+            }
+            states[slot] |= theirs;
+            retransmissions[slot] += other.retransmissions[i];
+        }
+        start = Math.min(start, other.start);
+        latest = Math.max(latest, other.latest);
+        expire(latest - idleTimeout, Long.MIN_VALUE);
+    }
+
+    /**
+     * Joins the data seen in a direction by the table of the next file to the data seen here. Of the ranges left, the
+     * lowest becomes the data seen without a gap and the highest the data past the hole; any between them are not
+     * remembered, as in track().
+     * @param direction Direction in this table
+     * @param other Table of the next file
+     * @param theirs Same direction in the other table
+     */
+    private void join(int direction, FlowTable other, int theirs) {
+        int base = firstStarts[direction];
+        //Start in the high half, end in the low half, relative to the first sequence number seen here; a table
+        //without a hole holds an empty range
+        long[] ranges = {
+                range(0, sequenceEnds[direction] - base),
+                range(holeEnds[direction] - base, highestEnds[direction] - base),
+                range(other.firstStarts[theirs] - base, other.sequenceEnds[theirs] - base),
+                range(other.holeEnds[theirs] - base, other.highestEnds[theirs] - base)};
+        Arrays.sort(ranges);
+        int count = 0;
+        for (int i = 0; i < ranges.length; i++) {
+            int start = (int) (ranges[i] >> 32);
+            int end = (int) ranges[i];
+            if (start == end) {
+                continue;
+            }
+            if (count > 0 && start <= (int) ranges[count - 1]) {
+                //Overlaps or touches the range before it
+                ranges[count - 1] = range((int) (ranges[count - 1] >> 32), Math.max(end, (int) ranges[count - 1]));
+            } else {
+                ranges[count++] = ranges[i];
+            }
+        }
+        firstStarts[direction] = base + (int) (ranges[0] >> 32);
+        sequenceEnds[direction] = base + (int) ranges[0];
+        holeEnds[direction] = count > 1 ? base + (int) (ranges[count - 1] >> 32) : sequenceEnds[direction];
+        highestEnds[direction] = count > 1 ? base + (int) ranges[count - 1] : sequenceEnds[direction];
+        if (sequenceEnds[direction] - firstStarts[direction] > SEEN_SPAN) {
+            firstStarts[direction] = sequenceEnds[direction] - SEEN_SPAN;
+        }
+    }
+
+    /** @return Range of sequence numbers packed into a long that sorts by its start */
+    private static long range(int start, int end) {
+        return (long) start << 32 | end & 0xFFFFFFFFL;
+    }
+
+    /** Prints the flows still held, then the totals. */
+    @Override
+    public void finish() {
+        if (out.verbosity() != TextOutput.Verbosity.NONE || expired > 0) {
+            out.println();
+        }
+        out.println("--------------------------------------------------Flows-------------" +
+                "-----------------------------------------");
+        for (int slot = 0; slot <= mask; slot++) {
+            if (ports[slot] != 0) {
+                print(slot);
+            }
+        }
+        out.print("Flows: ").print(size + expired).print(" (").print(expired)
+                .println(" printed earlier after being idle)");
+    }
+
+    /** Prints one flow from the point of view of the side that opened it. */
+    private void print(int slot) {
+        long address = addresses[slot];
+        long port = ports[slot];
+        int state = states[slot];
+        int protocol = (int) port & 0xFF;
+        //a: the side that opened the flow
+        boolean reversed = (state & OPENED_BY_B) != 0;
+        int a = reversed ? 1 : 0;
+        int b = 1 - a;
+        int ipA = (int) (address >>> 32);
+        int ipB = (int) address;
+        int portA = (int) (port >>> 24) & 0xFFFF;
+        int portB = (int) (port >>> 8) & 0xFFFF;
+        out.print(protocol == Ipv4View.PROTOCOL_TCP ? "Flow TCP " : "Flow UDP ")
+                .ipv4(reversed ? ipB : ipA).print(':').print(reversed ? portB : portA).print(" -> ")
+                .ipv4(reversed ? ipA : ipB).print(':').print(reversed ? portA : portB)
+                .print(" packets ").print(packets[slot * 2 + a]).print('/').print(packets[slot * 2 + b])
+                .print(" bytes ").print(bytes[slot * 2 + a]).print('/').print(bytes[slot * 2 + b])
+                .print(" start ");
+        time(first[slot]);
+        out.print(" duration ");
+        time(last[slot] - first[slot]);
+        out.print(" s");
+        if (protocol == Ipv4View.PROTOCOL_TCP) {
+            out.print(" state ").print(state(state)).print(" retransmissions ").print(retransmissions[slot]);
+        }
+        out.println();
+    }
+
+    /** Prints nanoseconds as seconds with 6 decimals. */
+    private void time(long nanos) {
+        out.print(nanos / 1_000_000_000L).print('.').print(nanos / 1000 % 1_000_000, 6);
+    }
+
+    /** @return Connection state derived from the flags seen in both directions */
+    static String state(int state) {
+        int flags = (state | state >> B_SHIFT) & 0xFF;
+        int synA = state & TcpView.SYN;
+        int synB = state >> B_SHIFT & TcpView.SYN;
+        int finA = state & TcpView.FIN;
+        int finB = state >> B_SHIFT & TcpView.FIN;
+        if ((flags & TcpView.RST) != 0) {
+            return "reset";
+        }
+        if (finA != 0 && finB != 0) {
+            return "closed";
+        }
+        if (finA != 0 || finB != 0) {
+            return "closing";
+        }
+        if (synA != 0 && synB != 0) {
+            return "established";
+        }
+        if (synA != 0 || synB != 0) {
+            return "opening";
+        }
+        return "midstream";
+    }
+} //FlowTable
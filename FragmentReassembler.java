@@ -0,0 +1,267 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FragmentReassembler.java
+ *
+ * Puts fragmented IPv4 datagrams back together so that only complete datagrams reach the transport decoders.
+ * Fragments are grouped on (source, destination, protocol, identification). Each datagram collects its payload in
+ * one array and tracks which 8 byte blocks have arrived in a bitmap (fragment offsets count in 8 byte units), so the
+ * datagram is complete once the last fragment has given its length and every block before it is covered. Bytes sent
+ * twice by overlapping fragments are taken from the later fragment.
+ *
+ * The cache is bounded three ways:
+ * - a datagram is dropped if it is not complete within the timeout (capture time, from its first fragment)
+ * - a datagram is dropped if it grows past 65535 bytes, the largest valid IPv4 datagram
+ * - the bytes held by all datagrams are capped; the oldest datagrams are dropped to make room for a new fragment
+ *
+ * The completed datagram is rebuilt as a frame: the Ethernet and IP headers of the first fragment, with the total
+ * length, flags, fragment offset and header checksum rewritten, followed by the whole payload. The frame is rendered
+ * into a buffer owned by the reassembler and is only valid until the next call to add().
+ *
+ **/
+
+public class FragmentReassembler {
+
+    /** Default number of bytes held by incomplete datagrams. */
+    static final int DEFAULT_MEMORY = 16 << 20;
+    /** Default seconds a datagram may take to complete. */
+    static final int DEFAULT_TIMEOUT = 30;
+    /** Largest IPv4 datagram, header included. */
+    static final int MAX_DATAGRAM = 65535;
+
+    /** Addresses, protocol and identification shared by the fragments of a datagram. */
+    private static final class Key {
+        int source;
+        int destination;
+        int protocol;
+        int identification;
+
+        Key set(int source, int destination, int protocol, int identification) {
+            this.source = source;
+            this.destination = destination;
+            this.protocol = protocol;
+            this.identification = identification;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return source == k.source && destination == k.destination && protocol == k.protocol
+                    && identification == k.identification;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((source * 31 + destination) * 31 + protocol) * 31 + identification;
+        }
+    }
+
+    /** An incomplete datagram. */
+    private static final class Datagram {
+        final long first;
+        //Ethernet and IP header of the fragment at offset 0, null until it arrives
+        byte[] header;
+        byte[] payload = new byte[2048];
+        //Payload length, -1 until the last fragment arrives
+        int end = -1;
+        //Furthest payload byte seen so far
+        int extent;
+        //One bit per 8 byte block of payload
+        final long[] blocks = new long[(MAX_DATAGRAM / 8 + 64) / 64];
+        int covered;
+        int fragments;
+
+        Datagram(long first) {
+            this.first = first;
+        }
+
+        /** @return Bytes held by the datagram */
+        int size() {
+            return payload.length + (header != null ? header.length : 0);
+        }
+    }
+
+    private final long timeout;
+    private final int memory;
+    //In order of the first fragment, so the oldest datagram is always the first one
+    private final LinkedHashMap<Key, Datagram> datagrams = new LinkedHashMap<>();
+    private final Key probe = new Key();
+    private final PacketView whole = new PacketView();
+    private final byte[] frame = new byte[PacketView.ETHERNET_HEADER_LENGTH + MAX_DATAGRAM];
+    private final ByteBuffer frameBuffer = ByteBuffer.wrap(frame);
+    private int used;
+    private int lastFragments;
+    private long reassembled;
+    private long fragments;
+    private long expired;
+    private long evicted;
+    private long invalid;
+
+    /**
+     * Creates a reassembler.
+     * @param memory Bytes held by incomplete datagrams at most
+     * @param timeout Seconds a datagram may take to complete
+     */
+    public FragmentReassembler(int memory, int timeout) {
+        this.memory = Math.max(MAX_DATAGRAM, memory);
+        this.timeout = Math.max(1, timeout) * 1_000_000_000L;
+    }
+
+    /**
+     * @param packet View of a frame
+     * @return true if the frame holds a fragment of an IPv4 datagram
+     */
+    public static boolean isFragment(PacketView packet) {
+        return packet.isIpv4() && packet.ipv4().isFragment();
+    }
+
+    /**
+     * Adds a fragment.
+     * @param packet View of a frame holding a fragment, see isFragment
+     * @return View of the rebuilt frame if the fragment completed its datagram, otherwise null
+     */
+    public PacketView add(PacketView packet) {
+        long now = packet.timestamp();
+        expire(now);
+        fragments++;
+        Ipv4View ip = packet.ipv4();
+        int offset = ip.fragmentOffset() * 8;
+        int length = ip.payloadLength();
+        Key key = probe.set(ip.source(), ip.destination(), ip.protocol(), ip.identification());
+        Datagram datagram = datagrams.get(key);
+        if (datagram == null) {
+            datagram = new Datagram(now);
+            datagrams.put(new Key().set(key.source, key.destination, key.protocol, key.identification), datagram);
+            used += datagram.size();
+        }
+        datagram.fragments++;
+        int end = ip.moreFragments() ? datagram.end : offset + length;
+        datagram.extent = Math.max(datagram.extent, offset + length);
+        //The rebuilt datagram carries the header of the first fragment, taken as the shortest one until it is seen
+        int ipHeaderLength = datagram.header != null ? datagram.header.length - PacketView.ETHERNET_HEADER_LENGTH
+                : offset == 0 ? ip.headerLength() : Ipv4View.MIN_HEADER_LENGTH;
+        if (datagram.extent + ipHeaderLength > MAX_DATAGRAM || end >= 0 && datagram.extent > end
+                || !ip.moreFragments() && datagram.end >= 0 && datagram.end != end) {
+            //Larger than any IPv4 datagram, data past the last fragment, or two different last fragments
+            invalid++;
+            drop(key);
+            return null;
+        }
+        if (offset == 0 && datagram.header == null) {
+            int headerLength = PacketView.ETHERNET_HEADER_LENGTH + ip.headerLength();
+            datagram.header = new byte[headerLength];
+            packet.buffer().get(packet.offset(), datagram.header, 0, headerLength);
+            used += headerLength;
+        }
+        datagram.end = end;
+        if (offset + length > datagram.payload.length) {
+            int size = Math.min(MAX_DATAGRAM, Math.max(datagram.payload.length * 2, offset + length));
+            used += size - datagram.payload.length;
+            datagram.payload = Arrays.copyOf(datagram.payload, size);
+        }
+        packet.buffer().get(ip.payloadOffset(), datagram.payload, offset, length);
+        cover(datagram, offset, length);
+        if (datagram.header != null && datagram.end >= 0 && datagram.covered >= (datagram.end + 7) / 8) {
+            datagrams.remove(key);
+            used -= datagram.size();
+            reassembled++;
+            lastFragments = datagram.fragments;
+            return rebuild(datagram, now);
+        }
+        //Make room if the fragment pushed the cache over its limit, oldest datagrams first
+        Iterator<Datagram> oldest = datagrams.values().iterator();
+        while (used > memory && oldest.hasNext()) {
+            Datagram victim = oldest.next();
+            if (victim == datagram) {
+                break;
+            }
+            used -= victim.size();
+            oldest.remove();
+            evicted++;
+        }
+        return null;
+    }
+
+    /** @return Number of fragments the last rebuilt datagram was made of */
+    public int fragments() {
+        return lastFragments;
+    }
+
+    /** Marks the 8 byte blocks a fragment fills. The last block of the datagram may be partial. */
+    private static void cover(Datagram datagram, int offset, int length) {
+        int first = offset / 8;
+        int last = (offset + length + 7) / 8;
+        if (length % 8 != 0 && datagram.end != offset + length) {
+            //Only the last fragment may end inside a block
+            last = (offset + length) / 8;
+        }
+        for (int block = first; block < last; block++) {
+            long bit = 1L << block;
+            if ((datagram.blocks[block >> 6] & bit) == 0) {
+                datagram.blocks[block >> 6] |= bit;
+                datagram.covered++;
+            }
+        }
+    }
+
+    /** Renders the headers of the first fragment and the whole payload into the frame buffer. */
+    private PacketView rebuild(Datagram datagram, long timestamp) {
+        byte[] header = datagram.header;
+        int headerLength = header.length;
+        int frameLength = headerLength + datagram.end;
+        System.arraycopy(header, 0, frame, 0, headerLength);
+        System.arraycopy(datagram.payload, 0, frame, headerLength, datagram.end);
+        int ip = PacketView.ETHERNET_HEADER_LENGTH;
+        int totalLength = frameLength - ip;
+        frame[ip + 2] = (byte) (totalLength >> 8);
+        frame[ip + 3] = (byte) totalLength;
+        //Keep DF, clear MF and the offset
+        frame[ip + 6] &= 0x40;
+        frame[ip + 7] = 0;
+        frame[ip + 10] = 0;
+        frame[ip + 11] = 0;
+        int sum = Checksum.sum(frameBuffer, ip, headerLength - ip, 0);
+        frame[ip + 10] = (byte) (~sum >> 8);
+        frame[ip + 11] = (byte) ~sum;
+        return whole.wrap(frameBuffer, 0, frameLength, timestamp);
+    }
+
+    /** Drops the datagrams whose first fragment is older than the timeout. */
+    private void expire(long now) {
+        Iterator<Datagram> oldest = datagrams.values().iterator();
+        while (oldest.hasNext()) {
+            Datagram datagram = oldest.next();
+            if (now - datagram.first <= timeout) {
+                break;
+            }
+            used -= datagram.size();
+            oldest.remove();
+            expired++;
+        }
+    }
+
+    private void drop(Key key) {
+        Datagram datagram = datagrams.remove(key);
+        if (datagram != null) {
+            used -= datagram.size();
+        }
+    }
+
+    /**
+     * Prints the totals.
+     * @param out Writer the totals are printed to
+     */
+    public void report(TextOutput out) {
+        out.print("IP fragments: ").print(fragments).print(" fragments, ").print(reassembled)
+                .print(" datagrams reassembled, ").print(expired + datagrams.size()).print(" incomplete, ")
+                .print(evicted).print(" dropped for memory, ").print(invalid).println(" invalid");
+    }
+} //FragmentReassembler
@@ -0,0 +1,82 @@
+import java.nio.ByteBuffer;
+
+/**
+ * HeaderView.java
+ *
+ * Base of the flyweight header views. A view is a cursor over a region of a ByteBuffer: wrapping it only records the
+ * buffer, offset and length, and every getter reads its field in place at an absolute index. Nothing is copied or
+ * allocated, so a single instance can be re-wrapped for every packet of a capture.
+ *
+ * Views do not check that the fields they read lie inside the region; use the is*() checks of the enclosing view
+ * (see PacketView) before reading headers of untrusted frames.
+ *
+ **/
+
+public abstract class HeaderView {
+
+    ByteBuffer buffer;
+    int offset;
+    int length;
+
+    final void set(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /** @return Buffer the view reads from */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /** @return Absolute offset of the header in the buffer */
+    public int offset() {
+        return offset;
+    }
+
+    /** @return Number of bytes from the start of the header to the end of the captured data */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Reads one byte as an unsigned value. Java does not have unsigned bytes, so the byte is widened to an int and
+     * masked with 0xff to get 0-255 instead of -128 to 127.
+     * @param index Index relative to the start of the header
+     */
+    final int u8(int index) {
+        return buffer.get(offset + index) & 0xFF;
+    }
+
+    /**
+     * Combines two bytes into an unsigned 16 bit value in network byte order: Higher bits << 8 | lower bits.
+     * @param index Index relative to the start of the header
+     */
+    final int u16(int index) {
+        return (u8(index) << 8) | u8(index + 1);
+    }
+
+    /**
+     * Combines four bytes into a 32 bit value in network byte order.
+     * @param index Index relative to the start of the header
+     */
+    final int s32(int index) {
+        return (u8(index) << 24) | (u8(index + 1) << 16) | (u8(index + 2) << 8) | u8(index + 3);
+    }
+
+    /**
+     * Combines four bytes into an unsigned 32 bit value, widened to a long so it never turns negative.
+     * @param index Index relative to the start of the header
+     */
+    final long u32(int index) {
+        return s32(index) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Combines six bytes (a MAC address) into the low 48 bits of a long.
+     * @param index Index relative to the start of the header
+     */
+    final long u48(int index) {
+        return ((long) u16(index) << 32) | u32(index + 2);
+    }
+} //HeaderView
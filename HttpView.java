@@ -0,0 +1,255 @@
+import java.nio.ByteBuffer;
+
+/**
+ * HttpView.java
+ *
+ * Flyweight view of the start of an HTTP/1.x message in a TCP payload: the request or status line and the header
+ * lines after it. Nothing is parsed when the view is wrapped; each getter scans the few bytes it needs, and header
+ * values are found by comparing the header names in place, so looking up the Host of a request allocates nothing.
+ *
+ * Only a message starting at the beginning of a segment is recognised; the body, and messages spread over several
+ * segments, are left to the TCP reassembly (--streams).
+ *
+ **/
+
+public class HttpView extends HeaderView {
+
+    /** The payload does not start with an HTTP message. */
+    public static final int NONE = 0;
+    /** The payload starts with a request line, Eg. GET / HTTP/1.1 */
+    public static final int REQUEST = 1;
+    /** The payload starts with a status line, Eg. HTTP/1.1 200 OK */
+    public static final int RESPONSE = 2;
+
+    /** Name of the Host header, in lower case for header(). */
+    public static final byte[] HOST = {'h', 'o', 's', 't'};
+
+    private static final byte[] VERSION = {'H', 'T', 'T', 'P', '/', '1', '.'};
+    //Longest method accepted, enough for the registered ones
+    private static final int MAX_METHOD = 16;
+
+    /**
+     * Points the view at a TCP payload.
+     * @param buffer Buffer holding the payload
+     * @param offset Absolute offset of the payload
+     * @param length Number of captured payload bytes
+     * @return This view
+     */
+    public HttpView wrap(ByteBuffer buffer, int offset, int length) {
+        set(buffer, offset, length);
+        return this;
+    }
+
+    /** @return REQUEST, RESPONSE or NONE */
+    public int kind() {
+        return kind(buffer, offset, length);
+    }
+
+    /** @return Length of the method of a request, Eg. 3 for GET */
+    public int methodLength() {
+        return methodLength(buffer, offset, length);
+    }
+
+    /** @return Index of the request target relative to the start of the message */
+    public int targetIndex() {
+        return methodLength() + 1;
+    }
+
+    /** @return Length of the request target */
+    public int targetLength() {
+        return indexOf(targetIndex(), ' ') - targetIndex();
+    }
+
+    /** @return Status code of a response, -1 if it is not 3 digits */
+    public int statusCode() {
+        int code = 0;
+        for (int i = VERSION.length + 2; i < VERSION.length + 5; i++) {
+            int digit = i < length ? u8(i) - '0' : -1;
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            code = code * 10 + digit;
+        }
+        return code;
+    }
+
+    /**
+     * @param index Index of the start of a line relative to the start of the message
+     * @return Length of the line without its CR LF; up to the end of the captured bytes if it is cut off
+     */
+    public int lineLength(int index) {
+        int end = indexOf(index, '\n');
+        return end > index && u8(end - 1) == '\r' ? end - 1 - index : end - index;
+    }
+
+    /**
+     * @param index Index of the start of a line relative to the start of the message
+     * @return Index of the start of the next line, length() if the line is cut off
+     */
+    public int nextLine(int index) {
+        int end = indexOf(index, '\n');
+        return end < length ? end + 1 : length;
+    }
+
+    /**
+     * Finds a header.
+     * @param name Header name in lower case ASCII, Eg. "host"
+     * @return Index of its value relative to the start of the message, leading spaces skipped; -1 if the captured
+     *         header lines do not hold it
+     */
+    public int header(byte[] name) {
+        return header(buffer, offset, length, name);
+    }
+
+    /** @return Index of the first byte after the start line and headers and their blank line, length() if cut off */
+    public int headerEnd() {
+        for (int index = nextLine(0); index < length; index = nextLine(index)) {
+            if (lineLength(index) == 0) {
+                return nextLine(index);
+            }
+        }
+        return length;
+    }
+
+    /** @return Index of the first byte equal to c from index on, length() if there is none */
+    private int indexOf(int index, int c) {
+        return indexOf(buffer, offset, length, index, c);
+    }
+
+    private static int indexOf(ByteBuffer buffer, int message, int length, int index, int c) {
+        while (index < length && buffer.get(message + index) != c) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Recognises the start line of a message. A request needs a method of upper case letters, a target and an
+     * HTTP/1.x version; a response needs an HTTP/1.x version followed by a space. Static so the packet filter can
+     * run it on raw frames from any thread.
+     * @param buffer Buffer holding the payload
+     * @param message Absolute offset of the payload
+     * @param length Number of captured payload bytes
+     * @return REQUEST, RESPONSE or NONE
+     */
+    static int kind(ByteBuffer buffer, int message, int length) {
+        if (startsWith(buffer, message, length, 0, VERSION)) {
+            return VERSION.length + 2 < length && buffer.get(message + VERSION.length + 1) == ' ' ? RESPONSE : NONE;
+        }
+        int method = methodLength(buffer, message, length);
+        if (method <= 0) {
+            return NONE;
+        }
+        int target = indexOf(buffer, message, length, method + 1, ' ');
+        //The target ends at the space before the version, and may not hold a line break
+        for (int i = method + 1; i < target; i++) {
+            if (buffer.get(message + i) == '\n') {
+                return NONE;
+            }
+        }
+        return target > method + 1 && startsWith(buffer, message, length, target + 1, VERSION) ? REQUEST : NONE;
+    }
+
+    /** @return Length of the method of a request line, 0 if the payload does not start with one */
+    static int methodLength(ByteBuffer buffer, int message, int length) {
+        int i = 0;
+        while (i < length && i <= MAX_METHOD) {
+            byte b = buffer.get(message + i);
+            if (b == ' ') {
+                return i;
+            }
+            if (b < 'A' || b > 'Z') {
+                return 0;
+            }
+            i++;
+        }
+        return 0;
+    }
+
+    /**
+     * Finds a header of a message. Static so the packet filter can run it on raw frames from any thread.
+     * @param buffer Buffer holding the payload
+     * @param message Absolute offset of the payload
+     * @param length Number of captured payload bytes
+     * @param name Header name in lower case ASCII
+     * @return Index of its value relative to the start of the message, leading spaces skipped; -1 if not found
+     */
+    static int header(ByteBuffer buffer, int message, int length, byte[] name) {
+        int index = indexOf(buffer, message, length, 0, '\n') + 1;
+        while (index < length) {
+            byte first = buffer.get(message + index);
+            if (first == '\r' || first == '\n') {
+                return -1;
+            }
+            if (index + name.length < length && buffer.get(message + index + name.length) == ':'
+                    && equalsIgnoreCase(buffer, message + index, name, name.length)) {
+                int value = index + name.length + 1;
+                while (value < length && (buffer.get(message + value) == ' ' || buffer.get(message + value) == '\t')) {
+                    value++;
+                }
+                return value;
+            }
+            index = indexOf(buffer, message, length, index, '\n') + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the Host header of a request with a host name, ignoring case and any port after it.
+     * @param buffer Buffer holding the payload
+     * @param message Absolute offset of the payload
+     * @param length Number of captured payload bytes
+     * @param host Host name in lower case ASCII
+     * @return true if the request is for that host
+     */
+    static boolean hostEquals(ByteBuffer buffer, int message, int length, byte[] host) {
+        int value = header(buffer, message, length, HOST);
+        if (value < 0 || value + host.length > length || !equalsIgnoreCase(buffer, message + value, host, host.length)) {
+            return false;
+        }
+        int end = value + host.length;
+        if (end == length) {
+            return true;
+        }
+        byte next = buffer.get(message + end);
+        return next == '\r' || next == '\n' || next == ':' || next == ' ' || next == '\t';
+    }
+
+    /**
+     * Checks whether the target of a request starts with a prefix, case included.
+     * @param buffer Buffer holding the payload
+     * @param message Absolute offset of the payload
+     * @param length Number of captured payload bytes
+     * @param prefix Start of the target, Eg. "/api/"
+     * @return true for a request whose target starts with the prefix
+     */
+    static boolean targetStartsWith(ByteBuffer buffer, int message, int length, byte[] prefix) {
+        return kind(buffer, message, length) == REQUEST
+                && startsWith(buffer, message, length, methodLength(buffer, message, length) + 1, prefix);
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int message, int length, int index, byte[] prefix) {
+        if (index + prefix.length > length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(message + index + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(ByteBuffer buffer, int at, byte[] lower, int n) {
+        for (int i = 0; i < n; i++) {
+            int b = buffer.get(at + i);
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lower[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+} //HttpView
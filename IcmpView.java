@@ -0,0 +1,41 @@
+import java.nio.ByteBuffer;
+
+/**
+ * IcmpView.java
+ *
+ * Flyweight view of an ICMP header.
+ *
+ **/
+
+public class IcmpView extends HeaderView {
+
+    /** Length of the type, code and checksum fields. */
+    public static final int HEADER_LENGTH = 4;
+
+    /**
+     * Points the view at an ICMP header.
+     * @param buffer Buffer holding the header
+     * @param offset Absolute offset of the header
+     * @param length Number of bytes in the message
+     * @return This view
+     */
+    public IcmpView wrap(ByteBuffer buffer, int offset, int length) {
+        set(buffer, offset, length);
+        return this;
+    }
+
+    /** @return Message type */
+    public int type() {
+        return u8(0);
+    }
+
+    /** @return Code */
+    public int code() {
+        return u8(1);
+    }
+
+    /** @return Checksum */
+    public int checksum() {
+        return u16(2);
+    }
+} //IcmpView
@@ -0,0 +1,188 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Ipv4View.java
+ *
+ * Flyweight view of an IPv4 header. Owns the TCP, UDP and ICMP views of its payload so they can be reached without
+ * allocation.
+ *
+ **/
+
+public class Ipv4View extends HeaderView {
+
+    /** Length of an IPv4 header without options. */
+    public static final int MIN_HEADER_LENGTH = 20;
+
+    public static final int PROTOCOL_ICMP = 1;
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+
+    private final TcpView tcp = new TcpView();
+    private final UdpView udp = new UdpView();
+    private final IcmpView icmp = new IcmpView();
+
+    /**
+     * Points the view at an IPv4 header.
+     * @param buffer Buffer holding the header
+     * @param offset Absolute offset of the header
+     * @param length Number of captured bytes from the start of the header
+     * @return This view
+     */
+    public Ipv4View wrap(ByteBuffer buffer, int offset, int length) {
+        set(buffer, offset, length);
+        return this;
+    }
+
+    /** @return true if the header is version 4 and fits, with its options, inside the captured bytes */
+    public boolean isValid() {
+        return length >= MIN_HEADER_LENGTH && version() == 4 && ihl() >= 5 && headerLength() <= length;
+    }
+
+    /** @return IP version, the first 4 bits of the first byte */
+    public int version() {
+        return u8(0) >> 4;
+    }
+
+    /** @return Internet Header Length in 32 bit words, the last 4 bits of the first byte */
+    public int ihl() {
+        return u8(0) & (1 << 4) - 1;
+    }
+
+    /** @return Length of the header in bytes, IHL*32/8. Never less than 20. */
+    public int headerLength() {
+        return Math.max(MIN_HEADER_LENGTH, ihl() * 4);
+    }
+
+    /** @return Types of Service byte */
+    public int tos() {
+        return u8(1);
+    }
+
+    /** @return Differentiated Services Code Point, the first 6 bits of the ToS byte */
+    public int dscp() {
+        return u8(1) >> 2;
+    }
+
+    /** @return Explicit Congestion Notification, the last 2 bits of the ToS byte */
+    public int ecn() {
+        return u8(1) & (1 << 2) - 1;
+    }
+
+    /** @return Total length of the datagram in bytes */
+    public int totalLength() {
+        return u16(2);
+    }
+
+    /** @return Identification field */
+    public int identification() {
+        return u16(4);
+    }
+
+    /** @return The 3 flag bits: reserved, DF, MF */
+    public int flags() {
+        return u8(6) >> 5;
+    }
+
+    /** @return true if the Do not Fragment bit is set */
+    public boolean dontFragment() {
+        return (u8(6) >> 6 & 1) != 0;
+    }
+
+    /** @return true if the More Fragments bit is set */
+    public boolean moreFragments() {
+        return (u8(6) >> 5 & 1) != 0;
+    }
+
+    /** @return Fragment offset in 8 byte units, the last 13 bits of bytes 6-7 */
+    public int fragmentOffset() {
+        return u16(6) & (1 << 13) - 1;
+    }
+
+    /** @return true if this datagram is a fragment (MF set or non-zero offset) */
+    public boolean isFragment() {
+        return (u16(6) & 0x3FFF) != 0;
+    }
+
+    /** @return Time to live */
+    public int ttl() {
+        return u8(8);
+    }
+
+    /** @return Protocol number of the payload */
+    public int protocol() {
+        return u8(9);
+    }
+
+    /** @return Header checksum */
+    public int checksum() {
+        return u16(10);
+    }
+
+    /** @return Source address, most significant byte first */
+    public int source() {
+        return s32(12);
+    }
+
+    /** @return Destination address, most significant byte first */
+    public int destination() {
+        return s32(16);
+    }
+
+    /** @return Absolute offset of the payload */
+    public int payloadOffset() {
+        return offset + headerLength();
+    }
+
+    /**
+     * @return Number of payload bytes: the total length minus the header, cut to what was captured. Ethernet padding
+     * after the datagram is not part of the payload.
+     */
+    public int payloadLength() {
+        int end = totalLength();
+        if (end == 0 || end > length) {
+            //Total length is 0 on segmentation-offloaded captures; fall back to the captured bytes
+            end = length;
+        }
+        return Math.max(0, end - headerLength());
+    }
+
+    /** @return true if the payload starts a TCP segment whose header fits inside the captured bytes */
+    public boolean isTcp() {
+        return protocol() == PROTOCOL_TCP && fragmentOffset() == 0 && payloadLength() >= TcpView.MIN_HEADER_LENGTH
+                && tcp().headerLength() <= payloadLength();
+    }
+
+    /** @return true if the payload starts a UDP datagram whose header fits inside the captured bytes */
+    public boolean isUdp() {
+        return protocol() == PROTOCOL_UDP && fragmentOffset() == 0 && payloadLength() >= UdpView.HEADER_LENGTH;
+    }
+
+    /** @return true if the payload starts an ICMP message whose header fits inside the captured bytes */
+    public boolean isIcmp() {
+        return protocol() == PROTOCOL_ICMP && fragmentOffset() == 0 && payloadLength() >= IcmpView.HEADER_LENGTH;
+    }
+
+    /** @return View of the payload as a TCP header */
+    public TcpView tcp() {
+        return tcp.wrap(buffer, payloadOffset(), payloadLength());
+    }
+
+    /** @return View of the payload as a UDP header */
+    public UdpView udp() {
+        return udp.wrap(buffer, payloadOffset(), payloadLength());
+    }
+
+    /** @return View of the payload as an ICMP header */
+    public IcmpView icmp() {
+        return icmp.wrap(buffer, payloadOffset(), payloadLength());
+    }
+
+    /**
+     * Formats an address in dotted decimal notation.
+     * @param address Address, most significant byte first
+     * @return Eg. 192.168.0.1
+     */
+    public static String format(int address) {
+        return (address >>> 24) + "." + (address >> 16 & 0xFF) + "." + (address >> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+} //Ipv4View
@@ -0,0 +1,175 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Ipv6View.java
+ *
+ * Flyweight view of an IPv6 header and the extension headers following it. Wrapping walks the Hop-by-Hop, Routing,
+ * Fragment, Destination Options and Authentication headers once to find the upper layer protocol and where its
+ * header starts; like Ipv4View, the view owns the TCP, UDP and ICMPv6 views of that payload.
+ *
+ **/
+
+public class Ipv6View extends HeaderView {
+
+    /** Length of the fixed IPv6 header. */
+    public static final int HEADER_LENGTH = 40;
+
+    public static final int NEXT_HOP_BY_HOP = 0;
+    public static final int NEXT_ROUTING = 43;
+    public static final int NEXT_FRAGMENT = 44;
+    public static final int NEXT_AUTHENTICATION = 51;
+    public static final int NEXT_DESTINATION_OPTIONS = 60;
+    public static final int PROTOCOL_ICMPV6 = 58;
+
+    private final TcpView tcp = new TcpView();
+    private final UdpView udp = new UdpView();
+    private final IcmpView icmp = new IcmpView();
+    //Found by walking the extension headers when the view is wrapped
+    private int protocol;
+    private int upperOffset;
+    private int fragmentOffset;
+    private boolean fragment;
+
+    /**
+     * Points the view at an IPv6 header.
+     * @param buffer Buffer holding the header
+     * @param offset Absolute offset of the header
+     * @param length Number of captured bytes from the start of the header
+     * @return This view
+     */
+    public Ipv6View wrap(ByteBuffer buffer, int offset, int length) {
+        set(buffer, offset, length);
+        protocol = length >= HEADER_LENGTH ? nextHeader() : -1;
+        upperOffset = HEADER_LENGTH;
+        fragmentOffset = 0;
+        fragment = false;
+        int end = end();
+        while (protocol >= 0 && upperOffset + 8 <= end) {
+            int next = u8(upperOffset);
+            if (protocol == NEXT_HOP_BY_HOP || protocol == NEXT_ROUTING || protocol == NEXT_DESTINATION_OPTIONS) {
+                upperOffset += (u8(upperOffset + 1) + 1) * 8;
+            } else if (protocol == NEXT_FRAGMENT) {
+                fragmentOffset = u16(upperOffset + 2) & ~7;
+                //An offset or the More Fragments flag; a fragment header with neither holds a whole datagram
+                fragment = (u16(upperOffset + 2) & 0xFFF9) != 0;
+                upperOffset += 8;
+            } else if (protocol == NEXT_AUTHENTICATION) {
+                upperOffset += (u8(upperOffset + 1) + 2) * 4;
+            } else {
+                break;
+            }
+            protocol = next;
+        }
+        return this;
+    }
+
+    /** @return true if the header is version 6 and fits inside the captured bytes */
+    public boolean isValid() {
+        return length >= HEADER_LENGTH && version() == 6;
+    }
+
+    /** @return IP version, the first 4 bits */
+    public int version() {
+        return u8(0) >> 4;
+    }
+
+    /** @return Traffic class, the 8 bits after the version */
+    public int trafficClass() {
+        return u16(0) >> 4 & 0xFF;
+    }
+
+    /** @return Flow label, the last 20 bits of the first word */
+    public int flowLabel() {
+        return s32(0) & 0xFFFFF;
+    }
+
+    /** @return Length of everything after the fixed header, extension headers included */
+    public int payloadLength() {
+        return u16(4);
+    }
+
+    /** @return Protocol of the header following the fixed header */
+    public int nextHeader() {
+        return u8(6);
+    }
+
+    /** @return Hop limit */
+    public int hopLimit() {
+        return u8(7);
+    }
+
+    /** @return High 64 bits of the source address */
+    public long sourceHigh() {
+        return u32(8) << 32 | u32(12);
+    }
+
+    /** @return Low 64 bits of the source address */
+    public long sourceLow() {
+        return u32(16) << 32 | u32(20);
+    }
+
+    /** @return High 64 bits of the destination address */
+    public long destinationHigh() {
+        return u32(24) << 32 | u32(28);
+    }
+
+    /** @return Low 64 bits of the destination address */
+    public long destinationLow() {
+        return u32(32) << 32 | u32(36);
+    }
+
+    /**
+     * @return Protocol of the upper layer header after the extension headers, or the extension header the walk stopped
+     * at if it does not fit in the captured bytes
+     */
+    public int protocol() {
+        return protocol;
+    }
+
+    /** @return Bytes of extension headers between the fixed header and the upper layer header */
+    public int extensionLength() {
+        return upperOffset - HEADER_LENGTH;
+    }
+
+    /** @return Offset in bytes of this fragment in its datagram, 0 if the packet is not a later fragment */
+    public int fragmentOffset() {
+        return fragmentOffset;
+    }
+
+    /** @return true if the packet is a fragment of a larger datagram, the first one included */
+    public boolean isFragment() {
+        return fragment;
+    }
+
+    /** @return Offset relative to the header of the end of the payload, cut to what was captured */
+    private int end() {
+        int end = HEADER_LENGTH + payloadLength();
+        //Payload length is 0 with a Jumbo Payload option; fall back to the captured bytes
+        return payloadLength() == 0 || end > length ? length : end;
+    }
+
+    /** @return Absolute offset of the upper layer header */
+    public int upperOffset() {
+        return offset + upperOffset;
+    }
+
+    /** @return Number of captured bytes of the upper layer header and its payload */
+    public int upperLength() {
+        return Math.max(0, end() - upperOffset);
+    }
+
+    /** @return View of the upper layer as a TCP header */
+    public TcpView tcp() {
+        return tcp.wrap(buffer, upperOffset(), upperLength());
+    }
+
+    /** @return View of the upper layer as a UDP header */
+    public UdpView udp() {
+        return udp.wrap(buffer, upperOffset(), upperLength());
+    }
+
+    /** @return View of the upper layer as an ICMPv6 header, which starts like an ICMP one */
+    public IcmpView icmp() {
+        return icmp.wrap(buffer, upperOffset(), upperLength());
+    }
+} //Ipv6View
@@ -0,0 +1,521 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics.java
+ *
+ * Counters and decode latencies of a run, exported while it runs:
+ *
+ * - packets and bytes per EtherType, per IP protocol and per port (the lower of the two ports, which is the service
+ *   side of most conversations)
+ * - packets per TCP flag combination
+ * - malformed frames (a header does not fit in the captured bytes) and truncated frames (the IP total length is
+ *   larger than what was captured, Eg. a snap length cut)
+ * - decode latency histograms per layer: Ethernet, network (IP/ARP), transport (TCP/UDP/ICMP and payload) and the
+ *   whole record, in power of two nanosecond buckets; at verbosity none and summary, where no header is printed,
+ *   the layers are timed reading their headers through the views
+ * - with --checksums, IPv4, TCP, UDP and ICMP checksums checked and found bad (see Checksum)
+ *
+ * The counters are striped the way LongAdder stripes its cells: every decoder takes a Stripe of plain long arrays for
+ * itself (acquire/release around a batch) and is its only writer, so parallel decoding never contends on a counter
+ * and the hot path has no atomic operation. Stripes are recycled, so there are about as many as decoders running at
+ * once. The exporter sums the stripes; a snapshot taken while decoding runs may miss the latest increments of a
+ * stripe, the final one after the run is exact.
+ *
+ * Export goes to a file rewritten every interval (JSON if its name ends in .json, otherwise the Prometheus text
+ * format), and/or to http://127.0.0.1:PORT/metrics in the Prometheus text format.
+ *
+ **/
+
+public class Metrics {
+
+    /** Default seconds between two writes of the metrics file. */
+    static final int DEFAULT_INTERVAL = 5;
+
+    /** Latency layers. */
+    static final int ETHERNET = 0;
+    static final int NETWORK = 1;
+    static final int TRANSPORT = 2;
+    static final int TOTAL = 3;
+    private static final String[] LAYERS = {"ethernet", "network", "transport", "total"};
+    //Bucket i holds latencies below 2^i ns; the last one everything from 2^(BUCKETS-2) ns, about 0.3 s
+    private static final int BUCKETS = 30;
+    //Checksums counted: IPv4 headers, then the transport protocols
+    private static final String[] CHECKSUMS = {"ipv4", "tcp", "udp", "icmp"};
+    private static final String[] CHECKSUM_NAMES = {"IPv4", "TCP", "UDP", "ICMP"};
+
+    private final List<Stripe> stripes = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Stripe> idle = new ConcurrentLinkedQueue<>();
+    private final long started = System.nanoTime();
+    private final boolean checksums;
+    private ScheduledExecutorService timer;
+    private Path file;
+    private HttpServer server;
+    //Packets and time of the previous snapshot, for the rate
+    private long lastPackets;
+    private long lastTime = started;
+
+    /**
+     * Creates the metrics of a run.
+     * @param checksums true to verify the checksums of every packet counted
+     */
+    public Metrics(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * Counters written by one decoder at a time.
+     */
+    public static final class Stripe {
+        final long[] etherTypes = new long[65536 * 2];
+        final long[] protocols = new long[256 * 2];
+        final long[] tcpFlags = new long[256];
+        final long[] ports = new long[65536 * 2];
+        final long[] latency = new long[LAYERS.length * BUCKETS];
+        final long[] latencySum = new long[LAYERS.length];
+        long packets;
+        long bytes;
+        long malformed;
+        long truncated;
+        long otherLinks;
+        //Checked and bad count of each of CHECKSUMS
+        final long[] checksumCounts = new long[CHECKSUMS.length * 2];
+        private final boolean checksums;
+        //Checksum flags of the current record
+        private int checks;
+        //Start of the current record and of the current layer
+        private long start;
+        private long clock;
+
+        Stripe(boolean checksums) {
+            this.checksums = checksums;
+        }
+
+        /**
+         * Counts a record and starts timing its decode.
+         * @param packet View of the frame
+         * @param linkType Link type of the frame
+         */
+        public void count(PacketView packet, int linkType) {
+            start = clock = System.nanoTime();
+            checks = 0;
+            int length = packet.length();
+            packets++;
+            bytes += length;
+            if (linkType != PcapReader.LINKTYPE_ETHERNET) {
+                otherLinks++;
+                return;
+            }
+            if (!packet.isEthernet()) {
+                malformed++;
+                return;
+            }
+            add(etherTypes, packet.etherType(), length);
+            if (packet.etherType() != PacketView.ETHERTYPE_IPV4) {
+                return;
+            }
+            if (!packet.isIpv4()) {
+                malformed++;
+                return;
+            }
+            Ipv4View ip = packet.ipv4();
+            add(protocols, ip.protocol(), length);
+            if (checksums) {
+                verify(packet, ip);
+            }
+            if (ip.totalLength() > ip.length()) {
+                truncated++;
+            }
+            if (ip.fragmentOffset() != 0) {
+                return;
+            }
+            if (ip.isTcp()) {
+                TcpView tcp = ip.tcp();
+                tcpFlags[tcp.flags() & 0xFF]++;
+                add(ports, Math.min(tcp.sourcePort(), tcp.destinationPort()), length);
+            } else if (ip.isUdp()) {
+                UdpView udp = ip.udp();
+                add(ports, Math.min(udp.sourcePort(), udp.destinationPort()), length);
+            } else if (ip.protocol() == Ipv4View.PROTOCOL_TCP || ip.protocol() == Ipv4View.PROTOCOL_UDP) {
+                malformed++;
+            }
+        }
+
+        private void verify(PacketView packet, Ipv4View ip) {
+            checks = Checksum.verify(packet);
+            checksumCounts[0]++;
+            if ((checks & Checksum.IP_BAD) != 0) {
+                checksumCounts[1]++;
+            }
+            if ((checks & Checksum.TRANSPORT_CHECKED) != 0) {
+                int kind = ip.protocol() == Ipv4View.PROTOCOL_TCP ? 1 : ip.protocol() == Ipv4View.PROTOCOL_UDP ? 2 : 3;
+                checksumCounts[kind * 2]++;
+                if ((checks & Checksum.TRANSPORT_BAD) != 0) {
+                    checksumCounts[kind * 2 + 1]++;
+                }
+            }
+        }
+
+        /** @return Checksum flags of the current record (see Checksum.verify), 0 if checksums are not verified */
+        public int checks() {
+            return checks;
+        }
+
+        private static void add(long[] counters, int key, int length) {
+            counters[key * 2]++;
+            counters[key * 2 + 1] += length;
+        }
+
+        /**
+         * Records the time spent on a layer since the previous lap.
+         * @param layer ETHERNET, NETWORK or TRANSPORT
+         */
+        public void lap(int layer) {
+            long now = System.nanoTime();
+            record(layer, now - clock);
+            clock = now;
+        }
+
+        /** Records the time spent on the whole record since {@link #count}. */
+        public void done() {
+            record(TOTAL, System.nanoTime() - start);
+        }
+
+        private void record(int layer, long nanos) {
+            int bucket = Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+            latency[layer * BUCKETS + bucket]++;
+            latencySum[layer] += nanos;
+        }
+    }
+
+    /**
+     * Takes a stripe for the calling decoder, until {@link #release}.
+     * @return A stripe no other decoder writes to
+     */
+    public Stripe acquire() {
+        Stripe stripe = idle.poll();
+        if (stripe == null) {
+            stripe = new Stripe(checksums);
+            stripes.add(stripe);
+        }
+        return stripe;
+    }
+
+    /**
+     * Hands a stripe back once the decoder is done with it.
+     * @param stripe Stripe from {@link #acquire()}
+     */
+    public void release(Stripe stripe) {
+        idle.add(stripe);
+    }
+
+    /**
+     * Rewrites a file with the metrics every interval, and once more on {@link #close()}.
+     * @param file Path of the file; JSON if it ends in .json, Prometheus text otherwise
+     * @param seconds Interval between two writes
+     */
+    public void exportTo(Path file, int seconds) {
+        this.file = file;
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-export");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(() -> {
+            try {
+                write();
+            } catch (IOException e) {
+                System.err.println("Cannot write metrics to " + file + ": " + e.getMessage());
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Serves the metrics in the Prometheus text format on http://127.0.0.1:port/metrics.
+     * @param port TCP port on the loopback interface
+     * @throws IOException If the port cannot be bound
+     */
+    public void serve(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            TextOutput text = render(false);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, text.size());
+            try (OutputStream body = exchange.getResponseBody()) {
+                text.writeTo(body);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stops the exports, writing the file one last time with the final counts.
+     * @throws IOException If the file cannot be written
+     */
+    public void close() throws IOException {
+        if (timer != null) {
+            timer.shutdownNow();
+            write();
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Prints how many checksums were checked and how many of them were wrong, if checksums were verified.
+     * @param out Writer the line is printed to
+     */
+    public void report(TextOutput out) {
+        if (!checksums) {
+            return;
+        }
+        long[] counts = new long[CHECKSUMS.length * 2];
+        for (Stripe stripe : stripes) {
+            add(counts, stripe.checksumCounts);
+        }
+        out.print("Checksums:");
+        for (int kind = 0; kind < CHECKSUMS.length; kind++) {
+            out.print(kind == 0 ? " " : ", ").print(CHECKSUM_NAMES[kind]).print(' ').print(counts[kind * 2 + 1])
+                    .print(" bad of ").print(counts[kind * 2]);
+        }
+        out.println();
+    }
+
+    /** Writes the file through a temporary one, so readers never see it half written. */
+    private void write() throws IOException {
+        TextOutput text = render(file.getFileName().toString().endsWith(".json"));
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            text.writeTo(out);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Sums the stripes and renders them.
+     * @param json true for JSON, false for the Prometheus text format
+     * @return Rendered metrics
+     */
+    synchronized TextOutput render(boolean json) {
+        Stripe sum = new Stripe(checksums);
+        for (Stripe stripe : stripes) {
+            add(sum.checksumCounts, stripe.checksumCounts);
+            add(sum.etherTypes, stripe.etherTypes);
+            add(sum.protocols, stripe.protocols);
+            add(sum.tcpFlags, stripe.tcpFlags);
+            add(sum.ports, stripe.ports);
+            add(sum.latency, stripe.latency);
+            add(sum.latencySum, stripe.latencySum);
+            sum.packets += stripe.packets;
+            sum.bytes += stripe.bytes;
+            sum.malformed += stripe.malformed;
+            sum.truncated += stripe.truncated;
+            sum.otherLinks += stripe.otherLinks;
+        }
+        long now = System.nanoTime();
+        long rate = now > lastTime ? (sum.packets - lastPackets) * 1_000_000_000L / (now - lastTime) : 0;
+        lastPackets = sum.packets;
+        lastTime = now;
+        TextOutput text = new TextOutput(16 * 1024, TextOutput.Verbosity.FULL);
+        if (json) {
+            json(text, sum, now - started, rate);
+        } else {
+            prometheus(text, sum, now - started, rate);
+        }
+        return text;
+    }
+
+    private static void add(long[] into, long[] from) {
+        for (int i = 0; i < into.length; i++) {
+            into[i] += from[i];
+        }
+    }
+
+    private static void prometheus(TextOutput out, Stripe sum, long uptime, long rate) {
+        gauge(out, "pktanalyzer_uptime_seconds", "Seconds since the analyzer started");
+        out.print("pktanalyzer_uptime_seconds ");
+        seconds(out, uptime);
+        out.println();
+        gauge(out, "pktanalyzer_packets_per_second", "Packets decoded per second since the previous export");
+        out.print("pktanalyzer_packets_per_second ").print(rate).println();
+        counter(out, "pktanalyzer_packets_total", "Records decoded", sum.packets);
+        counter(out, "pktanalyzer_bytes_total", "Captured bytes decoded", sum.bytes);
+        counter(out, "pktanalyzer_malformed_total", "Frames with a header that does not fit the captured bytes",
+                sum.malformed);
+        counter(out, "pktanalyzer_truncated_total", "Frames captured shorter than their IP total length",
+                sum.truncated);
+        counter(out, "pktanalyzer_other_link_type_total", "Records of a link type other than Ethernet",
+                sum.otherLinks);
+        if (sum.checksums) {
+            out.println("# HELP pktanalyzer_checksums_checked_total Checksums verified, per protocol");
+            out.println("# TYPE pktanalyzer_checksums_checked_total counter");
+            for (int kind = 0; kind < CHECKSUMS.length; kind++) {
+                out.print("pktanalyzer_checksums_checked_total{protocol=\"").print(CHECKSUMS[kind]).print("\"} ")
+                        .print(sum.checksumCounts[kind * 2]).println();
+            }
+            out.println("# HELP pktanalyzer_checksums_bad_total Checksums found wrong, per protocol");
+            out.println("# TYPE pktanalyzer_checksums_bad_total counter");
+            for (int kind = 0; kind < CHECKSUMS.length; kind++) {
+                out.print("pktanalyzer_checksums_bad_total{protocol=\"").print(CHECKSUMS[kind]).print("\"} ")
+                        .print(sum.checksumCounts[kind * 2 + 1]).println();
+            }
+        }
+        labelled(out, "pktanalyzer_ethertype", "EtherType", "ethertype", sum.etherTypes, true);
+        labelled(out, "pktanalyzer_ip_protocol", "IP protocol", "protocol", sum.protocols, false);
+        labelled(out, "pktanalyzer_port", "port (the lower of source and destination)", "port", sum.ports, false);
+        out.println("# HELP pktanalyzer_tcp_flags_packets_total TCP segments per flag combination");
+        out.println("# TYPE pktanalyzer_tcp_flags_packets_total counter");
+        for (int flags = 0; flags < sum.tcpFlags.length; flags++) {
+            if (sum.tcpFlags[flags] != 0) {
+                out.print("pktanalyzer_tcp_flags_packets_total{flags=\"0x").hex(flags, 2).print("\"} ")
+                        .print(sum.tcpFlags[flags]).println();
+            }
+        }
+        out.println("# HELP pktanalyzer_decode_seconds Time spent decoding and printing, per layer");
+        out.println("# TYPE pktanalyzer_decode_seconds histogram");
+        for (int layer = 0; layer < LAYERS.length; layer++) {
+            long count = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                count += sum.latency[layer * BUCKETS + bucket];
+                if (bucket < BUCKETS - 1) {
+                    out.print("pktanalyzer_decode_seconds_bucket{layer=\"").print(LAYERS[layer]).print("\",le=\"");
+                    seconds(out, 1L << bucket);
+                    out.print("\"} ").print(count).println();
+                }
+            }
+            out.print("pktanalyzer_decode_seconds_bucket{layer=\"").print(LAYERS[layer]).print("\",le=\"+Inf\"} ")
+                    .print(count).println();
+            out.print("pktanalyzer_decode_seconds_sum{layer=\"").print(LAYERS[layer]).print("\"} ");
+            seconds(out, sum.latencySum[layer]);
+            out.println();
+            out.print("pktanalyzer_decode_seconds_count{layer=\"").print(LAYERS[layer]).print("\"} ").print(count)
+                    .println();
+        }
+    }
+
+    private static void gauge(TextOutput out, String name, String help) {
+        out.print("# HELP ").print(name).print(' ').println(help);
+        out.print("# TYPE ").print(name).println(" gauge");
+    }
+
+    private static void counter(TextOutput out, String name, String help, long value) {
+        out.print("# HELP ").print(name).print(' ').println(help);
+        out.print("# TYPE ").print(name).println(" counter");
+        out.print(name).print(' ').print(value).println();
+    }
+
+    /** Prints the packets and bytes counters of every key seen. */
+    private static void labelled(TextOutput out, String name, String what, String label, long[] counters,
+                                 boolean hex) {
+        for (int kind = 0; kind < 2; kind++) {
+            String metric = name + (kind == 0 ? "_packets_total" : "_bytes_total");
+            out.print("# HELP ").print(metric).print(kind == 0 ? " Records per " : " Captured bytes per ")
+                    .println(what);
+            out.print("# TYPE ").print(metric).println(" counter");
+            for (int key = 0; key < counters.length / 2; key++) {
+                if (counters[key * 2] != 0) {
+                    out.print(metric).print('{').print(label).print("=\"");
+                    key(out, key, hex);
+                    out.print("\"} ").print(counters[key * 2 + kind]).println();
+                }
+            }
+        }
+    }
+
+    private static void key(TextOutput out, int key, boolean hex) {
+        if (hex) {
+            out.print("0x").hex(key, 4);
+        } else {
+            out.print(key);
+        }
+    }
+
+    private static void json(TextOutput out, Stripe sum, long uptime, long rate) {
+        out.print("{\"uptimeSeconds\":");
+        seconds(out, uptime);
+        out.print(",\"packetsPerSecond\":").print(rate)
+                .print(",\"packets\":").print(sum.packets)
+                .print(",\"bytes\":").print(sum.bytes)
+                .print(",\"malformed\":").print(sum.malformed)
+                .print(",\"truncated\":").print(sum.truncated)
+                .print(",\"otherLinkTypes\":").print(sum.otherLinks);
+        if (sum.checksums) {
+            out.print(",\n\"checksums\":{");
+            for (int kind = 0; kind < CHECKSUMS.length; kind++) {
+                out.print(kind == 0 ? "\"" : ",\"").print(CHECKSUMS[kind]).print("\":{\"checked\":")
+                        .print(sum.checksumCounts[kind * 2]).print(",\"bad\":").print(sum.checksumCounts[kind * 2 + 1])
+                        .print('}');
+            }
+            out.print('}');
+        }
+        out.print(",\n\"etherTypes\":");
+        object(out, sum.etherTypes, true);
+        out.print(",\n\"ipProtocols\":");
+        object(out, sum.protocols, false);
+        out.print(",\n\"ports\":");
+        object(out, sum.ports, false);
+        out.print(",\n\"tcpFlags\":{");
+        boolean first = true;
+        for (int flags = 0; flags < sum.tcpFlags.length; flags++) {
+            if (sum.tcpFlags[flags] != 0) {
+                out.print(first ? "\"0x" : ",\"0x").hex(flags, 2).print("\":").print(sum.tcpFlags[flags]);
+                first = false;
+            }
+        }
+        out.print("},\n\"latency\":{");
+        for (int layer = 0; layer < LAYERS.length; layer++) {
+            long count = 0;
+            out.print(layer == 0 ? "\"" : ",\"").print(LAYERS[layer]).print("\":{\"buckets\":{");
+            first = true;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                long n = sum.latency[layer * BUCKETS + bucket];
+                if (n != 0) {
+                    //Keyed by the exclusive upper bound in ns, the last bucket by its lower bound with a +
+                    if (bucket < BUCKETS - 1) {
+                        out.print(first ? "\"" : ",\"").print(1L << bucket).print("\":").print(n);
+                    } else {
+                        out.print(first ? "\"" : ",\"").print(1L << (bucket - 1)).print("+\":").print(n);
+                    }
+                    first = false;
+                }
+                count += n;
+            }
+            out.print("},\"count\":").print(count).print(",\"sumNanos\":").print(sum.latencySum[layer]).print('}');
+        }
+        out.println("}}");
+    }
+
+    /** Prints {"key":{"packets":p,"bytes":b},...} for every key seen. */
+    private static void object(TextOutput out, long[] counters, boolean hex) {
+        out.print('{');
+        boolean first = true;
+        for (int key = 0; key < counters.length / 2; key++) {
+            if (counters[key * 2] != 0) {
+                out.print(first ? "\"" : ",\"");
+                key(out, key, hex);
+                out.print("\":{\"packets\":").print(counters[key * 2]).print(",\"bytes\":")
+                        .print(counters[key * 2 + 1]).print('}');
+                first = false;
+            }
+        }
+        out.print('}');
+    }
+
+    /** Prints nanoseconds as seconds with 9 decimals. */
+    private static void seconds(TextOutput out, long nanos) {
+        out.print(nanos / 1_000_000_000L).print('.').print(nanos % 1_000_000_000L, 9);
+    }
+} //Metrics
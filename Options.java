@@ -0,0 +1,407 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options.java
+ *
+ * Command line options of pktanalyzer. Options start with "--" and come before the file path(s); everything else is
+ * treated as a path.
+ *
+ **/
+
+public class Options {
+
+    /** Map the capture with FileChannel.map and decode frames in place instead of reading through a buffer. */
+    boolean mmap;
+
+    /** Number of decoder threads, 0 to decode on the main thread; with several captures, files decoded at once. */
+    int threads;
+
+    /** Frames per batch handed to a decoder thread. */
+    int batch = ParallelAnalyzer.DEFAULT_BATCH_FRAMES;
+
+    /** Kind of thread pool running the decoders: forkjoin, fixed or virtual. */
+    String executor = "forkjoin";
+
+    /** Decode several captures as one stream in timestamp order instead of file by file. */
+    boolean merge;
+
+    /** Maximum number of capture files open at once. */
+    int maxOpen = BatchAnalyzer.DEFAULT_MAX_OPEN;
+
+    /** Bytes of text held back and of per file tables when several captures are decoded at once. */
+    long batchMemory = BatchAnalyzer.DEFAULT_MEMORY;
+
+    /** How much of each packet is printed. */
+    TextOutput.Verbosity verbosity = TextOutput.Verbosity.FULL;
+
+    /** Track TCP/UDP flows and print a summary of every flow. */
+    boolean flows;
+
+    /** Seconds without a packet after which a flow is printed and forgotten. */
+    int flowTimeout = FlowTable.DEFAULT_IDLE_TIMEOUT;
+
+    /** Maximum number of flows held at once. */
+    int maxFlows = FlowTable.DEFAULT_MAX_FLOWS;
+
+    /** Number of top talkers printed per list, 0 for none. */
+    int top;
+
+    /** Number of keys tracked per top talkers list. */
+    int topCounters = TopTalkers.DEFAULT_COUNTERS;
+
+    /** File the window statistics are written to as JSON lines, null for none. */
+    String windows;
+
+    /** Length of a tumbling window in seconds. */
+    int window = WindowStats.DEFAULT_WINDOW;
+
+    /** Length of the sliding window in seconds, 0 for none. */
+    int windowSpan = WindowStats.DEFAULT_SPAN;
+
+    /** Threshold per detection rule (see AnomalyDetector), 0 for a rule that is off; null to not detect. */
+    long[] detect;
+
+    /** Directory the reassembled TCP streams are written to, null to not reassemble. */
+    String streams;
+
+    /** Bytes of out-of-order TCP segments held while waiting for a missing one. */
+    int streamMemory = StreamReassembler.DEFAULT_MEMORY;
+
+    /** File the header fields of every packet are exported to in columnar form, null for none. */
+    String columns;
+
+    /** Only frames matching this filter are decoded, null for every frame. */
+    PacketFilter filter;
+
+    /** Reassemble fragmented IPv4 datagrams before decoding them. */
+    boolean defrag;
+
+    /** Bytes held by incomplete IPv4 datagrams. */
+    int fragmentMemory = FragmentReassembler.DEFAULT_MEMORY;
+
+    /** Bytes of the ring buffer between the reader and the decoders of a live input. */
+    int ringSize = PacketRing.DEFAULT_SIZE;
+
+    /** Drop live records when the ring buffer is full instead of waiting for the decoders. */
+    boolean drop;
+
+    /** File the metrics are written to periodically, null for none. */
+    String metricsFile;
+
+    /** Seconds between two writes of the metrics file. */
+    int metricsInterval = Metrics.DEFAULT_INTERVAL;
+
+    /** Port of the Prometheus endpoint on localhost, 0 for none. */
+    int metricsPort;
+
+    /** Verify the IPv4, TCP, UDP and ICMP checksums of every packet. */
+    boolean checksums;
+
+    /** Build the index of the capture (capture.idx) and exit. */
+    boolean index;
+
+    /** Packet numbers to decode, N or N-M (M may be left out), null for all. */
+    String packets;
+
+    /** Decode packets from this time on, null for no limit. */
+    String from;
+
+    /** Decode packets up to this time, null for no limit. */
+    String to;
+
+    /** Capture the selected frames are copied to instead of being decoded, null to decode them. */
+    String write;
+
+    /** Bytes kept of each frame written, 0 for whole frames. */
+    int snaplen;
+
+    /** Frames written are one in this many. */
+    int sample = 1;
+
+    /** Flows written are one in this many. */
+    int sampleFlows = 1;
+
+    /** Paths given on the command line. */
+    final List<String> files = new ArrayList<>();
+
+    /**
+     * Parses the command line.
+     * @param args Command line arguments
+     * @return Parsed options
+     * @throws IllegalArgumentException If an option is unknown or is missing its value
+     */
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                options.files.add(arg);
+                continue;
+            }
+            switch (arg) {
+                case "--mmap":
+                    options.mmap = true;
+                    break;
+                case "--verbosity":
+                    try {
+                        options.verbosity = TextOutput.Verbosity.valueOf(value(args, ++i, arg).toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Bad value for " + arg + ": " + args[i]);
+                    }
+                    break;
+                case "--threads":
+                    options.threads = number(args, ++i, arg);
+                    break;
+                case "--batch":
+                    options.batch = Math.max(1, number(args, ++i, arg));
+                    break;
+                case "--merge":
+                    options.merge = true;
+                    break;
+                case "--max-open":
+                    options.maxOpen = Math.max(1, number(args, ++i, arg));
+                    break;
+                case "--batch-memory":
+                    options.batchMemory = (long) Math.max(1, number(args, ++i, arg)) << 20;
+                    break;
+                case "--executor":
+                    options.executor = value(args, ++i, arg);
+                    if (!options.executor.matches("forkjoin|fixed|virtual")) {
+                        throw new IllegalArgumentException("Unknown executor " + options.executor);
+                    }
+                    if (options.executor.equals("virtual") && Runtime.version().feature() < 21) {
+                        throw new IllegalArgumentException("Virtual threads need Java 21 or later");
+                    }
+                    break;
+                case "--flows":
+                    options.flows = true;
+                    break;
+                case "--flow-timeout":
+                    options.flowTimeout = Math.max(1, number(args, ++i, arg));
+                    break;
+                case "--top":
+                    options.top = number(args, ++i, arg);
+                    break;
+                case "--top-counters":
+                    options.topCounters = Math.max(1, number(args, ++i, arg));
+                    break;
+                case "--windows":
+                    options.windows = value(args, ++i, arg);
+                    break;
+                case "--window":
+                    options.window = Math.max(1, number(args, ++i, arg));
+                    break;
+                case "--window-span":
+                    options.windowSpan = number(args, ++i, arg);
+                    break;
+                case "--detect":
+                    options.detect = AnomalyDetector.rules(value(args, ++i, arg));
+                    break;
+                case "--max-flows":
+                    options.maxFlows = Math.max(1, number(args, ++i, arg));
+                    break;
+                case "--filter":
+                    options.filter = PacketFilter.compile(value(args, ++i, arg));
+                    break;
+                case "--defrag":
+                    options.defrag = true;
+                    break;
+                case "--fragment-memory":
+                    options.fragmentMemory = megabytes(args, ++i, arg);
+                    break;
+                case "--checksums":
+                    options.checksums = true;
+                    break;
+                case "--index":
+                    options.index = true;
+                    break;
+                case "--packets":
+                    options.packets = value(args, ++i, arg);
+                    if (!options.packets.matches("[1-9]\\d*(-([1-9]\\d*)?)?")) {
+                        throw new IllegalArgumentException("Bad packet range " + options.packets);
+                    }
+                    break;
+                case "--from":
+                    options.from = value(args, ++i, arg);
+                    //Checked now, resolved once the date of the capture is known
+                    PacketIndex.time(options.from, 0);
+                    break;
+                case "--to":
+                    options.to = value(args, ++i, arg);
+                    //Checked now, resolved once the date of the capture is known
+                    PacketIndex.time(options.to, 0);
+                    break;
+                case "--columns":
+                    options.columns = value(args, ++i, arg);
+                    break;
+                case "--streams":
+                    options.streams = value(args, ++i, arg);
+                    break;
+                case "--stream-memory":
+                    options.streamMemory = megabytes(args, ++i, arg);
+                    break;
+                case "--ring-size":
+                    options.ringSize = Math.max(1, Math.min(number(args, ++i, arg), 1024)) << 20;
+                    break;
+                case "--write":
+                    options.write = value(args, ++i, arg);
+                    break;
+                case "--snaplen":
+                    options.snaplen = Math.max(1, number(args, ++i, arg));
+                    break;
+                case "--sample":
+                    options.sample = Math.max(1, number(args, ++i, arg));
+                    break;
+                case "--sample-flows":
+                    options.sampleFlows = Math.max(1, number(args, ++i, arg));
+                    break;
+                case "--drop":
+                    options.drop = true;
+                    break;
+                case "--metrics":
+                    options.metricsFile = value(args, ++i, arg);
+                    break;
+                case "--metrics-interval":
+                    options.metricsInterval = Math.max(1, number(args, ++i, arg));
+                    break;
+                case "--metrics-port":
+                    options.metricsPort = number(args, ++i, arg);
+                    if (options.metricsPort > 65535) {
+                        throw new IllegalArgumentException("Bad value for " + arg + ": " + args[i]);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (options.write == null && (options.snaplen > 0 || options.sample > 1 || options.sampleFlows > 1)) {
+            throw new IllegalArgumentException("--snaplen, --sample and --sample-flows need --write");
+        }
+        if (options.write != null && options.defrag) {
+            throw new IllegalArgumentException("--write copies frames as captured, it cannot be used with --defrag");
+        }
+        return options;
+    }
+
+    /**
+     * Returns the value following an option.
+     * @param args Command line arguments
+     * @param i Index of the value
+     * @param option Name of the option, for the error message
+     * @return The value
+     */
+    static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    /**
+     * Returns the non-negative integer following an option.
+     * @param args Command line arguments
+     * @param i Index of the value
+     * @param option Name of the option, for the error message
+     * @return The value
+     */
+    static int number(String[] args, int i, String option) {
+        String value = value(args, i, option);
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            //reported below
+        }
+        throw new IllegalArgumentException("Bad value for " + option + ": " + value);
+    }
+
+    /**
+     * Returns the size in megabytes following an option, in bytes.
+     * @param args Command line arguments
+     * @param i Index of the value
+     * @param option Name of the option, for the error message
+     * @return The value in bytes, at least 1 MB
+     * @throws IllegalArgumentException If the size does not fit in an int, over 2047 MB
+     */
+    static int megabytes(String[] args, int i, String option) {
+        long bytes = (long) Math.max(1, number(args, i, option)) << 20;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(option + " is at most " + (Integer.MAX_VALUE >> 20) + " MB");
+        }
+        return (int) bytes;
+    }
+
+    /** @return Usage text printed on bad command lines */
+    static String usage() {
+        return "Usage: java pktanalyzer [options] filepath...\n" +
+                "  filepath is a raw frame, a pcap/pcapng file, a named pipe or - for stdin; several\n" +
+                "  captures, directories of captures or glob patterns (\"logs/*.pcap\") are read as a batch\n" +
+                "  --mmap               map the file into memory and decode frames in place\n" +
+                "  --verbosity LEVEL    none, summary (one line per packet), headers (no payload)\n" +
+                "                       or full (default)\n" +
+                "  --threads N          decode on N worker threads, output keeps the capture order\n" +
+                "  --batch N            frames per batch handed to a worker (default " +
+                ParallelAnalyzer.DEFAULT_BATCH_FRAMES + ")\n" +
+                "  --executor KIND      worker pool: forkjoin (default), fixed or virtual\n" +
+                "  --merge              with several captures, decode them as one stream in timestamp order\n" +
+                "                       (needed by --windows, --streams, --columns and --detect) instead of\n" +
+                "                       N files at once, N set by --threads (default one per core)\n" +
+                "  --max-open N         capture files open at once (default " + BatchAnalyzer.DEFAULT_MAX_OPEN + ")\n" +
+                "  --batch-memory MB    memory for the text and tables of the files decoded at once\n" +
+                "                       (default " + (BatchAnalyzer.DEFAULT_MEMORY >> 20) + ")\n" +
+                "  --flows              print a summary of every TCP/UDP flow, combine with --verbosity none\n" +
+                "                       to get only the flows\n" +
+                "  --flow-timeout S     print and forget flows idle for S seconds (default " +
+                FlowTable.DEFAULT_IDLE_TIMEOUT + ")\n" +
+                "  --max-flows N        flows held at once before the longest idle are evicted (default " +
+                FlowTable.DEFAULT_MAX_FLOWS + ")\n" +
+                "  --top N              print the top N addresses, ports and conversations by packets and bytes\n" +
+                "                       and the number of distinct hosts, in fixed memory\n" +
+                "  --top-counters K     keys tracked per top list, every key above 1/K of the total is kept\n" +
+                "                       (default " + TopTalkers.DEFAULT_COUNTERS + ")\n" +
+                "  --windows FILE       write packet, byte, protocol, SYN, ICMP and ARP counts per window of\n" +
+                "                       capture time to FILE (or a named pipe), one JSON line per window\n" +
+                "  --window S           seconds per tumbling window (default " + WindowStats.DEFAULT_WINDOW + ")\n" +
+                "  --window-span S      seconds of the sliding window emitted with each tumbling one, 0 for\n" +
+                "                       none (default " + WindowStats.DEFAULT_SPAN + ")\n" +
+                "  --detect RULES       print alerts on SYN floods, half-open connections, port and host scans,\n" +
+                "                       ARP spoofing, TTL changes and overlapping fragments; RULES is all or\n" +
+                "                       a list such as synflood,portscan=20,ttl=5 (see AnomalyDetector)\n" +
+                "  --filter EXPR        only decode frames matching a tcpdump style expression, Eg.\n" +
+                "                       \"tcp and port 443 and src net 10.0.0.0/8\"\n" +
+                "                       or \"dns name example.com or http host example.com\"\n" +
+                "  --defrag             reassemble fragmented IPv4 datagrams, only whole datagrams are decoded\n" +
+                "  --fragment-memory MB memory for incomplete datagrams (default " +
+                (FragmentReassembler.DEFAULT_MEMORY >> 20) + ")\n" +
+                "  --columns FILE       write the header fields of every packet to a columnar file;\n" +
+                "                       run pktanalyzer on that file to print it as CSV\n" +
+                "  --index              index the capture into filepath.idx, so that --packets, --from,\n" +
+                "                       --to and --filter later read only the parts of it they need\n" +
+                "  --packets N[-M]      only decode packets N to M (or N onwards)\n" +
+                "  --from TIME          only decode packets from TIME: epoch seconds, a date and time\n" +
+                "                       (2024-05-01T14:00:00) or a time of day on the first packet's date\n" +
+                "  --to TIME            only decode packets up to TIME, written as for --from\n" +
+                "  --write FILE         copy the frames selected by --packets, --from, --to and --filter to\n" +
+                "                       FILE instead of decoding them, pcapng if FILE ends in .pcapng\n" +
+                "  --snaplen N          cut the frames written to N bytes\n" +
+                "  --sample N           write one frame in N\n" +
+                "  --sample-flows N     write one TCP/UDP flow in N, each flow whole\n" +
+                "  --streams DIR        reassemble TCP streams, one file per direction in DIR\n" +
+                "  --stream-memory MB   memory for out-of-order segments (default " +
+                (StreamReassembler.DEFAULT_MEMORY >> 20) + ")\n" +
+                "  --ring-size MB       buffer between a live input and the decoders (default " +
+                (PacketRing.DEFAULT_SIZE >> 20) + ")\n" +
+                "  --drop               drop live packets when the decoders fall behind, instead of\n" +
+                "                       slowing down the input\n" +
+                "  --metrics FILE       write packet/byte counters and decode latencies to FILE every\n" +
+                "                       interval, as JSON if it ends in .json, else in Prometheus format\n" +
+                "  --metrics-interval S seconds between two writes of the metrics file (default " +
+                Metrics.DEFAULT_INTERVAL + ")\n" +
+                "  --metrics-port N     serve the metrics on http://127.0.0.1:N/metrics\n" +
+                "  --checksums          verify IPv4, TCP, UDP and ICMP checksums, flag the wrong ones and\n" +
+                "                       count them per protocol\n";
+    }
+} //Options
@@ -0,0 +1,754 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PacketFilter.java
+ *
+ * Packet filter in the style of tcpdump/BPF, run against the raw bytes of an Ethernet frame before anything is
+ * decoded. The expression is parsed once and compiled into a flat program of load/compare/jump instructions (four
+ * int arrays); matches() runs that program with a single accumulator and never builds or walks a tree. Every test
+ * jumps straight to the accept or reject instruction as soon as the outcome is known, so a frame that does not match
+ * is usually dropped after reading its EtherType and one or two more fields. A load past the captured bytes rejects
+ * the frame.
+ *
+ * Grammar:
+ * expr      := and ("or" | "||") and ...
+ * and       := not ("and" | "&&") not ...
+ * not       := ("not" | "!") not | "(" expr ")" | primitive
+ * primitive := ip | arp | tcp | udp | icmp
+ *            | [src | dst] host A.B.C.D
+ *            | [src | dst] net A.B.C.D/LEN
+ *            | [tcp | udp] [src | dst] port N
+ *            | [tcp | udp] [src | dst] portrange N-M
+ *            | less N | greater N
+ *            | dns [name NAME]
+ *            | http [host NAME | url PREFIX]
+ *
+ * host and net match the addresses of IPv4 and ARP packets, port only matches unfragmented or first fragments.
+ *
+ * dns is UDP or TCP port 53; "dns name" also needs the first question to be for NAME. http is a TCP segment starting
+ * with an HTTP/1.x request or status line, "http host" a request with that Host header and "http url" a request
+ * whose target starts with PREFIX (case sensitive, unlike the rest of the expression). These look into the payload
+ * with DnsView and HttpView, in place and only once every cheaper test before them has passed.
+ *
+ * Eg: tcp and port 443 and src net 10.0.0.0/8
+ *     udp port 53 or arp
+ *     not (host 192.168.0.1 or icmp)
+ *     dns name example.com or http host example.com
+ *
+ **/
+
+public class PacketFilter {
+
+    //Instructions. Loads set the accumulator A; jumps go to jt if the test holds and jf otherwise.
+    private static final int LD_B = 0;      //A = byte at k
+    private static final int LD_H = 1;      //A = 16 bits at k
+    private static final int LD_W = 2;      //A = 32 bits at k
+    private static final int LD_IND_H = 3;  //A = 16 bits at k past the IPv4 header
+    private static final int LD_LEN = 4;    //A = captured length
+    private static final int AND = 5;       //A &= k
+    private static final int JEQ = 6;
+    private static final int JGT = 7;       //unsigned A > k
+    private static final int JGE = 8;       //unsigned A >= k
+    private static final int JSET = 9;      //A & k != 0
+    private static final int RET = 10;      //accept if k != 0
+    private static final int JAPP = 11;     //application layer test k holds (see Application)
+
+    private static final String[] NAMES = {"ldb", "ldh", "ld", "ldh x+", "ld len", "and", "jeq", "jgt", "jge",
+            "jset", "ret", "japp"};
+
+    private final String expression;
+    //Parsed expression, kept for mayMatch()
+    private final Node root;
+    private final int[] code;
+    private final int[] k;
+    private final int[] jt;
+    private final int[] jf;
+    //Payload tests, indexed by the k of JAPP
+    private final Application[] applications;
+
+    private PacketFilter(String expression, Node root, int[] code, int[] k, int[] jt, int[] jf,
+            Application[] applications) {
+        this.expression = expression;
+        this.root = root;
+        this.code = code;
+        this.k = k;
+        this.jt = jt;
+        this.jf = jf;
+        this.applications = applications;
+    }
+
+    /**
+     * Compiles a filter expression.
+     * @param expression Expression, see the grammar above
+     * @return The compiled filter
+     * @throws IllegalArgumentException If the expression is not valid
+     */
+    public static PacketFilter compile(String expression) {
+        Parser parser = new Parser(expression);
+        Node root = parser.expression();
+        if (parser.hasNext()) {
+            throw parser.error("unexpected '" + parser.peek() + "'");
+        }
+        Assembler assembler = new Assembler();
+        int accept = assembler.label();
+        int reject = assembler.label();
+        root.generate(assembler, accept, reject);
+        assembler.place(accept);
+        assembler.emit(RET, 1, 0, 0);
+        assembler.place(reject);
+        assembler.emit(RET, 0, 0, 0);
+        return assembler.link(expression, root);
+    }
+
+    /**
+     * What a group of frames is known to hold, Eg. one block of a packet index. Every method may answer true for a
+     * value that is absent, never false for one that is present.
+     */
+    public interface Summary {
+        boolean mayHaveEtherType(int etherType);
+        boolean mayHaveProtocol(int protocol);
+        boolean mayHaveAddress(int address);
+        boolean mayHavePort(int port);
+    }
+
+    /**
+     * Checks whether any frame of a group can match, without looking at the frames. Only EtherType, protocol, host
+     * and port tests are judged; every other test and anything under a "not" is assumed to match.
+     * @param summary What the group holds
+     * @return false if no frame of the group can match
+     */
+    public boolean mayMatch(Summary summary) {
+        return root.may(summary);
+    }
+
+    /**
+     * Runs the filter on one Ethernet frame.
+     * @param buffer Buffer holding the frame
+     * @param offset Absolute offset of the frame
+     * @param length Number of captured bytes
+     * @return true if the frame matches
+     */
+    public boolean matches(ByteBuffer buffer, int offset, int length) {
+        int a = 0;
+        int pc = 0;
+        while (true) {
+            int index = k[pc];
+            switch (code[pc]) {
+                case LD_IND_H:
+                    if (length <= PacketView.ETHERNET_HEADER_LENGTH) {
+                        return false;
+                    }
+                    //Offset relative to the end of the IPv4 header, whose length is IHL*4
+                    index += PacketView.ETHERNET_HEADER_LENGTH
+                            + (buffer.get(offset + PacketView.ETHERNET_HEADER_LENGTH) & 0xF) * 4;
+                    if (index + 2 > length) {
+                        return false;
+                    }
+                    a = (buffer.get(offset + index) & 0xFF) << 8 | buffer.get(offset + index + 1) & 0xFF;
+                    pc++;
+                    break;
+                case LD_B:
+                    if (index + 1 > length) {
+                        return false;
+                    }
+                    a = buffer.get(offset + index) & 0xFF;
+                    pc++;
+                    break;
+                case LD_H:
+                    if (index + 2 > length) {
+                        return false;
+                    }
+                    a = (buffer.get(offset + index) & 0xFF) << 8 | buffer.get(offset + index + 1) & 0xFF;
+                    pc++;
+                    break;
+                case LD_W:
+                    if (index + 4 > length) {
+                        return false;
+                    }
+                    a = (buffer.get(offset + index) & 0xFF) << 24 | (buffer.get(offset + index + 1) & 0xFF) << 16
+                            | (buffer.get(offset + index + 2) & 0xFF) << 8 | buffer.get(offset + index + 3) & 0xFF;
+                    pc++;
+                    break;
+                case LD_LEN:
+                    a = length;
+                    pc++;
+                    break;
+                case AND:
+                    a &= index;
+                    pc++;
+                    break;
+                case JEQ:
+                    pc = a == index ? jt[pc] : jf[pc];
+                    break;
+                case JGT:
+                    pc = Integer.compareUnsigned(a, index) > 0 ? jt[pc] : jf[pc];
+                    break;
+                case JGE:
+                    pc = Integer.compareUnsigned(a, index) >= 0 ? jt[pc] : jf[pc];
+                    break;
+                case JSET:
+                    pc = (a & index) != 0 ? jt[pc] : jf[pc];
+                    break;
+                case JAPP:
+                    pc = applications[index].test(buffer, offset, length) ? jt[pc] : jf[pc];
+                    break;
+                default:
+                    return index != 0;
+            }
+        }
+    }
+
+    /** @return The expression the filter was compiled from */
+    public String expression() {
+        return expression;
+    }
+
+    /** @return The compiled program, one instruction per line, like tcpdump -d */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (int pc = 0; pc < code.length; pc++) {
+            s.append('(').append(pc).append(") ").append(NAMES[code[pc]]);
+            if (code[pc] == JAPP) {
+                s.append(' ').append(applications[k[pc]]);
+            } else if (code[pc] != LD_LEN) {
+                s.append(code[pc] < LD_LEN ? " [" + k[pc] + "]" : " #0x" + Integer.toHexString(k[pc]));
+            }
+            if (jumps(code[pc])) {
+                s.append(" jt ").append(jt[pc]).append(" jf ").append(jf[pc]);
+            }
+            s.append('\n');
+        }
+        return s.toString();
+    }
+
+    private static boolean jumps(int op) {
+        return op >= JEQ && op <= JSET || op == JAPP;
+    }
+
+    /**
+     * Growable instruction arrays plus labels for forward jumps. Jump targets hold label numbers until link().
+     */
+    private static final class Assembler {
+        int[] code = new int[32];
+        int[] k = new int[32];
+        int[] jt = new int[32];
+        int[] jf = new int[32];
+        int size;
+        int[] labels = new int[16];
+        int labelCount;
+        final List<Application> applications = new ArrayList<>();
+
+        int label() {
+            if (labelCount == labels.length) {
+                labels = Arrays.copyOf(labels, labelCount * 2);
+            }
+            labels[labelCount] = -1;
+            return labelCount++;
+        }
+
+        void place(int label) {
+            labels[label] = size;
+        }
+
+        void emit(int op, int operand, int trueLabel, int falseLabel) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+                k = Arrays.copyOf(k, size * 2);
+                jt = Arrays.copyOf(jt, size * 2);
+                jf = Arrays.copyOf(jf, size * 2);
+            }
+            code[size] = op;
+            k[size] = operand;
+            jt[size] = trueLabel;
+            jf[size] = falseLabel;
+            size++;
+        }
+
+        PacketFilter link(String expression, Node root) {
+            for (int pc = 0; pc < size; pc++) {
+                if (jumps(code[pc])) {
+                    jt[pc] = labels[jt[pc]];
+                    jf[pc] = labels[jf[pc]];
+                }
+            }
+            return new PacketFilter(expression, root, Arrays.copyOf(code, size), Arrays.copyOf(k, size),
+                    Arrays.copyOf(jt, size), Arrays.copyOf(jf, size), applications.toArray(new Application[0]));
+        }
+    }
+
+    /** Node of the parsed expression, only used while compiling. */
+    private interface Node {
+        /** Emits code that jumps to the true label if the node holds and to the false label otherwise. */
+        void generate(Assembler assembler, int whenTrue, int whenFalse);
+
+        /** @return false if the node holds for no frame of the summary */
+        boolean may(Summary summary);
+    }
+
+    /** A load, an optional mask and a comparison. */
+    private static final class Test implements Node {
+        final int load;
+        final int index;
+        final int mask;
+        final int jump;
+        final int value;
+
+        Test(int load, int index, int mask, int jump, int value) {
+            this.load = load;
+            this.index = index;
+            this.mask = mask;
+            this.jump = jump;
+            this.value = value;
+        }
+
+        @Override
+        public void generate(Assembler assembler, int whenTrue, int whenFalse) {
+            assembler.emit(load, index, 0, 0);
+            if (mask != -1) {
+                assembler.emit(AND, mask, 0, 0);
+            }
+            assembler.emit(jump, value, whenTrue, whenFalse);
+        }
+
+        @Override
+        public boolean may(Summary summary) {
+            if (jump != JEQ || mask != -1) {
+                return true;
+            }
+            if (load == LD_H && index == 12) {
+                return summary.mayHaveEtherType(value);
+            }
+            if (load == LD_B && index == PacketView.ETHERNET_HEADER_LENGTH + 9) {
+                return summary.mayHaveProtocol(value);
+            }
+            if (load == LD_W && (index == IP_SOURCE || index == IP_DESTINATION || index == ARP_SENDER_IP
+                    || index == ARP_TARGET_IP)) {
+                return summary.mayHaveAddress(value);
+            }
+            if (load == LD_IND_H) {
+                return summary.mayHavePort(value);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A test of the TCP or UDP payload of an IPv4 frame, run in place by DnsView or HttpView. Only generated behind
+     * the tests that the frame is IPv4, of the right protocol and not a later fragment.
+     */
+    private static final class Application implements Node {
+        static final int DNS_NAME = 0;
+        static final int HTTP = 1;
+        static final int HTTP_HOST = 2;
+        static final int HTTP_URL = 3;
+
+        final int kind;
+        final byte[] value;
+        final String text;
+
+        Application(int kind, String value, String text) {
+            this.kind = kind;
+            this.value = value.getBytes(StandardCharsets.US_ASCII);
+            this.text = text;
+        }
+
+        @Override
+        public void generate(Assembler assembler, int whenTrue, int whenFalse) {
+            assembler.applications.add(this);
+            assembler.emit(JAPP, assembler.applications.size() - 1, whenTrue, whenFalse);
+        }
+
+        @Override
+        public boolean may(Summary summary) {
+            return true;
+        }
+
+        boolean test(ByteBuffer buffer, int offset, int length) {
+            int ip = PacketView.ETHERNET_HEADER_LENGTH;
+            int headerLength = (buffer.get(offset + ip) & 0xF) * 4;
+            int totalLength = (buffer.get(offset + ip + 2) & 0xFF) << 8 | buffer.get(offset + ip + 3) & 0xFF;
+            //Padding after the datagram is not payload; a total length of 0 (segmentation offload) is not trusted
+            int end = totalLength >= headerLength ? Math.min(length, ip + totalLength) : length;
+            int transport = ip + headerLength;
+            int payload;
+            if ((buffer.get(offset + ip + 9) & 0xFF) == Ipv4View.PROTOCOL_TCP) {
+                if (transport + TcpView.MIN_HEADER_LENGTH > end) {
+                    return false;
+                }
+                payload = transport + (buffer.get(offset + transport + 12) >> 4 & 0xF) * 4;
+                //DNS over TCP puts the length of the message first
+                if (kind == DNS_NAME) {
+                    payload += 2;
+                }
+            } else {
+                payload = transport + UdpView.HEADER_LENGTH;
+            }
+            if (payload >= end) {
+                return false;
+            }
+            int start = offset + payload;
+            int n = end - payload;
+            switch (kind) {
+                case DNS_NAME:
+                    return DnsView.asks(buffer, start, n, value);
+                case HTTP:
+                    return HttpView.kind(buffer, start, n) != HttpView.NONE;
+                case HTTP_HOST:
+                    return HttpView.kind(buffer, start, n) == HttpView.REQUEST
+                            && HttpView.hostEquals(buffer, start, n, value);
+                default:
+                    return HttpView.targetStartsWith(buffer, start, n, value);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static final class And implements Node {
+        final Node left;
+        final Node right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public void generate(Assembler assembler, int whenTrue, int whenFalse) {
+            int next = assembler.label();
+            left.generate(assembler, next, whenFalse);
+            assembler.place(next);
+            right.generate(assembler, whenTrue, whenFalse);
+        }
+
+        @Override
+        public boolean may(Summary summary) {
+            return left.may(summary) && right.may(summary);
+        }
+    }
+
+    private static final class Or implements Node {
+        final Node left;
+        final Node right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public void generate(Assembler assembler, int whenTrue, int whenFalse) {
+            int next = assembler.label();
+            left.generate(assembler, whenTrue, next);
+            assembler.place(next);
+            right.generate(assembler, whenTrue, whenFalse);
+        }
+
+        @Override
+        public boolean may(Summary summary) {
+            return left.may(summary) || right.may(summary);
+        }
+    }
+
+    private static final class Not implements Node {
+        final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public void generate(Assembler assembler, int whenTrue, int whenFalse) {
+            operand.generate(assembler, whenFalse, whenTrue);
+        }
+
+        @Override
+        public boolean may(Summary summary) {
+            //A negated test holds for every frame lacking the value, and the summary cannot rule that out
+            return true;
+        }
+    }
+
+    //Building blocks of the primitives
+    private static final int IP_SOURCE = PacketView.ETHERNET_HEADER_LENGTH + 12;
+    private static final int IP_DESTINATION = PacketView.ETHERNET_HEADER_LENGTH + 16;
+    private static final int ARP_SENDER_IP = PacketView.ETHERNET_HEADER_LENGTH + 14;
+    private static final int ARP_TARGET_IP = PacketView.ETHERNET_HEADER_LENGTH + 24;
+    private static final Node IP = new Test(LD_H, 12, -1, JEQ, PacketView.ETHERTYPE_IPV4);
+    private static final Node ARP = new Test(LD_H, 12, -1, JEQ, PacketView.ETHERTYPE_ARP);
+    private static final Node FRAGMENT = new Test(LD_H, PacketView.ETHERNET_HEADER_LENGTH + 6, -1, JSET, 0x1FFF);
+
+    private static Node protocol(int protocol) {
+        return new And(IP, new Test(LD_B, PacketView.ETHERNET_HEADER_LENGTH + 9, -1, JEQ, protocol));
+    }
+
+    private static Node unfragmented(int protocol) {
+        return new And(protocol(protocol), new Not(FRAGMENT));
+    }
+
+    /** Parses the expression into nodes, desugaring every primitive into tests. */
+    private static final class Parser {
+        private final String expression;
+        private final List<String> tokens = new ArrayList<>();
+        //Same tokens before lower casing, for the URL prefixes of http url
+        private final List<String> raw = new ArrayList<>();
+        private int position;
+
+        Parser(String expression) {
+            this.expression = expression;
+            int i = 0;
+            while (i < expression.length()) {
+                char c = expression.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')' || c == '!') {
+                    tokens.add(String.valueOf(c));
+                    raw.add(String.valueOf(c));
+                    i++;
+                } else if (expression.startsWith("&&", i) || expression.startsWith("||", i)) {
+                    tokens.add(expression.substring(i, i + 2));
+                    raw.add(expression.substring(i, i + 2));
+                    i += 2;
+                } else {
+                    int start = i;
+                    while (i < expression.length() && !Character.isWhitespace(expression.charAt(i))
+                            && "()!&|".indexOf(expression.charAt(i)) < 0) {
+                        i++;
+                    }
+                    tokens.add(expression.substring(start, i).toLowerCase());
+                    raw.add(expression.substring(start, i));
+                }
+            }
+        }
+
+        boolean hasNext() {
+            return position < tokens.size();
+        }
+
+        String peek() {
+            return hasNext() ? tokens.get(position) : "";
+        }
+
+        String next() {
+            if (!hasNext()) {
+                throw error("unexpected end");
+            }
+            return tokens.get(position++);
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Bad filter \"" + expression + "\": " + message);
+        }
+
+        Node expression() {
+            Node node = and();
+            while (peek().equals("or") || peek().equals("||")) {
+                next();
+                node = new Or(node, and());
+            }
+            return node;
+        }
+
+        Node and() {
+            Node node = not();
+            while (peek().equals("and") || peek().equals("&&")) {
+                next();
+                node = new And(node, not());
+            }
+            return node;
+        }
+
+        Node not() {
+            String token = next();
+            switch (token) {
+                case "not":
+                case "!":
+                    return new Not(not());
+                case "(":
+                    Node node = expression();
+                    if (!next().equals(")")) {
+                        throw error("missing ')'");
+                    }
+                    return node;
+                default:
+                    return primitive(token);
+            }
+        }
+
+        Node primitive(String token) {
+            switch (token) {
+                case "ip":
+                    return IP;
+                case "arp":
+                    return ARP;
+                case "icmp":
+                    return protocol(Ipv4View.PROTOCOL_ICMP);
+                case "tcp":
+                case "udp":
+                    int protocol = token.equals("tcp") ? Ipv4View.PROTOCOL_TCP : Ipv4View.PROTOCOL_UDP;
+                    if (peek().equals("src") || peek().equals("dst") || peek().startsWith("port")) {
+                        return directed(next(), protocol);
+                    }
+                    return protocol(protocol);
+                case "src":
+                case "dst":
+                case "host":
+                case "net":
+                case "port":
+                case "portrange":
+                    return directed(token, 0);
+                case "less":
+                    return new Not(new Test(LD_LEN, 0, -1, JGT, number(next(), Integer.MAX_VALUE)));
+                case "greater":
+                    return new Test(LD_LEN, 0, -1, JGE, number(next(), Integer.MAX_VALUE));
+                case "dns":
+                    Node dns = ports(0, DnsView.PORT, DnsView.PORT, true, true);
+                    if (!peek().equals("name")) {
+                        return dns;
+                    }
+                    next();
+                    String name = text(next());
+                    name = name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+                    return new And(dns, new Application(Application.DNS_NAME, name, "dns name " + name));
+                case "http":
+                    Node http = new And(unfragmented(Ipv4View.PROTOCOL_TCP),
+                            new Application(Application.HTTP, "", "http"));
+                    if (peek().equals("host")) {
+                        next();
+                        String host = text(next());
+                        return new And(http, new Application(Application.HTTP_HOST, host, "http host " + host));
+                    }
+                    if (peek().equals("url")) {
+                        next();
+                        next();
+                        String prefix = text(raw.get(position - 1));
+                        return new And(http, new Application(Application.HTTP_URL, prefix, "http url " + prefix));
+                    }
+                    return http;
+                default:
+                    throw error("unknown primitive '" + token + "'");
+            }
+        }
+
+        /** Checks that a name or URL prefix is printable ASCII. */
+        String text(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                if (value.charAt(i) <= ' ' || value.charAt(i) >= 0x7F) {
+                    throw error("bad name '" + value + "'");
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Parses host, net, port and portrange with an optional src/dst qualifier.
+         * @param token src, dst or the primitive itself
+         * @param protocol TCP or UDP for port and portrange, 0 for either
+         */
+        Node directed(String token, int protocol) {
+            boolean source = true;
+            boolean destination = true;
+            if (token.equals("src") || token.equals("dst")) {
+                source = token.equals("src");
+                destination = !source;
+                token = next();
+            }
+            switch (token) {
+                case "host":
+                    if (protocol != 0) {
+                        break;
+                    }
+                    return net(address(next()), -1, source, destination);
+                case "net":
+                    if (protocol != 0) {
+                        break;
+                    }
+                    String value = next();
+                    int slash = value.indexOf('/');
+                    int bits = slash < 0 ? 32 : number(value.substring(slash + 1), 32);
+                    int mask = bits == 0 ? 0 : -1 << 32 - bits;
+                    return net(address(slash < 0 ? value : value.substring(0, slash)) & mask, mask, source,
+                            destination);
+                case "port":
+                    int port = number(next(), 0xFFFF);
+                    return ports(protocol, port, port, source, destination);
+                case "portrange":
+                    String range = next();
+                    int dash = range.indexOf('-');
+                    if (dash < 0) {
+                        throw error("portrange needs N-M");
+                    }
+                    return ports(protocol, number(range.substring(0, dash), 0xFFFF),
+                            number(range.substring(dash + 1), 0xFFFF), source, destination);
+                default:
+                    break;
+            }
+            throw error("unexpected '" + token + "'");
+        }
+
+        /** Addresses of IPv4 packets and ARP packets. */
+        Node net(int address, int mask, boolean source, boolean destination) {
+            Node ip = either(new Test(LD_W, IP_SOURCE, mask, JEQ, address),
+                    new Test(LD_W, IP_DESTINATION, mask, JEQ, address), source, destination);
+            Node arp = either(new Test(LD_W, ARP_SENDER_IP, mask, JEQ, address),
+                    new Test(LD_W, ARP_TARGET_IP, mask, JEQ, address), source, destination);
+            return new Or(new And(IP, ip), new And(ARP, arp));
+        }
+
+        /** Ports of TCP/UDP in unfragmented packets or first fragments. */
+        Node ports(int protocol, int low, int high, boolean source, boolean destination) {
+            Node transport = protocol != 0 ? protocol(protocol)
+                    : new Or(protocol(Ipv4View.PROTOCOL_TCP), protocol(Ipv4View.PROTOCOL_UDP));
+            Node sourcePort = range(0, low, high);
+            Node destinationPort = range(2, low, high);
+            return new And(new And(transport, new Not(FRAGMENT)), either(sourcePort, destinationPort, source,
+                    destination));
+        }
+
+        Node range(int index, int low, int high) {
+            if (low == high) {
+                return new Test(LD_IND_H, index, -1, JEQ, low);
+            }
+            return new And(new Test(LD_IND_H, index, -1, JGE, low), new Not(new Test(LD_IND_H, index, -1, JGT, high)));
+        }
+
+        static Node either(Node source, Node destination, boolean matchSource, boolean matchDestination) {
+            if (matchSource && matchDestination) {
+                return new Or(source, destination);
+            }
+            return matchSource ? source : destination;
+        }
+
+        int address(String value) {
+            String[] parts = value.split("\\.");
+            if (parts.length != 4) {
+                throw error("bad address '" + value + "'");
+            }
+            int address = 0;
+            for (String part : parts) {
+                address = address << 8 | number(part, 255);
+            }
+            return address;
+        }
+
+        int number(String value, int max) {
+            try {
+                int n = Integer.parseInt(value);
+                if (n >= 0 && n <= max) {
+                    return n;
+                }
+            } catch (NumberFormatException e) {
+                //reported below
+            }
+            throw error("bad number '" + value + "'");
+        }
+    }
+} //PacketFilter
@@ -0,0 +1,549 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+/**
+ * PacketIndex.java
+ *
+ * Sidecar index of a capture file (capture.pcap.idx), built in one streaming pass with --index, that lets later runs
+ * read only the records a query can match instead of the whole capture.
+ *
+ * The index is a sequence of fixed size blocks, one per BLOCK_PACKETS consecutive records. A block holds the file
+ * offset of each of its records (a base offset plus 32 bit deltas), its first packet number, its time range, a
+ * bitmap of the IP protocols and EtherTypes it contains, and a Bloom filter of its IPv4/ARP addresses and TCP/UDP
+ * ports. A table of the first packet number and time range of every block follows the blocks, so a query scans a
+ * few bytes per block to find the candidates, tests the Bloom filters of those against the --filter expression
+ * (PacketFilter.mayMatch) and then seeks the capture to the records of the blocks left. The records read are still
+ * checked exactly: against the packet/time range here, and against the filter by the analyzer.
+ *
+ * Layout, little endian:
+ * header     "PKTIDX" version:u8 pad:u8 capture size:u64 capture modified ms:u64 packets:u64 blocks:u32 pad:u32
+ *            table offset:u64 first timestamp:u64 last timestamp:u64
+ * block      bloom:BLOOM_BITS/8 protocols:32 ethertypes:u32 count:u32 first packet:u64 min time:u64 max time:u64
+ *            base offset:u64 deltas:u32 x BLOCK_PACKETS
+ * table      per block first packet:u64 min time:u64 max time:u64
+ *
+ * An index whose capture changed size or modification time since it was built is ignored.
+ *
+ **/
+
+public class PacketIndex {
+
+    /** Records per block. */
+    static final int BLOCK_PACKETS = 1024;
+    /** Bits of the Bloom filter of a block; three bits are set per address or port. */
+    static final int BLOOM_BITS = 16384;
+
+    private static final byte[] MAGIC = {'P', 'K', 'T', 'I', 'D', 'X'};
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int PROTOCOLS = BLOOM_BITS / 8;
+    private static final int ETHERTYPES = PROTOCOLS + 32;
+    private static final int COUNT = ETHERTYPES + 4;
+    private static final int FIRST_PACKET = COUNT + 4;
+    private static final int MIN_TIME = FIRST_PACKET + 8;
+    private static final int MAX_TIME = MIN_TIME + 8;
+    private static final int BASE = MAX_TIME + 8;
+    private static final int DELTAS = BASE + 8;
+    private static final int BLOCK_BYTES = DELTAS + BLOCK_PACKETS * 4;
+    private static final int TABLE_ENTRY = 24;
+
+    //EtherType bits of a block
+    private static final int IPV4 = 1;
+    private static final int ARP = 2;
+    private static final int OTHER = 4;
+
+    private final FileChannel file;
+    private final long packets;
+    private final int blocks;
+    private final long firstTimestamp;
+    private final ByteBuffer table;
+
+    private PacketIndex(FileChannel file, ByteBuffer header) throws IOException {
+        this.file = file;
+        this.packets = header.getLong(24);
+        this.blocks = header.getInt(32);
+        this.firstTimestamp = header.getLong(48);
+        this.table = map(file, header.getLong(40), (long) blocks * TABLE_ENTRY);
+    }
+
+    /**
+     * @param capture Path of a capture file
+     * @return Path of its index
+     */
+    static Path sidecar(Path capture) {
+        return capture.resolveSibling(capture.getFileName() + ".idx");
+    }
+
+    /**
+     * Opens the index of a capture.
+     * @param capture Path of the capture file
+     * @return The index, or null if there is none or it was built for another version of the capture
+     * @throws IOException If the index cannot be read
+     */
+    static PacketIndex open(Path capture) throws IOException {
+        Path path = sidecar(capture);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        if (file.size() >= HEADER) {
+            ByteBuffer header = map(file, 0, HEADER);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (Arrays.equals(magic, MAGIC) && header.get(6) == VERSION && header.getLong(8) == Files.size(capture)
+                    && header.getLong(16) == Files.getLastModifiedTime(capture).toMillis()
+                    && header.getLong(40) == HEADER + (long) header.getInt(32) * BLOCK_BYTES
+                    && file.size() == header.getLong(40) + (long) header.getInt(32) * TABLE_ENTRY) {
+                return new PacketIndex(file, header);
+            }
+        }
+        file.close();
+        return null;
+    }
+
+    private static ByteBuffer map(FileChannel file, long offset, long length) throws IOException {
+        return file.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Builds the index of a capture, replacing any previous one.
+     * @param capture Path of the capture file
+     * @param out Writer the summary is printed to
+     * @throws IOException If the capture cannot be read or the index written
+     */
+    static void build(Path capture, TextOutput out) throws IOException {
+        Path path = sidecar(capture);
+        long size = Files.size(capture);
+        long modified = Files.getLastModifiedTime(capture).toMillis();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer entry = ByteBuffer.allocate(TABLE_ENTRY).order(ByteOrder.LITTLE_ENDIAN);
+        long[] tableEntries = new long[3 * 64];
+        int blocks = 0;
+        long packets = 0;
+        long first = 0;
+        long last = 0;
+        PacketView packet = new PacketView();
+        try (PcapReader reader = PcapReader.open(capture);
+             FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            file.position(HEADER);
+            int count = 0;
+            while (true) {
+                boolean more = reader.next();
+                //A block ends when full, at the end, or if the next record is too far for a 32 bit delta
+                if (count > 0 && (!more || count == BLOCK_PACKETS
+                        || reader.recordOffset() - block.getLong(BASE) > 0xFFFFFFFFL)) {
+                    block.putInt(COUNT, count);
+                    write(file, block.clear());
+                    if (blocks * 3 == tableEntries.length) {
+                        tableEntries = Arrays.copyOf(tableEntries, tableEntries.length * 2);
+                    }
+                    tableEntries[blocks * 3] = block.getLong(FIRST_PACKET);
+                    tableEntries[blocks * 3 + 1] = block.getLong(MIN_TIME);
+                    tableEntries[blocks * 3 + 2] = block.getLong(MAX_TIME);
+                    blocks++;
+                    count = 0;
+                }
+                if (!more) {
+                    break;
+                }
+                long timestamp = reader.timestamp();
+                if (count == 0) {
+                    Arrays.fill(block.array(), (byte) 0);
+                    block.putLong(FIRST_PACKET, reader.packetNumber());
+                    block.putLong(BASE, reader.recordOffset());
+                    block.putLong(MIN_TIME, timestamp);
+                    block.putLong(MAX_TIME, timestamp);
+                }
+                block.putInt(DELTAS + count * 4, (int) (reader.recordOffset() - block.getLong(BASE)));
+                block.putLong(MIN_TIME, Math.min(block.getLong(MIN_TIME), timestamp));
+                block.putLong(MAX_TIME, Math.max(block.getLong(MAX_TIME), timestamp));
+                if (reader.linkType() == PcapReader.LINKTYPE_ETHERNET) {
+                    summarize(block, packet.wrap(reader.buffer(), reader.frameOffset(), reader.captureLength()));
+                }
+                if (packets == 0) {
+                    first = timestamp;
+                }
+                last = Math.max(last, timestamp);
+                packets++;
+                count++;
+            }
+            long tableOffset = file.position();
+            for (int b = 0; b < blocks; b++) {
+                entry.clear();
+                entry.putLong(tableEntries[b * 3]).putLong(tableEntries[b * 3 + 1]).putLong(tableEntries[b * 3 + 2]);
+                write(file, entry.flip());
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).put((byte) VERSION).put((byte) 0).putLong(size).putLong(modified).putLong(packets)
+                    .putInt(blocks).putInt(0).putLong(tableOffset).putLong(first).putLong(last);
+            file.position(0);
+            write(file, header.flip());
+            out.print("Index: ").print(packets).print(" packets in ").print(blocks).print(" blocks, ")
+                    .print(file.size()).print(" bytes written to ").println(path.toString());
+        }
+    }
+
+    private static void write(FileChannel file, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            file.write(data);
+        }
+    }
+
+    /**
+     * Adds what a frame holds to its block. Mirrors the fields PacketFilter loads, with the same bounds, so a frame
+     * the filter can match always shows up in the summary.
+     */
+    private static void summarize(ByteBuffer block, PacketView packet) {
+        int length = packet.length();
+        if (length < PacketView.ETHERNET_HEADER_LENGTH) {
+            return;
+        }
+        int etherType = packet.etherType();
+        int l3 = PacketView.ETHERNET_HEADER_LENGTH;
+        if (etherType == PacketView.ETHERTYPE_IPV4) {
+            block.putInt(ETHERTYPES, block.getInt(ETHERTYPES) | IPV4);
+            if (length >= l3 + 10) {
+                int protocol = packet.u8(l3 + 9);
+                block.put(PROTOCOLS + protocol / 8, (byte) (block.get(PROTOCOLS + protocol / 8) | 1 << protocol % 8));
+                if (length >= l3 + 16) {
+                    bloom(block, address(packet.s32(l3 + 12)));
+                }
+                if (length >= l3 + 20) {
+                    bloom(block, address(packet.s32(l3 + 16)));
+                }
+                boolean first = length >= l3 + 8 && (packet.u16(l3 + 6) & 0x1FFF) == 0;
+                if (first && (protocol == Ipv4View.PROTOCOL_TCP || protocol == Ipv4View.PROTOCOL_UDP)) {
+                    int l4 = l3 + (packet.u8(l3) & 0xF) * 4;
+                    if (length >= l4 + 2) {
+                        bloom(block, port(packet.u16(l4)));
+                    }
+                    if (length >= l4 + 4) {
+                        bloom(block, port(packet.u16(l4 + 2)));
+                    }
+                }
+            }
+        } else if (etherType == PacketView.ETHERTYPE_ARP) {
+            block.putInt(ETHERTYPES, block.getInt(ETHERTYPES) | ARP);
+            if (length >= l3 + 18) {
+                bloom(block, address(packet.s32(l3 + 14)));
+            }
+            if (length >= l3 + 28) {
+                bloom(block, address(packet.s32(l3 + 24)));
+            }
+        } else {
+            block.putInt(ETHERTYPES, block.getInt(ETHERTYPES) | OTHER);
+        }
+    }
+
+    private static long address(int address) {
+        return 1L << 32 | address & 0xFFFFFFFFL;
+    }
+
+    private static long port(int port) {
+        return 2L << 32 | port;
+    }
+
+    private static void bloom(ByteBuffer block, long key) {
+        long h = mix(key);
+        for (int i = 0; i < 3; i++) {
+            int bit = (int) (h >>> i * 21) & (BLOOM_BITS - 1);
+            block.put(bit >> 3, (byte) (block.get(bit >> 3) | 1 << (bit & 7)));
+        }
+    }
+
+    private static boolean inBloom(ByteBuffer block, int base, long key) {
+        long h = mix(key);
+        for (int i = 0; i < 3; i++) {
+            int bit = (int) (h >>> i * 21) & (BLOOM_BITS - 1);
+            if ((block.get(base + (bit >> 3)) & 1 << (bit & 7)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** MurmurHash3 finalizer. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB3FE1A85EC53L;
+        return h ^ h >>> 33;
+    }
+
+    /**
+     * Summary of one block, read in place from the mapped index.
+     */
+    private static final class Block implements PacketFilter.Summary {
+        ByteBuffer data;
+
+        @Override
+        public boolean mayHaveEtherType(int etherType) {
+            int bits = data.getInt(ETHERTYPES);
+            return (bits & (etherType == PacketView.ETHERTYPE_IPV4 ? IPV4
+                    : etherType == PacketView.ETHERTYPE_ARP ? ARP : OTHER)) != 0;
+        }
+
+        @Override
+        public boolean mayHaveProtocol(int protocol) {
+            return protocol < 256 && (data.get(PROTOCOLS + protocol / 8) & 1 << protocol % 8) != 0;
+        }
+
+        @Override
+        public boolean mayHaveAddress(int address) {
+            return inBloom(data, 0, address(address));
+        }
+
+        @Override
+        public boolean mayHavePort(int port) {
+            return inBloom(data, 0, port(port));
+        }
+    }
+
+    /**
+     * Parses a time given on the command line: seconds since the epoch (1700000000.25), a date and time
+     * (2023-11-14T22:13:20, local time unless it carries an offset) or a time of day (14:02, 14:02:30.5) on the day of
+     * a reference timestamp, in local time.
+     * @param text Time
+     * @param reference Timestamp in nanoseconds whose day a time of day refers to
+     * @return Nanoseconds since the epoch
+     * @throws IllegalArgumentException If the time cannot be parsed
+     */
+    static long time(String text, long reference) {
+        try {
+            if (text.matches("\\d+(\\.\\d{1,9})?")) {
+                int dot = text.indexOf('.');
+                if (dot < 0) {
+                    return Long.parseLong(text) * 1_000_000_000L;
+                }
+                String fraction = (text.substring(dot + 1) + "00000000").substring(0, 9);
+                return Long.parseLong(text.substring(0, dot)) * 1_000_000_000L + Long.parseLong(fraction);
+            }
+            ZoneId zone = ZoneId.systemDefault();
+            Instant instant;
+            if (text.indexOf('T') > 0) {
+                instant = text.endsWith("Z") || text.matches(".*[+-]\\d\\d:\\d\\d$")
+                        ? OffsetDateTime.parse(text.endsWith("Z") ? text.replace("Z", "+00:00") : text).toInstant()
+                        : LocalDateTime.parse(text).atZone(zone).toInstant();
+            } else {
+                LocalDate day = Instant.ofEpochSecond(0, reference).atZone(zone).toLocalDate();
+                instant = LocalTime.parse(text).atDate(day).atZone(zone).toInstant();
+            }
+            return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Bad time " + text);
+        }
+    }
+
+    /** @return true for a time of day, which needs the date of the capture to resolve */
+    static boolean isTimeOfDay(String text) {
+        return text.indexOf(':') > 0 && text.indexOf('T') < 0;
+    }
+
+    /**
+     * Restricts a capture to a range of packet numbers, a time range and a filter. Without an index every record is
+     * read and checked; with one only the records of the blocks that can match are.
+     */
+    static final class Selection implements PacketSource {
+        private final PcapReader reader;
+        private final PacketIndex index;
+        private final PacketFilter filter;
+        private final long firstPacket;
+        private final long lastPacket;
+        private final String fromText;
+        private final String toText;
+        private long from = Long.MIN_VALUE;
+        private long to = Long.MAX_VALUE;
+        private boolean resolved;
+        //Indexed reading: next block to consider, and the block being read
+        private final Block block = new Block();
+        private int nextBlock;
+        private long blockFirst;
+        private int blockCount;
+        private int position;
+        private long blocksRead;
+
+        /**
+         * @param reader Reader over the capture, not read from yet. Closed with the selection.
+         * @param index Index of the capture, null to scan it
+         * @param filter Filter the analyzer applies, used to skip blocks; null for none
+         * @param packets Range of packet numbers N or N-M, null for all
+         * @param fromText Start of the time range, null for none
+         * @param toText End of the time range (inclusive), null for none
+         */
+        Selection(PcapReader reader, PacketIndex index, PacketFilter filter, String packets, String fromText,
+                  String toText) {
+            this.reader = reader;
+            this.index = index;
+            this.filter = filter;
+            this.fromText = fromText;
+            this.toText = toText;
+            if (packets == null) {
+                firstPacket = 1;
+                lastPacket = Long.MAX_VALUE;
+            } else {
+                int dash = packets.indexOf('-');
+                firstPacket = Long.parseLong(dash < 0 ? packets : packets.substring(0, dash));
+                lastPacket = dash < 0 ? firstPacket : dash == packets.length() - 1 ? Long.MAX_VALUE
+                        : Long.parseLong(packets.substring(dash + 1));
+            }
+            if (index != null) {
+                resolve(index.firstTimestamp);
+            }
+        }
+
+        /** Turns the time range into timestamps, once the date of the capture is known. */
+        private void resolve(long reference) {
+            if (fromText != null) {
+                from = time(fromText, reference);
+            }
+            if (toText != null) {
+                to = time(toText, reference);
+                if (isTimeOfDay(toText) && to < from) {
+                    //Eg. --from 23:50 --to 00:10
+                    to += 86_400_000_000_000L;
+                }
+            }
+            resolved = true;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (true) {
+                if (index != null && position == blockCount) {
+                    if (!nextCandidate()) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (!reader.next()) {
+                    return false;
+                }
+                if (!resolved) {
+                    resolve(reader.timestamp());
+                }
+                position++;
+                long number = reader.packetNumber();
+                if (number > lastPacket) {
+                    return false;
+                }
+                long timestamp = reader.timestamp();
+                if (number >= firstPacket && timestamp >= from && timestamp <= to) {
+                    return true;
+                }
+            }
+        }
+
+        /** Seeks to the first record to read of the next block that can match. */
+        private boolean nextCandidate() throws IOException {
+            if (nextBlock == 0 && index.packets > 0 && !reader.next()) {
+                //Reads the file header and the interfaces, which seek() relies on
+                return false;
+            }
+            ByteBuffer table = index.table;
+            while (nextBlock < index.blocks) {
+                int b = nextBlock++;
+                long first = table.getLong(b * TABLE_ENTRY);
+                long last = b + 1 < index.blocks ? table.getLong((b + 1) * TABLE_ENTRY) - 1 : index.packets;
+                if (first > lastPacket) {
+                    return false;
+                }
+                if (last < firstPacket || table.getLong(b * TABLE_ENTRY + 8) > to
+                        || table.getLong(b * TABLE_ENTRY + 16) < from) {
+                    continue;
+                }
+                block.data = map(index.file, HEADER + (long) b * BLOCK_BYTES, BLOCK_BYTES);
+                if (filter != null && !filter.mayMatch(block)) {
+                    continue;
+                }
+                int skip = (int) Math.max(0, firstPacket - first);
+                blockFirst = first;
+                blockCount = block.data.getInt(COUNT);
+                position = skip;
+                reader.seek(block.data.getLong(BASE) + (block.data.getInt(DELTAS + skip * 4) & 0xFFFFFFFFL),
+                        first + skip);
+                blocksRead++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Prints how much of the capture the index let the analyzer skip.
+         * @param out Writer the line is printed to
+         */
+        void report(TextOutput out) {
+            if (index != null) {
+                out.print("Index: read ").print(blocksRead).print(" of ").print(index.blocks).print(" blocks")
+                        .println();
+            }
+        }
+
+        @Override
+        public boolean ready() {
+            return true;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return reader.buffer();
+        }
+
+        @Override
+        public int frameOffset() {
+            return reader.frameOffset();
+        }
+
+        @Override
+        public int captureLength() {
+            return reader.captureLength();
+        }
+
+        @Override
+        public int originalLength() {
+            return reader.originalLength();
+        }
+
+        @Override
+        public long timestamp() {
+            return reader.timestamp();
+        }
+
+        @Override
+        public int linkType() {
+            return reader.linkType();
+        }
+
+        @Override
+        public long packetNumber() {
+            return reader.packetNumber();
+        }
+
+        @Override
+        public boolean truncated() {
+            return reader.truncated();
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+            if (index != null) {
+                index.file.close();
+            }
+        }
+    }
+} //PacketIndex
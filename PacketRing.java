@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PacketRing.java
+ *
+ * Live input: a producer thread reads pcap records from a channel (a pipe from tcpdump -w -, a FIFO, stdin) and
+ * copies them into a single-producer/single-consumer ring buffer; the decoders consume them from the other end.
+ *
+ * The ring is one byte array holding variable length entries (a 32 byte header followed by the frame, padded to 8
+ * bytes). An entry that does not fit before the end of the array is preceded by a wrap marker and written at the
+ * start. The producer only moves the tail and the consumer only moves the head; each publishes its position with an
+ * ordered store (AtomicLong.lazySet) and keeps a cached copy of the other side's position, so the hand-off takes no
+ * lock and no allocation. The consumer decodes frames straight out of the ring and releases an entry on the next
+ * call to next().
+ *
+ * When the decoders fall behind the ring fills up, and the producer either waits for room, so the pipe and finally
+ * the capturing process see the backpressure, or, with drop mode, throws the record away and counts it so input is
+ * always drained at line rate. Either way memory use is the size of the ring. The consumer reports itself not
+ * ready() when the ring is empty, which is when the analyzer flushes its output, so text leaves the process as soon
+ * as the decoders catch up instead of waiting for a full output block.
+ *
+ **/
+
+public class PacketRing implements PacketSource {
+
+    /** Default size of the ring. */
+    static final int DEFAULT_SIZE = 8 << 20;
+
+    //Entry header: capture length, original length, link type, padding, timestamp, packet number
+    private static final int ENTRY_HEADER = 32;
+    //Capture length of the marker that sends the consumer back to the start of the array
+    private static final int WRAP = -1;
+    //Busy spins before parking when there is nothing to do
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 20_000;
+
+    private final byte[] ring;
+    private final ByteBuffer view;
+    private final int mask;
+    private final boolean drop;
+    private final PcapReader reader;
+    private final Thread producer;
+
+    //Position up to which the consumer released entries, written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    //Position up to which the producer published entries, written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+    private volatile boolean finished;
+    private volatile IOException failure;
+    private volatile boolean truncated;
+    private volatile long received;
+    private volatile long dropped;
+
+    //Producer side
+    private long producerTail;
+    private long cachedHead;
+
+    //Consumer side
+    private long consumerHead;
+    private long cachedTail;
+    private boolean holding;
+    private int frameOffset;
+    private int captureLength;
+    private int originalLength;
+    private int linkType;
+    private long timestamp;
+    private long packetNumber;
+
+    /**
+     * Creates the ring and starts the producer thread.
+     * @param reader Reader over the live channel
+     * @param size Size of the ring in bytes, rounded down to a power of two
+     * @param drop true to drop records when the ring is full, false to wait for room
+     */
+    public PacketRing(PcapReader reader, int size, boolean drop) {
+        this.ring = new byte[Integer.highestOneBit(Math.max(size, 1 << 16))];
+        this.view = ByteBuffer.wrap(ring);
+        this.mask = ring.length - 1;
+        this.drop = drop;
+        this.reader = reader;
+        this.producer = new Thread(this::produce, "pcap-live");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /** Producer loop: copies every record of the reader into the ring. */
+    private void produce() {
+        try (reader) {
+            while (reader.next()) {
+                received++;
+                if (!offer()) {
+                    dropped++;
+                }
+            }
+            truncated = reader.truncated();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            finished = true;
+        }
+    }
+
+    /** @return false if the record was dropped */
+    private boolean offer() {
+        int length = reader.captureLength();
+        int need = align(ENTRY_HEADER + length);
+        if (need > ring.length / 2) {
+            //Could never be held next to the entries being decoded
+            return false;
+        }
+        int index = (int) (producerTail & mask);
+        int room = ring.length - index;
+        int total = room < need ? room + need : need;
+        int idle = 0;
+        while (producerTail + total - cachedHead > ring.length) {
+            cachedHead = head.get();
+            if (producerTail + total - cachedHead <= ring.length) {
+                break;
+            }
+            if (drop) {
+                return false;
+            }
+            idle = idle(idle);
+        }
+        if (room < need) {
+            view.putInt(index, WRAP);
+            producerTail += room;
+            index = 0;
+        }
+        view.putInt(index, length);
+        view.putInt(index + 4, reader.originalLength());
+        view.putInt(index + 8, reader.linkType());
+        view.putLong(index + 16, reader.timestamp());
+        view.putLong(index + 24, reader.packetNumber());
+        reader.buffer().get(reader.frameOffset(), ring, index + ENTRY_HEADER, length);
+        producerTail += need;
+        tail.lazySet(producerTail);
+        return true;
+    }
+
+    private static int align(int n) {
+        return (n + 7) & ~7;
+    }
+
+    /** Spins for a while, then parks for a short time. */
+    private static int idle(int idle) {
+        if (idle < SPINS) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (holding) {
+            //Done with the previous frame, the producer may overwrite it
+            head.lazySet(consumerHead);
+            holding = false;
+        }
+        int idle = 0;
+        while (true) {
+            if (consumerHead == cachedTail) {
+                boolean done = finished;
+                cachedTail = tail.get();
+                if (consumerHead == cachedTail) {
+                    if (done) {
+                        if (failure != null) {
+                            throw failure;
+                        }
+                        return false;
+                    }
+                    idle = idle(idle);
+                    continue;
+                }
+            }
+            int index = (int) (consumerHead & mask);
+            int length = view.getInt(index);
+            if (length == WRAP) {
+                consumerHead += ring.length - index;
+                continue;
+            }
+            captureLength = length;
+            originalLength = view.getInt(index + 4);
+            linkType = view.getInt(index + 8);
+            timestamp = view.getLong(index + 16);
+            packetNumber = view.getLong(index + 24);
+            frameOffset = index + ENTRY_HEADER;
+            consumerHead += align(ENTRY_HEADER + length);
+            holding = true;
+            return true;
+        }
+    }
+
+    @Override
+    public boolean ready() {
+        return consumerHead != tail.get() || finished;
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return view;
+    }
+
+    @Override
+    public int frameOffset() {
+        return frameOffset;
+    }
+
+    @Override
+    public int captureLength() {
+        return captureLength;
+    }
+
+    @Override
+    public int originalLength() {
+        return originalLength;
+    }
+
+    @Override
+    public long timestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public int linkType() {
+        return linkType;
+    }
+
+    @Override
+    public long packetNumber() {
+        return packetNumber;
+    }
+
+    @Override
+    public boolean truncated() {
+        return truncated;
+    }
+
+    /**
+     * Prints how many records were read and dropped.
+     * @param out Writer the totals are printed to
+     */
+    public void report(TextOutput out) {
+        out.print("Live capture: ").print(received).print(" packets read");
+        if (drop) {
+            out.print(", ").print(dropped).print(" dropped because the decoders fell behind");
+        } else if (dropped > 0) {
+            out.print(", ").print(dropped).print(" dropped for being larger than half the ring");
+        }
+        out.println();
+    }
+
+    @Override
+    public void close() throws IOException {
+        producer.interrupt();
+        reader.close();
+    }
+} //PacketRing
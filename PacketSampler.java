@@ -0,0 +1,89 @@
+/**
+ * PacketSampler.java
+ *
+ * Thins out the frames written by --write, after --filter and the time and packet ranges:
+ * --sample N        keeps one frame in N: the first, the N+1st and so on
+ * --sample-flows N  keeps the flows whose hash falls in one bucket of N, so a kept flow is kept whole, both
+ *                   directions included, and every run over the same traffic keeps the same flows
+ *
+ * The flow hash covers the addresses, IP protocol and ports of TCP and UDP over IPv4 and IPv6, and the addresses
+ * and protocol of other IP packets. Fragments after the first carry no ports, so every fragment, the first one
+ * included, is hashed without them: the fragments of a datagram are kept or dropped together, with the other
+ * fragments between the same two hosts rather than with their flow. Other frames hash on their two MAC addresses.
+ * Each endpoint is hashed on its own and the two hashes are combined with xor, which does not depend on the
+ * direction. Both rules apply if both are given.
+ *
+ **/
+
+public class PacketSampler {
+
+    private final int every;
+    private final int flows;
+    //Frames seen by the 1 in N rule
+    private long count;
+
+    /**
+     * Creates a sampler.
+     * @param every Keep one frame in this many, 1 to keep all
+     * @param flows Keep one flow in this many, 1 to keep all
+     */
+    public PacketSampler(int every, int flows) {
+        this.every = Math.max(1, every);
+        this.flows = Math.max(1, flows);
+    }
+
+    /**
+     * Decides whether to keep a frame. Call once per frame, in capture order.
+     * @param packet View of the frame
+     * @return true if the frame is to be kept
+     */
+    public boolean keep(PacketView packet) {
+        if (flows > 1 && Long.remainderUnsigned(flowHash(packet), flows) != 0) {
+            return false;
+        }
+        return every == 1 || count++ % every == 0;
+    }
+
+    /**
+     * @param packet View of an Ethernet frame
+     * @return Hash of the flow the frame belongs to, the same in both directions
+     */
+    static long flowHash(PacketView packet) {
+        if (packet.isIpv4()) {
+            Ipv4View ip = packet.ipv4();
+            int sourcePort = 0;
+            int destinationPort = 0;
+            //Fragments are hashed without ports, see above
+            if (!ip.isFragment() && ip.isTcp()) {
+                sourcePort = ip.tcp().sourcePort();
+                destinationPort = ip.tcp().destinationPort();
+            } else if (!ip.isFragment() && ip.isUdp()) {
+                sourcePort = ip.udp().sourcePort();
+                destinationPort = ip.udp().destinationPort();
+            }
+            return CountMinSketch.mix((ip.source() & 0xFFFFFFFFL) << 16 | sourcePort)
+                    ^ CountMinSketch.mix((ip.destination() & 0xFFFFFFFFL) << 16 | destinationPort)
+                    ^ ip.protocol();
+        }
+        if (packet.isEthernet() && packet.etherType() == PacketView.ETHERTYPE_IPV6
+                && packet.ipv6(PacketView.ETHERNET_HEADER_LENGTH).isValid()) {
+            Ipv6View ip = packet.ipv6(PacketView.ETHERNET_HEADER_LENGTH);
+            int protocol = ip.protocol();
+            int sourcePort = 0;
+            int destinationPort = 0;
+            if (!ip.isFragment() && protocol == Ipv4View.PROTOCOL_TCP
+                    && ip.upperLength() >= TcpView.MIN_HEADER_LENGTH) {
+                sourcePort = ip.tcp().sourcePort();
+                destinationPort = ip.tcp().destinationPort();
+            } else if (!ip.isFragment() && protocol == Ipv4View.PROTOCOL_UDP
+                    && ip.upperLength() >= UdpView.HEADER_LENGTH) {
+                sourcePort = ip.udp().sourcePort();
+                destinationPort = ip.udp().destinationPort();
+            }
+            return CountMinSketch.mix(ip.sourceHigh() ^ CountMinSketch.mix(ip.sourceLow() ^ sourcePort))
+                    ^ CountMinSketch.mix(ip.destinationHigh() ^ CountMinSketch.mix(ip.destinationLow()
+                    ^ destinationPort)) ^ protocol;
+        }
+        return CountMinSketch.mix(packet.sourceMac()) ^ CountMinSketch.mix(packet.destinationMac());
+    }
+} //PacketSampler
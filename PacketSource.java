@@ -0,0 +1,52 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PacketSource.java
+ *
+ * A sequence of captured frames: the records of a capture file (PcapReader) or of a live feed handed over through a
+ * ring buffer (PacketRing). The current frame is a window into a buffer owned by the source and stays valid until
+ * the next call to {@link #next()}.
+ *
+ **/
+
+public interface PacketSource extends Closeable {
+
+    /**
+     * Advances to the next frame, waiting for it if the source is live.
+     * @return true if a frame is available, false at the end of the input
+     * @throws IOException If reading fails or the input is malformed
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return true if {@link #next()} will return without waiting for more input. Always true for files; a live
+     * source returns false when it has been drained, so callers can flush what they buffered first.
+     */
+    boolean ready();
+
+    /** @return Buffer holding the current frame */
+    ByteBuffer buffer();
+
+    /** @return Offset of the current frame inside {@link #buffer()} */
+    int frameOffset();
+
+    /** @return Number of frame bytes captured */
+    int captureLength();
+
+    /** @return Length of the frame on the wire */
+    int originalLength();
+
+    /** @return Capture timestamp in nanoseconds since the epoch */
+    long timestamp();
+
+    /** @return Link type of the current frame */
+    int linkType();
+
+    /** @return 1-based number of the current packet in the input */
+    long packetNumber();
+
+    /** @return true if the input ended in the middle of a record */
+    boolean truncated();
+} //PacketSource
@@ -0,0 +1,34 @@
+/**
+ * PacketStage.java
+ *
+ * A stateful consumer of decoded packets, such as the flow table. Stages see every Ethernet frame of the input
+ * exactly once and in capture order: on the main thread in the single threaded run, and on the sequencer thread of
+ * ParallelAnalyzer with --threads. A stage therefore needs no synchronization, but it must copy whatever it keeps out
+ * of the view; the view and the bytes behind it are reused for the next packet. When several captures are decoded
+ * side by side, each file gets stages of its own and they are merged in file order.
+ *
+ **/
+
+public interface PacketStage {
+
+    /**
+     * Consumes one packet.
+     * @param packet View of the frame, only valid during the call
+     */
+    void accept(PacketView packet);
+
+    /**
+     * Called once after the last packet; prints whatever the stage reports at the end of the input.
+     */
+    void finish();
+
+    /**
+     * Adds what another stage of the same kind has seen to this one, in place of the other's finish(). BatchAnalyzer
+     * uses it to combine the stages of capture files decoded side by side, one file after the other.
+     * @param other Stage created from the same options, fed with a later file
+     * @throws UnsupportedOperationException If the stage only works on a single capture ordered stream
+     */
+    default void merge(PacketStage other) {
+        throw new UnsupportedOperationException(getClass().getName() + " cannot be merged");
+    }
+} //PacketStage
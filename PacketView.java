@@ -0,0 +1,147 @@
+import java.nio.ByteBuffer;
+
+/**
+ * PacketView.java
+ *
+ * Flyweight view of one captured Ethernet frame and the headers it encapsulates. The view owns one instance of every
+ * nested view (IPv4, IPv6, ARP and, through those, TCP/UDP/ICMP), so wrapping a new frame allocates nothing and one
+ * PacketView can be reused for every packet of a capture.
+ *
+ * The is*() methods validate that a header is present and fits inside the captured bytes; the matching accessors
+ * wrap the nested view without any check. They look at the header right after the Ethernet header; the accessors
+ * taking an offset reach headers further in, Eg. behind a VLAN tag (see Dissectors).
+ *
+ * Eg:
+ *     PacketView packet = new PacketView();
+ *     while (reader.next()) {
+ *         packet.wrap(reader.buffer(), reader.frameOffset(), reader.captureLength(), reader.timestamp());
+ *         if (packet.isTcp()) {
+ *             int port = packet.ipv4().tcp().destinationPort();
+ *         }
+ *     }
+ *
+ **/
+
+public class PacketView extends HeaderView {
+
+    /** Length of the Ethernet header. */
+    public static final int ETHERNET_HEADER_LENGTH = 14;
+
+    public static final int ETHERTYPE_IPV4 = 0x0800;
+    public static final int ETHERTYPE_ARP = 0x0806;
+    public static final int ETHERTYPE_VLAN = 0x8100;
+    public static final int ETHERTYPE_IPV6 = 0x86DD;
+    public static final int ETHERTYPE_QINQ = 0x88A8;
+
+    private final Ipv4View ipv4 = new Ipv4View();
+    private final Ipv6View ipv6 = new Ipv6View();
+    private final ArpView arp = new ArpView();
+    private long timestamp;
+
+    /**
+     * Points the view at a frame.
+     * @param buffer Buffer holding the frame
+     * @param offset Absolute offset of the frame
+     * @param length Number of captured bytes
+     * @param timestamp Capture timestamp in nanoseconds since the epoch, 0 if unknown
+     * @return This view
+     */
+    public PacketView wrap(ByteBuffer buffer, int offset, int length, long timestamp) {
+        set(buffer, offset, length);
+        this.timestamp = timestamp;
+        return this;
+    }
+
+    /**
+     * Points the view at a frame without a timestamp.
+     * @return This view
+     */
+    public PacketView wrap(ByteBuffer buffer, int offset, int length) {
+        return wrap(buffer, offset, length, 0);
+    }
+
+    /** @return Capture timestamp in nanoseconds since the epoch */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /** @return Destination MAC address in the low 48 bits */
+    public long destinationMac() {
+        return u48(0);
+    }
+
+    /** @return Source MAC address in the low 48 bits */
+    public long sourceMac() {
+        return u48(6);
+    }
+
+    /** @return EtherType of the payload */
+    public int etherType() {
+        return u16(12);
+    }
+
+    /** @return true if the frame holds a complete Ethernet header */
+    public boolean isEthernet() {
+        return length >= ETHERNET_HEADER_LENGTH;
+    }
+
+    /** @return true if the frame carries an IPv4 header that fits inside the captured bytes */
+    public boolean isIpv4() {
+        return length >= ETHERNET_HEADER_LENGTH + Ipv4View.MIN_HEADER_LENGTH && etherType() == ETHERTYPE_IPV4
+                && ipv4().isValid();
+    }
+
+    /** @return true if the frame carries a complete ARP packet */
+    public boolean isArp() {
+        return length >= ETHERNET_HEADER_LENGTH + ArpView.HEADER_LENGTH && etherType() == ETHERTYPE_ARP;
+    }
+
+    /** @return true if the frame carries the first (or only) fragment of a TCP segment with a complete header */
+    public boolean isTcp() {
+        return isIpv4() && ipv4().isTcp();
+    }
+
+    /** @return true if the frame carries the first (or only) fragment of a UDP datagram with a complete header */
+    public boolean isUdp() {
+        return isIpv4() && ipv4().isUdp();
+    }
+
+    /** @return true if the frame carries the first (or only) fragment of an ICMP message with a complete header */
+    public boolean isIcmp() {
+        return isIpv4() && ipv4().isIcmp();
+    }
+
+    /** @return View of the bytes following the Ethernet header as an IPv4 header */
+    public Ipv4View ipv4() {
+        return ipv4(ETHERNET_HEADER_LENGTH);
+    }
+
+    /** @return View of the bytes following the Ethernet header as an ARP packet */
+    public ArpView arp() {
+        return arp(ETHERNET_HEADER_LENGTH);
+    }
+
+    /**
+     * @param index Index of the header relative to the start of the frame
+     * @return View of the bytes from there on as an IPv4 header
+     */
+    public Ipv4View ipv4(int index) {
+        return ipv4.wrap(buffer, offset + index, length - index);
+    }
+
+    /**
+     * @param index Index of the header relative to the start of the frame
+     * @return View of the bytes from there on as an IPv6 header
+     */
+    public Ipv6View ipv6(int index) {
+        return ipv6.wrap(buffer, offset + index, length - index);
+    }
+
+    /**
+     * @param index Index of the header relative to the start of the frame
+     * @return View of the bytes from there on as an ARP packet
+     */
+    public ArpView arp(int index) {
+        return arp.wrap(buffer, offset + index, length - index);
+    }
+} //PacketView
@@ -0,0 +1,335 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * ParallelAnalyzer.java
+ *
+ * Decodes a capture on several cores. The work is split in three stages:
+ *
+ * reader    - one thread pulls records from the PacketSource, reassembles IPv4 fragments, drops what fails the
+ *             filter and copies the rest into batches of frames
+ * workers   - a pool (fork/join, fixed or virtual threads) decodes each batch into its own text buffer
+ * sequencer - the calling thread waits for the batches in the order they were read, writes their text out and
+ *             hands their frames to the stages (eg. the flow table)
+ *
+ * Batches are recycled through a bounded free list, so at most a fixed number of them are in flight: when the
+ * workers or the output fall behind, the reader blocks instead of buffering more of the capture.
+ *
+ * On live input the reader does not wait for a batch to fill up: once the source is drained it hands over what it
+ * has, and the sequencer flushes the output after writing that batch, so packets do not sit in a half full batch.
+ *
+ **/
+
+public class ParallelAnalyzer {
+
+    /** Default number of frames per batch. */
+    static final int DEFAULT_BATCH_FRAMES = 1024;
+    /** Initial size of the byte arena of a batch. A single larger frame grows it. */
+    static final int BATCH_BYTES = 1 << 20;
+    //Frame of a batch that is an IPv4 fragment held for reassembly
+    private static final int HELD = -1;
+
+    private final int threads;
+    private final int batchFrames;
+    private final String executorKind;
+    private final TextOutput.Verbosity verbosity;
+    private final PacketFilter filter;
+    private final FragmentReassembler defrag;
+    private final Metrics metrics;
+
+    /**
+     * Creates a parallel analyzer.
+     * @param threads Number of worker threads
+     * @param batchFrames Number of frames per batch
+     * @param executorKind forkjoin, fixed or virtual
+     * @param verbosity How much of each packet is printed
+     * @param filter Filter frames must match to be decoded, null for every frame
+     * @param defrag Reassembler of IPv4 fragments, used on the reader thread; null to decode fragments one by one
+     * @param metrics Metrics the workers count into, null if not collected
+     */
+    public ParallelAnalyzer(int threads, int batchFrames, String executorKind, TextOutput.Verbosity verbosity,
+                            PacketFilter filter, FragmentReassembler defrag, Metrics metrics) {
+        this.threads = Math.max(1, threads);
+        this.batchFrames = Math.max(1, batchFrames);
+        this.executorKind = executorKind;
+        this.verbosity = verbosity;
+        this.filter = filter;
+        this.defrag = defrag;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Frames copied out of the reader buffer, plus the text they decode to.
+     */
+    static final class Batch {
+        byte[] data = new byte[BATCH_BYTES];
+        int used;
+        int count;
+        final int[] offsets;
+        final int[] lengths;
+        final int[] linkTypes;
+        final long[] timestamps;
+        final long[] numbers;
+        //0 for a plain record, HELD for a fragment, or the number of fragments of a rebuilt datagram
+        final int[] fragments;
+        final int[] recordLengths;
+        final PacketView packet = new PacketView();
+        final TextOutput text;
+        final Metrics metrics;
+        //false for one-off batches that must not go back to the free list
+        final boolean pooled;
+        //true if the output is flushed after this batch, set when the live input ran dry behind it
+        boolean flush;
+
+        Batch(int frames, boolean pooled, TextOutput.Verbosity verbosity, Metrics metrics) {
+            this.pooled = pooled;
+            this.metrics = metrics;
+            this.text = new TextOutput(64 * 1024, verbosity);
+            offsets = new int[frames];
+            lengths = new int[frames];
+            linkTypes = new int[frames];
+            timestamps = new long[frames];
+            numbers = new long[frames];
+            fragments = new int[frames];
+            recordLengths = new int[frames];
+        }
+
+        /**
+         * Copies a frame into the batch.
+         * @param frame Buffer holding the frame: the current record of the reader, or a rebuilt datagram
+         * @param offset Absolute offset of the frame
+         * @param length Length of the frame
+         * @param reader Reader positioned on the record the frame belongs to
+         * @param fragmentCount 0, HELD or the number of fragments of a rebuilt datagram
+         * @return false if the batch has no room left for it
+         */
+        boolean add(ByteBuffer frame, int offset, int length, PacketSource reader, int fragmentCount) {
+            if (count == offsets.length) {
+                return false;
+            }
+            if (used + length > data.length) {
+                if (count > 0) {
+                    return false;
+                }
+                data = new byte[length];
+            }
+            frame.get(offset, data, used, length);
+            offsets[count] = used;
+            lengths[count] = length;
+            linkTypes[count] = reader.linkType();
+            timestamps[count] = reader.timestamp();
+            numbers[count] = reader.packetNumber();
+            fragments[count] = fragmentCount;
+            recordLengths[count] = reader.captureLength();
+            used += length;
+            count++;
+            return true;
+        }
+
+        /** Decodes every frame of the batch into its text buffer. Runs on a worker thread. */
+        Batch decode() {
+            ByteBuffer frames = ByteBuffer.wrap(data);
+            //A stripe of counters to itself for the length of the batch
+            Metrics.Stripe stripe = metrics != null ? metrics.acquire() : null;
+            for (int i = 0; i < count; i++) {
+                packet.wrap(frames, offsets[i], lengths[i], timestamps[i]);
+                if (fragments[i] == HELD) {
+                    pktanalyzer.fragment_record(text, packet, numbers[i], stripe);
+                } else if (fragments[i] > 0) {
+                    pktanalyzer.reassembled_record(text, packet, numbers[i], recordLengths[i], fragments[i], stripe);
+                } else {
+                    pktanalyzer.decode_record(text, packet, numbers[i], linkTypes[i], stripe);
+                }
+            }
+            if (stripe != null) {
+                metrics.release(stripe);
+            }
+            return this;
+        }
+
+        /** Hands every Ethernet frame of the batch to the stages, in capture order. Runs on the sequencer. */
+        void feed(List<PacketStage> stages) {
+            ByteBuffer frames = ByteBuffer.wrap(data);
+            for (int i = 0; i < count; i++) {
+                if (linkTypes[i] == PcapReader.LINKTYPE_ETHERNET && fragments[i] != HELD) {
+                    pktanalyzer.feed(stages, packet.wrap(frames, offsets[i], lengths[i], timestamps[i]));
+                }
+            }
+        }
+
+        void clear() {
+            used = 0;
+            count = 0;
+            flush = false;
+            text.reset();
+        }
+    }
+
+    //Marks the end of the capture in the queue of pending batches
+    private static final Future<Batch> END = CompletableFuture.completedFuture(null);
+
+    /**
+     * Decodes the whole capture and writes the text of every packet, in capture order.
+     * @param reader Source positioned at the start of the capture. Closed when done.
+     * @param output Writer the text is copied to
+     * @param stages Stages fed with every packet after its text is written
+     * @throws IOException If reading the capture or writing the output fails
+     * @throws RuntimeException If decoding on the reader thread fails, Eg. on a bug in a filter
+     */
+    public void run(PacketSource reader, TextOutput output, List<PacketStage> stages) throws IOException {
+        int inflight = threads * 2;
+        BlockingQueue<Batch> free = new ArrayBlockingQueue<>(inflight);
+        for (int i = 0; i < inflight; i++) {
+            free.add(new Batch(batchFrames, true, verbosity, metrics));
+        }
+        BlockingQueue<Future<Batch>> pending = new ArrayBlockingQueue<>(inflight + 1);
+        ExecutorService workers = executor();
+        //Error that ended the reader thread, thrown again by this thread once the batches before it are written
+        Throwable[] failure = new Throwable[1];
+
+        Thread readerThread = new Thread(() -> {
+            try (reader) {
+                Batch batch = free.take();
+                PacketView fragment = new PacketView();
+                while (true) {
+                    if (!reader.ready() && batch.count > 0) {
+                        //Live input drained: hand over the partial batch rather than hold it back
+                        Batch partial = batch;
+                        partial.flush = true;
+                        pending.put(workers.submit(partial::decode));
+                        batch = free.take();
+                    }
+                    if (!reader.next()) {
+                        break;
+                    }
+                    ByteBuffer frame = reader.buffer();
+                    int offset = reader.frameOffset();
+                    int length = reader.captureLength();
+                    int fragmentCount = 0;
+                    if (defrag != null && pktanalyzer.isfragment(reader, fragment)) {
+                        PacketView datagram = defrag.add(fragment);
+                        if (datagram == null) {
+                            if (filter != null) {
+                                continue;
+                            }
+                            fragmentCount = HELD;
+                        } else {
+                            if (filter != null && !filter.matches(datagram.buffer(), datagram.offset(), datagram.length())) {
+                                continue;
+                            }
+                            frame = datagram.buffer();
+                            offset = datagram.offset();
+                            length = datagram.length();
+                            fragmentCount = defrag.fragments();
+                        }
+                    } else if (!pktanalyzer.accepted(reader, filter)) {
+                        continue;
+                    }
+                    if (!batch.add(frame, offset, length, reader, fragmentCount)) {
+                        Batch full = batch;
+                        pending.put(workers.submit(full::decode));
+                        batch = free.take();
+                        batch.add(frame, offset, length, reader, fragmentCount);
+                    }
+                }
+                if (batch.count > 0) {
+                    Batch last = batch;
+                    pending.put(workers.submit(last::decode));
+                }
+                if (reader.truncated()) {
+                    pending.put(CompletableFuture.completedFuture(truncatedNotice()));
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                failure[0] = e;
+            } catch (InterruptedException e) {
+                failure[0] = new InterruptedIOException("Reader interrupted");
+            } finally {
+                try {
+                    pending.put(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "pcap-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        try {
+            while (true) {
+                Future<Batch> next = pending.take();
+                if (next == END) {
+                    break;
+                }
+                Batch batch = next.get();
+                output.append(batch.text);
+                batch.feed(stages);
+                if (batch.flush) {
+                    output.flush();
+                }
+                batch.clear();
+                if (batch.pooled) {
+                    free.put(batch);
+                }
+            }
+            readerThread.join();
+        } catch (InterruptedException e) {
+            readerThread.interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for decoded batches");
+        } catch (ExecutionException e) {
+            readerThread.interrupt();
+            throw new IOException("Decoder failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        if (failure[0] instanceof IOException) {
+            throw (IOException) failure[0];
+        } else if (failure[0] instanceof RuntimeException) {
+            throw (RuntimeException) failure[0];
+        } else if (failure[0] instanceof Error) {
+            throw (Error) failure[0];
+        }
+    }
+
+    /** @return A one-off batch holding the notice about a capture cut in the middle of a record */
+    private Batch truncatedNotice() {
+        Batch notice = new Batch(1, false, verbosity, null);
+        notice.text.println("Capture ends in the middle of a record, last record ignored");
+        return notice;
+    }
+
+    /**
+     * Creates the worker pool.
+     * @return Executor of the configured kind
+     */
+    private ExecutorService executor() {
+        switch (executorKind) {
+            case "forkjoin":
+                return new ForkJoinPool(threads);
+            case "fixed":
+                return Executors.newFixedThreadPool(threads, r -> {
+                    Thread t = new Thread(r, "pkt-decoder");
+                    t.setDaemon(true);
+                    return t;
+                });
+            case "virtual":
+                //Virtual threads need Java 21; looked up reflectively so the tool still builds on older JDKs
+                try {
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalArgumentException("Virtual threads need Java 21 or later");
+                }
+            default:
+                throw new IllegalArgumentException("Unknown executor " + executorKind);
+        }
+    }
+} //ParallelAnalyzer
@@ -0,0 +1,529 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PcapReader.java
+ *
+ * Streams the records of a pcap or pcapng capture one frame at a time. The file is walked through a single bounded
+ * buffer that is compacted and refilled in place, so memory use does not depend on the size of the capture. The
+ * current frame is exposed as an offset/length window into that buffer and stays valid until the next call to
+ * {@link #next()}.
+ *
+ * A reader created with {@link #map(Path)} maps the file with FileChannel.map instead of reading it. The buffer is
+ * then a read-only window of the mapping that slides forward over the file, frames are decoded straight out of the
+ * page cache and nothing is copied onto the heap.
+ *
+ * Supported formats:
+ * pcap   - microsecond (0xA1B2C3D4) and nanosecond (0xA1B23C4D) magic, either byte order
+ * pcapng - Section Header, Interface Description, Enhanced/Simple/obsolete Packet blocks. Every other block is skipped.
+ *
+ **/
+
+public class PcapReader implements PacketSource {
+
+    static final int PCAP_MAGIC = 0xA1B2C3D4;
+    static final int PCAP_MAGIC_NANO = 0xA1B23C4D;
+    static final int PCAPNG_SHB = 0x0A0D0D0A;
+    static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+    static final int PCAPNG_IDB = 0x00000001;
+    static final int PCAPNG_PB = 0x00000002;
+    static final int PCAPNG_SPB = 0x00000003;
+    static final int PCAPNG_EPB = 0x00000006;
+
+    /** Link type of Ethernet frames, the only link layer the decoders understand. */
+    static final int LINKTYPE_ETHERNET = 1;
+
+    /** Default size of the read buffer. */
+    static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    /** A single record may grow the buffer up to this size, never further. */
+    static final int MAX_RECORD_SIZE = 16 << 20;
+    /** Size of one mapped window. Records never straddle two windows; the window is remapped at the record start. */
+    static final int MAP_WINDOW_SIZE = 1 << 30;
+
+    private final ReadableByteChannel channel;
+    //Set in mapped mode only
+    private final FileChannel mapped;
+    private final long mappedSize;
+    private ByteBuffer buffer;
+    //Number of bytes consumed from the channel before the start of the buffer
+    private long bufferBase;
+    private boolean eof;
+
+    private boolean pcapng;
+    private ByteOrder order = ByteOrder.BIG_ENDIAN;
+    private boolean started;
+
+    //pcap: one link type and timestamp resolution for the whole file
+    private int linkType;
+    private boolean nanoResolution;
+
+    //pcapng: per-interface link type, snap length and timestamp resolution
+    private int interfaces;
+    private int[] ifLinkType = new int[4];
+    private int[] ifSnapLength = new int[4];
+    private byte[] ifTsResolution = new byte[4];
+
+    //Current record
+    private int frameOffset;
+    private int captureLength;
+    private int originalLength;
+    private long timestamp;
+    private int frameLinkType;
+    private long recordOffset;
+    private long packetNumber;
+    private boolean truncated;
+
+    /**
+     * Creates a reader with the default buffer size.
+     * @param channel Channel positioned at the start of the capture
+     */
+    public PcapReader(ReadableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a reader.
+     * @param channel Channel positioned at the start of the capture
+     * @param bufferSize Initial size of the reusable read buffer
+     */
+    public PcapReader(ReadableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.mapped = null;
+        this.mappedSize = 0;
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 64));
+        this.buffer.limit(0);
+    }
+
+    private PcapReader(FileChannel file) throws IOException {
+        this.channel = file;
+        this.mapped = file;
+        this.mappedSize = file.size();
+        this.buffer = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Opens a capture file for streaming.
+     * @param path Path of the capture file
+     * @return Reader over the file
+     * @throws IOException If the file cannot be opened
+     */
+    public static PcapReader open(Path path) throws IOException {
+        //The cast picks the streaming constructor, not the mapping one
+        return new PcapReader((ReadableByteChannel) FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    /**
+     * Opens a capture file for zero-copy decoding through a memory mapping.
+     * @param path Path of the capture file
+     * @return Reader over the mapped file
+     * @throws IOException If the file cannot be opened
+     */
+    public static PcapReader map(Path path) throws IOException {
+        return new PcapReader(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    /**
+     * Checks whether the first four bytes of a file carry a pcap or pcapng magic number.
+     * @param path Path of the file
+     * @return true if the file is a pcap/pcapng capture, false for a raw frame
+     * @throws IOException If the file cannot be read
+     */
+    public static boolean isCapture(Path path) throws IOException {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(4);
+            while (head.hasRemaining() && fc.read(head) >= 0) {
+                //keep reading until 4 bytes or end of file
+            }
+            if (head.hasRemaining()) {
+                return false;
+            }
+            return isMagic(head.getInt(0));
+        }
+    }
+
+    /**
+     * Checks a 32 bit value read in big endian order against the known capture magic numbers.
+     * @param magic First four bytes of the file
+     * @return true if this is a pcap/pcapng magic number
+     */
+    static boolean isMagic(int magic) {
+        return magic == PCAP_MAGIC || magic == PCAP_MAGIC_NANO || magic == PCAPNG_SHB
+                || Integer.reverseBytes(magic) == PCAP_MAGIC || Integer.reverseBytes(magic) == PCAP_MAGIC_NANO;
+    }
+
+    /**
+     * Advances to the next packet record.
+     * @return true if a record is available, false at the end of the capture
+     * @throws IOException If reading fails or the capture is malformed
+     */
+    public boolean next() throws IOException {
+        if (!started) {
+            readFileHeader();
+            started = true;
+        }
+        return pcapng ? nextBlock() : nextRecord();
+    }
+
+    private void readFileHeader() throws IOException {
+        if (!ensure(4)) {
+            throw new EOFException("Empty capture");
+        }
+        int magic = buffer.order(ByteOrder.BIG_ENDIAN).getInt(buffer.position());
+        if (magic == PCAPNG_SHB) {
+            pcapng = true;
+            return;
+        }
+        if (magic == PCAP_MAGIC || magic == PCAP_MAGIC_NANO) {
+            order = ByteOrder.BIG_ENDIAN;
+        } else if (Integer.reverseBytes(magic) == PCAP_MAGIC || Integer.reverseBytes(magic) == PCAP_MAGIC_NANO) {
+            order = ByteOrder.LITTLE_ENDIAN;
+            magic = Integer.reverseBytes(magic);
+        } else {
+            throw new IOException("Not a pcap/pcapng capture: magic 0x" + String.format("%08X", magic));
+        }
+        if (!ensure(24)) {
+            throw new EOFException("Truncated pcap global header");
+        }
+        buffer.order(order);
+        nanoResolution = magic == PCAP_MAGIC_NANO;
+        linkType = buffer.getInt(buffer.position() + 20) & 0x0FFFFFFF;
+        skip(24);
+    }
+
+    private boolean nextRecord() throws IOException {
+        if (!ensure(16)) {
+            return false;
+        }
+        int p = buffer.position();
+        long seconds = buffer.getInt(p) & 0xFFFFFFFFL;
+        long fraction = buffer.getInt(p + 4) & 0xFFFFFFFFL;
+        int incl = buffer.getInt(p + 8);
+        int orig = buffer.getInt(p + 12);
+        if (incl < 0 || incl > MAX_RECORD_SIZE - 16) {
+            throw new IOException("Corrupt pcap record at offset " + position() + ": length " + incl);
+        }
+        if (!ensure(16 + incl)) {
+            truncated = true;
+            return false;
+        }
+        setFrame(position(), buffer.position() + 16, incl, orig,
+                seconds * 1_000_000_000L + (nanoResolution ? fraction : fraction * 1000L), linkType);
+        skip(16 + incl);
+        return true;
+    }
+
+    private boolean nextBlock() throws IOException {
+        while (true) {
+            if (!ensure(8)) {
+                return false;
+            }
+            int p = buffer.position();
+            int type = buffer.order(ByteOrder.BIG_ENDIAN).getInt(p);
+            if (type == PCAPNG_SHB) {
+                if (!ensure(12)) {
+                    throw new EOFException("Truncated pcapng section header");
+                }
+                int bom = buffer.getInt(p + 8);
+                if (bom == PCAPNG_BYTE_ORDER_MAGIC) {
+                    order = ByteOrder.BIG_ENDIAN;
+                } else if (Integer.reverseBytes(bom) == PCAPNG_BYTE_ORDER_MAGIC) {
+                    order = ByteOrder.LITTLE_ENDIAN;
+                } else {
+                    throw new IOException("Bad pcapng byte-order magic at offset " + position());
+                }
+                //A new section resets the interface list
+                interfaces = 0;
+            }
+            buffer.order(order);
+            type = buffer.getInt(p);
+            int length = buffer.getInt(p + 4);
+            if (length < 12 || (length & 3) != 0) {
+                throw new IOException("Corrupt pcapng block at offset " + position() + ": length " + length);
+            }
+            switch (type) {
+                case PCAPNG_IDB:
+                    if (!ensure(length)) {
+                        truncated = true;
+                        return false;
+                    }
+                    readInterface(buffer.position(), length);
+                    skip(length);
+                    break;
+                case PCAPNG_EPB:
+                case PCAPNG_PB:
+                case PCAPNG_SPB:
+                    if (length > MAX_RECORD_SIZE) {
+                        throw new IOException("pcapng block at offset " + position() + " exceeds " + MAX_RECORD_SIZE
+                                + " bytes");
+                    }
+                    if (!ensure(length)) {
+                        truncated = true;
+                        return false;
+                    }
+                    readPacketBlock(buffer.position(), type, length);
+                    skip(length);
+                    return true;
+                default:
+                    //Section header, statistics, name resolution, custom blocks...
+                    skip(length);
+                    break;
+            }
+        }
+    }
+
+    private void readInterface(int p, int length) {
+        if (interfaces == ifLinkType.length) {
+            ifLinkType = java.util.Arrays.copyOf(ifLinkType, interfaces * 2);
+            ifSnapLength = java.util.Arrays.copyOf(ifSnapLength, interfaces * 2);
+            ifTsResolution = java.util.Arrays.copyOf(ifTsResolution, interfaces * 2);
+        }
+        ifLinkType[interfaces] = buffer.getShort(p + 8) & 0xFFFF;
+        ifSnapLength[interfaces] = buffer.getInt(p + 12);
+        ifTsResolution[interfaces] = 6;
+        //Options start after the fixed 16 byte body and end before the trailing length field
+        int o = p + 16;
+        int end = p + length - 4;
+        while (o + 4 <= end) {
+            int code = buffer.getShort(o) & 0xFFFF;
+            int olen = buffer.getShort(o + 2) & 0xFFFF;
+            if (code == 0) {
+                break;
+            }
+            if (code == 9 && olen >= 1) {
+                //if_tsresol
+                ifTsResolution[interfaces] = buffer.get(o + 4);
+            }
+            o += 4 + ((olen + 3) & ~3);
+        }
+        interfaces++;
+    }
+
+    private void readPacketBlock(int p, int type, int length) throws IOException {
+        int iface;
+        long ticks;
+        int incl;
+        int orig;
+        int data;
+        if (type == PCAPNG_SPB) {
+            iface = 0;
+            ticks = -1;
+            orig = buffer.getInt(p + 8);
+            incl = Math.min(orig, length - 16);
+            if (interfaces > 0 && ifSnapLength[0] > 0) {
+                incl = Math.min(incl, ifSnapLength[0]);
+            }
+            data = p + 12;
+        } else {
+            iface = type == PCAPNG_EPB ? buffer.getInt(p + 8) : buffer.getShort(p + 8) & 0xFFFF;
+            ticks = ((buffer.getInt(p + 12) & 0xFFFFFFFFL) << 32) | (buffer.getInt(p + 16) & 0xFFFFFFFFL);
+            incl = buffer.getInt(p + 20);
+            orig = buffer.getInt(p + 24);
+            data = p + 28;
+        }
+        if (iface < 0 || iface >= interfaces) {
+            throw new IOException("pcapng packet at offset " + position() + " refers to unknown interface " + iface);
+        }
+        if (incl < 0 || data + incl > p + length - 4) {
+            throw new IOException("Corrupt pcapng packet at offset " + position() + ": length " + incl);
+        }
+        long ts = ticks < 0 ? 0 : toNanos(ticks, ifTsResolution[iface]);
+        setFrame(position(), data, incl, orig, ts, ifLinkType[iface]);
+    }
+
+    /**
+     * Converts a pcapng timestamp to nanoseconds.
+     * @param ticks Timestamp in interface units
+     * @param resolution if_tsresol value. MSB clear: 10^-n seconds, MSB set: 2^-n seconds
+     * @return Nanoseconds since the epoch
+     */
+    static long toNanos(long ticks, byte resolution) {
+        int exp = resolution & 0x7F;
+        if ((resolution & 0x80) != 0) {
+            long seconds = ticks >>> exp;
+            long fraction = ticks & ((1L << exp) - 1);
+            return seconds * 1_000_000_000L + (long) (fraction * (1_000_000_000.0 / (1L << exp)));
+        }
+        if (exp <= 9) {
+            long scale = 1;
+            for (int i = exp; i < 9; i++) {
+                scale *= 10;
+            }
+            return ticks * scale;
+        }
+        long scale = 1;
+        for (int i = 9; i < exp; i++) {
+            scale *= 10;
+        }
+        return ticks / scale;
+    }
+
+    private void setFrame(long record, int offset, int incl, int orig, long ts, int link) {
+        recordOffset = record;
+        frameOffset = offset;
+        captureLength = incl;
+        originalLength = orig;
+        timestamp = ts;
+        frameLinkType = link;
+        packetNumber++;
+    }
+
+    /**
+     * Makes sure at least n unread bytes are buffered, compacting and refilling (or growing, up to
+     * {@link #MAX_RECORD_SIZE}) the buffer as needed.
+     * @return false if the end of the channel is reached first
+     */
+    private boolean ensure(int n) throws IOException {
+        if (buffer.remaining() >= n) {
+            return true;
+        }
+        if (mapped != null) {
+            return remap(n);
+        }
+        if (n > buffer.capacity()) {
+            if (n > MAX_RECORD_SIZE) {
+                throw new IOException("Record of " + n + " bytes exceeds " + MAX_RECORD_SIZE + " bytes");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_RECORD_SIZE, Math.max(n, buffer.capacity() * 2)));
+            bufferBase += buffer.position();
+            bigger.put(buffer);
+            bigger.flip();
+            buffer = bigger.order(order);
+        } else if (buffer.position() > 0) {
+            bufferBase += buffer.position();
+            buffer.compact();
+            buffer.flip();
+        }
+        while (buffer.remaining() < n && !eof) {
+            int start = buffer.limit();
+            buffer.position(start).limit(buffer.capacity());
+            int read = channel.read(buffer);
+            buffer.limit(buffer.position()).position(0);
+            if (read < 0) {
+                eof = true;
+            }
+        }
+        return buffer.remaining() >= n;
+    }
+
+    /** Moves the mapped window so that it starts at the next unread byte. */
+    private boolean remap(int n) throws IOException {
+        long start = position();
+        if (mappedSize - start < n) {
+            eof = true;
+            return false;
+        }
+        bufferBase = start;
+        buffer = mapped.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_WINDOW_SIZE, mappedSize - start));
+        buffer.order(order);
+        return true;
+    }
+
+    /** Consumes n bytes, reading past the end of the buffer if the skip is longer than what is buffered. */
+    private void skip(long n) throws IOException {
+        while (n > 0) {
+            if (mapped != null && n > buffer.remaining()) {
+                //No need to map the bytes that are skipped
+                bufferBase += buffer.position() + n;
+                buffer = ByteBuffer.allocate(0);
+                return;
+            }
+            if (!buffer.hasRemaining() && !ensure(1)) {
+                return;
+            }
+            int step = (int) Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + step);
+            n -= step;
+        }
+    }
+
+    /** @return Offset in the capture of the next unread byte */
+    private long position() {
+        return bufferBase + buffer.position();
+    }
+
+    /**
+     * Moves to a record by its offset, so that the next call to {@link #next()} reads it. Only possible on a file,
+     * streamed or mapped, once the first record has been read: the file header and, for pcapng, the interfaces
+     * declared before the first packet are known by then. Interfaces or sections declared further down are not.
+     * @param record Offset of the record as returned by {@link #recordOffset()}
+     * @param number Number of the record in the capture, reported by {@link #packetNumber()} once it is read
+     * @throws IOException If the channel is not seekable
+     */
+    public void seek(long record, long number) throws IOException {
+        if (mapped != null) {
+            //The next ensure() maps a window starting at the record
+            buffer = ByteBuffer.allocate(0);
+        } else if (channel instanceof FileChannel) {
+            ((FileChannel) channel).position(record);
+            buffer.position(0).limit(0);
+        } else {
+            throw new IOException("Cannot seek in a capture that is not a file");
+        }
+        bufferBase = record;
+        eof = false;
+        truncated = false;
+        packetNumber = number - 1;
+    }
+
+    /** @return true, a file never makes {@link #next()} wait */
+    public boolean ready() {
+        return true;
+    }
+
+    /** @return Buffer holding the current frame. Its contents change on the next call to {@link #next()}. */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /** @return Offset of the current frame inside {@link #buffer()} */
+    public int frameOffset() {
+        return frameOffset;
+    }
+
+    /** @return Number of frame bytes captured in the file */
+    public int captureLength() {
+        return captureLength;
+    }
+
+    /** @return Length of the frame on the wire */
+    public int originalLength() {
+        return originalLength;
+    }
+
+    /** @return Capture timestamp in nanoseconds since the epoch */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /** @return Link type of the current frame */
+    public int linkType() {
+        return frameLinkType;
+    }
+
+    /** @return Offset in the capture file of the current record header */
+    public long recordOffset() {
+        return recordOffset;
+    }
+
+    /** @return 1-based number of the current packet */
+    public long packetNumber() {
+        return packetNumber;
+    }
+
+    /** @return true if the capture ended in the middle of a record */
+    public boolean truncated() {
+        return truncated;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+} //PcapReader
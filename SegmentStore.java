@@ -0,0 +1,108 @@
+import java.nio.ByteBuffer;
+
+/**
+ * SegmentStore.java
+ *
+ * Fixed size store for the out-of-order TCP segments held by StreamReassembler. The bytes live in one direct (off
+ * heap) buffer allocated up front and cut into chunks of CHUNK_SIZE bytes; a segment takes as many chunks as it
+ * needs. Chunks are recycled through a free list and their bookkeeping (sequence number, length, next chunk) is kept
+ * in int arrays, so holding a segment allocates nothing and the store never grows: when it is full,
+ * allocate() fails and the caller has to give up on a stalled stream to free chunks.
+ *
+ **/
+
+public class SegmentStore {
+
+    /** Size of one chunk. Big enough for a full Ethernet segment in one piece most of the time. */
+    static final int CHUNK_SIZE = 2048;
+
+    /** Marks the end of a chunk list. */
+    static final int NONE = -1;
+
+    private final ByteBuffer arena;
+    private final int[] sequences;
+    private final int[] lengths;
+    private final int[] next;
+    private int free;
+    private int available;
+
+    /**
+     * Creates a store.
+     * @param capacity Number of bytes the store holds at most, rounded down to whole chunks
+     */
+    public SegmentStore(int capacity) {
+        int chunks = Math.max(1, capacity / CHUNK_SIZE);
+        arena = ByteBuffer.allocateDirect(chunks * CHUNK_SIZE);
+        sequences = new int[chunks];
+        lengths = new int[chunks];
+        next = new int[chunks];
+        for (int i = 0; i < chunks; i++) {
+            next[i] = i + 1 < chunks ? i + 1 : NONE;
+        }
+        free = 0;
+        available = chunks;
+    }
+
+    /**
+     * Takes a chunk off the free list and copies up to CHUNK_SIZE bytes into it.
+     * @param sequence TCP sequence number of the first byte
+     * @param data Buffer holding the bytes
+     * @param offset Absolute offset of the first byte
+     * @param length Number of bytes, at most CHUNK_SIZE
+     * @return The chunk, or NONE if the store is full
+     */
+    int allocate(int sequence, ByteBuffer data, int offset, int length) {
+        int chunk = free;
+        if (chunk == NONE) {
+            return NONE;
+        }
+        free = next[chunk];
+        available--;
+        next[chunk] = NONE;
+        sequences[chunk] = sequence;
+        lengths[chunk] = length;
+        arena.put(chunk * CHUNK_SIZE, data, offset, length);
+        return chunk;
+    }
+
+    /** Puts a chunk back on the free list. */
+    void release(int chunk) {
+        next[chunk] = free;
+        free = chunk;
+        available++;
+    }
+
+    /** @return Sequence number of the first byte of the chunk */
+    int sequence(int chunk) {
+        return sequences[chunk];
+    }
+
+    /** @return Number of bytes in the chunk */
+    int length(int chunk) {
+        return lengths[chunk];
+    }
+
+    /** @return Next chunk of the list the chunk is in */
+    int next(int chunk) {
+        return next[chunk];
+    }
+
+    void next(int chunk, int following) {
+        next[chunk] = following;
+    }
+
+    /** @return Absolute offset of the chunk in the arena */
+    int offset(int chunk) {
+        return chunk * CHUNK_SIZE;
+    }
+
+    /** @return Buffer holding every chunk */
+    ByteBuffer arena() {
+        return arena;
+    }
+
+    /** @return Number of free chunks */
+    int available() {
+        return available;
+    }
+} //SegmentStore
@@ -0,0 +1,269 @@
+import java.util.Arrays;
+
+/**
+ * SpaceSaving.java
+ *
+ * Space-Saving summary (Metwally et al.) of the heaviest long keys of a stream, in a fixed number of counters. A key
+ * that is not tracked takes over the counter of the lightest tracked key and inherits its count as possible error,
+ * so every key heavier than total / capacity is guaranteed to be tracked, and the count of a tracked key exceeds its
+ * true weight by at most its error.
+ *
+ * The caller may pass an upper bound on the weight of the key, Eg. from a CountMinSketch; a key taking over a counter
+ * then starts from the smaller of the inherited count and that bound, which keeps a key that keeps coming back from
+ * being credited with the weight of every key it displaced.
+ *
+ * The counters are parallel primitive arrays ordered as a binary min-heap on the count, with an open addressing
+ * table (linear probing, backward shift deletion, as in FlowTable) from key to counter, so an update is O(1) to find
+ * the key and O(log capacity) to restore the heap, and nothing is allocated per update.
+ *
+ * Two summaries merge by adding the counts of the keys they share and, for a key missing from a full summary, the
+ * count of that summary's lightest key, which it cannot have exceeded; the heaviest capacity keys are kept.
+ *
+ **/
+
+public class SpaceSaving {
+
+    private final int capacity;
+    private int size;
+    private long total;
+    //Per counter, in heap order: heap[0] is the lightest
+    private final long[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    //Key to heap position + 1, 0 for an empty slot
+    private final int[] table;
+    private final int mask;
+
+    /**
+     * Creates an empty summary.
+     * @param capacity Number of keys tracked at once
+     */
+    public SpaceSaving(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        keys = new long[this.capacity];
+        counts = new long[this.capacity];
+        errors = new long[this.capacity];
+        int tableSize = Integer.highestOneBit(this.capacity) << 2;
+        table = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+    /**
+     * Adds a weight to a key.
+     * @param key Key
+     * @param weight Weight to add
+     * @param bound Upper bound on the total weight of the key including this one, Long.MAX_VALUE if none is known
+     */
+    public void add(long key, long weight, long bound) {
+        total += weight;
+        int slot = find(key);
+        if (slot >= 0) {
+            int position = table[slot] - 1;
+            counts[position] += weight;
+            down(position);
+            return;
+        }
+        if (size < capacity) {
+            keys[size] = key;
+            counts[size] = weight;
+            errors[size] = 0;
+            table[-slot - 1] = size + 1;
+            up(size++);
+            return;
+        }
+        //Take over the counter of the lightest key
+        remove(keys[0]);
+        long count = Math.max(weight, Math.min(counts[0] + weight, bound));
+        keys[0] = key;
+        counts[0] = count;
+        errors[0] = count - weight;
+        table[-find(key) - 1] = 1;
+        down(0);
+    }
+
+    /** @return Total weight added, tracked or not */
+    public long total() {
+        return total;
+    }
+
+    /** @return Number of keys tracked */
+    public int size() {
+        return size;
+    }
+
+    /** @return Count of the lightest tracked key once every counter is taken, 0 before */
+    public long minimum() {
+        return size < capacity ? 0 : counts[0];
+    }
+
+    /**
+     * Lists the tracked keys from the heaviest down.
+     * @param n Maximum number of keys
+     * @return Positions of the keys for key(), count() and error(), heaviest first
+     */
+    public int[] top(int n) {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> counts[b] != counts[a] ? Long.compare(counts[b], counts[a])
+                : Long.compare(keys[a], keys[b]));
+        int[] top = new int[Math.min(n, size)];
+        for (int i = 0; i < top.length; i++) {
+            top[i] = order[i];
+        }
+        return top;
+    }
+
+    /** @return Key at a position returned by top() */
+    public long key(int position) {
+        return keys[position];
+    }
+
+    /** @return Count at a position returned by top(), at least the true weight of its key */
+    public long count(int position) {
+        return counts[position];
+    }
+
+    /** @return Most the count at a position returned by top() can exceed the true weight of its key */
+    public long error(int position) {
+        return errors[position];
+    }
+
+    /**
+     * Adds the keys of another summary to this one.
+     * @param other Summary to merge in, left unchanged
+     */
+    public void merge(SpaceSaving other) {
+        int n = size + other.size;
+        long[] mergedKeys = new long[n];
+        long[] mergedCounts = new long[n];
+        long[] mergedErrors = new long[n];
+        int m = 0;
+        long otherMinimum = other.minimum();
+        for (int i = 0; i < size; i++) {
+            int slot = other.find(keys[i]);
+            mergedKeys[m] = keys[i];
+            if (slot >= 0) {
+                int position = other.table[slot] - 1;
+                mergedCounts[m] = counts[i] + other.counts[position];
+                mergedErrors[m] = errors[i] + other.errors[position];
+            } else {
+                mergedCounts[m] = counts[i] + otherMinimum;
+                mergedErrors[m] = errors[i] + otherMinimum;
+            }
+            m++;
+        }
+        long minimum = minimum();
+        for (int i = 0; i < other.size; i++) {
+            if (find(other.keys[i]) < 0) {
+                mergedKeys[m] = other.keys[i];
+                mergedCounts[m] = other.counts[i] + minimum;
+                mergedErrors[m] = other.errors[i] + minimum;
+                m++;
+            }
+        }
+        long mergedTotal = total + other.total;
+        clear();
+        total = mergedTotal;
+        //Keep the heaviest: the heap drops the lightest once full
+        for (int i = 0; i < m; i++) {
+            if (size < capacity) {
+                keys[size] = mergedKeys[i];
+                counts[size] = mergedCounts[i];
+                errors[size] = mergedErrors[i];
+                table[-find(mergedKeys[i]) - 1] = size + 1;
+                up(size++);
+            } else if (mergedCounts[i] > counts[0]) {
+                remove(keys[0]);
+                keys[0] = mergedKeys[i];
+                counts[0] = mergedCounts[i];
+                errors[0] = mergedErrors[i];
+                table[-find(mergedKeys[i]) - 1] = 1;
+                down(0);
+            }
+        }
+    }
+
+    /** Empties the summary. */
+    public void clear() {
+        size = 0;
+        total = 0;
+        Arrays.fill(table, 0);
+    }
+
+    /** @return Table slot holding the key, or -(free slot) - 1 where it would go */
+    private int find(long key) {
+        int slot = (int) CountMinSketch.mix(key) & mask;
+        while (table[slot] != 0) {
+            if (keys[table[slot] - 1] == key) {
+                return slot;
+            }
+            slot = slot + 1 & mask;
+        }
+        return -slot - 1;
+    }
+
+    /** Removes a key from the table, shifting the rest of its probe sequence back. */
+    private void remove(long key) {
+        int hole = find(key);
+        int slot = hole;
+        while (true) {
+            slot = slot + 1 & mask;
+            if (table[slot] == 0) {
+                break;
+            }
+            int home = (int) CountMinSketch.mix(keys[table[slot] - 1]) & mask;
+            //Move the entry into the hole unless its home lies cyclically in (hole, slot]
+            if (hole <= slot ? home <= hole || home > slot : home <= hole && home > slot) {
+                table[hole] = table[slot];
+                hole = slot;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private void up(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (counts[parent] <= counts[position]) {
+                break;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void down(int position) {
+        while (true) {
+            int child = position * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && counts[child + 1] < counts[child]) {
+                child++;
+            }
+            if (counts[position] <= counts[child]) {
+                break;
+            }
+            swap(position, child);
+            position = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int slotA = find(keys[a]);
+        int slotB = find(keys[b]);
+        table[slotA] = b + 1;
+        table[slotB] = a + 1;
+        long key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        long count = counts[a];
+        counts[a] = counts[b];
+        counts[b] = count;
+        long error = errors[a];
+        errors[a] = errors[b];
+        errors[b] = error;
+    }
+} //SpaceSaving
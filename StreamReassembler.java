@@ -0,0 +1,379 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * StreamReassembler.java
+ *
+ * Rebuilds the byte stream of each direction of every TCP connection and hands it, in order and without duplicates,
+ * to a StreamSink.
+ *
+ * Each direction tracks the next sequence number it expects (from the SYN, or from the first segment if the
+ * connection started before the capture). A segment that starts there is delivered straight out of the capture
+ * buffer; bytes that were already delivered are cut off (the first copy wins), and a segment that starts past a hole
+ * goes to the SegmentStore until the hole is filled.
+ *
+ * The store has a fixed size. When it is full, or when a direction has been waiting on the same hole for longer than
+ * the stall timeout, the direction that made progress least recently gives up on its hole: the sink is told how many
+ * bytes are missing and the buffered data is delivered. A few broken connections therefore cost at most the size of
+ * the store. Directions without any packet for the idle timeout are ended and forgotten.
+ *
+ **/
+
+public class StreamReassembler implements PacketStage {
+
+    /** Default size of the out-of-order segment store. */
+    static final int DEFAULT_MEMORY = 16 << 20;
+    /** Default seconds a direction may wait for a missing segment while holding later ones. */
+    static final int DEFAULT_STALL_TIMEOUT = 10;
+
+    /**
+     * One direction of a TCP connection.
+     */
+    public static final class TcpStream {
+        private final int sourceIp;
+        private final int sourcePort;
+        private final int destinationIp;
+        private final int destinationPort;
+        private final Key key;
+        //The other direction, null until it sends its first packet
+        TcpStream peer;
+        boolean started;
+        boolean ended;
+        boolean finSeen;
+        int next;
+        int finSequence;
+        //Out-of-order chunks, sorted by sequence number
+        int pending = SegmentStore.NONE;
+        long lastSeen;
+        long lastProgress;
+        long delivered;
+        long missing;
+
+        TcpStream(Key key) {
+            this.sourceIp = key.sourceIp;
+            this.sourcePort = key.sourcePort;
+            this.destinationIp = key.destinationIp;
+            this.destinationPort = key.destinationPort;
+            this.key = key;
+        }
+
+        public int sourceIp() {
+            return sourceIp;
+        }
+
+        public int sourcePort() {
+            return sourcePort;
+        }
+
+        public int destinationIp() {
+            return destinationIp;
+        }
+
+        public int destinationPort() {
+            return destinationPort;
+        }
+
+        /** @return Number of bytes handed to the sink */
+        public long delivered() {
+            return delivered;
+        }
+
+        /** @return Number of bytes reported as missing */
+        public long missing() {
+            return missing;
+        }
+
+        /** @return Name of the direction, Eg. 10.0.0.2.40000-10.0.0.1.80 */
+        public String name() {
+            return Ipv4View.format(sourceIp) + "." + sourcePort + "-" + Ipv4View.format(destinationIp) + "." +
+                    destinationPort;
+        }
+    }
+
+    /** Source and destination of a direction. One instance is reused to look streams up. */
+    private static final class Key {
+        int sourceIp;
+        int sourcePort;
+        int destinationIp;
+        int destinationPort;
+
+        Key set(int sourceIp, int sourcePort, int destinationIp, int destinationPort) {
+            this.sourceIp = sourceIp;
+            this.sourcePort = sourcePort;
+            this.destinationIp = destinationIp;
+            this.destinationPort = destinationPort;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return sourceIp == k.sourceIp && sourcePort == k.sourcePort && destinationIp == k.destinationIp
+                    && destinationPort == k.destinationPort;
+        }
+
+        @Override
+        public int hashCode() {
+            return (sourceIp * 31 + destinationIp) * 31 + (sourcePort << 16 | destinationPort);
+        }
+    }
+
+    private final TextOutput out;
+    private final StreamSink sink;
+    private final SegmentStore store;
+    private final long stallTimeout;
+    private final long idleTimeout;
+    private final Map<Key, TcpStream> streams = new HashMap<>();
+    private final Key probe = new Key();
+    private long nextSweep = Long.MIN_VALUE;
+    private long total;
+    private long delivered;
+    private long missing;
+    private long gaveUp;
+
+    /**
+     * Creates a reassembler.
+     * @param out Writer the totals are printed to at the end
+     * @param sink Receiver of the streams
+     * @param memory Size of the out-of-order segment store in bytes
+     * @param stallTimeout Seconds a direction waits for a missing segment while holding later ones
+     * @param idleTimeout Seconds without a packet after which a direction is ended
+     */
+    public StreamReassembler(TextOutput out, StreamSink sink, int memory, int stallTimeout, int idleTimeout) {
+        this.out = out;
+        this.sink = sink;
+        this.store = new SegmentStore(memory);
+        this.stallTimeout = Math.max(1, stallTimeout) * 1_000_000_000L;
+        this.idleTimeout = Math.max(1, idleTimeout) * 1_000_000_000L;
+    }
+
+    @Override
+    public void accept(PacketView packet) {
+        if (!packet.isTcp()) {
+            return;
+        }
+        long now = packet.timestamp();
+        if (now >= nextSweep) {
+            if (nextSweep != Long.MIN_VALUE) {
+                sweep(now);
+            }
+            nextSweep = now + Math.min(stallTimeout, idleTimeout) / 4;
+        }
+        Ipv4View ip = packet.ipv4();
+        TcpView tcp = ip.tcp();
+        TcpStream stream = stream(ip.source(), tcp.sourcePort(), ip.destination(), tcp.destinationPort());
+        int flags = tcp.flags();
+        if (stream.ended) {
+            if ((flags & (TcpView.SYN | TcpView.ACK)) != TcpView.SYN) {
+                //A segment after FIN/RST, eg. a retransmitted FIN
+                return;
+            }
+            //The addresses and ports are reused by a new connection
+            streams.remove(stream.key);
+            unlink(stream);
+            stream = stream(ip.source(), tcp.sourcePort(), ip.destination(), tcp.destinationPort());
+        }
+        stream.lastSeen = now;
+        if ((flags & TcpView.RST) != 0) {
+            close(stream);
+            if (stream.peer != null) {
+                close(stream.peer);
+            }
+            return;
+        }
+        int sequence = (int) tcp.sequence();
+        if ((flags & TcpView.SYN) != 0) {
+            //The SYN takes one sequence number before the data
+            sequence++;
+            if (!stream.started) {
+                stream.next = sequence;
+            }
+        }
+        if (!stream.started) {
+            //The connection was opened before the capture started
+            stream.started = true;
+            stream.next = sequence;
+            stream.lastProgress = now;
+        }
+        int length = tcp.payloadLength();
+        if (length > 0) {
+            segment(stream, tcp.buffer(), tcp.payloadOffset(), length, sequence, now);
+        }
+        if ((flags & TcpView.FIN) != 0) {
+            stream.finSeen = true;
+            stream.finSequence = sequence + length;
+        }
+        if (stream.finSeen && stream.next == stream.finSequence) {
+            close(stream);
+        }
+    }
+
+    /** @return The direction of the segment, created on its first packet */
+    private TcpStream stream(int sourceIp, int sourcePort, int destinationIp, int destinationPort) {
+        TcpStream stream = streams.get(probe.set(sourceIp, sourcePort, destinationIp, destinationPort));
+        if (stream != null) {
+            return stream;
+        }
+        stream = new TcpStream(new Key().set(sourceIp, sourcePort, destinationIp, destinationPort));
+        streams.put(stream.key, stream);
+        total++;
+        TcpStream peer = streams.get(probe.set(destinationIp, destinationPort, sourceIp, sourcePort));
+        if (peer != null && !peer.ended) {
+            stream.peer = peer;
+            peer.peer = stream;
+        }
+        return stream;
+    }
+
+    /** Delivers, trims or stores the payload of one segment. */
+    private void segment(TcpStream stream, ByteBuffer data, int offset, int length, int sequence, long now) {
+        //Bytes of the segment that were delivered already. Differences of sequence numbers handle the wrap around.
+        int old = stream.next - sequence;
+        if (old > 0) {
+            if (old >= length) {
+                return;
+            }
+            offset += old;
+            length -= old;
+            sequence = stream.next;
+        }
+        if (sequence == stream.next) {
+            deliver(stream, data, offset, length, now);
+            drain(stream, now);
+            return;
+        }
+        while (length > 0) {
+            int piece = Math.min(length, SegmentStore.CHUNK_SIZE);
+            int chunk = store.allocate(sequence, data, offset, piece);
+            if (chunk == SegmentStore.NONE) {
+                //Store full: the stalest direction gives up on its hole, then the rest is placed again
+                skipGap(stalest(), now);
+                segment(stream, data, offset, length, sequence, now);
+                return;
+            }
+            insert(stream, chunk);
+            offset += piece;
+            length -= piece;
+            sequence += piece;
+        }
+    }
+
+    /** Inserts a chunk into the pending list of a direction, keeping it sorted by sequence number. */
+    private void insert(TcpStream stream, int chunk) {
+        int sequence = store.sequence(chunk);
+        int previous = SegmentStore.NONE;
+        int current = stream.pending;
+        while (current != SegmentStore.NONE && store.sequence(current) - sequence <= 0) {
+            previous = current;
+            current = store.next(current);
+        }
+        store.next(chunk, current);
+        if (previous == SegmentStore.NONE) {
+            stream.pending = chunk;
+        } else {
+            store.next(previous, chunk);
+        }
+    }
+
+    /** Delivers the pending chunks that the next sequence number has reached. */
+    private void drain(TcpStream stream, long now) {
+        while (stream.pending != SegmentStore.NONE) {
+            int chunk = stream.pending;
+            int old = stream.next - store.sequence(chunk);
+            if (old < 0) {
+                return;
+            }
+            if (old < store.length(chunk)) {
+                deliver(stream, store.arena(), store.offset(chunk) + old, store.length(chunk) - old, now);
+            }
+            stream.pending = store.next(chunk);
+            store.release(chunk);
+        }
+    }
+
+    private void deliver(TcpStream stream, ByteBuffer data, int offset, int length, long now) {
+        sink.data(stream, data, offset, length);
+        stream.next += length;
+        stream.delivered += length;
+        stream.lastProgress = now;
+        delivered += length;
+    }
+
+    /** Gives up on the hole before the first pending chunk of a direction and delivers what follows it. */
+    private void skipGap(TcpStream stream, long now) {
+        if (stream == null || stream.pending == SegmentStore.NONE) {
+            return;
+        }
+        int hole = store.sequence(stream.pending) - stream.next;
+        sink.gap(stream, hole);
+        stream.missing += hole;
+        missing += hole;
+        gaveUp++;
+        stream.next = store.sequence(stream.pending);
+        drain(stream, now);
+    }
+
+    /** @return The direction holding pending chunks that made progress least recently */
+    private TcpStream stalest() {
+        TcpStream stalest = null;
+        for (TcpStream stream : streams.values()) {
+            if (stream.pending != SegmentStore.NONE && (stalest == null || stream.lastProgress < stalest.lastProgress)) {
+                stalest = stream;
+            }
+        }
+        return stalest;
+    }
+
+    /** Gives up on holes older than the stall timeout and ends the directions idle for longer than the idle one. */
+    private void sweep(long now) {
+        Iterator<TcpStream> iterator = streams.values().iterator();
+        while (iterator.hasNext()) {
+            TcpStream stream = iterator.next();
+            if (stream.pending != SegmentStore.NONE && now - stream.lastProgress > stallTimeout) {
+                skipGap(stream, now);
+            }
+            if (stream.ended || now - stream.lastSeen > idleTimeout) {
+                close(stream);
+                unlink(stream);
+                iterator.remove();
+            }
+        }
+    }
+
+    /** Ends a direction: whatever is still pending is delivered after the hole before it. */
+    private void close(TcpStream stream) {
+        if (stream.ended) {
+            return;
+        }
+        while (stream.pending != SegmentStore.NONE) {
+            skipGap(stream, stream.lastProgress);
+        }
+        stream.ended = true;
+        sink.end(stream);
+    }
+
+    private static void unlink(TcpStream stream) {
+        if (stream.peer != null) {
+            stream.peer.peer = null;
+            stream.peer = null;
+        }
+    }
+
+    /** Ends every direction still open and prints the totals. */
+    @Override
+    public void finish() {
+        for (TcpStream stream : streams.values()) {
+            close(stream);
+            unlink(stream);
+        }
+        streams.clear();
+        sink.close();
+        out.print("TCP streams: ").print(total).print(" directions, ").print(delivered).print(" bytes reassembled, ")
+                .print(missing).print(" bytes missing in ").print(gaveUp).println(" holes");
+    }
+} //StreamReassembler
@@ -0,0 +1,38 @@
+import java.nio.ByteBuffer;
+
+/**
+ * StreamSink.java
+ *
+ * Receives the byte streams rebuilt by StreamReassembler, one call per contiguous run of bytes and in stream order.
+ * FileStreamSink writes every stream to its own file; any other sink (eg. a protocol parser) can be plugged in
+ * through StreamReassembler's constructor.
+ *
+ **/
+
+public interface StreamSink {
+
+    /**
+     * Receives the next bytes of a stream.
+     * @param stream Direction of the connection the bytes belong to
+     * @param data Buffer holding the bytes, only valid during the call
+     * @param offset Absolute offset of the first byte
+     * @param length Number of bytes
+     */
+    void data(StreamReassembler.TcpStream stream, ByteBuffer data, int offset, int length);
+
+    /**
+     * Reports bytes that were never captured, or were given up on; the next data call continues after them.
+     * @param stream Direction of the connection
+     * @param length Number of missing bytes
+     */
+    void gap(StreamReassembler.TcpStream stream, long length);
+
+    /**
+     * Reports the end of a stream: FIN, RST, idle timeout or end of the capture.
+     * @param stream Direction of the connection
+     */
+    void end(StreamReassembler.TcpStream stream);
+
+    /** Called once after the last stream ended. */
+    void close();
+} //StreamSink
@@ -0,0 +1,116 @@
+import java.nio.ByteBuffer;
+
+/**
+ * TcpView.java
+ *
+ * Flyweight view of a TCP header. The view owns the DnsView and HttpView of its payload, wrapped on demand.
+ *
+ **/
+
+public class TcpView extends HeaderView {
+
+    /** Length of a TCP header without options. */
+    public static final int MIN_HEADER_LENGTH = 20;
+
+    public static final int FIN = 0x01;
+    public static final int SYN = 0x02;
+    public static final int RST = 0x04;
+    public static final int PSH = 0x08;
+    public static final int ACK = 0x10;
+    public static final int URG = 0x20;
+
+    private final DnsView dns = new DnsView();
+    private final HttpView http = new HttpView();
+
+    /**
+     * Points the view at a TCP header.
+     * @param buffer Buffer holding the header
+     * @param offset Absolute offset of the header
+     * @param length Number of bytes in the segment
+     * @return This view
+     */
+    public TcpView wrap(ByteBuffer buffer, int offset, int length) {
+        set(buffer, offset, length);
+        return this;
+    }
+
+    /** @return Source port */
+    public int sourcePort() {
+        return u16(0);
+    }
+
+    /** @return Destination port */
+    public int destinationPort() {
+        return u16(2);
+    }
+
+    /** @return Sequence number */
+    public long sequence() {
+        return u32(4);
+    }
+
+    /** @return Acknowledgement number */
+    public long acknowledgement() {
+        return u32(8);
+    }
+
+    /** @return Data offset in 32 bit words, the first 4 bits of byte 12 */
+    public int dataOffset() {
+        return u8(12) >> 4;
+    }
+
+    /** @return Length of the header in bytes. Never less than 20. */
+    public int headerLength() {
+        return Math.max(MIN_HEADER_LENGTH, dataOffset() * 4);
+    }
+
+    /** @return Flag bits (URG, ACK, PSH, RST, SYN, FIN), the last 6 bits of byte 13 */
+    public int flags() {
+        return u8(13) & (1 << 6) - 1;
+    }
+
+    /** @return true if every bit of mask is set in the flags */
+    public boolean has(int mask) {
+        return (u8(13) & mask) == mask;
+    }
+
+    /** @return Window size */
+    public int window() {
+        return u16(14);
+    }
+
+    /** @return Checksum */
+    public int checksum() {
+        return u16(16);
+    }
+
+    /** @return Urgent pointer */
+    public int urgentPointer() {
+        return u16(18);
+    }
+
+    /** @return Absolute offset of the payload */
+    public int payloadOffset() {
+        return offset + headerLength();
+    }
+
+    /** @return Number of payload bytes */
+    public int payloadLength() {
+        return Math.max(0, length - headerLength());
+    }
+
+    /** @return true if either port is the DNS port and the segment carries data */
+    public boolean isDns() {
+        return (sourcePort() == DnsView.PORT || destinationPort() == DnsView.PORT) && payloadLength() > 2;
+    }
+
+    /** @return View of the payload as a DNS message, which over TCP follows a 2 byte length */
+    public DnsView dns() {
+        return dns.wrap(buffer, payloadOffset() + 2, Math.max(0, payloadLength() - 2));
+    }
+
+    /** @return View of the payload as the start of an HTTP message */
+    public HttpView http() {
+        return http.wrap(buffer, payloadOffset(), payloadLength());
+    }
+} //TcpView
@@ -0,0 +1,387 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * TextOutput.java
+ *
+ * Buffered text writer used by the packet dump. Text is rendered straight into one reusable byte array: numbers are
+ * written digit by digit, hexadecimal comes from a precomputed lookup table and nothing goes through String.format or
+ * a String per field. The array is handed to the underlying stream in large blocks only.
+ *
+ * A TextOutput created without a stream grows instead of flushing; the parallel decoder renders each batch into one
+ * and writes its bytes out in capture order.
+ *
+ **/
+
+public class TextOutput {
+
+    /** How much of each packet is printed. */
+    public enum Verbosity {
+        /** Nothing per packet, only what the stages (eg. --flows) report */
+        NONE,
+        /** One line per packet */
+        SUMMARY,
+        /** Every header field, no payload */
+        HEADERS,
+        /** Every header field and a hex/ASCII dump of the payload */
+        FULL
+    }
+
+    /** Default size of the buffer, and of the blocks written to the stream. */
+    static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private static final byte[] HEX_UPPER = "0123456789ABCDEF".getBytes();
+    private static final byte[] HEX_LOWER = "0123456789abcdef".getBytes();
+    //Two upper case hexadecimal characters for every byte value
+    private static final byte[] HEX_PAIRS = new byte[512];
+    static {
+        for (int i = 0; i < 256; i++) {
+            HEX_PAIRS[i * 2] = HEX_UPPER[i >> 4];
+            HEX_PAIRS[i * 2 + 1] = HEX_UPPER[i & 0xF];
+        }
+    }
+
+    private final OutputStream sink;
+    private final Verbosity verbosity;
+    private byte[] buffer;
+    private int size;
+
+    /**
+     * Creates a writer that flushes to a stream.
+     * @param sink Stream the text is written to
+     * @param blockSize Size of the buffer
+     * @param verbosity How much of each packet is printed
+     */
+    public TextOutput(OutputStream sink, int blockSize, Verbosity verbosity) {
+        this.sink = sink;
+        this.verbosity = verbosity;
+        this.buffer = new byte[Math.max(blockSize, 256)];
+    }
+
+    /**
+     * Creates a writer that keeps everything in memory until {@link #writeTo(OutputStream)}.
+     * @param initialSize Initial size of the buffer
+     * @param verbosity How much of each packet is printed
+     */
+    public TextOutput(int initialSize, Verbosity verbosity) {
+        this(null, initialSize, verbosity);
+    }
+
+    /** @return How much of each packet is printed */
+    public Verbosity verbosity() {
+        return verbosity;
+    }
+
+    /** Makes room for n more bytes, flushing or growing the buffer. */
+    private void ensure(int n) {
+        if (size + n <= buffer.length) {
+            return;
+        }
+        if (sink != null) {
+            flushBuffer();
+            if (n <= buffer.length) {
+                return;
+            }
+        }
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + n));
+    }
+
+    private void flushBuffer() {
+        try {
+            sink.write(buffer, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        size = 0;
+    }
+
+    /**
+     * Appends a string. Only meant for ASCII text such as labels; every char is written as one byte.
+     * @param s Text
+     * @return This writer
+     */
+    public TextOutput print(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            buffer[size++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Appends one ASCII character.
+     * @return This writer
+     */
+    public TextOutput print(char c) {
+        ensure(1);
+        buffer[size++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Appends a number in decimal.
+     * @return This writer
+     */
+    public TextOutput print(long value) {
+        ensure(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+            if (value == Long.MIN_VALUE) {
+                return print("9223372036854775808");
+            }
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+        return this;
+    }
+
+    /**
+     * Appends a non-negative number in decimal with at least the given number of digits, like %06d.
+     * @return This writer
+     */
+    public TextOutput print(long value, int minDigits) {
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensure(minDigits);
+        for (int i = digits; i < minDigits; i++) {
+            buffer[size++] = '0';
+        }
+        return print(value);
+    }
+
+    /**
+     * Appends a string followed by a line feed.
+     * @return This writer
+     */
+    public TextOutput println(String s) {
+        return print(s).print('\n');
+    }
+
+    /**
+     * Appends a line feed.
+     * @return This writer
+     */
+    public TextOutput println() {
+        return print('\n');
+    }
+
+    /**
+     * Appends a value in upper case hexadecimal with at least the given number of digits, like %02X.
+     * @return This writer
+     */
+    public TextOutput hex(long value, int minDigits) {
+        return hex(value, minDigits, HEX_UPPER);
+    }
+
+    /**
+     * Appends a value in lower case hexadecimal with at least the given number of digits, like %02x.
+     * @return This writer
+     */
+    public TextOutput hexLower(long value, int minDigits) {
+        return hex(value, minDigits, HEX_LOWER);
+    }
+
+    private TextOutput hex(long value, int minDigits, byte[] table) {
+        int digits = Math.max(minDigits, (64 - Long.numberOfLeadingZeros(value) + 3) / 4);
+        ensure(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = table[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+        size += digits;
+        return this;
+    }
+
+    /**
+     * Appends a MAC address held in the low 48 bits of a long.
+     * @return This writer, Eg. DC:53:60:E2:74:A3
+     */
+    public TextOutput mac(long mac) {
+        ensure(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int b = (int) (mac >> shift) & 0xFF;
+            buffer[size++] = HEX_PAIRS[b * 2];
+            buffer[size++] = HEX_PAIRS[b * 2 + 1];
+            if (shift > 0) {
+                buffer[size++] = ':';
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends an IPv4 address in dotted decimal notation.
+     * @param address Address, most significant byte first
+     * @return This writer, Eg. 192.168.0.1
+     */
+    public TextOutput ipv4(int address) {
+        return print(address >>> 24).print('.').print(address >> 16 & 0xFF).print('.')
+                .print(address >> 8 & 0xFF).print('.').print(address & 0xFF);
+    }
+
+    /**
+     * Appends an IPv6 address in the text form of RFC 5952: lower case, no leading zeros, and the longest run of two
+     * or more zero groups (the first one on a tie) written as "::".
+     * @param high First 64 bits of the address
+     * @param low Last 64 bits of the address
+     * @return This writer, Eg. 2001:db8::1
+     */
+    public TextOutput ipv6(long high, long low) {
+        int runStart = -1;
+        int runLength = 1;
+        for (int i = 0, start = -1; i <= 8; i++) {
+            if (i < 8 && group(high, low, i) == 0) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                if (i - start > runLength) {
+                    runStart = start;
+                    runLength = i - start;
+                }
+                start = -1;
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            if (i == runStart) {
+                print(i == 0 ? "::" : ":");
+                i += runLength - 1;
+                continue;
+            }
+            hexLower(group(high, low, i), 1);
+            if (i < 7) {
+                print(':');
+            }
+        }
+        return this;
+    }
+
+    /** @return Group i (0-7) of 16 bits of an IPv6 address */
+    private static int group(long high, long low, int i) {
+        return (int) ((i < 4 ? high : low) >>> (3 - i % 4) * 16) & 0xFFFF;
+    }
+
+    /**
+     * Appends bytes as upper case hexadecimal pairs followed by a space, 8 per row.
+     * @param data Buffer holding the bytes
+     * @param offset Absolute offset of the first byte
+     * @param length Number of bytes
+     * @return This writer
+     */
+    public TextOutput hexRows(ByteBuffer data, int offset, int length) {
+        ensure(length * 3 + length / 8);
+        for (int i = 0; i < length; i++) {
+            int b = data.get(offset + i) & 0xFF;
+            buffer[size++] = HEX_PAIRS[b * 2];
+            buffer[size++] = HEX_PAIRS[b * 2 + 1];
+            buffer[size++] = ' ';
+            //8 values in a row
+            if ((i + 1) % 8 == 0) {
+                buffer[size++] = '\n';
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends bytes as text. Printable ASCII, tab and line feed are copied, every other byte is shown as '.'.
+     * @param data Buffer holding the bytes
+     * @param offset Absolute offset of the first byte
+     * @param length Number of bytes
+     * @return This writer
+     */
+    public TextOutput ascii(ByteBuffer data, int offset, int length) {
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            byte b = data.get(offset + i);
+            buffer[size++] = (b >= 0x20 && b < 0x7F) || b == '\t' || b == '\n' ? b : (byte) '.';
+        }
+        return this;
+    }
+
+    /**
+     * Appends raw bytes, Eg. text another writer has rendered and flushed.
+     * @param bytes Array holding the bytes
+     * @param offset Offset of the first byte
+     * @param length Number of bytes
+     * @return This writer
+     */
+    public TextOutput write(byte[] bytes, int offset, int length) {
+        if (sink != null && length > buffer.length) {
+            //Too large to be worth copying: let the buffered text out first, then the bytes themselves
+            flushBuffer();
+            try {
+                sink.write(bytes, offset, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+        ensure(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+        return this;
+    }
+
+    /**
+     * Appends everything buffered in another writer and empties it.
+     * @param other Writer holding rendered text
+     * @return This writer
+     */
+    public TextOutput append(TextOutput other) {
+        ensure(other.size);
+        System.arraycopy(other.buffer, 0, buffer, size, other.size);
+        size += other.size;
+        other.size = 0;
+        return this;
+    }
+
+    /** @return Number of bytes buffered */
+    public int size() {
+        return size;
+    }
+
+    /** Drops everything buffered. */
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * Writes the buffered bytes to a stream and empties the buffer.
+     * @param out Stream to write to
+     * @throws IOException If writing fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+        size = 0;
+    }
+
+    /**
+     * Writes the buffered bytes to the stream given at construction and flushes it.
+     * @throws IOException If writing fails
+     */
+    public void flush() throws IOException {
+        if (sink != null) {
+            try {
+                flushBuffer();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            sink.flush();
+        }
+    }
+} //TextOutput
@@ -0,0 +1,160 @@
+/**
+ * TopTalkers.java
+ *
+ * Heavy hitters of a capture in fixed memory: the top N source and destination addresses, source and destination
+ * ports and conversations (address pairs) of the IPv4 packets, by packets and by bytes, plus the number of distinct
+ * hosts and conversations. Exact per-key maps grow with every address a scan touches; here every list is a
+ * SpaceSaving summary whose evictions are bounded by a CountMinSketch of the same keys, and the distinct counts come
+ * from HyperLogLog estimators, so the stage holds about 1 MB whatever the capture holds.
+ *
+ * Counts are upper bounds; a count that may include weight of other keys is followed by the lower bound of the
+ * true count, Eg. "(at least 5388)". Keys heavier than 1/counters of the total are always tracked.
+ *
+ * All the sketches merge, so instances fed with different parts of the input (Eg. different capture files) can be
+ * combined with merge() before the report.
+ *
+ * Output:
+ * Top talkers: 12000 packets, 9876543 bytes, about 230 hosts (180 sources, 64 destinations), 310 conversations
+ * Top 10 sources by packets:
+ *   192.168.0.2 5400
+ *   ...
+ *
+ **/
+
+public class TopTalkers implements PacketStage {
+
+    /** Default number of keys tracked per list. */
+    static final int DEFAULT_COUNTERS = 1024;
+
+    //Lists, each kept by packets and by bytes
+    private static final int SOURCES = 0;
+    private static final int DESTINATIONS = 1;
+    private static final int SOURCE_PORTS = 2;
+    private static final int DESTINATION_PORTS = 3;
+    private static final int CONVERSATIONS = 4;
+    private static final String[] NAMES = {"sources", "destinations", "source ports", "destination ports",
+            "conversations"};
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 2048;
+
+    private final TextOutput out;
+    private final int top;
+    //At list * 2 by packets, list * 2 + 1 by bytes
+    private final SpaceSaving[] lists = new SpaceSaving[NAMES.length * 2];
+    private final CountMinSketch[] sketches = new CountMinSketch[NAMES.length * 2];
+    private final HyperLogLog hosts = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+    private final HyperLogLog sources = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+    private final HyperLogLog destinations = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+    private final HyperLogLog conversations = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+    private long packets;
+    private long bytes;
+
+    /**
+     * Creates an empty stage.
+     * @param out Writer the report is printed to
+     * @param top Number of keys printed per list
+     * @param counters Number of keys tracked per list, at least top
+     */
+    public TopTalkers(TextOutput out, int top, int counters) {
+        this.out = out;
+        this.top = Math.max(1, top);
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = new SpaceSaving(Math.max(this.top, counters));
+            sketches[i] = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+        }
+    }
+
+    @Override
+    public void accept(PacketView packet) {
+        if (!packet.isIpv4()) {
+            return;
+        }
+        Ipv4View ip = packet.ipv4();
+        int length = ip.totalLength() > 0 ? ip.totalLength() : ip.length();
+        long source = ip.source() & 0xFFFFFFFFL;
+        long destination = ip.destination() & 0xFFFFFFFFL;
+        //Conversations are unordered: the lower address goes in the high half
+        long conversation = source < destination ? source << 32 | destination : destination << 32 | source;
+        packets++;
+        bytes += length;
+        add(SOURCES, source, length);
+        add(DESTINATIONS, destination, length);
+        add(CONVERSATIONS, conversation, length);
+        hosts.add(source);
+        hosts.add(destination);
+        sources.add(source);
+        destinations.add(destination);
+        conversations.add(conversation);
+        if (ip.isTcp()) {
+            TcpView tcp = ip.tcp();
+            add(SOURCE_PORTS, Ipv4View.PROTOCOL_TCP << 16 | tcp.sourcePort(), length);
+            add(DESTINATION_PORTS, Ipv4View.PROTOCOL_TCP << 16 | tcp.destinationPort(), length);
+        } else if (ip.isUdp()) {
+            UdpView udp = ip.udp();
+            add(SOURCE_PORTS, Ipv4View.PROTOCOL_UDP << 16 | udp.sourcePort(), length);
+            add(DESTINATION_PORTS, Ipv4View.PROTOCOL_UDP << 16 | udp.destinationPort(), length);
+        }
+    }
+
+    private void add(int list, long key, int length) {
+        int byPackets = list * 2;
+        lists[byPackets].add(key, 1, sketches[byPackets].add(key, 1));
+        lists[byPackets + 1].add(key, length, sketches[byPackets + 1].add(key, length));
+    }
+
+    /**
+     * Adds everything another stage has counted to this one.
+     * @param stage TopTalkers created with the same number of counters, left unchanged
+     */
+    @Override
+    public void merge(PacketStage stage) {
+        TopTalkers other = (TopTalkers) stage;
+        for (int i = 0; i < lists.length; i++) {
+            lists[i].merge(other.lists[i]);
+            sketches[i].merge(other.sketches[i]);
+        }
+        hosts.merge(other.hosts);
+        sources.merge(other.sources);
+        destinations.merge(other.destinations);
+        conversations.merge(other.conversations);
+        packets += other.packets;
+        bytes += other.bytes;
+    }
+
+    @Override
+    public void finish() {
+        out.print("Top talkers: ").print(packets).print(" packets, ").print(bytes).print(" bytes, about ")
+                .print(hosts.estimate()).print(" hosts (").print(sources.estimate()).print(" sources, ")
+                .print(destinations.estimate()).print(" destinations), ").print(conversations.estimate())
+                .println(" conversations");
+        for (int list = 0; list < NAMES.length; list++) {
+            report(list, false);
+            report(list, true);
+        }
+    }
+
+    private void report(int list, boolean byBytes) {
+        SpaceSaving summary = lists[list * 2 + (byBytes ? 1 : 0)];
+        if (summary.size() == 0) {
+            return;
+        }
+        out.print("Top ").print(top).print(' ').print(NAMES[list]).println(byBytes ? " by bytes:" : " by packets:");
+        for (int position : summary.top(top)) {
+            long key = summary.key(position);
+            out.print("  ");
+            if (list == SOURCES || list == DESTINATIONS) {
+                out.ipv4((int) key);
+            } else if (list == CONVERSATIONS) {
+                out.ipv4((int) (key >>> 32)).print(" <-> ").ipv4((int) key);
+            } else {
+                out.print((key >> 16) == Ipv4View.PROTOCOL_TCP ? "tcp/" : "udp/").print(key & 0xFFFF);
+            }
+            out.print(' ').print(summary.count(position));
+            if (summary.error(position) > 0) {
+                out.print(" (at least ").print(summary.count(position) - summary.error(position)).print(')');
+            }
+            out.println();
+        }
+    }
+} //TopTalkers
@@ -0,0 +1,68 @@
+import java.nio.ByteBuffer;
+
+/**
+ * UdpView.java
+ *
+ * Flyweight view of a UDP header. The view owns a DnsView of its payload, wrapped on demand.
+ *
+ **/
+
+public class UdpView extends HeaderView {
+
+    /** Length of the UDP header. */
+    public static final int HEADER_LENGTH = 8;
+
+    private final DnsView dns = new DnsView();
+
+    /**
+     * Points the view at a UDP header.
+     * @param buffer Buffer holding the header
+     * @param offset Absolute offset of the header
+     * @param length Number of bytes in the datagram
+     * @return This view
+     */
+    public UdpView wrap(ByteBuffer buffer, int offset, int length) {
+        set(buffer, offset, length);
+        return this;
+    }
+
+    /** @return Source port */
+    public int sourcePort() {
+        return u16(0);
+    }
+
+    /** @return Destination port */
+    public int destinationPort() {
+        return u16(2);
+    }
+
+    /** @return Length field: header plus data in bytes */
+    public int udpLength() {
+        return u16(4);
+    }
+
+    /** @return Checksum */
+    public int checksum() {
+        return u16(6);
+    }
+
+    /** @return Absolute offset of the payload */
+    public int payloadOffset() {
+        return offset + HEADER_LENGTH;
+    }
+
+    /** @return Number of payload bytes */
+    public int payloadLength() {
+        return Math.max(0, length - HEADER_LENGTH);
+    }
+
+    /** @return true if either port is the DNS port */
+    public boolean isDns() {
+        return sourcePort() == DnsView.PORT || destinationPort() == DnsView.PORT;
+    }
+
+    /** @return View of the payload as a DNS message */
+    public DnsView dns() {
+        return dns.wrap(buffer, payloadOffset(), payloadLength());
+    }
+} //UdpView
@@ -0,0 +1,20 @@
+/**
+ * WindowSink.java
+ *
+ * Receives the windows closed by WindowStats, as soon as the capture time moves past their end. FileWindowSink
+ * writes them as JSON lines; any other sink (eg. one pushing to a dashboard) can be plugged in through WindowStats'
+ * constructor.
+ *
+ **/
+
+public interface WindowSink {
+
+    /**
+     * Receives a closed window.
+     * @param window Counters of the window, only valid during the call
+     */
+    void window(WindowStats.Window window);
+
+    /** Called once after the last window. */
+    void close();
+} //WindowSink
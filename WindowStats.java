@@ -0,0 +1,244 @@
+import java.util.Arrays;
+
+/**
+ * WindowStats.java
+ *
+ * Rolling statistics of a capture, keyed on the capture timestamps: packets and bytes (and from them pps and bps),
+ * the EtherType and IP protocol mix, new TCP connections (SYN without ACK), ICMP message types and ARP requests and
+ * replies. Two kinds of window are emitted to a WindowSink while the capture is read:
+ * tumbling - every window of --window seconds, once the capture time moves past its end
+ * sliding  - the last --window-span seconds, emitted together with each tumbling window (0 to turn it off)
+ *
+ * The tumbling windows live in a ring of preallocated counter arrays holding the last span of windows. A packet adds
+ * to the counters of the open window; closing a window adds it to the running sliding totals, and opening the next
+ * one subtracts the window whose slot it takes over, the one falling out of the span. Both the per packet update and
+ * the per window update take constant time and nothing is allocated after construction.
+ *
+ * A packet older than the open window (capture timestamps are not always in order) is counted in the open window.
+ * Across a gap in the capture, empty windows are emitted until the sliding totals have drained, then the windows are
+ * skipped up to the next packet.
+ *
+ **/
+
+public class WindowStats implements PacketStage {
+
+    /** Default length of a tumbling window in seconds. */
+    static final int DEFAULT_WINDOW = 1;
+    /** Default length of the sliding window in seconds. */
+    static final int DEFAULT_SPAN = 60;
+
+    //Counters of a window
+    public static final int PACKETS = 0;
+    public static final int BYTES = 1;
+    public static final int IPV4 = 2;
+    public static final int IPV6 = 3;
+    public static final int ARP = 4;
+    public static final int OTHER_ETHERTYPES = 5;
+    public static final int TCP = 6;
+    public static final int UDP = 7;
+    public static final int ICMP = 8;
+    public static final int ICMPV6 = 9;
+    public static final int OTHER_PROTOCOLS = 10;
+    public static final int TCP_SYN = 11;
+    public static final int ICMP_ECHO_REQUESTS = 12;
+    public static final int ICMP_ECHO_REPLIES = 13;
+    public static final int ICMP_UNREACHABLE = 14;
+    public static final int ICMP_TIME_EXCEEDED = 15;
+    public static final int ICMP_OTHER_TYPES = 16;
+    public static final int ARP_REQUESTS = 17;
+    public static final int ARP_REPLIES = 18;
+
+    /** Names of the counters, in the order of their numbers. */
+    public static final String[] NAMES = {"packets", "bytes", "ipv4", "ipv6", "arp", "otherEtherTypes", "tcp", "udp",
+            "icmp", "icmpv6", "otherProtocols", "tcpSyn", "icmpEchoRequests", "icmpEchoReplies", "icmpUnreachable",
+            "icmpTimeExceeded", "icmpOtherTypes", "arpRequests", "arpReplies"};
+
+    private static final int FIELDS = NAMES.length;
+
+    private final WindowSink sink;
+    private final long length;
+    //Tumbling windows held for the sliding window, the open one included
+    private final int slots;
+    private final long[] ring;
+    private final long[] sliding;
+    private final Window window = new Window();
+    //Number of the open window (timestamp / length), Long.MIN_VALUE before the first packet
+    private long open = Long.MIN_VALUE;
+
+    /**
+     * Creates the stage.
+     * @param sink Sink the closed windows go to
+     * @param seconds Length of a tumbling window in seconds
+     * @param span Length of the sliding window in seconds, rounded up to whole tumbling windows; 0 for none
+     */
+    public WindowStats(WindowSink sink, int seconds, int span) {
+        this.sink = sink;
+        this.length = Math.max(1, seconds) * 1_000_000_000L;
+        this.slots = span > 0 ? Math.max(1, (span + Math.max(1, seconds) - 1) / Math.max(1, seconds)) : 0;
+        this.ring = new long[Math.max(1, slots) * FIELDS];
+        this.sliding = slots > 0 ? new long[FIELDS] : null;
+    }
+
+    @Override
+    public void accept(PacketView packet) {
+        long number = Math.floorDiv(packet.timestamp(), length);
+        if (open == Long.MIN_VALUE) {
+            start(number);
+        } else if (number > open) {
+            advance(number);
+        }
+        int base = slot(open) * FIELDS;
+        ring[base + PACKETS]++;
+        ring[base + BYTES] += packet.length();
+        if (packet.isIpv4()) {
+            ring[base + IPV4]++;
+            Ipv4View ip = packet.ipv4();
+            if (ip.isTcp()) {
+                ring[base + TCP]++;
+                if ((ip.tcp().flags() & (TcpView.SYN | TcpView.ACK)) == TcpView.SYN) {
+                    ring[base + TCP_SYN]++;
+                }
+            } else if (ip.isUdp()) {
+                ring[base + UDP]++;
+            } else if (ip.isIcmp()) {
+                ring[base + ICMP]++;
+                int type = ip.icmp().type();
+                ring[base + (type == 8 ? ICMP_ECHO_REQUESTS : type == 0 ? ICMP_ECHO_REPLIES
+                        : type == 3 ? ICMP_UNREACHABLE : type == 11 ? ICMP_TIME_EXCEEDED : ICMP_OTHER_TYPES)]++;
+            } else {
+                ring[base + OTHER_PROTOCOLS]++;
+            }
+        } else if (packet.isArp()) {
+            ring[base + ARP]++;
+            ring[base + (packet.arp().opcode() == ArpView.REQUEST ? ARP_REQUESTS : ARP_REPLIES)]++;
+        } else if (packet.isEthernet() && packet.etherType() == PacketView.ETHERTYPE_IPV6
+                && packet.ipv6(PacketView.ETHERNET_HEADER_LENGTH).isValid()) {
+            ring[base + IPV6]++;
+            Ipv6View ip = packet.ipv6(PacketView.ETHERNET_HEADER_LENGTH);
+            int protocol = ip.fragmentOffset() == 0 ? ip.protocol() : -1;
+            if (protocol == Ipv4View.PROTOCOL_TCP && ip.upperLength() >= TcpView.MIN_HEADER_LENGTH) {
+                ring[base + TCP]++;
+                if ((ip.tcp().flags() & (TcpView.SYN | TcpView.ACK)) == TcpView.SYN) {
+                    ring[base + TCP_SYN]++;
+                }
+            } else if (protocol == Ipv4View.PROTOCOL_UDP) {
+                ring[base + UDP]++;
+            } else if (protocol == Ipv6View.PROTOCOL_ICMPV6) {
+                ring[base + ICMPV6]++;
+            } else {
+                ring[base + OTHER_PROTOCOLS]++;
+            }
+        } else {
+            ring[base + OTHER_ETHERTYPES]++;
+        }
+    }
+
+    /** Closes the open window and the empty ones after it, up to the window of a newer packet. */
+    private void advance(long number) {
+        close();
+        //Once the sliding totals are down to 0, later empty windows would all look the same
+        long empty = Math.min(number - open - 1, Math.max(slots, 1));
+        for (long i = 0; i < empty; i++) {
+            start(open + 1);
+            close();
+        }
+        start(number);
+    }
+
+    /** Opens a window in the slot of the oldest one, which leaves the sliding window. */
+    private void start(long number) {
+        open = number;
+        int base = slot(number) * FIELDS;
+        if (sliding != null) {
+            for (int field = 0; field < FIELDS; field++) {
+                sliding[field] -= ring[base + field];
+            }
+        }
+        Arrays.fill(ring, base, base + FIELDS, 0);
+    }
+
+    /** Emits the open window and the sliding window ending with it. */
+    private void close() {
+        int base = slot(open) * FIELDS;
+        sink.window(window.set(ring, base, open * length, length, false));
+        if (sliding == null) {
+            return;
+        }
+        for (int field = 0; field < FIELDS; field++) {
+            sliding[field] += ring[base + field];
+        }
+        sink.window(window.set(sliding, 0, (open - slots + 1) * length, slots * length, true));
+    }
+
+    private int slot(long number) {
+        return (int) Math.floorMod(number, (long) Math.max(1, slots));
+    }
+
+    @Override
+    public void finish() {
+        if (open != Long.MIN_VALUE) {
+            //The last window is cut short by the end of the input
+            close();
+        }
+        sink.close();
+    }
+
+    /**
+     * Counters of one window, a view over the ring or over the sliding totals. Only valid during WindowSink.window.
+     */
+    public static final class Window {
+        private long[] counters;
+        private int base;
+        private long start;
+        private long length;
+        private boolean sliding;
+
+        Window set(long[] counters, int base, long start, long length, boolean sliding) {
+            this.counters = counters;
+            this.base = base;
+            this.start = start;
+            this.length = length;
+            this.sliding = sliding;
+            return this;
+        }
+
+        /** @return Start of the window in nanoseconds since the epoch */
+        public long start() {
+            return start;
+        }
+
+        /** @return Length of the window in nanoseconds */
+        public long length() {
+            return length;
+        }
+
+        /** @return true for the sliding window, false for a tumbling one */
+        public boolean isSliding() {
+            return sliding;
+        }
+
+        /**
+         * @param field Counter, Eg. PACKETS
+         * @return Its value over the window
+         */
+        public long count(int field) {
+            return counters[base + field];
+        }
+
+        /** @return Packets per second over the window, in thousandths */
+        public long packetsPerSecondMilli() {
+            return count(PACKETS) * 1000 / seconds();
+        }
+
+        /** @return Bits per second over the window */
+        public long bitsPerSecond() {
+            return count(BYTES) * 8 / seconds();
+        }
+
+        //Windows are whole seconds long, so the rates divide by seconds rather than scale up to nanoseconds, which
+        //would overflow a long at a few hundred Mbps over a minute
+        private long seconds() {
+            return length / 1_000_000_000L;
+        }
+    }
+} //WindowStats
@@ -0,0 +1,202 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.function.ToLongFunction;
+
+/**
+ * BenchTargets.java
+ *
+ * Entry points of the JMH benchmarks in benchmarks/bench. JMH refuses benchmark classes in the default package and a
+ * named package cannot import from it, so the benchmarks look this class up by name once and then call the decoders
+ * through JDK functional interfaces. Every target returns a value computed from what it decoded so the JIT cannot
+ * drop the work.
+ *
+ * Frame decoders (applied to a buffer holding exactly one Ethernet frame):
+ * views   - reads every header field through PacketView and the nested views, no text
+ * summary - one summary line per packet (decode_record at summary verbosity)
+ * headers - the full header dump (ethernet_head, ip_head, tcp_head, udp_head, icmp_head, arp_head) without payload
+ * full    - the full dump including the payload hex/ASCII
+ * filter  - the full dump of the frames matching "tcp and port 443" (PacketFilter), the others are skipped
+ * flows   - the flow table (FlowTable) without any per-packet text
+ * streams - TCP reassembly (StreamReassembler) into a sink that only counts the bytes
+ * checksums - verification of the IPv4, TCP, UDP and ICMP checksums (Checksum.verify), no text
+ * names   - the filter "dns name plus.google.com or http host example.com" alone, which reads the DNS question and
+ *           the HTTP Host header in place
+ *
+ **/
+
+public final class BenchTargets {
+
+    private BenchTargets() {
+    }
+
+    /**
+     * Returns a decoder of single frames.
+     * @param decoder views, summary, headers or full
+     * @return Function decoding the frame in its argument
+     */
+    public static ToLongFunction<ByteBuffer> frame(String decoder) {
+        PacketView packet = new PacketView();
+        FrameDecoder frames = decoder(decoder);
+        return buffer -> frames.decode(packet.wrap(buffer, 0, buffer.limit()), 1);
+    }
+
+    /**
+     * Returns a decoder of whole captures streamed through PcapReader.
+     * @param decoder views, summary, headers or full
+     * @return Function decoding every frame of the pcap/pcapng bytes in its argument, returning a checksum
+     */
+    public static ToLongFunction<byte[]> stream(String decoder) {
+        FrameDecoder frames = decoder(decoder);
+        return capture -> {
+            try (PcapReader reader = new PcapReader(Channels.newChannel(new ByteArrayInputStream(capture)))) {
+                return decodeAll(reader, frames);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /**
+     * Returns a decoder of whole captures read through a memory mapping.
+     * @param decoder views, summary, headers or full
+     * @return Function decoding every frame of the capture file in its argument, returning a checksum
+     */
+    public static ToLongFunction<Path> mapped(String decoder) {
+        FrameDecoder frames = decoder(decoder);
+        return path -> {
+            try (PcapReader reader = PcapReader.map(path)) {
+                return decodeAll(reader, frames);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private static long decodeAll(PcapReader reader, FrameDecoder frames) throws IOException {
+        PacketView packet = new PacketView();
+        long result = 0;
+        while (reader.next()) {
+            packet.wrap(reader.buffer(), reader.frameOffset(), reader.captureLength(), reader.timestamp());
+            result += frames.decode(packet, reader.packetNumber());
+        }
+        return result;
+    }
+
+    /** Decodes one wrapped frame. */
+    private interface FrameDecoder {
+        long decode(PacketView packet, long number);
+    }
+
+    private static FrameDecoder decoder(String decoder) {
+        switch (decoder) {
+            case "views":
+                return (packet, number) -> fields(packet);
+            case "summary":
+                return dump(TextOutput.Verbosity.SUMMARY);
+            case "headers":
+                return dump(TextOutput.Verbosity.HEADERS);
+            case "full":
+                return dump(TextOutput.Verbosity.FULL);
+            case "filter":
+                return filtered(PacketFilter.compile("tcp and port 443"), dump(TextOutput.Verbosity.FULL));
+            case "flows":
+                return flows();
+            case "streams":
+                return streams();
+            case "checksums":
+                return (packet, number) -> Checksum.verify(packet);
+            case "names":
+                PacketFilter names = PacketFilter.compile("dns name plus.google.com or http host example.com");
+                return (packet, number) -> names.matches(packet.buffer(), packet.offset(), packet.length()) ? 1 : 0;
+            default:
+                throw new IllegalArgumentException("Unknown decoder " + decoder);
+        }
+    }
+
+    /** Renders into a block-sized buffer that is discarded whenever it fills up. */
+    private static FrameDecoder dump(TextOutput.Verbosity verbosity) {
+        TextOutput out = new TextOutput(OutputStream.nullOutputStream(), TextOutput.DEFAULT_BLOCK_SIZE, verbosity);
+        return (packet, number) -> {
+            pktanalyzer.decode_record(out, packet, number, PcapReader.LINKTYPE_ETHERNET, null);
+            return out.size();
+        };
+    }
+
+    /** Runs the filter on the raw frame and the decoder only on the frames that match. */
+    private static FrameDecoder filtered(PacketFilter filter, FrameDecoder decoder) {
+        return (packet, number) -> filter.matches(packet.buffer(), packet.offset(), packet.length())
+                ? decoder.decode(packet, number) : 0;
+    }
+
+    /** Feeds the flow table; flows printed on eviction go to a discarded buffer. */
+    private static FrameDecoder flows() {
+        TextOutput out = new TextOutput(OutputStream.nullOutputStream(), TextOutput.DEFAULT_BLOCK_SIZE,
+                TextOutput.Verbosity.NONE);
+        FlowTable flows = new FlowTable(out, FlowTable.DEFAULT_IDLE_TIMEOUT, FlowTable.DEFAULT_MAX_FLOWS);
+        return (packet, number) -> {
+            flows.accept(packet);
+            return flows.size();
+        };
+    }
+
+    /** Feeds the TCP reassembly; the sink only adds up the bytes it receives. */
+    private static FrameDecoder streams() {
+        TextOutput out = new TextOutput(OutputStream.nullOutputStream(), TextOutput.DEFAULT_BLOCK_SIZE,
+                TextOutput.Verbosity.NONE);
+        long[] bytes = new long[1];
+        StreamSink sink = new StreamSink() {
+            @Override
+            public void data(StreamReassembler.TcpStream stream, ByteBuffer data, int offset, int length) {
+                bytes[0] += length;
+            }
+
+            @Override
+            public void gap(StreamReassembler.TcpStream stream, long length) {
+            }
+
+            @Override
+            public void end(StreamReassembler.TcpStream stream) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        StreamReassembler streams = new StreamReassembler(out, sink, StreamReassembler.DEFAULT_MEMORY,
+                StreamReassembler.DEFAULT_STALL_TIMEOUT, FlowTable.DEFAULT_IDLE_TIMEOUT);
+        return (packet, number) -> {
+            streams.accept(packet);
+            return bytes[0];
+        };
+    }
+
+    /** Reads every field of every header present in the frame. */
+    static long fields(PacketView packet) {
+        long sum = packet.destinationMac() ^ packet.sourceMac() ^ packet.etherType();
+        if (packet.isIpv4()) {
+            Ipv4View ip = packet.ipv4();
+            sum += ip.tos() + ip.totalLength() + ip.identification() + ip.flags() + ip.fragmentOffset() + ip.ttl()
+                    + ip.protocol() + ip.checksum() + ip.source() + ip.destination();
+            if (ip.isTcp()) {
+                TcpView tcp = ip.tcp();
+                sum += tcp.sourcePort() + tcp.destinationPort() + tcp.sequence() + tcp.acknowledgement()
+                        + tcp.flags() + tcp.window() + tcp.checksum() + tcp.urgentPointer() + tcp.payloadLength();
+            } else if (ip.isUdp()) {
+                UdpView udp = ip.udp();
+                sum += udp.sourcePort() + udp.destinationPort() + udp.udpLength() + udp.checksum();
+            } else if (ip.isIcmp()) {
+                IcmpView icmp = ip.icmp();
+                sum += icmp.type() + icmp.code() + icmp.checksum();
+            }
+        } else if (packet.isArp()) {
+            ArpView arp = packet.arp();
+            sum += arp.opcode() + arp.senderMac() + arp.senderIp() + arp.targetMac() + arp.targetIp();
+        }
+        return sum;
+    }
+} //BenchTargets
@@ -0,0 +1,74 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CaptureBenchmark.java
+ *
+ * Decodes a synthetic capture of PACKETS frames built from the checked-in ones, either streamed through the
+ * PcapReader buffer or through a memory mapping of a temporary file. Scores are per packet.
+ *
+ **/
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CaptureBenchmark {
+
+    static final int PACKETS = 100_000;
+
+    @Param({"views", "summary", "full", "filter", "flows", "streams", "checksums", "names"})
+    public String decoder;
+
+    private byte[] capture;
+    private Path file;
+    private ToLongFunction<byte[]> stream;
+    private ToLongFunction<Path> mapped;
+
+    @Setup
+    public void setup() throws IOException {
+        capture = Targets.syntheticCapture(PACKETS);
+        file = Files.createTempFile("pktanalyzer-bench", ".pcap");
+        Files.write(file, capture);
+        stream = Targets.lookup("stream", decoder);
+        mapped = Targets.lookup("mapped", decoder);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public long stream() {
+        return stream.applyAsLong(capture);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public long mapped() {
+        return mapped.applyAsLong(file);
+    }
+} //CaptureBenchmark
@@ -0,0 +1,55 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FrameBenchmark.java
+ *
+ * Decodes one checked-in frame per operation. The TCP, UDP and ICMP frames go through ip_head into tcp_head,
+ * udp_head and icmp_head, the ARP frames into arp_head. Run with -prof gc to get the bytes allocated per packet.
+ *
+ **/
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameBenchmark {
+
+    @Param({"new_tcp_packet1.bin", "new_udp_packet1.bin", "new_icmp_packet2.bin", "arprequest.bin", "arpreply.bin"})
+    public String frame;
+
+    @Param({"views", "summary", "headers", "full", "filter", "flows", "checksums", "names"})
+    public String decoder;
+
+    private ByteBuffer buffer;
+    private ToLongFunction<ByteBuffer> target;
+
+    @Setup
+    public void setup() throws IOException {
+        buffer = ByteBuffer.wrap(Targets.frame(frame));
+        target = Targets.lookup("frame", decoder);
+    }
+
+    @Benchmark
+    public long decode() {
+        return target.applyAsLong(buffer);
+    }
+} //FrameBenchmark
@@ -0,0 +1,80 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.function.ToLongFunction;
+
+/**
+ * Targets.java
+ *
+ * Looks up the decoder entry points in BenchTargets (default package) and loads the checked-in frames.
+ *
+ **/
+
+final class Targets {
+
+    /** The checked-in frames, also the building blocks of the synthetic captures. */
+    static final String[] FRAMES = {"new_tcp_packet1.bin", "new_udp_packet1.bin", "new_icmp_packet2.bin",
+            "arprequest.bin", "arpreply.bin"};
+
+    private Targets() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> ToLongFunction<T> lookup(String factory, String decoder) {
+        try {
+            return (ToLongFunction<T>) Class.forName("BenchTargets").getMethod(factory, String.class)
+                    .invoke(null, decoder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchTargets." + factory + "(" + decoder + ")", e);
+        }
+    }
+
+    /**
+     * Reads a checked-in frame. The directory holding the frames is taken from -Dpktanalyzer.frames and defaults to
+     * the working directory.
+     */
+    static byte[] frame(String name) throws IOException {
+        Path path = Paths.get(System.getProperty("pktanalyzer.frames", "."), name);
+        return Files.readAllBytes(path);
+    }
+
+    /**
+     * Builds a little endian microsecond pcap holding the checked-in frames round robin. The source port of the TCP
+     * and UDP frames and the last byte of every IPv4 source address change from packet to packet, so the capture is
+     * not the same few bytes over and over.
+     * @param packets Number of packets
+     * @return The capture
+     */
+    static byte[] syntheticCapture(int packets) throws IOException {
+        byte[][] frames = new byte[FRAMES.length][];
+        for (int i = 0; i < FRAMES.length; i++) {
+            frames[i] = frame(FRAMES[i]);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(packets * 120);
+        ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0xA1B2C3D4).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0).putInt(65535).putInt(1);
+        out.write(header.array());
+        ByteBuffer record = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < packets; i++) {
+            byte[] frame = frames[i % frames.length].clone();
+            if ((frame[12] & 0xFF) == 0x08 && frame[13] == 0) {
+                frame[29] = (byte) i;
+                if (frame[23] == 6 || frame[23] == 17) {
+                    frame[34] = (byte) (i >> 8);
+                    frame[35] = (byte) i;
+                }
+            }
+            record.clear();
+            record.putInt(1_700_000_000 + i / 1000).putInt(i % 1000 * 1000).putInt(frame.length).putInt(frame.length);
+            out.write(record.array());
+            out.write(frame);
+        }
+        return out.toByteArray();
+    }
+} //Targets
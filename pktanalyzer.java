@@ -1,6 +1,18 @@
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -9,11 +21,89 @@ import java.util.Scanner;
  * Version :    1.1
  *
  * This program reads a set of network packets and produces a detailed summary of those packets. It can extract and
- * display the different headers of the captured packets in the binary file. It is capable of analyzing UDP, TCP, ICMP
- * and ARP packets.
+ * display the different headers of the captured packets in the binary file. It is capable of analyzing UDP, TCP, ICMP,
+ * ICMPv6 and ARP packets over IPv4, IPv6 and VLAN tagged Ethernet.
  *
- * Usage: java pktanalyzer <packet-name>
+ * The input is either a single raw Ethernet frame (the .bin files) or a pcap/pcapng capture holding any number of
+ * frames. Captures are streamed record by record through a bounded buffer (see PcapReader), so their size is not
+ * limited by the heap. With --mmap the file is mapped with FileChannel.map instead and the OS page cache does the
+ * buffering. Either way the decoders read header fields in place at absolute offsets of the frame; no layer copies
+ * the frame or widens it into an int/long array.
+ *
+ * Parsing lives in the flyweight views (PacketView, Ipv4View, Ipv6View, TcpView, UdpView, IcmpView, ArpView), which
+ * expose every field through primitive getters. The *_head functions below are just the text dump built on top of
+ * them. Which of them runs is looked up in the Dissectors tables, by EtherType after the Ethernet header and any VLAN
+ * tags, then by IP protocol after the IPv4 or IPv6 header.
+ *
+ * DNS messages (port 53) and HTTP/1.x request and status lines are decoded from the TCP and UDP payloads through
+ * DnsView and HttpView, lazily: the views only read the bytes a getter asks for, and names, hosts and URLs are
+ * printed straight from the packet, never copied into Strings.
+ *
+ * With --threads N the capture is decoded by a pool of N workers (see ParallelAnalyzer); the output is identical to
+ * the single threaded run and keeps the packet order of the capture.
+ *
+ * Several captures, directories of captures or glob patterns are decoded as a batch (BatchAnalyzer): side by side,
+ * one file per worker, with the output in file order and the flows and top talkers of the files merged, or with
+ * --merge as one stream in timestamp order.
+ *
+ * All text goes through TextOutput, which renders into a reusable buffer and writes it out in large blocks.
+ * --verbosity summary prints one line per packet, --verbosity headers skips the payload dumps.
+ *
+ * --filter EXPR compiles a tcpdump style expression (PacketFilter) that runs on the raw bytes of each frame before
+ * anything is decoded; frames that fail it are skipped without being printed or passed on.
+ *
+ * --defrag puts fragmented IPv4 datagrams back together first (FragmentReassembler): fragments are listed as they
+ * arrive and the whole datagram is decoded, filtered and passed on with the record of its last fragment. Without it
+ * fragments after the first are not decoded past the IP header.
+ *
+ * Stateful analysis runs in PacketStages fed with every packet in capture order. --flows adds the flow table
+ * (FlowTable), which prints one line per TCP/UDP conversation; with --verbosity none that is all that is printed.
+ * --streams DIR adds the TCP reassembly (StreamReassembler), which writes each direction of every connection to a
+ * file in DIR. --top N adds the heavy hitter lists (TopTalkers), kept in fixed size sketches.
+ * --windows FILE writes per window counters of capture time (WindowStats), tumbling and sliding, as JSON lines.
+ * --detect RULES prints alerts on floods, scans, ARP spoofing, TTL changes and fragment overlaps (AnomalyDetector).
+ *
+ * A path of "-" (stdin) or of a named pipe is live input, Eg. tcpdump -w - piped in: a thread reads the records into
+ * a fixed size ring buffer (PacketRing) and the decoders consume them from it, so memory stays bounded however far
+ * they fall behind. By default the reader then waits, pushing back on the pipe; with --drop it discards and counts
+ * records instead. Output is flushed whenever the decoders have caught up with the input.
+ *
+ * --metrics FILE and --metrics-port N export counters per EtherType, IP protocol, TCP flags and port, malformed and
+ * truncated frame counts and per layer decode latencies while the analyzer runs (see Metrics).
+ *
+ * --checksums verifies the IPv4, TCP, UDP and ICMP checksums of every packet (see Checksum): each checksum printed is
+ * followed by whether it is correct, summary lines flag the wrong ones, and the run ends with a count per protocol.
+ *
+ * --columns FILE writes the header fields of every packet to a compact columnar file (ColumnarExport) for querying
+ * later; given that file as input, pktanalyzer prints it back as CSV.
+ *
+ * --index writes an index next to a capture (PacketIndex). --packets, --from and --to pick a range of packets or of
+ * time, and with an up to date index they and --filter only read the blocks of the capture that can match.
+ *
+ * --write FILE copies the selected frames to a new pcap or pcapng capture instead of decoding them (CaptureWriter),
+ * Eg. to carve a time range or a sample (PacketSampler: --sample, --sample-flows) out of a large capture, with
+ * --snaplen to cut off the payloads. The capture is mapped and the frames go from the mapping to the file in
+ * gathering writes, never copied on the heap.
+ *
+ * Usage: java pktanalyzer [options] <packet-name>...
  * Eg: java pktanalyzer arprequest.bin
+ *     java pktanalyzer --mmap capture.pcap
+ *     java pktanalyzer --threads 32 capture.pcap
+ *     java pktanalyzer --flows --top 10 --verbosity none captures/
+ *     java pktanalyzer --merge --verbosity summary "captures/eth0-*.pcap"
+ *     java pktanalyzer --verbosity summary capture.pcap
+ *     java pktanalyzer --filter "tcp and port 443" capture.pcap
+ *     java pktanalyzer --defrag --filter "udp port 53" capture.pcap
+ *     java pktanalyzer --flows --verbosity none capture.pcap
+ *     java pktanalyzer --streams streams/ --verbosity none capture.pcap
+ *     tcpdump -i eth0 -U -w - | java pktanalyzer --verbosity summary -
+ *     java pktanalyzer --verbosity none --metrics metrics.json capture.pcap
+ *     java pktanalyzer --checksums --verbosity summary capture.pcap
+ *     java pktanalyzer --verbosity none --columns capture.cols capture.pcap
+ *     java pktanalyzer capture.cols > capture.csv
+ *     java pktanalyzer --index capture.pcap
+ *     java pktanalyzer --from 14:02 --to 14:05 --filter "host 10.0.0.2" capture.pcap
+ *     java pktanalyzer --from 14:02 --to 14:05 --sample-flows 100 --snaplen 96 --write sample.pcapng capture.pcap
  *
  * @author Nishi Parameshwara
  *
@@ -23,26 +113,824 @@ public class pktanalyzer {
 
     /**
      * The main function
-     * @param args  Command line arguments (ignored)
+     * @param args  Command line arguments: options followed by the file path
      * @throws IOException If reading/writing/searching operation fails
      */
     public static void main(String[] args) throws IOException {
-        String bin_file = readfile(args);
-        //Reads binary file as bytes
-        byte[] fileContents =  Files.readAllBytes(Paths.get(bin_file));
-        System.out.println("Packet size: " + fileContents.length + " bytes");
-        //Set size for Ethernet Header
-        byte[] ethernet = new byte[14];
-        //Set size for IP Frame i.e. Header (20 bytes) + Data
-        byte[] ip = new byte[fileContents.length - 14];
+        Options options = null;
+        List<Path> batch = null;
+        try {
+            options = Options.parse(args);
+            //Several captures, directories or glob patterns are decoded as a batch
+            batch = BatchAnalyzer.expand(options);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.print(Options.usage());
+            System.exit(1);
+        }
+        String bin_file = batch == null ? readfile(options.files.toArray(new String[0])) : null;
+        //Text is rendered into large blocks and written to stdout directly, without going through System.out
+        TextOutput out = new TextOutput(new FileOutputStream(FileDescriptor.out), TextOutput.DEFAULT_BLOCK_SIZE,
+                options.verbosity);
+        Metrics metrics = metrics(options);
+        boolean closed = false;
+        try {
+            if (batch != null) {
+                new BatchAnalyzer(options, metrics).run(batch, out);
+            } else {
+                analyze(options, bin_file, out, metrics);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            if (!brokenpipe(e)) {
+                throw e;
+            }
+            closed = true;
+        } finally {
+            if (metrics != null) {
+                //Last export with the final counts; also stops the HTTP server thread
+                metrics.close();
+            }
+        }
+        if (closed) {
+            //The reader of stdout went away, Eg. pktanalyzer big.pcap | head: stop quietly, as the other tools of a
+            //pipeline do, without waiting for the worker threads
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Function to check whether an error comes from writing to a pipe whose reader has exited.
+     * @param e Error thrown while decoding
+     * @return true if e or one of its causes is a broken pipe
+     */
+    static boolean brokenpipe(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException && cause.getMessage() != null
+                    && cause.getMessage().contains("Broken pipe")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Function to decode the input file: a capture record by record, or a single raw frame.
+     * @param options Parsed command line
+     * @param bin_file Path of the input, "-" for stdin
+     * @param out Writer the text is rendered into
+     * @param metrics Metrics of the run, null if not collected
+     * @throws IOException If reading/writing/searching operation fails
+     */
+    static void analyze(Options options, String bin_file, TextOutput out, Metrics metrics) throws IOException {
+        Path path = Paths.get(bin_file);
+        boolean live = islive(bin_file, path);
+        if (!live && ColumnarExport.isColumnar(path)) {
+            //A file written by --columns is printed back as CSV
+            ColumnarExport.csv(path, out);
+            out.flush();
+            return;
+        }
+        if (options.index) {
+            if (live || !PcapReader.isCapture(path)) {
+                throw new IllegalArgumentException("--index needs a pcap or pcapng file");
+            }
+            PacketIndex.build(path, out);
+            out.flush();
+            return;
+        }
+        if (options.write != null) {
+            if (!live && !PcapReader.isCapture(path)) {
+                throw new IllegalArgumentException("--write needs a pcap or pcapng file");
+            }
+            if (live) {
+                ReadableByteChannel channel = bin_file.equals("-") ? new FileInputStream(FileDescriptor.in).getChannel()
+                        : FileChannel.open(path, StandardOpenOption.READ);
+                PacketRing ring = new PacketRing(new PcapReader(channel), options.ringSize, options.drop);
+                //The ring reuses its slots, so every frame is written before the next is read
+                writecapture(options, ring, false, out);
+                ring.report(out);
+            } else {
+                PcapReader reader = PcapReader.map(path);
+                PacketIndex.Selection selection = select(options, path, reader, out);
+                writecapture(options, selection != null ? selection : reader, true, out);
+                if (selection != null) {
+                    selection.report(out);
+                }
+            }
+            out.flush();
+            return;
+        }
+        List<PacketStage> stages = stages(options, out);
+        if (live || PcapReader.isCapture(path)) {
+            FragmentReassembler defrag = options.defrag ? new FragmentReassembler(options.fragmentMemory,
+                    FragmentReassembler.DEFAULT_TIMEOUT) : null;
+            PacketRing ring = null;
+            PacketIndex.Selection selection = null;
+            PacketSource reader;
+            if (live) {
+                ReadableByteChannel channel = bin_file.equals("-") ? new FileInputStream(FileDescriptor.in).getChannel()
+                        : FileChannel.open(path, StandardOpenOption.READ);
+                reader = ring = new PacketRing(new PcapReader(channel), options.ringSize, options.drop);
+            } else {
+                reader = options.mmap ? PcapReader.map(path) : PcapReader.open(path);
+                if (options.packets != null || options.from != null || options.to != null
+                        || options.filter != null) {
+                    selection = select(options, path, (PcapReader) reader, out);
+                    if (selection != null) {
+                        reader = selection;
+                    }
+                }
+            }
+            decode(options, reader, out, defrag, stages, metrics);
+            if (ring != null) {
+                ring.report(out);
+            }
+            if (selection != null) {
+                selection.report(out);
+            }
+            if (metrics != null) {
+                metrics.report(out);
+            }
+            out.flush();
+            return;
+        }
+        ByteBuffer fileContents;
+        if (options.mmap) {
+            //Maps the binary file into memory
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                fileContents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        } else {
+            //Reads binary file as bytes
+            fileContents = ByteBuffer.wrap(Files.readAllBytes(path));
+        }
+        PacketView packet = new PacketView().wrap(fileContents, 0, fileContents.limit());
+        if (options.filter != null && !options.filter.matches(fileContents, 0, fileContents.limit())) {
+            finish(stages);
+            out.flush();
+            return;
+        }
+        Metrics.Stripe stripe = null;
+        if (metrics != null) {
+            stripe = metrics.acquire();
+            count_record(out, packet, PcapReader.LINKTYPE_ETHERNET, stripe);
+        }
+        if (options.verbosity != TextOutput.Verbosity.NONE) {
+            out.print("Packet size: ").print(fileContents.limit()).println(" bytes");
+            decode_frame(out, packet, stripe);
+        }
+        if (stripe != null) {
+            stripe.done();
+        }
+        for (PacketStage stage : stages) {
+            stage.accept(packet);
+        }
+        finish(stages);
+        if (metrics != null) {
+            metrics.report(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Function to narrow a capture down to the packets selected by --packets, --from and --to, using its index when
+     * there is an up to date one to skip the parts that cannot hold them or cannot match the filter.
+     * @param options Parsed options
+     * @param path Path of the capture
+     * @param reader Reader over the capture
+     * @param out Writer notes are printed to
+     * @return Source of the selected records, or null to read the whole capture
+     * @throws IOException If the index cannot be read
+     */
+    static PacketIndex.Selection select(Options options, Path path, PcapReader reader, TextOutput out)
+            throws IOException {
+        boolean ranges = options.packets != null || options.from != null || options.to != null;
+        //Fragments of a datagram can span blocks the filter alone would skip, so only the ranges prune then
+        PacketFilter filter = options.defrag ? null : options.filter;
+        if (!ranges && filter == null) {
+            return null;
+        }
+        PacketIndex index = PacketIndex.open(path);
+        if (index == null) {
+            if (Files.exists(PacketIndex.sidecar(path))) {
+                out.println("Index is out of date, reading the whole capture; rebuild it with --index");
+            }
+            if (!ranges) {
+                return null;
+            }
+        }
+        return new PacketIndex.Selection(reader, index, filter, options.packets, options.from, options.to);
+    }
+
+    /**
+     * Function to set up the metrics export and the checksum checks selected on the command line.
+     * @param options Parsed command line
+     * @return Metrics to collect, null if neither was asked for
+     * @throws IOException If the HTTP port cannot be bound
+     */
+    static Metrics metrics(Options options) throws IOException {
+        if (options.metricsFile == null && options.metricsPort == 0 && !options.checksums) {
+            return null;
+        }
+        Metrics metrics = new Metrics(options.checksums);
+        if (options.metricsFile != null) {
+            metrics.exportTo(Paths.get(options.metricsFile), options.metricsInterval);
+        }
+        if (options.metricsPort != 0) {
+            metrics.serve(options.metricsPort);
+        }
+        return metrics;
+    }
+
+    /**
+     * Function to create the stages selected on the command line.
+     * @param options Parsed command line
+     * @param out Writer the stages report to
+     * @return Stages, in the order they see each packet
+     * @throws IOException If the stream directory cannot be created
+     */
+    static List<PacketStage> stages(Options options, TextOutput out) throws IOException {
+        List<PacketStage> stages = new ArrayList<>();
+        if (options.flows) {
+            stages.add(new FlowTable(out, options.flowTimeout, options.maxFlows));
+        }
+        if (options.top > 0) {
+            stages.add(new TopTalkers(out, options.top, options.topCounters));
+        }
+        if (options.detect != null) {
+            stages.add(new AnomalyDetector(out, options.detect));
+        }
+        if (options.windows != null) {
+            stages.add(new WindowStats(new FileWindowSink(Paths.get(options.windows)), options.window,
+                    options.windowSpan));
+        }
+        if (options.streams != null) {
+            stages.add(new StreamReassembler(out, new FileStreamSink(Paths.get(options.streams)),
+                    options.streamMemory, StreamReassembler.DEFAULT_STALL_TIMEOUT, options.flowTimeout));
+        }
+        if (options.columns != null) {
+            stages.add(new ColumnarExport(out, Paths.get(options.columns)));
+        }
+        return stages;
+    }
+
+    /**
+     * Function to decode a capture, on the worker pool with --threads, then let the stages and the fragment
+     * reassembly report.
+     * @param options Parsed command line
+     * @param reader Source positioned at the start of the capture, closed when done
+     * @param out Writer the text is rendered into
+     * @param defrag Reassembler of IPv4 fragments, null to decode fragments one by one
+     * @param stages Stages fed with every Ethernet frame
+     * @param metrics Metrics of the run, null if not collected
+     * @throws IOException If reading the capture fails
+     */
+    static void decode(Options options, PacketSource reader, TextOutput out, FragmentReassembler defrag,
+                       List<PacketStage> stages, Metrics metrics) throws IOException {
+        if (options.threads > 0) {
+            new ParallelAnalyzer(options.threads, options.batch, options.executor, options.verbosity,
+                    options.filter, defrag, metrics).run(reader, out, stages);
+        } else {
+            Metrics.Stripe stripe = metrics != null ? metrics.acquire() : null;
+            readcapture(reader, out, options.filter, defrag, stages, stripe);
+        }
+        finish(stages);
+        if (defrag != null) {
+            defrag.report(out);
+        }
+    }
+
+    /**
+     * Function to copy the frames of a capture that pass --filter and the sampling to the --write file, without
+     * decoding them.
+     * @param options Parsed command line
+     * @param reader Source positioned at the start of the capture, closed when done
+     * @param mapped true if the frames of the source stay in place after it moves on, so they can be batched
+     * @param out Writer the totals are printed to
+     * @throws IOException If reading the capture or writing the file fails
+     */
+    static void writecapture(Options options, PacketSource reader, boolean mapped, TextOutput out) throws IOException {
+        Path path = Paths.get(options.write);
+        PacketSampler sampler = options.sample > 1 || options.sampleFlows > 1
+                ? new PacketSampler(options.sample, options.sampleFlows) : null;
+        PacketView packet = new PacketView();
+        try (reader; CaptureWriter writer = new CaptureWriter(path, options.snaplen, mapped)) {
+            while (true) {
+                if (!reader.ready()) {
+                    //Live input drained: let the frames out before waiting for more
+                    writer.flush();
+                }
+                if (!reader.next()) {
+                    break;
+                }
+                if (!accepted(reader, options.filter)) {
+                    continue;
+                }
+                if (sampler != null) {
+                    packet.wrap(reader.buffer(), reader.frameOffset(), reader.captureLength(), reader.timestamp());
+                    if (!sampler.keep(packet)) {
+                        continue;
+                    }
+                }
+                writer.write(reader);
+            }
+            writer.flush();
+            writer.report(out, path);
+            if (reader.truncated()) {
+                out.println("Capture ends in the middle of a record, last record ignored");
+            }
+        }
+    }
+
+    /**
+     * Function to let every stage print its report once the input is exhausted.
+     * @param stages Stages fed during the run
+     */
+    static void finish(List<PacketStage> stages) {
+        for (PacketStage stage : stages) {
+            stage.finish();
+        }
+    }
+
+    /**
+     * Function to stream every frame of a pcap/pcapng capture through the decoders.
+     * @param reader Reader positioned at the start of the capture
+     * @param out Writer the text is rendered into
+     * @param filter Filter frames must match to be decoded, null for every frame
+     * @param defrag Reassembler of IPv4 fragments, null to decode fragments one by one
+     * @param stages Stages fed with every Ethernet frame after it is printed
+     * @param metrics Counters of the decoder, null if not collected
+     * @throws IOException If reading the capture fails
+     */
+    static void readcapture(PacketSource reader, TextOutput out, PacketFilter filter, FragmentReassembler defrag,
+                            List<PacketStage> stages, Metrics.Stripe metrics) throws IOException {
+        try (reader) {
+            //One view is re-wrapped for every frame
+            PacketView packet = new PacketView();
+            while (true) {
+                if (!reader.ready()) {
+                    //Live input drained: let the text out before waiting for more
+                    out.flush();
+                }
+                if (!reader.next()) {
+                    break;
+                }
+                if (defrag != null && isfragment(reader, packet)) {
+                    PacketView datagram = defrag.add(packet);
+                    if (datagram == null) {
+                        //The filter can only judge the whole datagram
+                        if (filter == null) {
+                            fragment_record(out, packet, reader.packetNumber(), metrics);
+                        }
+                    } else if (filter == null || filter.matches(datagram.buffer(), datagram.offset(),
+                            datagram.length())) {
+                        reassembled_record(out, datagram, reader.packetNumber(), reader.captureLength(),
+                                defrag.fragments(), metrics);
+                        feed(stages, datagram);
+                    }
+                    continue;
+                }
+                if (!accepted(reader, filter)) {
+                    continue;
+                }
+                packet.wrap(reader.buffer(), reader.frameOffset(), reader.captureLength(), reader.timestamp());
+                decode_record(out, packet, reader.packetNumber(), reader.linkType(), metrics);
+                if (reader.linkType() == PcapReader.LINKTYPE_ETHERNET) {
+                    feed(stages, packet);
+                }
+            }
+            if (reader.truncated()) {
+                out.println("Capture ends in the middle of a record, last record ignored");
+            }
+        }
+    }
+
+    /**
+     * Function to hand one packet to every stage.
+     * @param stages Stages, in order
+     * @param packet View of the frame
+     */
+    static void feed(List<PacketStage> stages, PacketView packet) {
+        for (PacketStage stage : stages) {
+            stage.accept(packet);
+        }
+    }
+
+    /**
+     * Function to check whether the current record of a capture is an IPv4 fragment.
+     * @param reader Reader positioned on a record
+     * @param packet View wrapped around the record by this call
+     * @return true if the record is an Ethernet frame holding an IPv4 fragment
+     */
+    static boolean isfragment(PacketSource reader, PacketView packet) {
+        packet.wrap(reader.buffer(), reader.frameOffset(), reader.captureLength(), reader.timestamp());
+        return reader.linkType() == PcapReader.LINKTYPE_ETHERNET && FragmentReassembler.isFragment(packet);
+    }
+
+    /**
+     * Function to print a fragment held until its datagram is complete.
+     * @param out Writer the text is rendered into
+     * @param packet View of the frame holding the fragment
+     * @param number 1-based number of the packet in the capture
+     * @param metrics Counters of the decoder, null if not collected
+     */
+    static void fragment_record(TextOutput out, PacketView packet, long number, Metrics.Stripe metrics) {
+        if (metrics != null) {
+            metrics.count(packet, PcapReader.LINKTYPE_ETHERNET);
+            //A fragment is never printed header by header
+            decode_views(packet, metrics);
+        }
+        if (out.verbosity() == TextOutput.Verbosity.NONE) {
+            if (metrics != null) {
+                metrics.done();
+            }
+            return;
+        }
+        Ipv4View ip = packet.ipv4();
+        out.print("Packet ").print(number).print(" size: ").print(packet.length()).print(" bytes")
+                .print(out.verbosity() == TextOutput.Verbosity.SUMMARY ? " " : "\n").print("IP fragment ")
+                .ipv4(ip.source()).print(" -> ").ipv4(ip.destination()).print(" protocol ").print(ip.protocol())
+                .print(" id ").print(ip.identification()).print(" offset ").print(ip.fragmentOffset() * 8)
+                .print(" length ").print(ip.payloadLength()).print(", held for reassembly");
+        checksum_flags(out, metrics != null ? metrics.checks() : 0, ip);
+        out.println();
+        if (metrics != null) {
+            metrics.done();
+        }
+    }
+
+    /**
+     * Function to print a datagram rebuilt from its fragments, under the record of the fragment that completed it.
+     * @param out Writer the text is rendered into
+     * @param datagram View of the rebuilt frame
+     * @param number 1-based number of the record of the last fragment
+     * @param recordLength Size of that record
+     * @param fragments Number of fragments the datagram was rebuilt from
+     * @param metrics Counters of the decoder, null if not collected
+     */
+    static void reassembled_record(TextOutput out, PacketView datagram, long number, int recordLength,
+                                   int fragments, Metrics.Stripe metrics) {
+        if (metrics != null) {
+            count_record(out, datagram, PcapReader.LINKTYPE_ETHERNET, metrics);
+        }
+        if (out.verbosity() == TextOutput.Verbosity.NONE) {
+            if (metrics != null) {
+                metrics.done();
+            }
+            return;
+        }
+        out.print("Packet ").print(number).print(" size: ").print(recordLength).print(" bytes")
+                .print(out.verbosity() == TextOutput.Verbosity.SUMMARY ? " " : "\n")
+                .print("Reassembled IPv4 datagram of ").print(datagram.ipv4().totalLength()).print(" bytes from ")
+                .print(fragments).print(" fragments");
+        if (out.verbosity() == TextOutput.Verbosity.SUMMARY) {
+            summary(out, datagram, metrics != null ? metrics.checks() : 0);
+        } else {
+            out.println();
+            try {
+                decode_frame(out, datagram, metrics);
+            } catch (IndexOutOfBoundsException e) {
+                malformed(out, e);
+            }
+        }
+        if (metrics != null) {
+            metrics.done();
+        }
+    }
+
+    /**
+     * Function to count a record in the metrics and start timing its decode. A record that is not printed header by
+     * header (verbosity none or summary) has its layers timed here instead, as their views read them.
+     * @param out Writer the record is printed to
+     * @param packet View of the frame
+     * @param linkType Link type of the frame
+     * @param metrics Counters of the decoder
+     */
+    static void count_record(TextOutput out, PacketView packet, int linkType, Metrics.Stripe metrics) {
+        metrics.count(packet, linkType);
+        if (linkType == PcapReader.LINKTYPE_ETHERNET && (out.verbosity() == TextOutput.Verbosity.NONE
+                || out.verbosity() == TextOutput.Verbosity.SUMMARY)) {
+            decode_views(packet, metrics);
+        }
+    }
+
+    /**
+     * Function to read the headers of a frame through their views, one layer at a time, and time each layer the way
+     * decode_frame does when it prints them.
+     * @param packet View of the frame
+     * @param metrics Counters of the decoder
+     */
+    static void decode_views(PacketView packet, Metrics.Stripe metrics) {
+        boolean ethernet = packet.isEthernet();
+        metrics.lap(Metrics.ETHERNET);
+        if (!ethernet) {
+            return;
+        }
+        if (packet.isIpv4()) {
+            Ipv4View ip = packet.ipv4();
+            metrics.lap(Metrics.NETWORK);
+            if (ip.fragmentOffset() != 0) {
+                //Later fragments have no transport header
+                return;
+            }
+            if (ip.isTcp()) {
+                ip.tcp().flags();
+            } else if (ip.isUdp()) {
+                ip.udp().destinationPort();
+            } else if (ip.isIcmp()) {
+                ip.icmp().type();
+            }
+            metrics.lap(Metrics.TRANSPORT);
+        } else if (packet.etherType() == PacketView.ETHERTYPE_IPV6
+                && packet.ipv6(PacketView.ETHERNET_HEADER_LENGTH).isValid()) {
+            Ipv6View ip = packet.ipv6(PacketView.ETHERNET_HEADER_LENGTH);
+            int protocol = ip.protocol();
+            metrics.lap(Metrics.NETWORK);
+            if (ip.fragmentOffset() != 0) {
+                return;
+            }
+            if (protocol == Ipv4View.PROTOCOL_TCP && ip.upperLength() >= TcpView.MIN_HEADER_LENGTH) {
+                ip.tcp().flags();
+            } else if (protocol == Ipv4View.PROTOCOL_UDP && ip.upperLength() >= UdpView.HEADER_LENGTH) {
+                ip.udp().destinationPort();
+            }
+            metrics.lap(Metrics.TRANSPORT);
+        } else {
+            if (packet.isArp()) {
+                packet.arp().opcode();
+            }
+            metrics.lap(Metrics.NETWORK);
+        }
+    }
+
+    /**
+     * Function to report a frame whose decoding ran past its captured bytes.
+     * @param out Writer the text is rendered into
+     * @param e Exception thrown by the decoder, with or without a message
+     */
+    static void malformed(TextOutput out, IndexOutOfBoundsException e) {
+        out.print("Malformed packet: ").println(e.getMessage() != null ? e.getMessage()
+                : "a header runs past the captured bytes");
+    }
+
+    /**
+     * Function to run the filter on the current record of a capture, before any of it is decoded.
+     * @param reader Reader positioned on a record
+     * @param filter Filter, null to accept everything
+     * @return true if the record is to be decoded
+     */
+    static boolean accepted(PacketSource reader, PacketFilter filter) {
+        return filter == null || reader.linkType() == PcapReader.LINKTYPE_ETHERNET
+                && filter.matches(reader.buffer(), reader.frameOffset(), reader.captureLength());
+    }
+
+    /**
+     * Function to print one record of a capture: its number and size followed by its headers, or a single summary
+     * line at summary verbosity. Nothing is printed at verbosity none.
+     * @param out Writer the text is rendered into
+     * @param packet View of the frame
+     * @param number 1-based number of the packet in the capture
+     * @param linkType Link type of the frame
+     */
+    static void decode_record(TextOutput out, PacketView packet, long number, int linkType,
+                              Metrics.Stripe metrics) {
+        if (metrics != null) {
+            count_record(out, packet, linkType, metrics);
+        }
+        if (out.verbosity() == TextOutput.Verbosity.NONE) {
+            if (metrics != null) {
+                metrics.done();
+            }
+            return;
+        }
+        out.print("Packet ").print(number).print(" size: ").print(packet.length()).print(" bytes");
+        if (linkType != PcapReader.LINKTYPE_ETHERNET) {
+            out.print("\nUnsupported link type ").print(linkType).println(", frame skipped");
+        } else if (out.verbosity() == TextOutput.Verbosity.SUMMARY) {
+            summary(out, packet, metrics != null ? metrics.checks() : 0);
+        } else {
+            out.println();
+            try {
+                decode_frame(out, packet, metrics);
+            } catch (IndexOutOfBoundsException e) {
+                //A single short or corrupt frame must not end the whole capture
+                malformed(out, e);
+            }
+        }
+        if (metrics != null) {
+            metrics.done();
+        }
+    }
+
+    /**
+     * Function to finish the line of a record at summary verbosity: protocol, addresses and ports, then the
+     * checksums found wrong.
+     * @param out Writer the text is rendered into
+     * @param packet View of the frame
+     */
+    static void summary(TextOutput out, PacketView packet, int checks) {
+        if (packet.isIpv4()) {
+            Ipv4View ip = packet.ipv4();
+            if (ip.isTcp()) {
+                TcpView tcp = ip.tcp();
+                out.print(" TCP ").ipv4(ip.source()).print(':').print(tcp.sourcePort()).print(" -> ")
+                        .ipv4(ip.destination()).print(':').print(tcp.destinationPort()).print(" flags 0x")
+                        .hex(tcp.flags(), 2).print(" seq ").print(tcp.sequence()).print(" len ")
+                        .print(tcp.payloadLength());
+                summary_application(out, tcp);
+            } else if (ip.isUdp()) {
+                UdpView udp = ip.udp();
+                out.print(" UDP ").ipv4(ip.source()).print(':').print(udp.sourcePort()).print(" -> ")
+                        .ipv4(ip.destination()).print(':').print(udp.destinationPort()).print(" len ")
+                        .print(udp.payloadLength());
+                if (udp.isDns() && udp.dns().isValid()) {
+                    summary_dns(out, udp.dns());
+                }
+            } else if (ip.isIcmp()) {
+                out.print(" ICMP ").ipv4(ip.source()).print(" -> ").ipv4(ip.destination()).print(" type ")
+                        .print(ip.icmp().type()).print(" code ").print(ip.icmp().code());
+            } else {
+                out.print(" IP ").ipv4(ip.source()).print(" -> ").ipv4(ip.destination()).print(" protocol ")
+                        .print(ip.protocol());
+            }
+        } else if (packet.isArp()) {
+            ArpView arp = packet.arp();
+            if (arp.opcode() == ArpView.REQUEST) {
+                out.print(" ARP Request who-has ").ipv4(arp.targetIp()).print(" tell ").ipv4(arp.senderIp());
+            } else {
+                out.print(" ARP Response ").ipv4(arp.senderIp()).print(" is-at ").mac(arp.senderMac());
+            }
+        } else if (packet.isEthernet() && packet.etherType() == PacketView.ETHERTYPE_IPV6
+                && packet.ipv6(PacketView.ETHERNET_HEADER_LENGTH).isValid()) {
+            summary_ipv6(out, packet.ipv6(PacketView.ETHERNET_HEADER_LENGTH));
+        } else if ((packet.etherType() == PacketView.ETHERTYPE_VLAN || packet.etherType() == PacketView.ETHERTYPE_QINQ)
+                && packet.length() >= PacketView.ETHERNET_HEADER_LENGTH + 4) {
+            out.print(" VLAN ").print(packet.u16(PacketView.ETHERNET_HEADER_LENGTH) & 0xFFF).print(" EtherType 0x")
+                    .hex(packet.u16(PacketView.ETHERNET_HEADER_LENGTH + 2), 4);
+        } else if (packet.isEthernet()) {
+            out.print(" EtherType 0x").hex(packet.etherType(), 4);
+        } else {
+            out.print(" Malformed");
+        }
+        if (checks != 0) {
+            checksum_flags(out, checks, packet.ipv4());
+        }
+        out.println();
+    }
+
+    /**
+     * Function to finish the summary line of an IPv6 packet. Addresses followed by a port are put in brackets.
+     * @param out Writer the text is rendered into
+     * @param ip View of the IPv6 header
+     */
+    static void summary_ipv6(TextOutput out, Ipv6View ip) {
+        boolean first = ip.fragmentOffset() == 0;
+        if (first && ip.protocol() == Ipv4View.PROTOCOL_TCP && ip.upperLength() >= TcpView.MIN_HEADER_LENGTH) {
+            TcpView tcp = ip.tcp();
+            out.print(" TCP [").ipv6(ip.sourceHigh(), ip.sourceLow()).print("]:").print(tcp.sourcePort())
+                    .print(" -> [").ipv6(ip.destinationHigh(), ip.destinationLow()).print("]:")
+                    .print(tcp.destinationPort()).print(" flags 0x").hex(tcp.flags(), 2).print(" seq ")
+                    .print(tcp.sequence()).print(" len ").print(tcp.payloadLength());
+            summary_application(out, tcp);
+        } else if (first && ip.protocol() == Ipv4View.PROTOCOL_UDP && ip.upperLength() >= UdpView.HEADER_LENGTH) {
+            UdpView udp = ip.udp();
+            out.print(" UDP [").ipv6(ip.sourceHigh(), ip.sourceLow()).print("]:").print(udp.sourcePort())
+                    .print(" -> [").ipv6(ip.destinationHigh(), ip.destinationLow()).print("]:")
+                    .print(udp.destinationPort()).print(" len ").print(udp.payloadLength());
+            if (udp.isDns() && udp.dns().isValid()) {
+                summary_dns(out, udp.dns());
+            }
+        } else if (first && ip.protocol() == Ipv6View.PROTOCOL_ICMPV6 && ip.upperLength() >= IcmpView.HEADER_LENGTH) {
+            out.print(" ICMPv6 ").ipv6(ip.sourceHigh(), ip.sourceLow()).print(" -> ")
+                    .ipv6(ip.destinationHigh(), ip.destinationLow()).print(" type ").print(ip.icmp().type())
+                    .print(" code ").print(ip.icmp().code());
+        } else {
+            out.print(" IPv6 ").ipv6(ip.sourceHigh(), ip.sourceLow()).print(" -> ")
+                    .ipv6(ip.destinationHigh(), ip.destinationLow()).print(" protocol ").print(ip.protocol());
+        }
+    }
+
+    /**
+     * Function to add the DNS question or the HTTP start line carried by a TCP segment to its summary line.
+     * @param out Writer the text is rendered into
+     * @param tcp View of the TCP segment
+     */
+    static void summary_application(TextOutput out, TcpView tcp) {
+        if (tcp.isDns() && tcp.dns().isValid()) {
+            summary_dns(out, tcp.dns());
+        } else if (tcp.payloadLength() > 0 && tcp.http().kind() != HttpView.NONE) {
+            HttpView http = tcp.http();
+            if (http.kind() == HttpView.REQUEST) {
+                //Method, then the host and target as they would be written in a URL
+                out.print(" HTTP ").ascii(http.buffer(), http.offset(), http.methodLength()).print(' ');
+                int host = http.header(HttpView.HOST);
+                if (host >= 0) {
+                    out.ascii(http.buffer(), http.offset() + host, http.lineLength(host));
+                }
+                out.ascii(http.buffer(), http.offset() + http.targetIndex(), http.targetLength());
+            } else {
+                out.print(" HTTP ").print(http.statusCode());
+            }
+        }
+    }
 
+    /**
+     * Function to add the first question of a DNS message, and for a response the number of answers and any error,
+     * to its summary line.
+     * @param out Writer the text is rendered into
+     * @param dns View of the DNS message
+     */
+    static void summary_dns(TextOutput out, DnsView dns) {
+        out.print(dns.isResponse() ? " DNS response 0x" : " DNS query 0x").hex(dns.id(), 4);
+        int question = dns.questionCount() > 0 ? dns.record(0) : -1;
+        if (question >= 0 && dns.type(question) >= 0) {
+            out.print(' ');
+            dns_type(out, dns.type(question));
+            out.print(' ');
+            dns.name(out, question);
+        }
+        if (dns.isResponse()) {
+            out.print(" answers ").print(dns.answerCount());
+            if (dns.responseCode() != 0) {
+                out.print(" rcode ").print(dns.responseCode());
+            }
+        }
+    }
+
+    /**
+     * Function to flag the wrong checksums of a packet at the end of its summary line.
+     * @param out Writer the text is rendered into
+     * @param checks Checksum flags of the packet (see Checksum.verify), 0 if not verified
+     * @param ip View of its IPv4 header
+     */
+    static void checksum_flags(TextOutput out, int checks, Ipv4View ip) {
+        if ((checks & Checksum.IP_BAD) != 0) {
+            out.print(" [bad IP checksum]");
+        }
+        if ((checks & Checksum.TRANSPORT_BAD) != 0) {
+            out.print(ip.protocol() == Ipv4View.PROTOCOL_TCP ? " [bad TCP checksum]"
+                    : ip.protocol() == Ipv4View.PROTOCOL_UDP ? " [bad UDP checksum]" : " [bad ICMP checksum]");
+        }
+    }
+
+    /**
+     * Function to print what the check of a checksum found, after the checksum itself.
+     * @param out Writer the text is rendered into
+     * @param status Checksum.NOT_VERIFIED (nothing printed), UNVERIFIED, CORRECT or the value the field should hold
+     */
+    static void checksum_status(TextOutput out, int status) {
+        if (status == Checksum.UNVERIFIED) {
+            out.print(" (unverified)");
+        } else if (status == Checksum.CORRECT) {
+            out.print(" (correct)");
+        } else if (status >= 0) {
+            out.print(" (incorrect, should be 0x").hex(status, 4).print(')');
+        }
+    }
+
+    /**
+     * Function to print every header of one Ethernet frame.
+     * @param out Writer the text is rendered into
+     * @param packet View of the frame
+     * @param metrics Counters the time spent on each layer goes to, null if not collected. Also holds the checksum
+     *                flags of the frame.
+     */
+    static void decode_frame(TextOutput out, PacketView packet, Metrics.Stripe metrics) {
+        int checks = metrics != null ? metrics.checks() : 0;
         //ethernet header
-        System.arraycopy(fileContents, 0, ethernet, 0, 14);
-        ethernet_head(ethernet);
+        check(packet.length(), PacketView.ETHERNET_HEADER_LENGTH, "Ethernet");
+        ethernet_head(out, packet);
+        if (metrics != null) {
+            metrics.lap(Metrics.ETHERNET);
+        }
 
-        //ip header (20 bytes) + data
-        System.arraycopy(fileContents, 14, ip, 0, fileContents.length - 14);
-        ip_head(ip);
+        //network header, looked up by EtherType (see Dissectors)
+        long next = Dissectors.etherType(packet.etherType()).dissect(out, packet, PacketView.ETHERNET_HEADER_LENGTH,
+                checks);
+        if (metrics != null) {
+            metrics.lap(Metrics.NETWORK);
+        }
+
+        //transport header, looked up by IP protocol
+        if (next != Dissectors.END) {
+            Dissectors.dissectPayload(out, packet, next, checks);
+            if (metrics != null) {
+                metrics.lap(Metrics.TRANSPORT);
+            }
+        }
+    }
+
+    /**
+     * Function to check whether the input is live: stdin or a named pipe, which can only be read once and never ends
+     * by itself.
+     * @param bin_file Path given on the command line
+     * @param path Same, as a path
+     * @return true for "-" and for pipes, false for regular files
+     * @throws IOException If the file attributes cannot be read
+     */
+    static boolean islive(String bin_file, Path path) throws IOException {
+        return bin_file.equals("-") || Files.exists(path)
+                && Files.readAttributes(path, BasicFileAttributes.class).isOther();
     }
 
     /**
@@ -60,81 +948,82 @@ public class pktanalyzer {
         } else if (args.length == 1) {
             filepath = args[0];
         } else {
-            System.out.println("Usage: java pktanalyzer filepath");
+            System.out.print(Options.usage());
             System.exit(1);
         }
         return filepath;
     }
 
     /**
-     * Function to decode the Ethernet Header from network packet provided by user.
-     * @param argument1 Byte Array containing Ethernet Header
+     * Function to make sure a header fits in the captured bytes. Reading past the frame would otherwise silently
+     * decode the bytes of the next record sharing the buffer.
+     * @param length Number of bytes available
+     * @param needed Number of bytes the header needs
+     * @param layer Name of the header
      */
-     public static void ethernet_head(byte[] argument1) {
-         System.out.println("--------------------------------------------------Ethernet Header-----" +
+    static void check(int length, int needed, String layer) {
+        if (length < needed) {
+            throw new IndexOutOfBoundsException(layer + " header needs " + needed + " bytes, only " + length +
+                    " captured");
+        }
+    }
+
+    /**
+     * Function to print the Ethernet Header of a frame.
+     * @param out Writer the text is rendered into
+     * @param packet View of the frame
+     */
+     public static void ethernet_head(TextOutput out, PacketView packet) {
+         out.println("--------------------------------------------------Ethernet Header-----" +
                  "---------------------------------------------");
-         System.out.print("Destination MAC Address: ");
-         for (int i = 0; i < 6; i++) {
-             //Single Byte Integer value conversion to 2-character Hexadecimal
-             String st = String.format("%02X", argument1[i]);
-             if (i == 5) {
-                 System.out.print(st);
-             } else {
-                 System.out.print(st + ":");
-             }
-         }
+         out.print("Destination MAC Address: ").mac(packet.destinationMac()).println();
+         out.print("Source MAC Address: ").mac(packet.sourceMac()).println();
+         //2-byte Integer value conversion to 4-character Hexadecimal
+         out.print("Ethernet Frame Type: ").hex(packet.etherType(), 4);
+         ethertype_name(out, packet.etherType());
+         out.println();
+     }
 
-         System.out.print("\n");
-         System.out.print("Source MAC Address: ");
-         for (int i = 6; i < 12; i++) {
-             //Single Byte Integer value conversion to 2-character Hexadecimal
-             String st = String.format("%02X", argument1[i]);
-             if (i == 11) {
-                 System.out.print(st);
-             } else {
-                 System.out.print(st + ":");
-             }
-         }
+    /**
+     * Function to print the name of an EtherType after its value, if a dissector is registered for it.
+     * @param out Writer the text is rendered into
+     * @param etherType EtherType
+     */
+    static void ethertype_name(TextOutput out, int etherType) {
+        String name = Dissectors.etherTypeName(etherType);
+        if (name != null) {
+            out.print(" (").print(name).print(')');
+        }
+    }
 
-         System.out.print("\n");
-         System.out.print("Ethernet Frame Type: ");
-         for (int i = 12; i < 14; i++) {
-             //Single Byte Integer value conversion to 2-character Hexadecimal
-             String st = String.format("%02X", argument1[i]);
-             System.out.print(st);
-         }
-         System.out.print(" (IP)");
-         System.out.print("\n");
-     }
+    /**
+     * Function to print an 802.1Q (or 802.1ad) VLAN tag.
+     * @param out Writer the text is rendered into
+     * @param packet View of the frame
+     * @param index Index of the tag control information, right after the EtherType announcing the tag
+     */
+    public static void vlan_head(TextOutput out, PacketView packet, int index) {
+        check(packet.length() - index, 4, "VLAN");
+        int tci = packet.u16(index);
+        out.println("--------------------------------------------------VLAN Tag--------" +
+                "-------------------------------------------------");
+        out.print("Priority: ").print(tci >> 13).println();
+        out.print("Drop Eligible: ").print(tci >> 12 & 1).println();
+        out.print("VLAN ID: ").print(tci & 0xFFF).println();
+        out.print("Ethernet Frame Type: ").hex(packet.u16(index + 2), 4);
+        ethertype_name(out, packet.u16(index + 2));
+        out.println();
+    }
 
     /**
-     * Function to decode the IP Header from network packet provided by user.
-     * @param argument2 Byte Array containing IP Frame i.e. Header + Data
-     */
-     public static void ip_head(byte[] argument2){
-         byte[] header = new byte[argument2.length];
-
-         //integer conversion to convert signed bytes to unsigned bytes.
-         int[] argument3 = new int[argument2.length];
-         //Converting signed bytes to unsigned bytes in an integer with the help of a mask. 2's complement is not required
-         //as Java already uses two’s complement to represent signed numbers (positive and negative). Java does not have
-         //unsigned bytes, so convert the bytes to unsigned bytes in an integer to represent 8 bits within 0-255 and not
-         //-128 to 127. Integer values needs to be displayed.
-         //https://www.therevisionist.org/software-engineering/java/terms/signed-vs-unsigned/
-         for(int i=0; i<argument2.length; i++) {
-             //2's complement code
-             //if(argument2[i]<0){
-                 //System.out.println(argument2[i]);
-                 //argument3[i] = ((argument2[i])^0xff+0x01)&0xff;
-             //}
-             //else{
-
-             //bytes to unsigned bytes in an integer by casting the byte into an int and mask (bitwise and) the new int
-             //with a 0xff to get the last 8 bits or prevent sign extension (get only positive number representation).
-             //https://mkyong.com/java/java-convert-bytes-to-unsigned-bytes/
-             //https://mkyong.com/java/java-sign-extension/
-             argument3[i] = argument2[i]&0xff; //32 bit representation & 0000 0000 0000 0000 0000 0000 1111 1111
-         }
+     * Function to print the IP Header of a frame.
+     * @param out Writer the text is rendered into
+     * @param ip View of the IP header
+     * @param checks Checksum flags of the frame (see Checksum.verify), 0 if not verified
+     * @return true if a transport header follows, false for fragments after the first
+     */
+     public static boolean ip_head(TextOutput out, Ipv4View ip, int checks){
+         check(ip.length(), Ipv4View.MIN_HEADER_LENGTH, "IP");
          /*To isolate any set of bits, apply an AND mask. If you want the last X bits of a value,
          unsigned  mask;
          mask = (1 << X) - 1;
@@ -145,111 +1034,99 @@ public class pktanalyzer {
          mask = ((1 << X) - 1) << startBit;
          isolatedXbits = value & mask;
 
-         Not applicable for X=32 (int) or X=64 (long)
+         The views (see Ipv4View) extract every field this way.
          */
-         System.out.println("-----------------------------------------------------IP Header--" +
+         out.println("-----------------------------------------------------IP Header--" +
                  "---------------------------------------------------");
-         //Extracting first 4 bits from integer
-         System.out.println("IP Version: " + (argument3[0]>>4));
-         //Extracting last 4 bits from integer
-         System.out.println("IP Header Length: " + (argument3[0]&(1<<4)-1) + "*32 = " + ((argument3[0]&(1<<4)-1)*32) +
-                 " bits/8 = " + (((argument3[0]&(1<<4)-1)*32)/8) + " bytes"); //5*32 = 160/8 bits = 20 bytes
+         out.print("IP Version: ").print(ip.version()).println();
+         out.print("IP Header Length: ").print(ip.ihl()).print("*32 = ").print(ip.ihl()*32).print(" bits/8 = ")
+                 .print((ip.ihl()*32)/8).println(" bytes"); //5*32 = 160/8 bits = 20 bytes
          //Single Byte Integer value conversion to 2-character Hexadecimal
-         System.out.println("Types of Service: 0x" + (String.format("%02X", argument3[1])));
-         //Extracting first 6 bits
-         System.out.println("DSCP: "+ (argument3[0]>>2));
-         //Extracting last 2 bits
-         System.out.println("ECN: "+ (argument3[0]&(1<<2)-1));
+         out.print("Types of Service: 0x").hex(ip.tos(), 2).println();
+         //First 6 bits of the ToS byte
+         out.print("DSCP: ").print(ip.dscp()).println();
+         //Last 2 bits of the ToS byte
+         out.print("ECN: ").print(ip.ecn()).println();
          //Extracting first 3 bits --> 8-3 = 5
-         int val1 = (argument3[1]>>5);
+         int val1 = (ip.tos()>>5);
          switch(val1) {
              case 0:
-                 System.out.println("000----- = Routine IP Precedence");
+                 out.println("000----- = Routine IP Precedence");
                  break;
                  case 1:
-                     System.out.println("001----- = Priority IP Precedence");
+                     out.println("001----- = Priority IP Precedence");
                      break;
                  case 2:
-                     System.out.println("010----- = Immediate IP Precedence");
+                     out.println("010----- = Immediate IP Precedence");
                      break;
                  case 3:
-                     System.out.println("011----- = Flash IP Precedence");
+                     out.println("011----- = Flash IP Precedence");
                      break;
                  case 4:
-                     System.out.println("100----- = Flash Override IP Precedence");
+                     out.println("100----- = Flash Override IP Precedence");
                      break;
                  case 5:
-                     System.out.println("101----- = Critic/ECP IP Precedence");
+                     out.println("101----- = Critic/ECP IP Precedence");
                      break;
                  case 6:
-                     System.out.println("110----- = Internetwork Control IP Precedence");
+                     out.println("110----- = Internetwork Control IP Precedence");
                      break;
                  case 7:
-                     System.out.println("111----- = Network Control IP Precedence");
+                     out.println("111----- = Network Control IP Precedence");
                      break;
                  default:
                      break;
          }
 
          //Extracting first 4 bits and the last bit of the result
-         if ((argument3[1]>>4&(1<<1)-1) == 0){
-             System.out.println("---0---- = Normal Delay");
+         if ((ip.tos()>>4&(1<<1)-1) == 0){
+             out.println("---0---- = Normal Delay");
          }
          else{
-             System.out.println("---1---- = Low Delay");
+             out.println("---1---- = Low Delay");
          }
 
          //Extracting first 5 bits and the last bit of the result
-         if ((argument3[1]>>3&(1<<1)-1) == 0){
-             System.out.println("----0--- = Normal Throughput");
+         if ((ip.tos()>>3&(1<<1)-1) == 0){
+             out.println("----0--- = Normal Throughput");
          }
          else{
-             System.out.println("----1--- = High Throughput");
+             out.println("----1--- = High Throughput");
          }
 
          //Extracting first 6 bits and the last bit of the result
-         if ((argument3[1]>>2&(1<<1)-1) == 0){
-             System.out.println("-----0-- = Normal Reliability");
+         if ((ip.tos()>>2&(1<<1)-1) == 0){
+             out.println("-----0-- = Normal Reliability");
          }
          else{
-             System.out.println("-----1-- = High Reliability");
+             out.println("-----1-- = High Reliability");
          }
 
-         /*Shift left and or-ing is equivalent to multiplication by power of two and adding.
-         For combination x number of higher bits and lower bits, Higher bits << x | lower bits*/
-         //Combining two bytes from byte[]
-         System.out.println("Total length: " + (argument3[2]<<8|argument3[3]) + " bytes");
-         //Combining two bytes from byte[]
-         System.out.println("Identification: " + (argument3[4]<<8|argument3[5]));
-         //Extracting first 3 bits
-         System.out.println("Flags: 0x" + (String.format("%02X", argument3[6]>>5)));
-         //Extracting first 2 bits and the last bit of the result
-         if ((argument3[6]>>6&(1<<1)-1) == 0){
-             System.out.println("-0- = Do not Fragment (DF) bit is 0. The packet should be fragmented");
+         out.print("Total length: ").print(ip.totalLength()).println(" bytes");
+         out.print("Identification: ").print(ip.identification()).println();
+         out.print("Flags: 0x").hex(ip.flags(), 2).println();
+         if (!ip.dontFragment()){
+             out.println("-0- = Do not Fragment (DF) bit is 0. The packet should be fragmented");
          }
          else{
-             System.out.println("-1- = Do not Fragment (DF) bit is 1. The packet should not be fragmented");
+             out.println("-1- = Do not Fragment (DF) bit is 1. The packet should not be fragmented");
          }
 
-         //Extracting first 3 bits and the last bit of the result
-         if ((argument3[6]>>5&(1<<1)-1) == 0){
-             System.out.println("--0 = More Fragments (MF) bit is 0. This is last fragment.");
+         if (!ip.moreFragments()){
+             out.println("--0 = More Fragments (MF) bit is 0. This is last fragment.");
          }
          else{
-             System.out.println("--1 = More Fragments (MF) bit is 1. More Fragments are coming");
+             out.println("--1 = More Fragments (MF) bit is 1. More Fragments are coming");
          }
 
-         //Combining last five bits of one byte from byte[] with another byte from byte[]
-         //Extract last five bits from a byte = 000xxxxx & 00011111 = xxxxxx == 000xxxxx & ((1<<5)-1)
-         System.out.println("Fragment offset: " + (((argument3[6]&31)<<8)|argument3[7]) + " bytes");
-         System.out.println("Time to live: " + argument3[8] + " seconds/hops");
-         System.out.println("Protocol: " + argument3[9]);
-         //Combining two bytes from byte[]
-         System.out.println("Header checksum: 0x" + (String.format("%02X", (argument3[10]<<8)| argument3[11])));
-         System.out.println("Source IP address: " + argument3[12] + "." + argument3[13] + "." + argument3[14] + "." +
-                 argument3[15]);
-         System.out.println("Destination IP address: " + argument3[16] + "." + argument3[17] + "." + argument3[18] + "."
-                 + argument3[19]);
+         out.print("Fragment offset: ").print(ip.fragmentOffset()).println(" bytes");
+         out.print("Time to live: ").print(ip.ttl()).println(" seconds/hops");
+         out.print("Protocol: ").print(ip.protocol()).println();
+         out.print("Header checksum: 0x").hex(ip.checksum(), 2);
+         checksum_status(out, Checksum.ipv4Status(checks, ip));
+         out.println();
+         out.print("Source IP address: ").ipv4(ip.source()).println();
+         out.print("Destination IP address: ").ipv4(ip.destination()).println();
          //Extracted 20 bytes of IP header information
 
          //Check if Options for IP header exists by checking the condition IHL > 5
@@ -258,294 +1135,391 @@ public class pktanalyzer {
          The minimum value for this field is 5, which indicates a length of 5 × 32 bits = 160 bits = 20 bytes. As a
          4-bit field, the maximum value is 15, this means that the maximum size of the IPv4 header is 15 × 32 bits =
          480 bits = 60 bytes.*/
-
-         //Check if IHL > 5 i.e. extract last 4 bits
-         if ((argument3[0]&(1<<4)-1) > 5) {
-             int length_val = ((argument3[0]&(1<<4)-1)*32)/8;
-             int option_length = length_val - 20;
-             //Copy the payload of IP header, skipping the options field for further analysis
-             System.arraycopy(argument2, 20 + option_length, header, 0, argument2.length - length_val);
-             System.out.println("IP Header has Options of length " + option_length + " bytes");
+         if (ip.ihl() > 5) {
+             out.print("IP Header has Options of length ").print(ip.headerLength() - 20).println(" bytes");
          } else {
-             //Copy the payload of IP header. Options field is not present.
-             System.arraycopy(argument2, 20, header, 0, argument2.length - 20);
-             System.out.println("IP Header has No options");
+             out.println("IP Header has No options");
          }
+         check(ip.length(), ip.headerLength(), "IP");
 
-         //Check the type of header that IP header payload contains by checking the field Protocol
-         if (argument2[9] == 17){
-             udp_head(header);
-         }
-         else if (argument2[9] == 6){
-             tcp_head(header);
-         }
-         else if (argument2[9] == 1){
-             icmp_head(header);
-         }
-         else{ //54
-             arp_head(argument2);
+         //Only the first fragment starts with the transport header
+         if (ip.fragmentOffset() != 0) {
+             out.println("Fragment of a larger datagram, the transport header is in the first fragment");
+             return false;
          }
+         return true;
+    }
+
+    /**
+     * Function to print the IPv6 Header of a frame and the size of its extension headers.
+     * @param out Writer the text is rendered into
+     * @param ip View of the IPv6 header
+     * @return true if a transport header follows, false for fragments after the first
+     */
+    public static boolean ipv6_head(TextOutput out, Ipv6View ip) {
+        check(ip.length(), Ipv6View.HEADER_LENGTH, "IPv6");
+        out.println("--------------------------------------------------IPv6 Header-----" +
+                "-------------------------------------------------");
+        out.print("IP Version: ").print(ip.version()).println();
+        out.print("Traffic Class: 0x").hex(ip.trafficClass(), 2).println();
+        out.print("Flow Label: 0x").hex(ip.flowLabel(), 5).println();
+        out.print("Payload Length: ").print(ip.payloadLength()).println(" bytes");
+        out.print("Next Header: ").print(ip.nextHeader()).println();
+        out.print("Hop Limit: ").print(ip.hopLimit()).println();
+        out.print("Source IP address: ").ipv6(ip.sourceHigh(), ip.sourceLow()).println();
+        out.print("Destination IP address: ").ipv6(ip.destinationHigh(), ip.destinationLow()).println();
+        if (ip.extensionLength() > 0) {
+            out.print("IPv6 Header has Extension headers of length ").print(ip.extensionLength())
+                    .print(" bytes, then protocol ").print(ip.protocol()).println();
+        } else {
+            out.println("IPv6 Header has No extension headers");
+        }
+        if (ip.fragmentOffset() != 0) {
+            out.println("Fragment of a larger datagram, the transport header is in the first fragment");
+            return false;
+        }
+        return true;
     }
 
     /**
-     * Function to decode the UDP Header from the UDP packet provided by user.
-     * @param argument4 Byte Array containing encapsulated UDP Header
+     * Function to print a payload as rows of 8 hexadecimal values followed by its text. Skipped below full
+     * verbosity.
+     * @param out Writer the text is rendered into
+     * @param label Name of the header the payload belongs to
+     * @param buffer Buffer holding the payload
+     * @param offset Offset of the payload
+     * @param length Number of payload bytes
      */
-    public static void udp_head(byte[] argument4){
-        int counter = 0;
-        int[] argument5 = new int[argument4.length];
-        //Converting signed bytes to unsigned bytes by 2's complement
-        for(int i=0; i<argument4.length; i++) {
-            argument5[i] = argument4[i]&0xff;
+    static void payload(TextOutput out, String label, ByteBuffer buffer, int offset, int length) {
+        if (out.verbosity() != TextOutput.Verbosity.FULL) {
+            return;
         }
+        out.print(label).println(" Payload/Data:\n ");
+        out.println("Hexadecimal Values= ");
+        out.hexRows(buffer, offset, length);
+        out.println("\n");
+        //Printable payload bytes as text
+        out.println("ASCII Values=");
+        out.ascii(buffer, offset, length).println();
+    }
 
-        System.out.println("---------------------------------------------------UDP Header---" +
+    /**
+     * Function to print the UDP Header and its payload.
+     * @param out Writer the text is rendered into
+     * @param udp View of the UDP datagram
+     * @param checksum What the check of its checksum found (see checksum_status)
+     */
+    public static void udp_head(TextOutput out, UdpView udp, int checksum){
+        check(udp.length(), UdpView.HEADER_LENGTH, "UDP");
+        out.println("---------------------------------------------------UDP Header---" +
                 "---------------------------------------------------");
-        //Combining two bytes from byte[]
-        System.out.println("Source port: " + ((argument5[0]<<8)|argument5[1]));
-        //Combining two bytes from byte[]
-        System.out.println("Destination port: " + ((argument5[2]<<8)|argument5[3]));
-        //Combining two bytes from byte[]
-        System.out.println("Length: " + ((argument5[4]<<8)|argument5[5]));
-        //Combining two bytes from byte[]
-        System.out.println("UDP Checksum: 0x" + (String.format("%02X", (argument5[6]<<8)| argument5[7])));
-        //UDP header length is 8. Check for the length of data field in UDP packet
-        byte[] data = new byte[argument5.length - 8];
-        //Integer values are not needed, so no need to convert signed to unsigned.
-        System.arraycopy(argument4, 8, data, 0, data.length);
-        System.out.println("UDP Payload/Data:\n ");
-        System.out.println("Hexadecimal Values= ");
-        for (int i = 8; i<argument5.length; i++) {
-            counter++;
-            System.out.print(String.format("%02X", (argument5[i])) + " ");
-            //Print 8 values in a row
-            if (counter%8 == 0){
-                System.out.print("\n");
-            }
-        }
-        System.out.println("\n");
-        //Convert byte[] into string data
-        System.out.println("ASCII Values=\n" + new String(data));
-    }
-
-    /**
-     * Function to decode the TCP Header from the TCP packet provided by user.
-     * @param argument6 Byte Array containing encapsulated TCP Header
-     */
-    public static void tcp_head(byte[] argument6){
-        int counter = 0;
-        byte[] header1 = new byte[argument6.length];
-
-        long[] argument7 = new long[argument6.length];
-        //Converting signed bytes to unsigned bytes by 2's complement
-        for(int i=0; i<argument6.length; i++) {
-            argument7[i] = argument6[i]&0xff;
-        }
-
-        System.out.println("---------------------------------------------------TCP Header-----" +
+        out.print("Source port: ").print(udp.sourcePort()).println();
+        out.print("Destination port: ").print(udp.destinationPort()).println();
+        out.print("Length: ").print(udp.udpLength()).println();
+        out.print("UDP Checksum: 0x").hex(udp.checksum(), 2);
+        if (udp.checksum() == 0 && checksum != Checksum.NOT_VERIFIED) {
+            out.print(" (none)");
+        } else {
+            checksum_status(out, checksum);
+        }
+        out.println();
+        if (udp.isDns() && udp.dns().isValid()) {
+            dns_head(out, udp.dns());
+        }
+        //UDP header length is 8. The data field is the rest of the UDP packet
+        payload(out, "UDP", udp.buffer(), udp.payloadOffset(), udp.payloadLength());
+    }
+
+    /**
+     * Function to print the TCP Header and its payload.
+     * @param out Writer the text is rendered into
+     * @param tcp View of the TCP segment
+     * @param checksum What the check of its checksum found (see checksum_status)
+     */
+    public static void tcp_head(TextOutput out, TcpView tcp, int checksum){
+        check(tcp.length(), TcpView.MIN_HEADER_LENGTH, "TCP");
+        out.println("---------------------------------------------------TCP Header-----" +
                 "-------------------------------------------------");
-        //Combining two bytes from byte[]
-        System.out.println("Source port: " + ((argument7[0]<<8)|argument7[1]));
-        //Combining two bytes from byte[]
-        System.out.println("Destination port: " + ((argument7[2]<<8)|argument7[3]));
-        //Combining four bytes from byte[]
-        System.out.println("Sequence Number: " + ((argument7[4]<<24)|(argument7[5]<<16)| (argument7[6]<<8)|argument7[7]));
-        //Combining four bytes from byte[]
-        System.out.println("Acknowledgement Number: " + (((argument7[8]<<24)| (argument7[9]<<16)|(argument7[10]<<8)|
-                argument7[11])));
-        //Extracting first four bits --> Header Length
-        System.out.println("Data Offset: " + (argument7[12]>>4&(1<<4)-1) + "*32 = 256 bits/8 = 32 bytes");
-        //Combining last six bits of one byte from byte[]
-        System.out.println("Flags: 0x" + (String.format("%02X", ((argument7[13]&((1<<6)-1))))));
-        //Extracting first 3 bits and the last bit of the result
-        if ((argument7[13]>>5&(1<<1)-1) == 0){
-            System.out.println("--0----- = No Urgent Pointer");
+        out.print("Source port: ").print(tcp.sourcePort()).println();
+        out.print("Destination port: ").print(tcp.destinationPort()).println();
+        out.print("Sequence Number: ").print(tcp.sequence()).println();
+        out.print("Acknowledgement Number: ").print(tcp.acknowledgement()).println();
+        //First four bits of byte 12 --> Header Length
+        out.print("Data Offset: ").print(tcp.dataOffset()).print("*32 = ").print(tcp.dataOffset()*32)
+                .print(" bits/8 = ").print(tcp.dataOffset()*4).println(" bytes");
+        out.print("Flags: 0x").hex(tcp.flags(), 2).println();
+        if (!tcp.has(TcpView.URG)){
+            out.println("--0----- = No Urgent Pointer");
         }
         else{
-            System.out.println("--1----- = Urgent Pointer");
+            out.println("--1----- = Urgent Pointer");
         }
-        //Extracting first 4 bits and the last bit of the result
-        if ((argument7[13]>>4&(1<<1)-1) == 0){
-            System.out.println("---0---- = No Acknowledgement");
+        if (!tcp.has(TcpView.ACK)){
+            out.println("---0---- = No Acknowledgement");
         }
         else{
-            System.out.println("---1---- = Acknowledgement");
+            out.println("---1---- = Acknowledgement");
         }
-        //Extracting first 5 bits and the last bit of the result
-        if ((argument7[13]>>3&(1<<1)-1) == 0){
-            System.out.println("----0--- = No Push Request");
+        if (!tcp.has(TcpView.PSH)){
+            out.println("----0--- = No Push Request");
         }
         else{
-            System.out.println("----1--- = Push Request");
+            out.println("----1--- = Push Request");
         }
-        //Extracting first 6 bits and the last bit of the result
-        if ((argument7[13]>>2&(1<<1)-1) == 0){
-            System.out.println("-----0-- = No Reset");
+        if (!tcp.has(TcpView.RST)){
+            out.println("-----0-- = No Reset");
         }
         else{
-            System.out.println("-----1-- = Reset");
+            out.println("-----1-- = Reset");
         }
-        //Extracting first 7 bits and the last bit of the result
-        if ((argument7[13]>>1&(1<<1)-1) == 0){
-            System.out.println("------0- = No Syn");
+        if (!tcp.has(TcpView.SYN)){
+            out.println("------0- = No Syn");
         }
         else{
-            System.out.println("------1- = Syn");
+            out.println("------1- = Syn");
         }
-        //Extracting first 8 bits and the last bit of the result
-        if ((argument7[13]&(1<<1)-1) == 0){
-            System.out.println("-------0 = No Fin");
+        if (!tcp.has(TcpView.FIN)){
+            out.println("-------0 = No Fin");
         }
         else{
-            System.out.println("-------1 = Fin");
-        }
-        //Combining two bytes from byte[]
-        System.out.println("Window: " + ((argument7[14]<<8)|argument7[15]));
-        //Combining two bytes from byte[]
-        System.out.println("TCP Checksum: 0x" + (String.format("%02X", (argument7[16]<<8)|
-                (argument7[17]))));
-        //Combining two bytes from byte[]
-        System.out.println("Urgent Pointer: " + ((argument7[18]<<8)|argument7[19]));
-        //Check if Options for UDP header exists by checking the condition Header Length > 5
-
-        /*This field specifies the length in bytes of the UDP header and UDP data. The minimum length is 8 bytes, the
-        length of the header. The field size sets a theoretical limit of 65,535 bytes (8 byte header + 65,527 bytes of
-        data) for a UDP datagram.*/
-        if (argument7[12]>>4 >5) {
-            int length_val = (int) ((argument7[12]>>4)*32)/8;
-            int option_length = length_val - 20;
-            //Copy the payload of UDP header, skipping the options field for further analysis
-            System.arraycopy(argument6, 20 + option_length, header1, 0, argument7.length - length_val);
-            System.out.println("TCP Header has Options of length " + option_length + " bytes");
+            out.println("-------1 = Fin");
+        }
+        out.print("Window: ").print(tcp.window()).println();
+        out.print("TCP Checksum: 0x").hex(tcp.checksum(), 2);
+        checksum_status(out, checksum);
+        out.println();
+        out.print("Urgent Pointer: ").print(tcp.urgentPointer()).println();
+
+        //Check if Options for TCP header exists by checking the condition Data Offset > 5
+        if (tcp.dataOffset() > 5) {
+            out.print("TCP Header has Options of length ").print(tcp.headerLength() - 20).println(" bytes");
         } else {
-            //Copy the payload of UDP header. Options field is not present.
-            System.arraycopy(argument6, 20, header1, 0, argument7.length - 20);
-            System.out.println("TCP Header has No options");
+            out.println("TCP Header has No options");
+        }
+        check(tcp.length(), tcp.headerLength(), "TCP");
+
+        //Application header at the start of the payload
+        if (tcp.isDns() && tcp.dns().isValid()) {
+            dns_head(out, tcp.dns());
+        } else if (tcp.payloadLength() > 0 && tcp.http().kind() != HttpView.NONE) {
+            http_head(out, tcp.http());
         }
 
-        System.out.println("TCP Payload/Data:\n ");
-        System.out.println("Hexadecimal Values= ");
-        for (int i = 0; i<argument7.length; i++) {
-            counter++;
-            System.out.print(String.format("%02X", (header1[i])) + " ");
-            //Print 8 values in a row
-            if (counter%8 == 0){
-                System.out.print("\n");
+        payload(out, "TCP", tcp.buffer(), tcp.payloadOffset(), tcp.payloadLength());
+    }
+
+    /**
+     * Function to print the ICMP Header.
+     * @param out Writer the text is rendered into
+     * @param icmp View of the ICMP message
+     * @param checksum What the check of its checksum found (see checksum_status)
+     */
+    public static void icmp_head(TextOutput out, IcmpView icmp, int checksum){
+        check(icmp.length(), IcmpView.HEADER_LENGTH, "ICMP");
+        out.println("---------------------------------------------------ICMP Header--" +
+                "----------------------------------------------------");
+        out.print("Message Type: ").print(icmp.type()).println();
+        out.print("Code: ").print(icmp.code()).println();
+        out.print("ICMP Checksum: 0x").hexLower(icmp.checksum(), 2);
+        checksum_status(out, checksum);
+        out.println();
+    }
+
+    /**
+     * Function to print the ICMPv6 Header.
+     * @param out Writer the text is rendered into
+     * @param icmp View of the ICMPv6 message
+     */
+    public static void icmpv6_head(TextOutput out, IcmpView icmp) {
+        check(icmp.length(), IcmpView.HEADER_LENGTH, "ICMPv6");
+        out.println("--------------------------------------------------ICMPv6 Header---" +
+                "-------------------------------------------------");
+        out.print("Message Type: ").print(icmp.type());
+        String name = icmpv6_type(icmp.type());
+        if (name != null) {
+            out.print(" (").print(name).print(')');
+        }
+        out.println();
+        out.print("Code: ").print(icmp.code()).println();
+        out.print("ICMPv6 Checksum: 0x").hexLower(icmp.checksum(), 2).println();
+    }
+
+    /**
+     * Function to name the common ICMPv6 message types (RFC 4443 and Neighbor Discovery, RFC 4861).
+     * @param type Message type
+     * @return Name, null for other types
+     */
+    static String icmpv6_type(int type) {
+        switch (type) {
+            case 1: return "Destination Unreachable";
+            case 2: return "Packet Too Big";
+            case 3: return "Time Exceeded";
+            case 4: return "Parameter Problem";
+            case 128: return "Echo Request";
+            case 129: return "Echo Reply";
+            case 133: return "Router Solicitation";
+            case 134: return "Router Advertisement";
+            case 135: return "Neighbor Solicitation";
+            case 136: return "Neighbor Advertisement";
+            case 137: return "Redirect";
+            default: return null;
+        }
+    }
+
+    /**
+     * Function to print the DNS Header, its questions and its resource records. Names are printed straight from the
+     * message; records past the captured bytes are reported instead.
+     * @param out Writer the text is rendered into
+     * @param dns View of the DNS message
+     */
+    public static void dns_head(TextOutput out, DnsView dns) {
+        out.println("---------------------------------------------------DNS Header---" +
+                "---------------------------------------------------");
+        out.print("Transaction ID: 0x").hex(dns.id(), 4).println();
+        out.print("Flags: 0x").hex(dns.flags(), 4);
+        if (!dns.isResponse()) {
+            out.println(dns.opcode() == 0 ? " (Standard query)" : " (Query)");
+        } else if (dns.responseCode() == 0) {
+            out.println(" (Response, No error)");
+        } else {
+            out.print(" (Response, Error ").print(dns.responseCode()).println(")");
+        }
+        out.print("Questions: ").print(dns.questionCount()).println();
+        out.print("Answer RRs: ").print(dns.answerCount()).println();
+        out.print("Authority RRs: ").print(dns.authorityCount()).println();
+        out.print("Additional RRs: ").print(dns.additionalCount()).println();
+
+        int questions = dns.questionCount();
+        int answers = questions + dns.answerCount();
+        int authorities = answers + dns.authorityCount();
+        int total = authorities + dns.additionalCount();
+        int record = DnsView.HEADER_LENGTH;
+        for (int n = 0; n < total; n++) {
+            boolean question = n < questions;
+            //A question needs its type and class, a record its data as well
+            if (record >= dns.length() || (question ? dns.recordClass(record) < 0 : !dns.isComplete(record))) {
+                out.print("DNS message cut off after ").print(n).println(" records");
+                return;
             }
+            out.print(question ? "Query: " : n < answers ? "Answer: " : n < authorities ? "Authority: "
+                    : "Additional: ");
+            dns.name(out, record);
+            out.print(" type ");
+            dns_type(out, dns.type(record));
+            if (question) {
+                out.print(" class ").print(dns.recordClass(record)).println();
+            } else {
+                out.print(" class ").print(dns.recordClass(record)).print(" TTL ").print(dns.ttl(record));
+                dns_data(out, dns, record);
+                out.println();
+            }
+            record = dns.next(record, question);
         }
-        System.out.println("\n");
-        //Convert byte[] into string data
-        System.out.println("ASCII Values=\n" + new String(header1));
     }
 
     /**
-     * Function to decode the ICMP Header from the ICMP packet provided by user.
-     * @param argument8 Byte Array containing encapsulated ICMP Header
+     * Function to print the data of a DNS resource record: the address of A and AAAA records, the name of CNAME, NS
+     * and PTR records, the length of anything else.
+     * @param out Writer the text is rendered into
+     * @param dns View of the DNS message
+     * @param record Index of the record in the message
      */
-    public static void icmp_head(byte[] argument8){
-        long[] argument9 = new long[argument8.length];
-        //Converting signed bytes to unsigned bytes by 2's complement
-        for(int i=0; i<argument8.length; i++) {
-            argument9[i] = argument8[i]& 0xff;
+    static void dns_data(TextOutput out, DnsView dns, int record) {
+        int type = dns.type(record);
+        int data = dns.dataIndex(record);
+        int length = dns.dataLength(record);
+        if (type == DnsView.TYPE_A && length == 4) {
+            out.print(" Address ").ipv4(dns.ipv4(data));
+        } else if (type == DnsView.TYPE_AAAA && length == 16) {
+            out.print(" Address ").ipv6(dns.u64(data), dns.u64(data + 8));
+        } else if (type == DnsView.TYPE_CNAME || type == DnsView.TYPE_NS || type == DnsView.TYPE_PTR) {
+            out.print(" Name ");
+            dns.name(out, data);
+        } else {
+            out.print(" Data ").print(length).print(" bytes");
         }
-        System.out.println("---------------------------------------------------ICMP Header--" +
-                "----------------------------------------------------");
-        System.out.println("Message Type: " + (argument9[0]));
-        System.out.println("Code: " + (argument9[1]));
-        //Combining two bytes from byte[]
-        System.out.println("ICMP Checksum: 0x" + (String.format("%02x", (argument9[2]<<8)|(argument9[3]))));
     }
 
     /**
-     * Function to decode the ARP Header from the ARP packet provided by user.
-     * @param argument10 Byte Array containing encapsulated ARP Header
+     * Function to print the mnemonic of a DNS record type (RFC 1035, 3596, 2782, 6891, 9460).
+     * @param out Writer the text is rendered into
+     * @param type Record type
      */
-    public static void arp_head(byte[] argument10){
-        long[] argument11 = new long[argument10.length];
-        //Converting signed bytes to unsigned bytes
-        for(int i=0; i<argument10.length; i++) {
-            argument11[i] = argument10[i]& 0xff;
+    static void dns_type(TextOutput out, int type) {
+        switch (type) {
+            case 1: out.print("A"); break;
+            case 2: out.print("NS"); break;
+            case 5: out.print("CNAME"); break;
+            case 6: out.print("SOA"); break;
+            case 12: out.print("PTR"); break;
+            case 15: out.print("MX"); break;
+            case 16: out.print("TXT"); break;
+            case 28: out.print("AAAA"); break;
+            case 33: out.print("SRV"); break;
+            case 41: out.print("OPT"); break;
+            case 65: out.print("HTTPS"); break;
+            case 255: out.print("ANY"); break;
+            default: out.print("TYPE").print(type); break;
         }
-        System.out.println("---------------------------------------------------ARP Header---" +
+    }
+
+    /**
+     * Function to print the start line and header lines of an HTTP message as they are in the payload.
+     * @param out Writer the text is rendered into
+     * @param http View of the start of the message
+     */
+    public static void http_head(TextOutput out, HttpView http) {
+        out.println("---------------------------------------------------HTTP Header--" +
+                "---------------------------------------------------");
+        out.print(http.kind() == HttpView.REQUEST ? "Request Line: " : "Status Line: ")
+                .ascii(http.buffer(), http.offset(), http.lineLength(0)).println();
+        int index = http.nextLine(0);
+        while (index < http.length() && http.lineLength(index) > 0) {
+            out.ascii(http.buffer(), http.offset() + index, http.lineLength(index)).println();
+            index = http.nextLine(index);
+        }
+        if (index < http.length()) {
+            out.print("HTTP Header length: ").print(http.nextLine(index)).println(" bytes");
+        } else {
+            out.println("HTTP Header continues past this segment");
+        }
+    }
+
+    /**
+     * Function to print the ARP Header.
+     * @param out Writer the text is rendered into
+     * @param arp View of the ARP packet
+     */
+    public static void arp_head(TextOutput out, ArpView arp){
+        check(arp.length(), ArpView.HEADER_LENGTH, "ARP");
+        out.println("---------------------------------------------------ARP Header---" +
                 "---------------------------------------------------");
         //Check Opcode
-        System.out.println("From Opcode");
-        if (((argument11[6]<<8)|argument11[7]) == 1) {
-            System.out.println("This is an ARP Request");
+        out.println("From Opcode");
+        if (arp.opcode() == ArpView.REQUEST) {
+            out.println("This is an ARP Request");
         }
         else{
-            System.out.println("This is an ARP Response");
+            out.println("This is an ARP Response");
         }
-        //Combining two bytes from byte[]
-        System.out.println("Hardware Type: " + ((argument11[0]<<8)|argument11[1]));
-        //Combining two bytes from byte[]
-        System.out.print("Protocol Type: 0x" + (String.format("%02x", (argument11[2]<<8)|argument11[3])));
+        out.print("Hardware Type: ").print(arp.hardwareType()).println();
+        out.print("Protocol Type: 0x").hexLower(arp.protocolType(), 2);
         //Check for protocol type
-        if (((argument11[2]<<8)|argument11[3]) == 2048){
-            System.out.println(" (IPv4)");
+        if (arp.protocolType() == PacketView.ETHERTYPE_IPV4){
+            out.println(" (IPv4)");
         }
-        //Combining two bytes from byte[]
-        System.out.println("Hardware Address Length: " + (argument11[4]));
-        System.out.println("Protocol Address Length: " + (argument11[5]));
-        //Combining two bytes from byte[]
-        System.out.print("Operation Request Code: " + ((argument11[6]<<8)|argument11[7]));
-        if (((argument11[6]<<8)|argument11[7]) == 1) {
-            System.out.println(" (ARP Request)");
+        out.print("Hardware Address Length: ").print(arp.hardwareLength()).println();
+        out.print("Protocol Address Length: ").print(arp.protocolLength()).println();
+        out.print("Operation Request Code: ").print(arp.opcode());
+        if (arp.opcode() == ArpView.REQUEST) {
+            out.println(" (ARP Request)");
         }
         else{
-            System.out.println(" (ARP Response)");
-        }
-        //Combining six bytes from byte[]
-        System.out.print("Source Hardware Address: ");
-        for (int i = 8; i < 14; i++) {
-            //Bytes conversion to Hexadecimal
-            String st = String.format("%02X", argument11[i]);
-            if (i == 13) {
-                System.out.println(st);
-            } else {
-                System.out.print(st + ":");
-            }
-        }
-        /***************************************************************************************
-         * Sample Code Availability: http://helpdesk.objects.com.au/java/how-do-i-convert-an-ip-
-         * address-into-an-array-of-bytes
-         ***************************************************************************************/
-        //Combining four bytes from byte[]
-        System.out.print("Source Protocol Address: ");
-        String addressStr = "";
-        for (int i = 14; i < 18; ++i)
-        {
-            long t = 0xFF & argument11[i]; //Convert signed bytes to unsigned bytes
-            addressStr += "." + t;
-        }
-        addressStr = addressStr.substring(1); //Extract substring from the first position, excluding the 0th position.
-        System.out.println(addressStr);
-        //Combining six bytes from byte[]
-        System.out.print("Target Hardware Address: ");
-        for (int i = 18; i < 24; i++) {
-            //Bytes conversion to Hexadecimal
-            String st = String.format("%02X", argument11[i]);
-            if (i == 23) {
-                System.out.println(st);
-            } else {
-                System.out.print(st + ":");
-            }
-        }
-        /***************************************************************************************
-         * Sample Code Availability: http://helpdesk.objects.com.au/java/how-do-i-convert-an-ip-
-         * address-into-an-array-of-bytes
-         ***************************************************************************************/
-        //Combining four bytes from byte[]
-        System.out.print("Target Protocol Address: ");
-        StringBuilder addressStr1 = new StringBuilder();
-        //Combining four bytes
-        for (int i = 24; i < 28; ++i)
-        {
-            long t = 0xFF & argument11[i]; //Convert signed bytes to unsigned bytes
-            addressStr1.append(".").append(t);
-        }
-        addressStr1 = new StringBuilder(addressStr1.substring(1)); //Extract substring from the first position,
-        //excluding the 0th position.
-        System.out.println(addressStr1);
-    }
-} //pktanalyzer
\ No newline at end of file
+            out.println(" (ARP Response)");
+        }
+        out.print("Source Hardware Address: ").mac(arp.senderMac()).println();
+        out.print("Source Protocol Address: ").ipv4(arp.senderIp()).println();
+        out.print("Target Hardware Address: ").mac(arp.targetMac()).println();
+        out.print("Target Protocol Address: ").ipv4(arp.targetIp()).println();
+    }
+} //pktanalyzer